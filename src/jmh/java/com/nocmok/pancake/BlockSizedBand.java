@@ -0,0 +1,112 @@
+package com.nocmok.pancake;
+
+import java.nio.ByteBuffer;
+
+/** Band view, that reports specified block size instead of native one */
+class BlockSizedBand implements PancakeBand {
+
+    private final PancakeBand band;
+
+    private final int blockXSize;
+
+    private final int blockYSize;
+
+    BlockSizedBand(PancakeBand band, int blockXSize, int blockYSize) {
+        this.band = band;
+        this.blockXSize = Integer.min(blockXSize, band.getXSize());
+        this.blockYSize = Integer.min(blockYSize, band.getYSize());
+    }
+
+    @Override
+    public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize, int buf_type,
+            ByteBuffer nioBuffer) {
+        return band.readRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, buf_type, nioBuffer);
+    }
+
+    @Override
+    public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize, int buf_type,
+            ByteBuffer nioBuffer, int nPixelSpace, int nLineSpace) {
+        return band.readRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, buf_type, nioBuffer,
+                nPixelSpace, nLineSpace);
+    }
+
+    @Override
+    public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize,
+            ByteBuffer nioBuffer) {
+        return band.readRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, nioBuffer);
+    }
+
+    @Override
+    public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, ByteBuffer nioBuffer) {
+        return band.readRasterDirect(xoff, yoff, xsize, ysize, nioBuffer);
+    }
+
+    @Override
+    public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize, int buf_type,
+            ByteBuffer nioBuffer) {
+        return band.writeRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, buf_type, nioBuffer);
+    }
+
+    @Override
+    public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize, int buf_type,
+            ByteBuffer nioBuffer, int nPixelSpace, int nLineSpace) {
+        return band.writeRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, buf_type, nioBuffer,
+                nPixelSpace, nLineSpace);
+    }
+
+    @Override
+    public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize,
+            ByteBuffer nioBuffer) {
+        return band.writeRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, nioBuffer);
+    }
+
+    @Override
+    public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, ByteBuffer nioBuffer) {
+        return band.writeRasterDirect(xoff, yoff, xsize, ysize, nioBuffer);
+    }
+
+    @Override
+    public int getXSize() {
+        return band.getXSize();
+    }
+
+    @Override
+    public int getYSize() {
+        return band.getYSize();
+    }
+
+    @Override
+    public int getBlockXSize() {
+        return blockXSize;
+    }
+
+    @Override
+    public int getBlockYSize() {
+        return blockYSize;
+    }
+
+    @Override
+    public int getRasterDatatype() {
+        return band.getRasterDatatype();
+    }
+
+    @Override
+    public double getNoData() {
+        return band.getNoData();
+    }
+
+    @Override
+    public double maxValue() {
+        return band.maxValue();
+    }
+
+    @Override
+    public double minValue() {
+        return band.minValue();
+    }
+
+    @Override
+    public PancakeDataset dataset() {
+        return band.dataset();
+    }
+}
@@ -0,0 +1,87 @@
+package com.nocmok.pancake;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+import org.gdal.gdal.gdal;
+
+/**
+ * Synthetic rasters for benchmarks. Rasters are kept in memory with gdal MEM
+ * driver, so benchmarks don't depend on test data and disk speed.
+ */
+public class SyntheticRasters {
+
+    private SyntheticRasters() {
+
+    }
+
+    /**
+     * 
+     * @param name gdal name of data type, for example Byte or UInt16
+     * @return pancake data type
+     */
+    public static int datatype(String name) {
+        int dtype = gdal.GetDataTypeByName(name);
+        if (dtype == Pancake.TYPE_UNKNOWN) {
+            throw new RuntimeException("unknown data type " + name);
+        }
+        return dtype;
+    }
+
+    /**
+     * Fills buffer with smooth gradient plus pseudo random noise, so that
+     * histograms and high frequencies are not degenerate
+     */
+    public static void fill(ByteBuffer buf, int xsize, int ysize, int dtype, long seed) {
+        Random random = new Random(seed);
+        ByteBuffer dst = buf.duplicate().order(ByteOrder.nativeOrder());
+        double max = Pancake.dtMax(dtype);
+        for (int y = 0; y < ysize; ++y) {
+            for (int x = 0; x < xsize; ++x) {
+                double gradient = 0.5 * ((double) x / xsize + (double) y / ysize);
+                double value = Math.min(1d, gradient * 0.8 + random.nextDouble() * 0.2) * max;
+                int offset = (y * xsize + x) * Pancake.dtBytes(dtype);
+                switch (dtype) {
+                case Pancake.TYPE_BYTE:
+                    dst.put(offset, (byte) value);
+                    break;
+                case Pancake.TYPE_INT_16:
+                case Pancake.TYPE_UINT_16:
+                    dst.putShort(offset, (short) value);
+                    break;
+                default:
+                    throw new UnsupportedOperationException(
+                            "synthetic rasters for " + Pancake.dtName(dtype) + " not implemented");
+                }
+            }
+        }
+    }
+
+    /**
+     * 
+     * @return in-memory dataset, which bands are filled with synthetic data
+     */
+    public static PancakeDataset create(int xsize, int ysize, int nBands, int dtype, long seed) {
+        PancakeDataset dataset = Pancake.create(Formats.MEM, new File("synthetic"), xsize, ysize, nBands, dtype,
+                new PancakeOptions());
+        ByteBuffer buf = ByteBuffer.allocateDirect(xsize * ysize * Pancake.dtBytes(dtype))
+                .order(ByteOrder.nativeOrder());
+        for (PancakeBand band : dataset.bands()) {
+            fill(buf, xsize, ysize, dtype, seed++);
+            band.writeRasterDirect(0, 0, xsize, ysize, buf);
+        }
+        return dataset;
+    }
+
+    /**
+     * MEM driver stores rasters by rows, so native block size is emulated in
+     * order to benchmark block processing with different block sizes
+     * 
+     * @return view of band, that reports specified block size
+     */
+    public static PancakeBand withBlockSize(PancakeBand band, int blockXSize, int blockYSize) {
+        return new BlockSizedBand(band, blockXSize, blockYSize);
+    }
+}
@@ -0,0 +1,96 @@
+package com.nocmok.pancake.fusor;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.nocmok.pancake.Pancake;
+import com.nocmok.pancake.PancakeBand;
+import com.nocmok.pancake.PancakeDataset;
+import com.nocmok.pancake.Spectrum;
+import com.nocmok.pancake.SyntheticRasters;
+import com.nocmok.pancake.math.GaussianHP;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * HPFM fusion of whole synthetic raster. Memory polite path is forced with
+ * memory budget, that is too small for convolution halo.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HPFMBenchmark {
+
+    @Param({ "Byte", "UInt16" })
+    public String datatype;
+
+    @Param({ "64", "256", "1024" })
+    public int blockSize;
+
+    @Param({ "5", "15" })
+    public int kernelSize;
+
+    @Param({ "false", "true" })
+    public boolean memoryPolite;
+
+    @Param({ "2048" })
+    public int rasterSize;
+
+    private PancakeDataset source;
+
+    private PancakeDataset target;
+
+    private Map<Spectrum, PancakeBand> src;
+
+    private Map<Spectrum, PancakeBand> dst;
+
+    private HPFM hpfm;
+
+    @Setup
+    public void setup() {
+        Pancake.load();
+        int dtype = SyntheticRasters.datatype(datatype);
+        source = SyntheticRasters.create(rasterSize, rasterSize, 4, dtype, 0);
+        target = SyntheticRasters.create(rasterSize, rasterSize, 3, dtype, 4);
+
+        src = new EnumMap<>(Spectrum.class);
+        dst = new EnumMap<>(Spectrum.class);
+        src.put(Spectrum.PA, SyntheticRasters.withBlockSize(source.bands().get(0), blockSize, blockSize));
+        int band = 1;
+        for (Spectrum spect : Spectrum.RGB()) {
+            src.put(spect, SyntheticRasters.withBlockSize(source.bands().get(band), blockSize, blockSize));
+            dst.put(spect, SyntheticRasters.withBlockSize(target.bands().get(band - 1), blockSize, blockSize));
+            ++band;
+        }
+        hpfm = new HPFM(GaussianHP.ofSize(kernelSize));
+        if (memoryPolite) {
+            hpfm.setMemoryBudget(hpfm.minMemoryBudget(dst, src) - 1);
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        source.close();
+        target.close();
+    }
+
+    @Benchmark
+    public void fuse() {
+        hpfm.fuse(dst, src);
+    }
+}
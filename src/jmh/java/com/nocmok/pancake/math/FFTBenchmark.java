@@ -0,0 +1,78 @@
+package com.nocmok.pancake.math;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** 1d fft with complex objects against precomputed plan over double array */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FFTBenchmark {
+
+    /** 4000 is transformed by mixed radix plan, 4099 is prime */
+    @Param({ "256", "4096", "65536", "4000", "4099" })
+    public int size;
+
+    private ComplexBuffer in;
+
+    /**
+     * padded wrapper is transformed with complex objects, if size is power of 2,
+     * and through buffer interface otherwise
+     */
+    private ComplexBuffer complexOut;
+
+    private ComplexBuffer planOut;
+
+    private double[] realIn;
+
+    private double[] realOut;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        in = new NioComplexBuffer(size);
+        for (int i = 0; i < size; ++i) {
+            in.set(i, random.nextDouble(), random.nextDouble());
+        }
+        complexOut = PaddedComplexBuffer.pad(new NioComplexBuffer(size), 0);
+        planOut = new NioComplexBuffer(size);
+        realIn = new double[size];
+        for (int i = 0; i < size; ++i) {
+            realIn[i] = in.re(i);
+        }
+        realOut = new double[2 * RealFFTPlan.of(size).spectrumSize()];
+    }
+
+    @Benchmark
+    public ComplexBuffer complexFft() {
+        FFT.fft1(in, complexOut);
+        return complexOut;
+    }
+
+    @Benchmark
+    public ComplexBuffer planFft() {
+        FFT.fft1(in, planOut);
+        return planOut;
+    }
+
+    @Benchmark
+    public double[] realFft() {
+        RealFFTPlan.of(size).fft(realIn, 0, realOut, 0);
+        return realOut;
+    }
+}
@@ -0,0 +1,83 @@
+package com.nocmok.pancake.math;
+
+import java.util.concurrent.TimeUnit;
+
+import com.nocmok.pancake.Pancake;
+import com.nocmok.pancake.SyntheticRasters;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Math2D routines, that are hot in fusors, on single block */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Math2DBenchmark {
+
+    @Param({ "Byte", "UInt16" })
+    public String datatype;
+
+    @Param({ "256", "512", "1024" })
+    public int blockSize;
+
+    @Param({ "5", "15" })
+    public int kernelSize;
+
+    private Math2D math2d;
+
+    private Filter2D filter;
+
+    private Buffer2D src;
+
+    private Buffer2D divisor;
+
+    private Buffer2D conv;
+
+    private Buffer2D ratio;
+
+    @Setup
+    public void setup() {
+        Pancake.load();
+        int dtype = SyntheticRasters.datatype(datatype);
+        math2d = new Math2D();
+        filter = GaussianHP.ofSize(kernelSize);
+        src = Buffer2D.arrange(blockSize, blockSize, dtype);
+        SyntheticRasters.fill(src.getNioBuffer(), blockSize, blockSize, dtype, 0);
+        divisor = Buffer2D.arrange(blockSize, blockSize, dtype);
+        SyntheticRasters.fill(divisor.getNioBuffer(), blockSize, blockSize, dtype, 1);
+        conv = Buffer2D.arrange(blockSize, blockSize, Pancake.TYPE_FLOAT_32);
+        ratio = Buffer2D.arrange(blockSize, blockSize, Pancake.TYPE_FLOAT_64);
+    }
+
+    @Benchmark
+    public Buffer2D convolve() {
+        math2d.convert(src, conv);
+        math2d.convolve(conv, filter, conv);
+        return conv;
+    }
+
+    @Benchmark
+    public Buffer2D convertAndScale() {
+        math2d.convertAndScale(src, conv.datatype(), conv, Pancake.dtMin(src.datatype()),
+                Pancake.dtMax(src.datatype()), 0, Pancake.dtMax(Pancake.TYPE_UINT_16));
+        return conv;
+    }
+
+    @Benchmark
+    public Buffer2D div() {
+        math2d.div(src, divisor, ratio);
+        return ratio;
+    }
+}
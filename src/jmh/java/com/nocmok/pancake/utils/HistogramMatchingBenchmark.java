@@ -0,0 +1,96 @@
+package com.nocmok.pancake.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+
+import com.nocmok.pancake.Pancake;
+import com.nocmok.pancake.PancakeBand;
+import com.nocmok.pancake.PancakeDataset;
+import com.nocmok.pancake.SyntheticRasters;
+import com.nocmok.pancake.utils.HistogramMatching.Histogram;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Histogram computation and lookup table application on synthetic rasters.
+ * Matching reuses histogram of matched band, so it measures reference
+ * histogram and lookup table application. Matching modifies band and its
+ * histogram, so both are restored before each invocation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HistogramMatchingBenchmark {
+
+    @Param({ "Byte", "UInt16" })
+    public String datatype;
+
+    @Param({ "64", "256", "1024" })
+    public int blockSize;
+
+    @Param({ "2048" })
+    public int rasterSize;
+
+    private PancakeDataset dataset;
+
+    private PancakeBand band;
+
+    private PancakeBand ref;
+
+    private Histogram bandHist;
+
+    private HistogramMatching histogramMatching;
+
+    /** samples of matched band before matching */
+    private ByteBuffer original;
+
+    @Setup
+    public void setup() {
+        Pancake.load();
+        int dtype = SyntheticRasters.datatype(datatype);
+        dataset = SyntheticRasters.create(rasterSize, rasterSize, 2, dtype, 0);
+        band = SyntheticRasters.withBlockSize(dataset.bands().get(0), blockSize, blockSize);
+        ref = SyntheticRasters.withBlockSize(dataset.bands().get(1), blockSize, blockSize);
+        histogramMatching = new HistogramMatching();
+        original = ByteBuffer.allocateDirect(rasterSize * rasterSize * Pancake.dtBytes(dtype))
+                .order(ByteOrder.nativeOrder());
+        band.readRasterDirect(0, 0, rasterSize, rasterSize, original);
+    }
+
+    @Setup(Level.Invocation)
+    public void restoreBand() {
+        band.writeRasterDirect(0, 0, rasterSize, rasterSize, original);
+        bandHist = histogramMatching.getHistogram(band);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        dataset.close();
+    }
+
+    @Benchmark
+    public Histogram getHistogram() {
+        return histogramMatching.getHistogram(band);
+    }
+
+    @Benchmark
+    public void matchHistogram() {
+        histogramMatching.matchHistogram(band, bandHist, ref);
+    }
+}
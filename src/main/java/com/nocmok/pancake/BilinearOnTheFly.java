@@ -0,0 +1,8 @@
+package com.nocmok.pancake;
+
+public class BilinearOnTheFly extends OnTheFlyResamplerBase {
+
+    public BilinearOnTheFly() {
+        super("bilinear");
+    }
+}
@@ -0,0 +1,8 @@
+package com.nocmok.pancake;
+
+public class CubicOnTheFly extends OnTheFlyResamplerBase {
+
+    public CubicOnTheFly() {
+        super("cubic");
+    }
+}
@@ -70,6 +70,14 @@ public enum Formats {
         }
     },
 
+    /** In-memory rasters, file name is only used as dataset description */
+    MEM("MEM") {
+        @Override
+        public PancakeOptions toDriverOptions(PancakeOptions options) {
+            return new PancakeOptions();
+        }
+    },
+
     ;
 
     private static final Map<String, Formats> nameFormatMapping = new HashMap<>();
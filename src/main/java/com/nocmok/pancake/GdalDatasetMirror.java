@@ -2,10 +2,13 @@ package com.nocmok.pancake;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.gdal.gdal.Dataset;
+import org.gdal.gdal.gdal;
+import org.gdal.gdalconst.gdalconst;
 
 class GdalDatasetMirror implements PancakeDataset {
 
@@ -71,4 +74,54 @@ class GdalDatasetMirror implements PancakeDataset {
     public String formatString() {
         return ds.GetDriver().getShortName();
     }
+
+    /** Gdal numbers bands starting from 1 */
+    private static int[] gdalBandList(int[] bands) {
+        int[] bandList = new int[bands.length];
+        for (int i = 0; i < bands.length; ++i) {
+            bandList[i] = bands[i] + 1;
+        }
+        return bandList;
+    }
+
+    @Override
+    public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, int bufType, int[] bands,
+            ByteBuffer nioBuffer, int pixelSpace, int lineSpace, int bandSpace) {
+        int code = ds.ReadRaster_Direct(xoff, yoff, xsize, ysize, xsize, ysize, bufType, nioBuffer,
+                gdalBandList(bands), pixelSpace, lineSpace, bandSpace);
+        if (code == gdalconst.CE_Failure) {
+            throw new RuntimeException("failed to read raster: " + gdal.GetLastErrorMsg());
+        }
+        return code;
+    }
+
+    @Override
+    public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, int bufType, int[] bands,
+            ByteBuffer nioBuffer, int pixelSpace, int lineSpace, int bandSpace) {
+        int code = ds.WriteRaster_Direct(xoff, yoff, xsize, ysize, xsize, ysize, bufType, nioBuffer,
+                gdalBandList(bands), pixelSpace, lineSpace, bandSpace);
+        if (code == gdalconst.CE_Failure) {
+            throw new RuntimeException("failed to write raster: " + gdal.GetLastErrorMsg());
+        }
+        return code;
+    }
+
+    @Override
+    public void createOverviews(int[] factors) {
+        int code = ds.BuildOverviews("NONE", factors);
+        if (code == gdalconst.CE_Failure) {
+            throw new RuntimeException("failed to create overviews: " + gdal.GetLastErrorMsg());
+        }
+    }
+
+    @Override
+    public List<PancakeBand> overviewBands(int level) {
+        List<PancakeBand> bands = new ArrayList<>();
+        for (int i = 0; i < ds.getRasterCount(); ++i) {
+            GdalBandMirror band = new GdalBandMirror(ds.GetRasterBand(i + 1).GetOverview(level));
+            band.setDataset(this);
+            bands.add(band);
+        }
+        return bands;
+    }
 }
@@ -7,6 +7,8 @@ import java.util.Collection;
 import java.util.List;
 import java.util.Vector;
 
+import com.nocmok.pancake.utils.Rectangle;
+
 import org.gdal.gdal.Band;
 import org.gdal.gdal.Dataset;
 import org.gdal.gdal.Driver;
@@ -60,6 +62,48 @@ class GdalHelper {
 
     }
 
+    /**
+     * Copies bands to the first bands of dataset block by block. All bands of
+     * block are written with single raster i/o call, so that pixel interleaved
+     * blocks are encoded once instead of once per band.
+     */
+    public static void copyBandsInterleaved(Dataset dst, List<Band> src) {
+        Band first = src.get(0);
+        for (Band band : src) {
+            if (dst.getRasterXSize() != band.getXSize() || dst.getRasterYSize() != band.getYSize()) {
+                throw new UnsupportedOperationException("source band resolution mismatch destination band resolution");
+            }
+            if (band.GetRasterDataType() != first.GetRasterDataType()) {
+                throw new UnsupportedOperationException("copying bands with different sample data type not implemented");
+            }
+        }
+        int datatype = first.GetRasterDataType();
+        int dtBytes = gdal.GetDataTypeSize(datatype) / 8;
+        int pixelSpace = src.size() * dtBytes;
+        int blockXSize = first.GetBlockXSize();
+        int blockYSize = first.GetBlockYSize();
+        int[] bandList = new int[src.size()];
+        for (int i = 0; i < src.size(); ++i) {
+            bandList[i] = i + 1;
+        }
+        ByteBuffer buf = ByteBuffer.allocateDirect(blockXSize * blockYSize * pixelSpace);
+
+        for (int y0 = 0; y0 < first.getYSize(); y0 += blockYSize) {
+            for (int x0 = 0; x0 < first.getXSize(); x0 += blockXSize) {
+                int xsize = Integer.min(blockXSize, first.getXSize() - x0);
+                int ysize = Integer.min(blockYSize, first.getYSize() - y0);
+                for (int i = 0; i < src.size(); ++i) {
+                    ByteBuffer bandBuf = buf.duplicate();
+                    bandBuf.position(i * dtBytes);
+                    src.get(i).ReadRaster_Direct(x0, y0, xsize, ysize, xsize, ysize, datatype, bandBuf.slice(),
+                            pixelSpace, xsize * pixelSpace);
+                }
+                dst.WriteRaster_Direct(x0, y0, xsize, ysize, xsize, ysize, datatype, buf, bandList, pixelSpace,
+                        xsize * pixelSpace, dtBytes);
+            }
+        }
+    }
+
     public static Dataset bundleRgbBands(Band r, Band g, Band b, Driver driver, File dstFile, int bandsDataType,
             List<String> options) {
         List<Band> bands = List.of(r, g, b);
@@ -84,9 +128,7 @@ class GdalHelper {
         Dataset outDataset = driver.Create(dstFile.getAbsolutePath(), xSize, ySize, 3, bandsDataType,
                 new Vector<String>(creationOptions));
 
-        copyBand(outDataset.GetRasterBand(1), r);
-        copyBand(outDataset.GetRasterBand(2), g);
-        copyBand(outDataset.GetRasterBand(3), b);
+        copyBandsInterleaved(outDataset, bands);
 
         return outDataset;
     }
@@ -110,8 +152,32 @@ class GdalHelper {
     }
 
     public static Dataset bundleBandsToVRT(Collection<Band> bands, File dstFile, int dataType, List<String> options) {
-        int xSize = bands.iterator().next().getXSize();
-        int ySize = bands.iterator().next().getYSize();
+        Band first = bands.iterator().next();
+        return bundleBandsToVRT(bands, new Rectangle(0, 0, first.getXSize(), first.getYSize()), dstFile, dataType,
+                options);
+    }
+
+    public static Dataset bundleBandsToVRT(Collection<Band> bands, Rectangle window, File dstFile,
+            List<String> options) {
+        Band first = bands.iterator().next();
+        for (Band band : bands) {
+            if (first.GetRasterDataType() != band.GetRasterDataType()) {
+                throw new RuntimeException("all bands expected to have same datatype");
+            }
+        }
+        return bundleBandsToVRT(bands, window, dstFile, first.GetRasterDataType(), options);
+    }
+
+    /**
+     * 
+     * @param bands   bands to bundle
+     * @param window  window of bands, which will be available via bundle
+     * @param dstFile file to which vrt description will be written
+     */
+    public static Dataset bundleBandsToVRT(Collection<Band> bands, Rectangle window, File dstFile, int dataType,
+            List<String> options) {
+        int xSize = window.xSize();
+        int ySize = window.ySize();
         String[] optionsArr = (options == null) ? (null) : (options.toArray(new String[0]));
         Driver driver = gdal.GetDriverByName("VRT");
         driver.Register();
@@ -120,20 +186,69 @@ class GdalHelper {
         String sourceXmlPattern = "<SimpleSource>" + "<SourceFilename relativeToVRT=\"0\">%s</SourceFilename>"
                 + "<SourceBand>%d</SourceBand>"
                 + "<SourceProperties RasterXSize=\"%d\" RasterYSize=\"%d\" DataType=\"%s\" BlockXSize=\"%d\" BlockYSize=\"%d\"/>"
-                + "</SimpleSource>";
+                + "<SrcRect xOff=\"%d\" yOff=\"%d\" xSize=\"%d\" ySize=\"%d\"/>"
+                + "<DstRect xOff=\"0\" yOff=\"0\" xSize=\"%d\" ySize=\"%d\"/>" + "</SimpleSource>";
 
         for (Band band : bands) {
             dataset.AddBand(dataType);
             Band vrtBand = dataset.GetRasterBand(dataset.getRasterCount());
             String sourceSpecXml = String.format(sourceXmlPattern, pathTo(band.GetDataset()), band.GetBand(),
                     band.getXSize(), band.getYSize(), gdal.GetDataTypeName(band.GetRasterDataType()),
-                    band.GetBlockXSize(), band.GetBlockYSize());
+                    band.GetBlockXSize(), band.GetBlockYSize(), window.x0(), window.y0(), window.xSize(),
+                    window.ySize(), xSize, ySize);
             vrtBand.SetMetadataItem("source_" + (vrtBand.GetBand() - 1), sourceSpecXml, "new_vrt_sources");
         }
 
         return dataset;
     }
 
+    /**
+     * Creates vrt dataset, that upsamples all bands from source dataset on read.
+     * Samples are scaled as {@code value * scaleRatio + scaleOffset} and converted
+     * to the specified data type.
+     * 
+     * @param src        source dataset, which has to be available by its path
+     * @param dstFile    file to which vrt description will be written
+     * @param xSize      width of upsampled dataset
+     * @param ySize      height of upsampled dataset
+     * @param dataType   data type of upsampled dataset
+     * @param resampling gdal resampling method name
+     */
+    public static Dataset resampleToVRT(Dataset src, File dstFile, int xSize, int ySize, int dataType,
+            double scaleOffset, double scaleRatio, String resampling) {
+        Driver driver = gdal.GetDriverByName("VRT");
+        driver.Register();
+        Dataset dataset = driver.Create(dstFile.getAbsolutePath(), xSize, ySize, 0, dataType, (String[]) null);
+
+        double[] geoTransform = src.GetGeoTransform();
+        geoTransform[1] *= (double) src.getRasterXSize() / xSize;
+        geoTransform[2] *= (double) src.getRasterYSize() / ySize;
+        geoTransform[4] *= (double) src.getRasterXSize() / xSize;
+        geoTransform[5] *= (double) src.getRasterYSize() / ySize;
+        dataset.SetGeoTransform(geoTransform);
+        dataset.SetProjection(src.GetProjectionRef());
+
+        String sourceXmlPattern = "<ComplexSource resampling=\"%s\">"
+                + "<SourceFilename relativeToVRT=\"0\">%s</SourceFilename>" + "<SourceBand>%d</SourceBand>"
+                + "<SourceProperties RasterXSize=\"%d\" RasterYSize=\"%d\" DataType=\"%s\" BlockXSize=\"%d\" BlockYSize=\"%d\"/>"
+                + "<SrcRect xOff=\"0\" yOff=\"0\" xSize=\"%d\" ySize=\"%d\"/>"
+                + "<DstRect xOff=\"0\" yOff=\"0\" xSize=\"%d\" ySize=\"%d\"/>"
+                + "<ScaleOffset>%s</ScaleOffset>" + "<ScaleRatio>%s</ScaleRatio>" + "</ComplexSource>";
+
+        String srcPath = pathTo(src);
+        for (Band band : split(src)) {
+            dataset.AddBand(dataType);
+            Band vrtBand = dataset.GetRasterBand(dataset.getRasterCount());
+            String sourceSpecXml = String.format(sourceXmlPattern, resampling, srcPath, band.GetBand(),
+                    band.getXSize(), band.getYSize(), gdal.GetDataTypeName(band.GetRasterDataType()),
+                    band.GetBlockXSize(), band.GetBlockYSize(), band.getXSize(), band.getYSize(), xSize, ySize,
+                    Double.toString(scaleOffset), Double.toString(scaleRatio));
+            vrtBand.SetMetadataItem("source_0", sourceSpecXml, "new_vrt_sources");
+        }
+
+        return dataset;
+    }
+
     public static Dataset copyDataset(File dstFile, Dataset srcDataset) {
         Driver driver = srcDataset.GetDriver();
         return driver.CreateCopy(dstFile.getAbsolutePath(), srcDataset, (String[]) null);
@@ -145,10 +260,14 @@ class GdalHelper {
      * @return 0 - min, 1 - max
      */
     public static double[] computeMinMax(Dataset ds) {
+        return computeMinMax(split(ds));
+    }
+
+    public static double[] computeMinMax(List<Band> bands) {
         double[] minMax = new double[2];
-        for (int i = 1; i <= ds.getRasterCount(); ++i) {
+        for (Band band : bands) {
             double[] currMinMax = new double[2];
-            ds.GetRasterBand(i).ComputeRasterMinMax(currMinMax);
+            band.ComputeRasterMinMax(currMinMax);
             minMax[0] = Double.min(minMax[0], currMinMax[0]);
             minMax[1] = Double.max(minMax[1], currMinMax[1]);
         }
@@ -0,0 +1,328 @@
+package com.nocmok.pancake;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+import org.gdal.gdalconst.gdalconst;
+
+/**
+ * Bands of dataset, whose block i/o is combined into single dataset call.
+ * Reading window of one band reads the same window of all bands at once, and
+ * window is written once all bands have written it, so pixel interleaved
+ * blocks are decoded and encoded once instead of once per band. Only windows
+ * without resampling and datatype conversion are combined, other raster i/o
+ * goes directly to bands.
+ */
+class InterleavedBands {
+
+    private final PancakeDataset dataset;
+
+    private final List<PancakeBand> bands;
+
+    private final List<PancakeBand> views;
+
+    private final int[] bandList;
+
+    private final int datatype;
+
+    private final int dtBytes;
+
+    /** window of all bands, that was read last, or null */
+    private List<Integer> readWindow = null;
+
+    private ByteBuffer readCache = null;
+
+    /** windows, that not all bands have written yet */
+    private final Map<List<Integer>, PendingWrite> pendingWrites = new HashMap<>();
+
+    /** pending writes, that were written to dataset, their buffers are reused by next windows */
+    private final Deque<PendingWrite> freeWrites = new ArrayDeque<>();
+
+    private class PendingWrite {
+
+        ByteBuffer buf = null;
+
+        final boolean[] written = new boolean[bands.size()];
+
+        int bandsWritten = 0;
+
+        /** Clears written bands and grows buffer, if it is smaller than capacity */
+        void reset(int capacity) {
+            if (buf == null || buf.capacity() < capacity) {
+                buf = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+            }
+            Arrays.fill(written, false);
+            bandsWritten = 0;
+        }
+    }
+
+    InterleavedBands(PancakeDataset dataset) {
+        this.dataset = dataset;
+        this.bands = dataset.bands();
+        this.datatype = bands.get(0).getRasterDatatype();
+        for (PancakeBand band : bands) {
+            if (band.getRasterDatatype() != datatype) {
+                throw new UnsupportedOperationException("interleaved bands expected to have same datatype");
+            }
+        }
+        this.dtBytes = Pancake.dtBytes(datatype);
+        this.bandList = new int[bands.size()];
+        this.views = new ArrayList<>();
+        for (int i = 0; i < bands.size(); ++i) {
+            bandList[i] = i;
+            views.add(new View(i));
+        }
+    }
+
+    /**
+     *
+     * @return views of dataset bands, which raster i/o is combined
+     */
+    List<PancakeBand> bands() {
+        return views;
+    }
+
+    private static List<Integer> window(int xoff, int yoff, int xsize, int ysize) {
+        return Arrays.asList(xoff, yoff, xsize, ysize);
+    }
+
+    private int pixelSpace() {
+        return bands.size() * dtBytes;
+    }
+
+    /**
+     * Copies samples between buffers with different pixel and line spacing, both
+     * buffers are expected to be in native order
+     */
+    private void copy(ByteBuffer src, int srcOff, int srcPixelSpace, int srcLineSpace, ByteBuffer dst, int dstOff,
+            int dstPixelSpace, int dstLineSpace, int xsize, int ysize) {
+        for (int y = 0; y < ysize; ++y) {
+            int srcPos = srcOff + y * srcLineSpace;
+            int dstPos = dstOff + y * dstLineSpace;
+            for (int x = 0; x < xsize; ++x) {
+                switch (dtBytes) {
+                case 1:
+                    dst.put(dstPos, src.get(srcPos));
+                    break;
+                case 2:
+                    dst.putShort(dstPos, src.getShort(srcPos));
+                    break;
+                case 4:
+                    dst.putInt(dstPos, src.getInt(srcPos));
+                    break;
+                case 8:
+                    dst.putLong(dstPos, src.getLong(srcPos));
+                    break;
+                default:
+                    for (int b = 0; b < dtBytes; ++b) {
+                        dst.put(dstPos + b, src.get(srcPos + b));
+                    }
+                    break;
+                }
+                srcPos += srcPixelSpace;
+                dstPos += dstPixelSpace;
+            }
+        }
+    }
+
+    private synchronized int read(int band, int xoff, int yoff, int xsize, int ysize, ByteBuffer buffer,
+            int pixelSpace, int lineSpace) {
+        flush();
+        List<Integer> window = window(xoff, yoff, xsize, ysize);
+        if (!window.equals(readWindow)) {
+            int capacity = xsize * ysize * pixelSpace();
+            if (readCache == null || readCache.capacity() < capacity) {
+                readCache = ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+            }
+            readWindow = null;
+            dataset.readRasterDirect(xoff, yoff, xsize, ysize, datatype, bandList, readCache, pixelSpace(),
+                    xsize * pixelSpace(), dtBytes);
+            readWindow = window;
+        }
+        pixelSpace = (pixelSpace == 0) ? dtBytes : pixelSpace;
+        lineSpace = (lineSpace == 0) ? xsize * pixelSpace : lineSpace;
+        copy(readCache, band * dtBytes, pixelSpace(), xsize * pixelSpace(),
+                buffer.duplicate().order(ByteOrder.nativeOrder()), 0, pixelSpace, lineSpace, xsize, ysize);
+        return gdalconst.CE_None;
+    }
+
+    private synchronized int write(int band, int xoff, int yoff, int xsize, int ysize, ByteBuffer buffer,
+            int pixelSpace, int lineSpace) {
+        readWindow = null;
+        List<Integer> window = window(xoff, yoff, xsize, ysize);
+        PendingWrite pending = pendingWrites.get(window);
+        if (pending == null) {
+            pending = Optional.ofNullable(freeWrites.poll()).orElseGet(PendingWrite::new);
+            pending.reset(xsize * ysize * pixelSpace());
+            pendingWrites.put(window, pending);
+        }
+        pixelSpace = (pixelSpace == 0) ? dtBytes : pixelSpace;
+        lineSpace = (lineSpace == 0) ? xsize * pixelSpace : lineSpace;
+        copy(buffer.duplicate().order(ByteOrder.nativeOrder()), 0, pixelSpace, lineSpace, pending.buf, band * dtBytes,
+                pixelSpace(), xsize * pixelSpace(), xsize, ysize);
+        if (!pending.written[band]) {
+            pending.written[band] = true;
+            ++pending.bandsWritten;
+        }
+        if (pending.bandsWritten == bands.size()) {
+            pendingWrites.remove(window);
+            int err = dataset.writeRasterDirect(xoff, yoff, xsize, ysize, datatype, bandList, pending.buf,
+                    pixelSpace(), xsize * pixelSpace(), dtBytes);
+            freeWrites.push(pending);
+            return err;
+        }
+        return gdalconst.CE_None;
+    }
+
+    /** Writes windows, that not all bands have written, band by band */
+    synchronized void flush() {
+        Iterator<Map.Entry<List<Integer>, PendingWrite>> it = pendingWrites.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<List<Integer>, PendingWrite> entry = it.next();
+            it.remove();
+            List<Integer> window = entry.getKey();
+            PendingWrite pending = entry.getValue();
+            for (int band = 0; band < bands.size(); ++band) {
+                if (pending.written[band]) {
+                    ByteBuffer buf = pending.buf.duplicate();
+                    buf.position(band * dtBytes);
+                    bands.get(band).writeRasterDirect(window.get(0), window.get(1), window.get(2), window.get(3),
+                            window.get(2), window.get(3), datatype, buf.slice(), pixelSpace(),
+                            window.get(2) * pixelSpace());
+                }
+            }
+            freeWrites.push(pending);
+        }
+    }
+
+    private synchronized void invalidate() {
+        flush();
+        readWindow = null;
+    }
+
+    private boolean combines(int xsize, int ysize, int bufXSize, int bufYSize, int bufType) {
+        return xsize == bufXSize && ysize == bufYSize && bufType == datatype;
+    }
+
+    private class View implements PancakeBand {
+
+        private final int index;
+
+        private final PancakeBand band;
+
+        View(int index) {
+            this.index = index;
+            this.band = bands.get(index);
+        }
+
+        @Override
+        public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize,
+                int buf_type, ByteBuffer nioBuffer) {
+            return readRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, buf_type, nioBuffer, 0, 0);
+        }
+
+        @Override
+        public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize,
+                int buf_type, ByteBuffer nioBuffer, int nPixelSpace, int nLineSpace) {
+            if (combines(xsize, ysize, buf_xsize, buf_ysize, buf_type)) {
+                return read(index, xoff, yoff, xsize, ysize, nioBuffer, nPixelSpace, nLineSpace);
+            }
+            invalidate();
+            return band.readRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, buf_type, nioBuffer,
+                    nPixelSpace, nLineSpace);
+        }
+
+        @Override
+        public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize,
+                ByteBuffer nioBuffer) {
+            return readRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, datatype, nioBuffer);
+        }
+
+        @Override
+        public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, ByteBuffer nioBuffer) {
+            return readRasterDirect(xoff, yoff, xsize, ysize, xsize, ysize, datatype, nioBuffer);
+        }
+
+        @Override
+        public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize,
+                int buf_type, ByteBuffer nioBuffer) {
+            return writeRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, buf_type, nioBuffer, 0, 0);
+        }
+
+        @Override
+        public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize,
+                int buf_type, ByteBuffer nioBuffer, int nPixelSpace, int nLineSpace) {
+            if (combines(xsize, ysize, buf_xsize, buf_ysize, buf_type)) {
+                return write(index, xoff, yoff, xsize, ysize, nioBuffer, nPixelSpace, nLineSpace);
+            }
+            invalidate();
+            return band.writeRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, buf_type, nioBuffer,
+                    nPixelSpace, nLineSpace);
+        }
+
+        @Override
+        public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize,
+                ByteBuffer nioBuffer) {
+            return writeRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, datatype, nioBuffer);
+        }
+
+        @Override
+        public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, ByteBuffer nioBuffer) {
+            return writeRasterDirect(xoff, yoff, xsize, ysize, xsize, ysize, datatype, nioBuffer);
+        }
+
+        @Override
+        public int getXSize() {
+            return band.getXSize();
+        }
+
+        @Override
+        public int getYSize() {
+            return band.getYSize();
+        }
+
+        @Override
+        public int getBlockXSize() {
+            return band.getBlockXSize();
+        }
+
+        @Override
+        public int getBlockYSize() {
+            return band.getBlockYSize();
+        }
+
+        @Override
+        public int getRasterDatatype() {
+            return band.getRasterDatatype();
+        }
+
+        @Override
+        public double getNoData() {
+            return band.getNoData();
+        }
+
+        @Override
+        public double maxValue() {
+            return band.maxValue();
+        }
+
+        @Override
+        public double minValue() {
+            return band.minValue();
+        }
+
+        @Override
+        public PancakeDataset dataset() {
+            return dataset;
+        }
+    }
+}
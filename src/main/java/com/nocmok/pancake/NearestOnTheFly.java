@@ -0,0 +1,8 @@
+package com.nocmok.pancake;
+
+public class NearestOnTheFly extends OnTheFlyResamplerBase {
+
+    public NearestOnTheFly() {
+        super("near");
+    }
+}
@@ -0,0 +1,61 @@
+package com.nocmok.pancake;
+
+import java.io.File;
+import java.util.Optional;
+
+import org.gdal.gdal.Dataset;
+
+/**
+ * Resampler, that doesn't materialize upsampled image. Produced dataset is vrt,
+ * which upsamples only requested window of source dataset, when it is read.
+ */
+public abstract class OnTheFlyResamplerBase implements OnTheFlyResampler {
+
+    private PancakeProgressListener listener = PancakeProgressListener.empty;
+
+    private final String resamplingMethod;
+
+    public OnTheFlyResamplerBase(String resamplingMethod) {
+        this.resamplingMethod = resamplingMethod;
+    }
+
+    @Override
+    public void setProgressListener(PancakeProgressListener listener) {
+        this.listener = Optional.ofNullable(listener).orElse(PancakeProgressListener.empty);
+    }
+
+    /**
+     * @param dest file to which vrt description will be written
+     */
+    @Override
+    public PancakeDataset resample(PancakeDataset src, int outWidth, int outHeight, File dest, PancakeOptions options) {
+        options = Optional.ofNullable(options).orElse(new PancakeOptions());
+
+        listener.listen(PancakeConstants.PROGRESS_RESAMPLING, 0D, "[Pancake] creating on the fly resampled dataset");
+
+        Dataset gdalSrc = GdalHelper.convert(src);
+        /** vrt refers to source dataset by its path, so source has to be written */
+        gdalSrc.FlushCache();
+
+        int dtype = options.getIntOr(PancakeConstants.KEY_DATATYPE, Pancake.TYPE_BYTE);
+
+        /** the same linear scaling, that gdal_translate -scale performs */
+        double[] minMax = ResamplerBase.scaleSrcRange(gdalSrc, options);
+        double srcMin = (int) minMax[0];
+        double srcMax = (int) minMax[1];
+        double dstMin = (int) Pancake.dtMin(dtype);
+        double dstMax = (int) Pancake.dtMax(dtype);
+        double scaleRatio = (srcMax == srcMin) ? 0d : (dstMax - dstMin) / (srcMax - srcMin);
+        double scaleOffset = dstMin - srcMin * scaleRatio;
+
+        Dataset gdalDst = GdalHelper.resampleToVRT(gdalSrc, dest, outWidth, outHeight, dtype, scaleOffset,
+                scaleRatio, resamplingMethod);
+        if (gdalDst == null) {
+            return null;
+        }
+        gdalDst.FlushCache();
+
+        listener.listen(PancakeConstants.PROGRESS_RESAMPLING, 1D, "[Pancake] on the fly resampled dataset created");
+        return new GdalDatasetMirror(gdalDst);
+    }
+}
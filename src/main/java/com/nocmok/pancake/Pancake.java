@@ -4,9 +4,11 @@ import java.io.File;
 import java.io.IOException;
 import java.util.Collection;
 import java.util.List;
+import java.util.UUID;
 import java.util.Vector;
 
 import com.nocmok.pancake.utils.PancakeIOException;
+import com.nocmok.pancake.utils.Rectangle;
 
 import org.gdal.gdal.Dataset;
 import org.gdal.gdal.gdal;
@@ -44,6 +46,9 @@ public class Pancake {
 
     public static final int ACCESS_READWRITE = 201;
 
+    /** directory of gdal in-memory filesystem */
+    public static final File VSIMEM = new File("/vsimem");
+
     private static int logsFrequency = 10;
 
     private Pancake() {
@@ -77,6 +82,45 @@ public class Pancake {
         }
     }
 
+    /**
+     * Unlike {@link #createTempFile()} file is not deleted on exit, it has to be
+     * freed with {@link #deleteTempFile(File)}.
+     * 
+     * @param dir directory to create file in, {@link #VSIMEM} places file in gdal
+     *            in-memory filesystem
+     * @return unique temporary file
+     */
+    public static File createTempFile(File dir) {
+        if (isInMemory(dir)) {
+            return new File(VSIMEM, ".pnk" + UUID.randomUUID() + "tmp");
+        }
+        try {
+            return File.createTempFile(".pnk", "tmp", dir);
+        } catch (IOException e) {
+            throw new PancakeIOException("failed to create temporary file due to i/o error", e);
+        }
+    }
+
+    /**
+     * Frees temporary file along with auxiliary file, that gdal may create next
+     * to it. Datasets of file have to be closed before.
+     */
+    public static void deleteTempFile(File file) {
+        String path = isInMemory(file) ? file.getPath() : file.getAbsolutePath();
+        gdal.Unlink(path + ".aux.xml");
+        if (gdal.Unlink(path) != 0 && !isInMemory(file)) {
+            file.delete();
+        }
+    }
+
+    /**
+     * 
+     * @return whether file belongs to gdal in-memory filesystem
+     */
+    public static boolean isInMemory(File file) {
+        return file.getPath().equals(VSIMEM.getPath()) || file.getPath().startsWith(VSIMEM.getPath() + "/");
+    }
+
     /**
      * 
      * @param datatype
@@ -303,4 +347,15 @@ public class Pancake {
                 Formats.VRT.toDriverOptions(options).getAsGdalOptions());
         return new GdalDatasetMirror(gdalDataset);
     }
+
+    /**
+     * 
+     * @param window window of bands, which will be available via bundle
+     */
+    public static PancakeDataset bundle(List<PancakeBand> bands, Rectangle window, File file,
+            PancakeOptions options) {
+        Dataset gdalDataset = GdalHelper.bundleBandsToVRT(GdalHelper.convert(bands), window, file,
+                Formats.VRT.toDriverOptions(options).getAsGdalOptions());
+        return new GdalDatasetMirror(gdalDataset);
+    }
 }
@@ -22,6 +22,12 @@ public class PancakeConstants {
 
     public static final String KEY_DATATYPE = "pnk_datatype";
 
+    /** 512 mb, memory budget of job, if it was not specified */
+    public static final long DEFAULT_MEMORY_BUDGET = 512L * 1024 * 1024;
+
+    /** 64 mb, memory budget of memory polite job, if it was not specified */
+    public static final long MEMORY_POLITE_BUDGET = 64L * 1024 * 1024;
+
     public static final int PROGRESS_PANSHARPENING = 1000;
 
     public static final int PROGRESS_RESAMPLING = 1001;
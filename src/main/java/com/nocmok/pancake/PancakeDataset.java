@@ -2,6 +2,7 @@ package com.nocmok.pancake;
 
 import java.io.Closeable;
 import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 public interface PancakeDataset extends Closeable {
@@ -19,4 +20,48 @@ public interface PancakeDataset extends Closeable {
     public Formats format();
 
     public String formatString();
+
+    /**
+     * Reads the same window of several bands with single raster i/o call, so
+     * that pixel interleaved blocks are decoded once for all bands.
+     * 
+     * @param bands      indices of bands in {@link #bands()} list
+     * @param pixelSpace bytes between neighbour samples of band in row, 0 for
+     *                   size of buffer datatype
+     * @param lineSpace  bytes between rows, 0 for pixelSpace * xsize
+     * @param bandSpace  bytes between samples of neighbour bands, 0 for
+     *                   lineSpace * ysize
+     */
+    public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, int bufType, int[] bands,
+            ByteBuffer nioBuffer, int pixelSpace, int lineSpace, int bandSpace);
+
+    /**
+     * Writes the same window of several bands with single raster i/o call, so
+     * that pixel interleaved blocks are encoded once for all bands.
+     * 
+     * @param bands      indices of bands in {@link #bands()} list
+     * @param pixelSpace bytes between neighbour samples of band in row, 0 for
+     *                   size of buffer datatype
+     * @param lineSpace  bytes between rows, 0 for pixelSpace * xsize
+     * @param bandSpace  bytes between samples of neighbour bands, 0 for
+     *                   lineSpace * ysize
+     */
+    public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, int bufType, int[] bands,
+            ByteBuffer nioBuffer, int pixelSpace, int lineSpace, int bandSpace);
+
+    /**
+     * Creates empty overview levels, they are filled by writes to
+     * {@link #overviewBands(int)}.
+     * 
+     * @param factors decimation factors of levels, e.g. 2, 4, 8
+     */
+    public void createOverviews(int[] factors);
+
+    /**
+     * 
+     * @param level index of overview level, levels are ordered by decimation
+     *              factor
+     * @return bands of overview level in the same order as {@link #bands()}
+     */
+    public List<PancakeBand> overviewBands(int level);
 }
@@ -79,6 +79,26 @@ public class PancakeOptions {
         return Optional.ofNullable(getInt(key)).orElse(alternative);
     }
 
+    public Long getLong(String key) {
+        key = key.toLowerCase();
+        Object value = options.get(key);
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof String) {
+            try {
+                return Long.parseLong((String) value);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    public Long getLongOr(String key, Long alternative) {
+        return Optional.ofNullable(getLong(key)).orElse(alternative);
+    }
+
     private Boolean parseBoolean(String value) {
         value = value.toLowerCase();
         try {
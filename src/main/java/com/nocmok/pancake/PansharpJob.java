@@ -3,18 +3,32 @@ package com.nocmok.pancake;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.nocmok.pancake.fusor.Fusor;
+import com.nocmok.pancake.utils.HistogramCollectingBand;
 import com.nocmok.pancake.utils.HistogramMatching;
+import com.nocmok.pancake.utils.HistogramMatching.Histogram;
+import com.nocmok.pancake.utils.MemoryPlanner;
+import com.nocmok.pancake.utils.OverviewBuildingBand;
 import com.nocmok.pancake.utils.Pair;
 import com.nocmok.pancake.utils.PancakeIOException;
+import com.nocmok.pancake.utils.Rectangle;
+import com.nocmok.pancake.utils.Shape;
 
 import org.gdal.gdal.Driver;
 import org.gdal.gdal.gdal;
@@ -44,8 +58,12 @@ public class PansharpJob {
 
     File _targetFile;
 
+    /** worker threads of single pansharp call, pool is shut down when call ends */
     ExecutorService _worker;
 
+    /** area of panchromatic band to pansharp */
+    Rectangle _region;
+
     int _targetXSize;
 
     int _targetYSize;
@@ -73,6 +91,18 @@ public class PansharpJob {
 
     private HistogramMatching histogramMatcher = new HistogramMatching();
 
+    /** intermediate datasets, that are closed when job ends */
+    private final List<PancakeDataset> scratchDatasets = new ArrayList<>();
+
+    /** files of intermediate datasets, that are deleted when job ends */
+    private final List<File> scratchFiles = new ArrayList<>();
+
+    /** estimated size of intermediate datasets, that are kept in memory */
+    private long inMemoryScratchBytes = 0;
+
+    /** memory, that overview builders may keep sums of partial blocks in */
+    private long overviewBytes = 0;
+
     public static final String JOB_TARGET_FORMAT = "job_out_format";
 
     public static final String JOB_COMPRESSION = "job_compress";
@@ -91,10 +121,74 @@ public class PansharpJob {
 
     public static final String JOB_TILED = "job_tiled";
 
+    /**
+     * Sample layout of target and resampled multispectral dataset: "band" or
+     * "pixel". Raster i/o of pixel interleaved datasets is combined for all bands
+     * of block, so that each block is decoded and encoded once.
+     */
+    public static final String JOB_INTERLEAVE = "job_interleave";
+
     public static final String JOB_USE_HIST_MATCHING = "job_use_hist_matching";
 
+    /**
+     * Memory polite job uses {@link PancakeConstants#MEMORY_POLITE_BUDGET} as
+     * default memory budget
+     */
     public static final String JOB_MEMORY_POLITE = "job_memory_polite";
 
+    /**
+     * Memory in bytes, that job may use for its buffers. Fusor, resampler and
+     * histogram matching pick block sizes, buffers precision and number of
+     * regions fused at the same time to fit in this budget
+     */
+    public static final String JOB_MEMORY_BUDGET = "job_memory_budget";
+
+    /**
+     * Directory for intermediate datasets, like bundle of multispectral bands and
+     * resampled multispectral dataset, {@link Pancake#VSIMEM} keeps them in gdal
+     * in-memory filesystem. By default intermediates, that fit in half of memory
+     * budget, are kept in memory and other ones are placed in system temporary
+     * directory. Memory taken by in-memory intermediates is subtracted from
+     * budget of fusor and histogram matching. Intermediates are deleted when job
+     * ends.
+     */
+    public static final String JOB_SCRATCH_DIR = "job_scratch_dir";
+
+    /**
+     * Number of internal overview levels to build with decimation factors 2, 4,
+     * 8 and so on, 0 builds no overviews. Overviews are averaged from blocks as
+     * they are written, so they need no extra read of target. Sums of partially
+     * written overview blocks take at most quarter of memory budget, coarse
+     * levels, that don't fit, are averaged from finer levels when target is
+     * written.
+     */
+    public static final String JOB_OVERVIEWS = "job_overviews";
+
+    /** x offset of region of interest in panchromatic band coordinates */
+    public static final String JOB_ROI_XOFF = "job_roi_xoff";
+
+    /** y offset of region of interest in panchromatic band coordinates */
+    public static final String JOB_ROI_YOFF = "job_roi_yoff";
+
+    /** width of region of interest in panchromatic band coordinates */
+    public static final String JOB_ROI_XSIZE = "job_roi_xsize";
+
+    /** height of region of interest in panchromatic band coordinates */
+    public static final String JOB_ROI_YSIZE = "job_roi_ysize";
+
+    /**
+     * How much regions per worker thread target raster is splitted into, when
+     * fusion performed in parallel. More regions gives better load balance but
+     * more overhead per region.
+     */
+    private static final int REGIONS_PER_THREAD = 4;
+
+    /**
+     * How much fused blocks may wait for write on fusor writer thread, so that
+     * compression of target blocks overlaps with fusion of next ones
+     */
+    private static final int WRITE_BEHIND_BLOCKS = 2;
+
     PansharpJob(Resampler resampler, Fusor fusor, Map<Spectrum, PancakeBand> mapping, PancakeOptions options) {
         this._options = new PancakeOptions(options);
         this._resampler = resampler;
@@ -114,10 +208,9 @@ public class PansharpJob {
         this.useHistMatching = options.getBoolOr(JOB_USE_HIST_MATCHING, true);
         this.memoryPolite = options.getBoolOr(JOB_MEMORY_POLITE, false);
 
-        _targetXSize = _mapping.get(Spectrum.PA).getXSize();
-        _targetYSize = _mapping.get(Spectrum.PA).getYSize();
-        _worker = Executors.newFixedThreadPool(numThreads());
-
+        _region = populateRegion();
+        _targetXSize = _region.xSize();
+        _targetYSize = _region.ySize();
         _bands = new ArrayList<>(_mapping.values());
         _multispectral = new ArrayList<>();
         _multispecBandsPackingOrder = new ArrayList<>();
@@ -136,6 +229,51 @@ public class PansharpJob {
         _resamplingOptions = populateResamplingOptions();
     }
 
+    private Rectangle populateRegion() {
+        PancakeBand pa = _mapping.get(Spectrum.PA);
+        Rectangle region = new Rectangle(_options.getIntOr(JOB_ROI_XOFF, 0), _options.getIntOr(JOB_ROI_YOFF, 0),
+                _options.getIntOr(JOB_ROI_XSIZE, pa.getXSize()), _options.getIntOr(JOB_ROI_YSIZE, pa.getYSize()));
+        region = region.intersection(new Rectangle(0, 0, pa.getXSize(), pa.getYSize()));
+        if (region.isEmpty()) {
+            throw new RuntimeException("region of interest doesn't intersect panchromatic band");
+        }
+        return region;
+    }
+
+    /**
+     * 
+     * @return window of multispectral bands, that covers region of interest
+     */
+    private Rectangle multispectralWindow() {
+        PancakeBand pa = _mapping.get(Spectrum.PA);
+        int msXSize = _multispectral.get(0).getXSize();
+        int msYSize = _multispectral.get(0).getYSize();
+        double xScale = (double) msXSize / pa.getXSize();
+        double yScale = (double) msYSize / pa.getYSize();
+        int x0 = (int) Math.floor(_region.x0() * xScale);
+        int y0 = (int) Math.floor(_region.y0() * yScale);
+        int x1 = Integer.min(msXSize, (int) Math.ceil(_region.x1() * xScale));
+        int y1 = Integer.min(msYSize, (int) Math.ceil(_region.y1() * yScale));
+        return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+    }
+
+    /**
+     * 
+     * @param msWindow window of multispectral bands
+     * @return area of panchromatic band, that is covered by specified window, it
+     *         contains region of interest
+     */
+    private Rectangle toPanchromatic(Rectangle msWindow) {
+        PancakeBand pa = _mapping.get(Spectrum.PA);
+        double xScale = (double) pa.getXSize() / _multispectral.get(0).getXSize();
+        double yScale = (double) pa.getYSize() / _multispectral.get(0).getYSize();
+        int x0 = (int) Math.round(msWindow.x0() * xScale);
+        int y0 = (int) Math.round(msWindow.y0() * yScale);
+        int x1 = (int) Math.round(msWindow.x1() * xScale);
+        int y1 = (int) Math.round(msWindow.y1() * yScale);
+        return new Rectangle(x0, y0, x1 - x0, y1 - y0);
+    }
+
     private void validateMultispectralBands(List<PancakeBand> ms) {
         PancakeBand first = ms.get(0);
         for (PancakeBand band : ms) {
@@ -147,7 +285,7 @@ public class PansharpJob {
 
     private PancakeOptions populateTargetOptions() {
         PancakeOptions options = new PancakeOptions();
-        options.put(PancakeConstants.KEY_INTERLEAVE, "band");
+        options.put(PancakeConstants.KEY_INTERLEAVE, isPixelInterleaved() ? "pixel" : "band");
         options.put(PancakeConstants.KEY_TILED, (isTiled() ? "yes" : "no"));
         options.put(PancakeConstants.KEY_BLOCKXSIZE, blockXSize());
         options.put(PancakeConstants.KEY_BLOCKYSIZE, blockYSize());
@@ -166,26 +304,63 @@ public class PansharpJob {
         if (!(_resampler instanceof OnTheFlyResampler)) {
             options.put(Resampler.OUT_FORMAT, _targetFormat.driverName());
         }
+        options.put(Resampler.MEMORY_BUDGET, memoryBudget());
         return options;
     }
 
     public PancakeDataset pansharp() {
+        _worker = createWorker();
+        try {
+            return pansharpWithScratch();
+        } finally {
+            /** worker threads would stay parked for the lifetime of jvm otherwise */
+            _worker.shutdown();
+            freeScratch();
+        }
+    }
+
+    private ExecutorService createWorker() {
+        return Executors.newFixedThreadPool(numThreads(), new ThreadFactory() {
+            private final AtomicInteger nThread = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "pancake-worker-" + nThread.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private PancakeDataset pansharpWithScratch() {
         validateSpatialReferences();
 
+        PancakeBand pa = _mapping.get(Spectrum.PA);
         int msXSize = _multispectral.get(0).getXSize();
         int msYSize = _multispectral.get(0).getYSize();
+        Rectangle msWindow = multispectralWindow();
 
         Map<Spectrum, PancakeBand> srcMapping = new EnumMap<>(Spectrum.class);
-        srcMapping.put(Spectrum.PA, _mapping.get(Spectrum.PA));
+        srcMapping.put(Spectrum.PA, pa);
 
-        if (msXSize != _targetXSize || msYSize != _targetYSize) {     
+        if (msXSize != pa.getXSize() || msYSize != pa.getYSize()) {
+            /** only window that covers region of interest is resampled */
+            Rectangle upsampled = toPanchromatic(msWindow);
             _resampler.setProgressListener(progressListener);
-            PancakeDataset multispectral = resample(_resamplingOptions, Pancake.createTempFile());
+            long resampledBytes = (_resampler instanceof OnTheFlyResampler) ? 0
+                    : (long) upsampled.xSize() * upsampled.ySize() * _multispectral.size()
+                            * Pancake.dtBytes(_targetDataType);
+            PancakeDataset multispectral = resample(_resamplingOptions, msWindow, upsampled,
+                    createScratchFile(resampledBytes));
+            scratchDatasets.add(multispectral);
             _resampler.setProgressListener(null);
-            Iterator<PancakeBand> bandsIt = multispectral.bands().iterator();
+            List<PancakeBand> msBands = isPixelInterleaved() ? new InterleavedBands(multispectral).bands()
+                    : multispectral.bands();
+            Iterator<PancakeBand> bandsIt = msBands.iterator();
             for (Spectrum spect : _multispecBandsPackingOrder) {
                 if (_mapping.containsKey(spect)) {
-                    srcMapping.put(spect, bandsIt.next());
+                    srcMapping.put(spect, ShiftedBand.place(bandsIt.next(), upsampled.x0(), upsampled.y0(),
+                            pa.getXSize(), pa.getYSize()));
                 }
             }
         } else {
@@ -201,35 +376,90 @@ public class PansharpJob {
         dstMapping.put(Spectrum.G, artifact.bands().get(1));
         dstMapping.put(Spectrum.B, artifact.bands().get(2));
 
+        /** blocks of pixel interleaved target are written for all bands at once */
+        InterleavedBands interleavedTarget = isPixelInterleaved() ? new InterleavedBands(artifact) : null;
+        Map<Spectrum, PancakeBand> dstWriteMapping = new EnumMap<>(dstMapping);
+        if (interleavedTarget != null) {
+            dstWriteMapping.put(Spectrum.R, interleavedTarget.bands().get(0));
+            dstWriteMapping.put(Spectrum.G, interleavedTarget.bands().get(1));
+            dstWriteMapping.put(Spectrum.B, interleavedTarget.bands().get(2));
+        }
+
+        /** overviews are built from final samples, that are written by histogram matching, if it is used */
+        Map<Spectrum, OverviewBuildingBand> overviewBuilders = new EnumMap<>(Spectrum.class);
+        if (overviewFactors().length > 0) {
+            createOverviews(artifact, useHistMatching ? dstMapping : dstWriteMapping, overviewBuilders);
+        }
+
+        /**
+         * exact histograms of fused bands are collected while fusor writes them,
+         * binned ones need value range, so fused bands are read to get them
+         */
+        Map<Spectrum, HistogramCollectingBand> histCollectors = new EnumMap<>(Spectrum.class);
+        if (useHistMatching && Histogram.isExact(_targetDataType)) {
+            for (Map.Entry<Spectrum, PancakeBand> entry : dstWriteMapping.entrySet()) {
+                histCollectors.put(entry.getKey(), new HistogramCollectingBand(entry.getValue()));
+            }
+        }
+
+        /** fusor works in panchromatic band coordinates, target covers only region of interest */
+        Map<Spectrum, PancakeBand> dstPlacedMapping = new EnumMap<>(Spectrum.class);
+        for (Map.Entry<Spectrum, PancakeBand> entry : dstWriteMapping.entrySet()) {
+            PancakeBand band = histCollectors.containsKey(entry.getKey()) ? histCollectors.get(entry.getKey())
+                    : entry.getValue();
+            dstPlacedMapping.put(entry.getKey(),
+                    ShiftedBand.place(band, _region.x0(), _region.y0(), pa.getXSize(), pa.getYSize()));
+        }
+
         if (numThreads() > 1) {
-            throw new UnsupportedOperationException("parallel fusion not implemented");
+            fuseParallel(dstPlacedMapping, srcMapping);
         } else {
             _fusor.setProgressListener(progressListener);
-            fuse(dstMapping, srcMapping);
+            fuse(dstPlacedMapping, srcMapping);
             _fusor.setProgressListener(null);
         }
+        if (interleavedTarget != null) {
+            interleavedTarget.flush();
+        }
 
         if (useHistMatching) {
             List<Pair<PancakeBand, PancakeBand>> histMapping = new ArrayList<>();
+            Map<PancakeBand, Histogram> fusedHists = new HashMap<>();
             for (Spectrum spec : _multispecBandsPackingOrder) {
                 PancakeBand fused = dstMapping.get(spec);
                 PancakeBand source = _mapping.get(spec);
                 if (fused != null && source != null) {
-                    histMapping.add(Pair.of(fused, source));
+                    histMapping.add(Pair.of(fused, ShiftedBand.crop(source, msWindow)));
+                    if (histCollectors.containsKey(spec)) {
+                        fusedHists.put(fused, histCollectors.get(spec).getHistogram());
+                    }
                 }
             }
             histogramMatcher.setProgressListener(progressListener);
-            matchHistograms(histMapping);
+            histogramMatcher.setMemoryBudget(buffersBudget());
+            histogramMatcher.setExecutor(_worker, numThreads());
+            matchHistograms(histMapping, fusedHists);
             histogramMatcher.setProgressListener(null);
         }
 
-        postProcessArtifact(artifact);
+        postProcessArtifact(artifact, overviewBuilders.values());
         return artifact;
     }
 
-    private void matchHistograms(List<Pair<PancakeBand, PancakeBand>> mapping) {
+    /**
+     * 
+     * @param mapping    pairs of fused band and reference band
+     * @param fusedHists histograms of fused bands, which were collected while
+     *                   bands were written
+     */
+    private void matchHistograms(List<Pair<PancakeBand, PancakeBand>> mapping, Map<PancakeBand, Histogram> fusedHists) {
         for (Pair<PancakeBand, PancakeBand> pair : mapping) {
-            histogramMatcher.matchHistogram(pair.first(), pair.second());
+            Histogram fusedHist = fusedHists.get(pair.first());
+            if (fusedHist != null) {
+                histogramMatcher.matchHistogram(pair.first(), fusedHist, pair.second());
+            } else {
+                histogramMatcher.matchHistogram(pair.first(), pair.second());
+            }
         }
     }
 
@@ -238,15 +468,73 @@ public class PansharpJob {
 
     }
 
-    /** TODO */
-    private void postProcessArtifact(PancakeDataset artifact) {
+    /**
+     * Creates empty overviews of target and wraps bands, that receive final
+     * samples, so that overviews are filled while bands are written
+     * 
+     * @param mapping  bands, which are replaced with wrappers
+     * @param builders receives wrappers
+     */
+    private void createOverviews(PancakeDataset artifact, Map<Spectrum, PancakeBand> mapping,
+            Map<Spectrum, OverviewBuildingBand> builders) {
+        int[] factors = overviewFactors();
+        artifact.createOverviews(factors);
+        List<List<PancakeBand>> overviews = new ArrayList<>();
+        for (int level = 0; level < factors.length; ++level) {
+            overviews.add(artifact.overviewBands(level));
+        }
+        Spectrum[] targetBands = { Spectrum.R, Spectrum.G, Spectrum.B };
+        long bandLimit = buffersBudget() / 4 / targetBands.length;
+        for (int i = 0; i < targetBands.length; ++i) {
+            List<PancakeBand> bandOverviews = new ArrayList<>();
+            for (List<PancakeBand> level : overviews) {
+                bandOverviews.add(level.get(i));
+            }
+            /**
+             * fusor writes region by rows or columns of blocks, so strip of overview blocks
+             * is kept for each region fused at the same time and one more strip is kept
+             * across borders of regions
+             */
+            long limit = Long.min(bandLimit,
+                    (numThreads() + 1) * OverviewBuildingBand.stripBytes(bandOverviews));
+            overviewBytes += limit;
+            OverviewBuildingBand builder = new OverviewBuildingBand(mapping.get(targetBands[i]), bandOverviews,
+                    factors, limit);
+            mapping.put(targetBands[i], builder);
+            builders.put(targetBands[i], builder);
+        }
+    }
 
+    /**
+     * Writes overview blocks, that are still partially written, and flushes
+     * target
+     */
+    private void postProcessArtifact(PancakeDataset artifact, Collection<OverviewBuildingBand> overviewBuilders) {
+        for (OverviewBuildingBand builder : overviewBuilders) {
+            builder.finish();
+        }
+        artifact.flushCache();
     }
 
-    private PancakeDataset resample(PancakeOptions options, File dst) {
-        PancakeOptions resamplingOptions = options;
-        try (PancakeDataset vrt = Pancake.bundle(_multispectral, Pancake.createTempFile(), null)) {
-            PancakeDataset scaled = _resampler.resample(vrt, _targetXSize, _targetYSize, dst, resamplingOptions);
+    /**
+     * 
+     * @param msWindow  window of multispectral bands to resample
+     * @param upsampled area of panchromatic band, that is covered by window
+     */
+    private PancakeDataset resample(PancakeOptions options, Rectangle msWindow, Rectangle upsampled, File dst) {
+        /**
+         * only window is bundled, so scaling range is taken from whole bands, to
+         * resample the same pixel the same way regardless of region of interest
+         */
+        PancakeOptions resamplingOptions = new PancakeOptions(options);
+        double[] minMax = GdalHelper.computeMinMax(GdalHelper.convert(_multispectral));
+        resamplingOptions.put(Resampler.SCALE_SRC_MIN, minMax[0]);
+        resamplingOptions.put(Resampler.SCALE_SRC_MAX, minMax[1]);
+        /** resampled dataset may be already allocated in memory */
+        resamplingOptions.put(Resampler.MEMORY_BUDGET, buffersBudget());
+        try (PancakeDataset vrt = Pancake.bundle(_multispectral, msWindow, createScratchFile(0), null)) {
+            PancakeDataset scaled = _resampler.resample(vrt, upsampled.xSize(), upsampled.ySize(), dst,
+                    resamplingOptions);
             if (scaled == null) {
                 throw new RuntimeException(
                         "failed to create resampled dataset due to error: " + gdal.GetLastErrorMsg());
@@ -257,6 +545,56 @@ public class PansharpJob {
         }
     }
 
+    /**
+     * 
+     * @param bytes estimated size of intermediate dataset
+     * @return file for intermediate dataset, which is deleted when job ends
+     */
+    private File createScratchFile(long bytes) {
+        String scratchDir = _options.getString(JOB_SCRATCH_DIR);
+        File dir;
+        if (scratchDir != null) {
+            dir = new File(scratchDir);
+        } else {
+            /** at least half of budget is left for buffers of fusor and histogram matching */
+            dir = (inMemoryScratchBytes + bytes <= memoryBudget() / 2) ? Pancake.VSIMEM
+                    : new File(System.getProperty("java.io.tmpdir"));
+        }
+        if (Pancake.VSIMEM.equals(dir)) {
+            inMemoryScratchBytes += bytes;
+        }
+        File file = Pancake.createTempFile(dir);
+        scratchFiles.add(file);
+        return file;
+    }
+
+    /**
+     * Closes intermediate datasets and deletes their files. Datasets are closed
+     * first, as on the fly resampled dataset refers to bundle file. Memory
+     * reserved by job is released, so that job may be run once more with whole
+     * budget.
+     */
+    private void freeScratch() {
+        IOException failure = null;
+        for (PancakeDataset dataset : scratchDatasets) {
+            try {
+                dataset.close();
+            } catch (IOException e) {
+                failure = (failure == null) ? e : failure;
+            }
+        }
+        scratchDatasets.clear();
+        for (File file : scratchFiles) {
+            Pancake.deleteTempFile(file);
+        }
+        scratchFiles.clear();
+        inMemoryScratchBytes = 0;
+        overviewBytes = 0;
+        if (failure != null) {
+            throw new RuntimeException("failed to free dataset due to i/o error: ", failure);
+        }
+    }
+
     private PancakeDataset createTargetDataset(PancakeOptions options, File dst) {
         PancakeOptions driverOptions = _targetFormat.toDriverOptions(options);
         PancakeDataset targetDataset = Pancake.create(_targetFormat, _targetFile, _targetXSize, _targetYSize, 3,
@@ -268,7 +606,104 @@ public class PansharpJob {
     }
 
     private void fuse(Map<Spectrum, PancakeBand> dstMapping, Map<Spectrum, PancakeBand> srcMapping) {
-        _fusor.fuse(dstMapping, srcMapping);
+        _fusor.setMemoryBudget(buffersBudget());
+        _fusor.setWriteBehind(WRITE_BEHIND_BLOCKS);
+        _fusor.fuse(dstMapping, srcMapping, _region);
+    }
+
+    /**
+     * Splits region of interest into regions, aligned to the fusor block grid, and
+     * fuses them on worker threads. Raster i/o is serialized, as gdal datasets
+     * are not thread safe. Memory budget is shared equally by regions, that are
+     * fused at the same time, so less regions are fused at once, if budget is
+     * too small to give each thread the least memory fusor requires.
+     */
+    private void fuseParallel(Map<Spectrum, PancakeBand> dstMapping, Map<Spectrum, PancakeBand> srcMapping) {
+        Object ioLock = new Object();
+        Map<Spectrum, PancakeBand> dst = synchronizedMapping(dstMapping, ioLock);
+        Map<Spectrum, PancakeBand> src = synchronizedMapping(srcMapping, ioLock);
+        _fusor.setWriteBehind(WRITE_BEHIND_BLOCKS);
+
+        int tasksInFlight = MemoryPlanner.tasksInFlight(buffersBudget(), _fusor.minMemoryBudget(dst, src),
+                numThreads());
+        _fusor.setMemoryBudget(buffersBudget() / tasksInFlight);
+
+        List<Rectangle> regions = splitToRegions(_fusor.blockSize(dst, src));
+        Queue<Rectangle> pending = new ConcurrentLinkedQueue<>(regions);
+        AtomicInteger regionsDone = new AtomicInteger(0);
+
+        _fusor.setProgressListener(null);
+        progressListener.listen(PancakeConstants.PROGRESS_FUSION, 0D, "[Pancake] performing parallel fusion");
+
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int i = 0; i < tasksInFlight; ++i) {
+            tasks.add(_worker.submit(() -> {
+                Rectangle region;
+                while ((region = pending.poll()) != null) {
+                    _fusor.fuse(dst, src, region);
+                    reportFusionProgress(regionsDone.incrementAndGet(), regions.size());
+                }
+            }));
+        }
+
+        try {
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("parallel fusion interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("parallel fusion failed", e.getCause());
+        } finally {
+            for (Future<?> task : tasks) {
+                task.cancel(true);
+            }
+        }
+    }
+
+    private Map<Spectrum, PancakeBand> synchronizedMapping(Map<Spectrum, PancakeBand> mapping, Object lock) {
+        Map<Spectrum, PancakeBand> synchronizedMapping = new EnumMap<>(Spectrum.class);
+        for (Map.Entry<Spectrum, PancakeBand> entry : mapping.entrySet()) {
+            synchronizedMapping.put(entry.getKey(), new SynchronizedBand(entry.getValue(), lock));
+        }
+        return synchronizedMapping;
+    }
+
+    /**
+     * 
+     * @param blocksize size of fusor block
+     * @return regions which cover region of interest, each region is aligned to
+     *         fusor block grid
+     */
+    private List<Rectangle> splitToRegions(Shape blocksize) {
+        int blockX0 = _region.x0() / blocksize.xsize();
+        int blockY0 = _region.y0() / blocksize.ysize();
+        int blocksInRow = (_region.x1() + blocksize.xsize() - 1) / blocksize.xsize() - blockX0;
+        int blocksInCol = (_region.y1() + blocksize.ysize() - 1) / blocksize.ysize() - blockY0;
+
+        int regionsDesired = numThreads() * REGIONS_PER_THREAD;
+        int regionsInCol = Integer.min(blocksInCol, regionsDesired);
+        int regionsInRow = Integer.min(blocksInRow, (regionsDesired + regionsInCol - 1) / regionsInCol);
+
+        int regionXSize = blocksize.xsize() * ((blocksInRow + regionsInRow - 1) / regionsInRow);
+        int regionYSize = blocksize.ysize() * ((blocksInCol + regionsInCol - 1) / regionsInCol);
+
+        List<Rectangle> regions = new ArrayList<>();
+        for (int y0 = blockY0 * blocksize.ysize(); y0 < _region.y1(); y0 += regionYSize) {
+            for (int x0 = blockX0 * blocksize.xsize(); x0 < _region.x1(); x0 += regionXSize) {
+                regions.add(new Rectangle(x0, y0, regionXSize, regionYSize).intersection(_region));
+            }
+        }
+        return regions;
+    }
+
+    private synchronized void reportFusionProgress(int regionsDone, int regionsTotal) {
+        int stepSize = (regionsTotal + Pancake.logsFrequency() - 1) / Pancake.logsFrequency();
+        if ((regionsDone % stepSize == 0) || (regionsDone >= regionsTotal)) {
+            progressListener.listen(PancakeConstants.PROGRESS_FUSION, regionsDone / (double) regionsTotal,
+                    "[Pancake] performing parallel fusion");
+        }
     }
 
     public int blockXSize() {
@@ -279,10 +714,43 @@ public class PansharpJob {
         return _options.getIntOr(JOB_BLOCKYSIZE, _mapping.get(Spectrum.PA).getBlockYSize());
     }
 
+    /**
+     * 
+     * @return decimation factors of overview levels, levels smaller than one
+     *         sample are skipped
+     */
+    public int[] overviewFactors() {
+        int levels = Integer.max(0, _options.getIntOr(JOB_OVERVIEWS, 0));
+        List<Integer> factors = new ArrayList<>();
+        int maxFactor = Integer.max(_targetXSize, _targetYSize);
+        for (int factor = 2; factors.size() < levels && factor <= maxFactor; factor *= 2) {
+            factors.add(factor);
+        }
+        return factors.stream().mapToInt(Integer::intValue).toArray();
+    }
+
     public int numThreads() {
         return _options.getIntOr(JOB_NUM_THREADS, 1);
     }
 
+    /**
+     * @return memory budget of job in bytes
+     */
+    public long memoryBudget() {
+        long defaultBudget = memoryPolite ? PancakeConstants.MEMORY_POLITE_BUDGET
+                : PancakeConstants.DEFAULT_MEMORY_BUDGET;
+        return _options.getLongOr(JOB_MEMORY_BUDGET, defaultBudget);
+    }
+
+    /**
+     * @return part of memory budget in bytes, that is left for buffers, when
+     *         in-memory intermediate datasets and sums of overview builders are
+     *         allocated
+     */
+    private long buffersBudget() {
+        return Long.max(0, memoryBudget() - inMemoryScratchBytes - overviewBytes);
+    }
+
     /**
      * @return value in range [0 .. 100], where 0 - lack of compression (fastest),
      *         100 - best compression (slowest)
@@ -295,6 +763,10 @@ public class PansharpJob {
         return _options.getBoolOr(JOB_TILED, true);
     }
 
+    public boolean isPixelInterleaved() {
+        return "pixel".equalsIgnoreCase(_options.getStringOr(JOB_INTERLEAVE, "band"));
+    }
+
     public void setProgressListener(PancakeProgressListener listener){
         this.progressListener = Optional.ofNullable(listener).orElse(PancakeProgressListener.empty);
     }
@@ -4,6 +4,7 @@ import java.io.File;
 import java.util.Map;
 
 import com.nocmok.pancake.fusor.Fusor;
+import com.nocmok.pancake.utils.Rectangle;
 
 public class PansharpJobBuilder {
 
@@ -69,6 +70,61 @@ public class PansharpJobBuilder {
         return this;
     }
 
+    /**
+     * Writes target with samples of all bands interleaved by pixel. Blocks of
+     * such target are encoded once for all bands.
+     */
+    public PansharpJobBuilder usePixelInterleave(boolean usePixelInterleave) {
+        options.put(PansharpJob.JOB_INTERLEAVE, usePixelInterleave ? "pixel" : "band");
+        return this;
+    }
+
+    /**
+     * Limits pansharpening to the specified area. Produced artifact covers only
+     * this area.
+     * 
+     * @param region area in panchromatic band coordinates
+     */
+    public PansharpJobBuilder withRegion(Rectangle region) {
+        options.put(PansharpJob.JOB_ROI_XOFF, region.x0());
+        options.put(PansharpJob.JOB_ROI_YOFF, region.y0());
+        options.put(PansharpJob.JOB_ROI_XSIZE, region.xSize());
+        options.put(PansharpJob.JOB_ROI_YSIZE, region.ySize());
+        return this;
+    }
+
+    /**
+     * Places intermediate datasets in specified directory instead of choosing
+     * between memory and system temporary directory by their size.
+     * 
+     * @param dir scratch directory, e.g. tmpfs mount, or {@link Pancake#VSIMEM}
+     */
+    public PansharpJobBuilder withScratchDir(File dir) {
+        options.put(PansharpJob.JOB_SCRATCH_DIR, Pancake.isInMemory(dir) ? dir.getPath() : dir.getAbsolutePath());
+        return this;
+    }
+
+    /**
+     * Builds internal overviews of target while it is written.
+     * 
+     * @param levels number of overview levels with decimation factors 2, 4, 8
+     *               and so on
+     */
+    public PansharpJobBuilder withOverviews(int levels) {
+        options.put(PansharpJob.JOB_OVERVIEWS, levels);
+        return this;
+    }
+
+    /**
+     * Limits memory, that job may use for its buffers.
+     * 
+     * @param bytes memory budget in bytes
+     */
+    public PansharpJobBuilder withMemoryBudget(long bytes) {
+        options.put(PansharpJob.JOB_MEMORY_BUDGET, bytes);
+        return this;
+    }
+
     public PansharpJobBuilder with(String key, Object value) {
         options.put(key, value);
         return this;
@@ -10,6 +10,19 @@ public interface Resampler {
 
     public static final String OUT_FORMAT = "rsmp_out_format";
 
+    /** memory in bytes, that resampler may use for raster cache */
+    public static final String MEMORY_BUDGET = "rsmp_memory_budget";
+
+    /**
+     * Minimum of source range, that is scaled to destination datatype range. By
+     * default it is computed from source dataset, so it has to be given, when
+     * source is a window of larger bands, to scale all windows the same way.
+     */
+    public static final String SCALE_SRC_MIN = "rsmp_scale_src_min";
+
+    /** Maximum of source range, see {@link #SCALE_SRC_MIN} */
+    public static final String SCALE_SRC_MAX = "rsmp_scale_src_max";
+
     /**
      * 
      * @param src       source dataset
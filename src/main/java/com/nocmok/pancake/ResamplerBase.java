@@ -30,6 +30,19 @@ public abstract class ResamplerBase implements Resampler {
         };
     }
 
+    /**
+     * 
+     * @return source range, that is given in options, or range of source dataset
+     */
+    static double[] scaleSrcRange(Dataset src, PancakeOptions options) {
+        Double min = options.getDouble(Resampler.SCALE_SRC_MIN);
+        Double max = options.getDouble(Resampler.SCALE_SRC_MAX);
+        if (min != null && max != null) {
+            return new double[] { min, max };
+        }
+        return GdalHelper.computeMinMax(src);
+    }
+
     private List<String> getAsArgList(List<String> creationOptions) {
         List<String> options = new ArrayList<>();
         for (String option : creationOptions) {
@@ -71,7 +84,7 @@ public abstract class ResamplerBase implements Resampler {
 
         to.add(Pancake.dtName(dtype));
 
-        double[] minMax = GdalHelper.computeMinMax(gdalSrc);
+        double[] minMax = scaleSrcRange(gdalSrc, options);
 
         to.add("-scale");
         to.add(Integer.toString((int) minMax[0]));
@@ -82,8 +95,20 @@ public abstract class ResamplerBase implements Resampler {
         List<String> co = Formats.byName(outFormat).toDriverOptions(options).getAsGdalOptions();
         to.addAll(getAsArgList(co));
 
-        Dataset gdalDst = gdal.Translate(dest.getAbsolutePath(), gdalSrc, new TranslateOptions(new Vector<>(to)),
-                callback);
-        return new GdalDatasetMirror(gdalDst);
+        /** gdal raster cache is shared by whole process, so it is only lowered */
+        Long budget = options.getLong(Resampler.MEMORY_BUDGET);
+        int cacheMax = gdal.GetCacheMax();
+        if (budget != null) {
+            gdal.SetCacheMax((int) Long.min(cacheMax, budget));
+        }
+        try {
+            Dataset gdalDst = gdal.Translate(dest.getAbsolutePath(), gdalSrc,
+                    new TranslateOptions(new Vector<>(to)), callback);
+            return new GdalDatasetMirror(gdalDst);
+        } finally {
+            if (budget != null) {
+                gdal.SetCacheMax(cacheMax);
+            }
+        }
     }
 }
@@ -0,0 +1,143 @@
+package com.nocmok.pancake;
+
+import java.nio.ByteBuffer;
+
+import com.nocmok.pancake.utils.Rectangle;
+
+/**
+ * Band view, that shifts coordinates of underlying band. Sample at (x, y) of
+ * this view is sample at (x + xShift, y + yShift) of underlying band. View may
+ * be larger than underlying band, in this case only samples that are covered by
+ * underlying band can be accessed.
+ */
+class ShiftedBand implements PancakeBand {
+
+    private final PancakeBand band;
+
+    private final int xShift;
+
+    private final int yShift;
+
+    private final int xSize;
+
+    private final int ySize;
+
+    ShiftedBand(PancakeBand band, int xShift, int yShift, int xSize, int ySize) {
+        this.band = band;
+        this.xShift = xShift;
+        this.yShift = yShift;
+        this.xSize = xSize;
+        this.ySize = ySize;
+    }
+
+    /**
+     *
+     * @return view of specified window of band
+     */
+    static ShiftedBand crop(PancakeBand band, Rectangle window) {
+        return new ShiftedBand(band, window.x0(), window.y0(), window.xSize(), window.ySize());
+    }
+
+    /**
+     *
+     * @return view of raster with specified size, where band placed at (x0, y0)
+     */
+    static ShiftedBand place(PancakeBand band, int x0, int y0, int xSize, int ySize) {
+        return new ShiftedBand(band, -x0, -y0, xSize, ySize);
+    }
+
+    @Override
+    public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize, int buf_type,
+            ByteBuffer nioBuffer) {
+        return band.readRasterDirect(xoff + xShift, yoff + yShift, xsize, ysize, buf_xsize, buf_ysize, buf_type,
+                nioBuffer);
+    }
+
+    @Override
+    public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize, int buf_type,
+            ByteBuffer nioBuffer, int nPixelSpace, int nLineSpace) {
+        return band.readRasterDirect(xoff + xShift, yoff + yShift, xsize, ysize, buf_xsize, buf_ysize, buf_type,
+                nioBuffer, nPixelSpace, nLineSpace);
+    }
+
+    @Override
+    public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize,
+            ByteBuffer nioBuffer) {
+        return band.readRasterDirect(xoff + xShift, yoff + yShift, xsize, ysize, buf_xsize, buf_ysize, nioBuffer);
+    }
+
+    @Override
+    public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, ByteBuffer nioBuffer) {
+        return band.readRasterDirect(xoff + xShift, yoff + yShift, xsize, ysize, nioBuffer);
+    }
+
+    @Override
+    public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize, int buf_type,
+            ByteBuffer nioBuffer) {
+        return band.writeRasterDirect(xoff + xShift, yoff + yShift, xsize, ysize, buf_xsize, buf_ysize, buf_type,
+                nioBuffer);
+    }
+
+    @Override
+    public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize, int buf_type,
+            ByteBuffer nioBuffer, int nPixelSpace, int nLineSpace) {
+        return band.writeRasterDirect(xoff + xShift, yoff + yShift, xsize, ysize, buf_xsize, buf_ysize, buf_type,
+                nioBuffer, nPixelSpace, nLineSpace);
+    }
+
+    @Override
+    public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize,
+            ByteBuffer nioBuffer) {
+        return band.writeRasterDirect(xoff + xShift, yoff + yShift, xsize, ysize, buf_xsize, buf_ysize, nioBuffer);
+    }
+
+    @Override
+    public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, ByteBuffer nioBuffer) {
+        return band.writeRasterDirect(xoff + xShift, yoff + yShift, xsize, ysize, nioBuffer);
+    }
+
+    @Override
+    public int getXSize() {
+        return xSize;
+    }
+
+    @Override
+    public int getYSize() {
+        return ySize;
+    }
+
+    @Override
+    public int getBlockXSize() {
+        return band.getBlockXSize();
+    }
+
+    @Override
+    public int getBlockYSize() {
+        return band.getBlockYSize();
+    }
+
+    @Override
+    public int getRasterDatatype() {
+        return band.getRasterDatatype();
+    }
+
+    @Override
+    public double getNoData() {
+        return band.getNoData();
+    }
+
+    @Override
+    public double maxValue() {
+        return band.maxValue();
+    }
+
+    @Override
+    public double minValue() {
+        return band.minValue();
+    }
+
+    @Override
+    public PancakeDataset dataset() {
+        return band.dataset();
+    }
+}
@@ -0,0 +1,131 @@
+package com.nocmok.pancake;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Band wrapper, that serializes raster i/o on shared lock. Gdal dataset handles
+ * are not thread safe, so bands which are accessed from several threads must be
+ * wrapped with the same lock.
+ */
+class SynchronizedBand implements PancakeBand {
+
+    private final PancakeBand band;
+
+    private final Object lock;
+
+    SynchronizedBand(PancakeBand band, Object lock) {
+        this.band = band;
+        this.lock = lock;
+    }
+
+    @Override
+    public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize, int buf_type,
+            ByteBuffer nioBuffer) {
+        synchronized (lock) {
+            return band.readRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, buf_type, nioBuffer);
+        }
+    }
+
+    @Override
+    public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize, int buf_type,
+            ByteBuffer nioBuffer, int nPixelSpace, int nLineSpace) {
+        synchronized (lock) {
+            return band.readRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, buf_type, nioBuffer,
+                    nPixelSpace, nLineSpace);
+        }
+    }
+
+    @Override
+    public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize,
+            ByteBuffer nioBuffer) {
+        synchronized (lock) {
+            return band.readRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, nioBuffer);
+        }
+    }
+
+    @Override
+    public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, ByteBuffer nioBuffer) {
+        synchronized (lock) {
+            return band.readRasterDirect(xoff, yoff, xsize, ysize, nioBuffer);
+        }
+    }
+
+    @Override
+    public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize, int buf_type,
+            ByteBuffer nioBuffer) {
+        synchronized (lock) {
+            return band.writeRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, buf_type, nioBuffer);
+        }
+    }
+
+    @Override
+    public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize, int buf_type,
+            ByteBuffer nioBuffer, int nPixelSpace, int nLineSpace) {
+        synchronized (lock) {
+            return band.writeRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, buf_type, nioBuffer,
+                    nPixelSpace, nLineSpace);
+        }
+    }
+
+    @Override
+    public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize,
+            ByteBuffer nioBuffer) {
+        synchronized (lock) {
+            return band.writeRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, nioBuffer);
+        }
+    }
+
+    @Override
+    public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, ByteBuffer nioBuffer) {
+        synchronized (lock) {
+            return band.writeRasterDirect(xoff, yoff, xsize, ysize, nioBuffer);
+        }
+    }
+
+    @Override
+    public int getXSize() {
+        return band.getXSize();
+    }
+
+    @Override
+    public int getYSize() {
+        return band.getYSize();
+    }
+
+    @Override
+    public int getBlockXSize() {
+        return band.getBlockXSize();
+    }
+
+    @Override
+    public int getBlockYSize() {
+        return band.getBlockYSize();
+    }
+
+    @Override
+    public int getRasterDatatype() {
+        return band.getRasterDatatype();
+    }
+
+    @Override
+    public double getNoData() {
+        synchronized (lock) {
+            return band.getNoData();
+        }
+    }
+
+    @Override
+    public double maxValue() {
+        return band.maxValue();
+    }
+
+    @Override
+    public double minValue() {
+        return band.minValue();
+    }
+
+    @Override
+    public PancakeDataset dataset() {
+        return band.dataset();
+    }
+}
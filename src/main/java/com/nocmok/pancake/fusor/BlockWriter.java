@@ -0,0 +1,174 @@
+package com.nocmok.pancake.fusor;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import com.nocmok.pancake.PancakeBand;
+import com.nocmok.pancake.utils.Rectangle;
+
+/**
+ * Writes fused blocks to destination bands on dedicated thread, so that fusion
+ * of next blocks overlaps with write and compression of previous ones. Blocks
+ * are passed in buffers from bounded pool, so compute thread blocks only when
+ * all buffers wait for write. Without queued buffers blocks are written
+ * synchronously.
+ */
+class BlockWriter implements AutoCloseable {
+
+    private static class Write {
+
+        final PancakeBand band;
+
+        final Rectangle block;
+
+        final ByteBuffer buf;
+
+        Write(PancakeBand band, Rectangle block, ByteBuffer buf) {
+            this.band = band;
+            this.block = block;
+            this.buf = buf;
+        }
+    }
+
+    /** marks end of writes for writer thread */
+    private static final Write END = new Write(null, null, null);
+
+    private final BlockingQueue<ByteBuffer> pool;
+
+    private final BlockingQueue<Write> queue = new LinkedBlockingQueue<>();
+
+    /** null if blocks are written synchronously */
+    private final Thread thread;
+
+    /** first error of writer thread, next blocks are dropped after it */
+    private volatile Throwable failure = null;
+
+    /**
+     *
+     * @param buffers  how much buffers compute thread fills at once
+     * @param queued   how much buffers may wait for write, 0 writes blocks
+     *                 synchronously
+     * @param capacity size of each buffer in bytes
+     */
+    BlockWriter(int buffers, int queued, int capacity) {
+        this.pool = new ArrayBlockingQueue<>(buffers + queued);
+        for (int i = 0; i < buffers + queued; ++i) {
+            pool.add(ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder()));
+        }
+        if (queued > 0) {
+            this.thread = new Thread(this::run, "pancake-writer");
+            this.thread.setDaemon(true);
+            this.thread.start();
+        } else {
+            this.thread = null;
+        }
+    }
+
+    private static void flushBlock(PancakeBand band, Rectangle block, ByteBuffer buf) {
+        band.writeRasterDirect(block.x0(), block.y0(), block.xSize(), block.ySize(), block.xSize(), block.ySize(),
+                band.getRasterDatatype(), buf);
+    }
+
+    private void run() {
+        while (true) {
+            Write write;
+            try {
+                write = queue.take();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (write == END) {
+                return;
+            }
+            if (failure == null) {
+                try {
+                    flushBlock(write.band, write.block, write.buf);
+                } catch (Throwable e) {
+                    failure = e;
+                }
+            }
+            /** buffers are returned even after failure, so that compute thread doesn't wait forever */
+            pool.add(write.buf);
+        }
+    }
+
+    private void checkFailure() {
+        if (failure != null) {
+            throw new RuntimeException("failed to flush block cache", failure);
+        }
+    }
+
+    /**
+     * Waits for free buffer, if all buffers are filled or wait for write
+     *
+     * @return cleared buffer to fill block in
+     */
+    ByteBuffer acquire() {
+        checkFailure();
+        ByteBuffer buf;
+        try {
+            buf = pool.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("block write interrupted", e);
+        }
+        checkFailure();
+        buf.clear();
+        return buf;
+    }
+
+    /**
+     * Passes buffer to writer thread. Buffer returns to pool once block is
+     * written, so it must not be used after this call.
+     *
+     * @param band  band to write block to
+     * @param block area of band to write
+     * @param buf   buffer acquired from this writer
+     */
+    void write(PancakeBand band, Rectangle block, ByteBuffer buf) {
+        if (thread == null) {
+            try {
+                flushBlock(band, block, buf);
+            } catch (RuntimeException e) {
+                throw new RuntimeException("failed to flush block cache", e);
+            } finally {
+                pool.add(buf);
+            }
+            return;
+        }
+        checkFailure();
+        queue.add(new Write(band, block, buf));
+    }
+
+    /** Waits until all passed blocks are written */
+    void finish() {
+        if (thread != null) {
+            queue.add(END);
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("block write interrupted", e);
+            }
+        }
+        checkFailure();
+    }
+
+    /** Stops writer thread, blocks, that still wait for write, are dropped */
+    @Override
+    public void close() {
+        if (thread == null || !thread.isAlive()) {
+            return;
+        }
+        queue.clear();
+        queue.add(END);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
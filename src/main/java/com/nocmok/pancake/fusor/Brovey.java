@@ -1,19 +1,20 @@
 package com.nocmok.pancake.fusor;
 
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.EnumMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 import com.nocmok.pancake.Pancake;
 import com.nocmok.pancake.Spectrum;
-import com.nocmok.pancake.math.Buffer2D;
-import com.nocmok.pancake.math.Math2D;
+import com.nocmok.pancake.utils.BlockPrefetcher;
+import com.nocmok.pancake.utils.MemoryPlanner;
 import com.nocmok.pancake.utils.Rectangle;
+import com.nocmok.pancake.utils.Shape;
 
 import com.nocmok.pancake.PancakeBand;
 import com.nocmok.pancake.PancakeConstants;
@@ -25,6 +26,10 @@ public class Brovey implements Fusor {
 
     private PancakeProgressListener listener = PancakeProgressListener.empty;
 
+    private long memoryBudget = PancakeConstants.DEFAULT_MEMORY_BUDGET;
+
+    private int writeBehind = 0;
+
     public Brovey(double rWeight, double gWeight, double bWeight, double niWeight) {
         double max = Collections.max(List.of(rWeight, gWeight, bWeight));
         if (max == 0d) {
@@ -86,150 +91,115 @@ public class Brovey implements Fusor {
         }
     }
 
-    private void cacheBlock(PancakeBand band, int xsize, int ysize, int blockX, int blockY, ByteBuffer buf) {
-        int blockXSize = Integer.min(xsize, band.getXSize() - (blockX * xsize));
-        int blockYSize = Integer.min(ysize, band.getYSize() - (blockY * ysize));
-        try {
-            band.readRasterDirect(blockX * xsize, blockY * ysize, blockXSize, blockYSize, blockXSize, blockYSize,
-                    band.getRasterDatatype(), buf);
-        } catch (RuntimeException e) {
-            throw new RuntimeException("failed to cache block", e);
+    /**
+     * 
+     * @return how much memory one sample of block requires
+     */
+    private long bytesPerSample(Map<Spectrum, ? extends PancakeBand> dst, Map<Spectrum, ? extends PancakeBand> src) {
+        /** current and prefetched block for each source band */
+        long bytes = 0;
+        for (PancakeBand band : src.values()) {
+            bytes += 2 * Pancake.dtBytes(band.getRasterDatatype());
         }
+        /** writer buffers for blocks of destination bands, that are fused or wait for write */
+        bytes += (1L + writeBehind) * Spectrum.RGB().size() * maxDtBytes(dst);
+        return bytes;
     }
 
-    private void flushBlock(PancakeBand band, int xsize, int ysize, int blockX, int blockY, ByteBuffer buf) {
-        int blockXSize = Integer.min(xsize, band.getXSize() - (blockX * xsize));
-        int blockYSize = Integer.min(ysize, band.getYSize() - (blockY * ysize));
-        try {
-            band.writeRasterDirect(blockX * xsize, blockY * ysize, blockXSize, blockYSize, blockXSize, blockYSize,
-                    band.getRasterDatatype(), buf);
-        } catch (RuntimeException e) {
-            throw new RuntimeException("failed to flush block cache", e);
-        }
+    private static int maxDtBytes(Map<Spectrum, ? extends PancakeBand> bands) {
+        return Spectrum.RGB().stream().mapToInt(s -> Pancake.dtBytes(bands.get(s).getRasterDatatype())).max()
+                .getAsInt();
     }
 
-    private void _fuseInt(Map<Spectrum, ? extends PancakeBand> dst, Map<Spectrum, ? extends PancakeBand> src,
-            Rectangle region) {
+    private Shape nativeBlockSize(Map<Spectrum, ? extends PancakeBand> dst, Map<Spectrum, ? extends PancakeBand> src) {
         List<PancakeBand> allBands = new ArrayList<>();
         allBands.addAll(dst.values());
         allBands.addAll(src.values());
+        int blockXSize = 0;
+        int blockYSize = 0;
+        for (PancakeBand band : allBands) {
+            blockXSize = Integer.max(blockXSize, band.getBlockXSize());
+            blockYSize = Integer.max(blockYSize, band.getBlockYSize());
+        }
+        return Shape.of(blockXSize, blockYSize);
+    }
+
+    /**
+     * Processes bands by native blocks, if they fit in memory budget. Otherwise
+     * lowers blocks.
+     */
+    private Shape planBlockSize(Map<Spectrum, ? extends PancakeBand> dst, Map<Spectrum, ? extends PancakeBand> src) {
+        Shape nativeBlocksize = nativeBlockSize(dst, src);
+        long rowBytes = nativeBlocksize.xsize() * bytesPerSample(dst, src);
+        int ysize = MemoryPlanner.blockHeight(memoryBudget, rowBytes, 1, nativeBlocksize.ysize(), 1);
+        return Shape.of(nativeBlocksize.xsize(), ysize);
+    }
 
+    private void _fuseBlocks(Map<Spectrum, ? extends PancakeBand> dst, Map<Spectrum, ? extends PancakeBand> src,
+            Rectangle region, Shape blockShape) {
         List<PancakeBand> srcMs = new ArrayList<>();
         List<PancakeBand> dstMs = new ArrayList<>();
         PancakeBand pa = src.get(Spectrum.PA);
         PancakeBand ni = src.get(Spectrum.NI);
+        boolean useNi = ni != null && weights.get(Spectrum.NI) != 0d;
 
+        List<Double> msWeights = new ArrayList<>();
         for (Spectrum spect : Spectrum.RGB()) {
             srcMs.add(src.get(spect));
             dstMs.add(dst.get(spect));
+            msWeights.add(weights.get(spect));
         }
 
-        List<PancakeBand> srcMsAll = new ArrayList<>();
-        srcMsAll.addAll(srcMs);
-        if (ni != null) {
-            srcMsAll.add(ni);
-        }
+        int blocksize = blockShape.size();
 
-        int blockXSize = 0;
-        int blockYSize = 0;
-        for (PancakeBand band : allBands) {
-            blockXSize = Integer.max(blockXSize, band.getBlockXSize());
-            blockYSize = Integer.max(blockYSize, band.getBlockYSize());
+        Rectangle area = region.intersection(new Rectangle(0, 0, pa.getXSize(), pa.getYSize()));
+        if (area.isEmpty()) {
+            return;
         }
-        int blocksize = blockXSize * blockYSize;
-
-        int xsize = pa.getXSize();
-        int ysize = pa.getYSize();
-        int blockY0 = 0;
-        int blockX0 = 0;
-        int blockY1 = (ysize + blockYSize - 1) / blockYSize;
-        int blockX1 = (xsize + blockXSize - 1) / blockXSize;
-        int blocksTotal = blockX1 * blockY1;
-
-        ByteBuffer panCache = ByteBuffer.allocateDirect(blocksize * Pancake.dtBytes(pa.getRasterDatatype()))
-                .order(ByteOrder.nativeOrder());
-
-        int largerDstDtBytes = dstMs.stream().mapToInt(b -> Pancake.dtBytes(b.getRasterDatatype())).max().getAsInt();
-        int dstMsCacheSize = blocksize * largerDstDtBytes;
-        ByteBuffer dstMsCache = ByteBuffer.allocateDirect(dstMsCacheSize).order(ByteOrder.nativeOrder());
-
-        int largetSrcMsBytes = srcMsAll.stream().mapToInt(b -> Pancake.dtBytes(b.getRasterDatatype())).max().getAsInt();
-        int srcMsCacheSize = blocksize * largetSrcMsBytes;
-        ByteBuffer srcMsCache = ByteBuffer.allocateDirect(srcMsCacheSize).order(ByteOrder.nativeOrder());
-
-        Map<Spectrum, Buffer2D> srcMsBufs = new EnumMap<>(Spectrum.class);
-        for (Spectrum spect : Spectrum.RGB()) {
-            srcMsBufs.put(spect, Buffer2D.arrange(blockXSize, blockYSize, pa.getRasterDatatype()));
+        List<Rectangle> blocks = BlockPrefetcher.grid(area, blockShape);
+        int blocksTotal = blocks.size();
+
+        BroveyKernel kernel = new BroveyKernel(pa.getRasterDatatype(),
+                useNi ? ni.getRasterDatatype() : Pancake.TYPE_UNKNOWN,
+                srcMs.stream().map(PancakeBand::getRasterDatatype).collect(Collectors.toList()),
+                dstMs.stream().map(PancakeBand::getRasterDatatype).collect(Collectors.toList()), msWeights,
+                useNi ? weights.get(Spectrum.NI) : 0d);
+
+        /** pan, nir and multispectral bands, that are read, bands with zero weight are skipped */
+        List<PancakeBand> srcBands = new ArrayList<>();
+        srcBands.add(pa);
+        srcBands.add(useNi ? ni : null);
+        for (int i = 0; i < 3; ++i) {
+            srcBands.add((msWeights.get(i) != 0d) ? srcMs.get(i) : null);
         }
-        Buffer2D dstMsBuf = Buffer2D.arrange(blockXSize, blockYSize, Pancake.TYPE_FLOAT_64);
-        Buffer2D ratio = Buffer2D.arrange(blockXSize, blockYSize, Pancake.TYPE_FLOAT_64);
+        List<Integer> srcDatatypes = srcBands.stream()
+                .map(b -> b == null ? Pancake.TYPE_UNKNOWN : b.getRasterDatatype()).collect(Collectors.toList());
 
-        Math2D math2d = new Math2D();
+        ByteBuffer[] srcMsCaches = new ByteBuffer[3];
+        ByteBuffer[] dstMsCaches = new ByteBuffer[3];
 
         int nBlock = 0;
         int stepSize = (blocksTotal + Pancake.logsFrequency() - 1) / Pancake.logsFrequency();
         int stepsTotal = (blocksTotal + stepSize - 1) / stepSize;
         listener.listen(PancakeConstants.PROGRESS_FUSION, 0D, "[Brovey] performing fusion");
 
-        for (int blockY = blockY0; blockY < blockY1; ++blockY) {
-            for (int blockX = blockX0; blockX < blockX1; ++blockX) {
-
-                cacheBlock(pa, blockXSize, blockYSize, blockX, blockY, panCache);
-                Buffer2D paBuf = Buffer2D.wrap(panCache, blockXSize, blockYSize, pa.getRasterDatatype());
-                if (ni != null && weights.get(Spectrum.NI) != 0d) {
-                    cacheBlock(ni, blockXSize, blockYSize, blockX, blockY, srcMsCache);
-                    Buffer2D tmpBuf = Buffer2D.wrap(srcMsCache, blockXSize, blockYSize, ni.getRasterDatatype());
-                    Buffer2D niBuf = srcMsBufs.get(Spectrum.R);
-                    math2d.convertAndScale(tmpBuf, pa.getRasterDatatype(), niBuf,
-                            Pancake.dtMin(tmpBuf.datatype()), Pancake.dtMax(tmpBuf.datatype()), 0,
-                            Pancake.dtMax(pa.getRasterDatatype()));
-                    math2d.mul(niBuf, weights.get(Spectrum.NI), niBuf);
-                    math2d.sub(paBuf, niBuf, paBuf);
-                }
+        /** next block is read, while current one is fused, and blocks are written, while next one is fused */
+        try (BlockPrefetcher reader = new BlockPrefetcher(srcBands, srcDatatypes, blocks);
+                BlockWriter writer = new BlockWriter(dstMsCaches.length, dstMsCaches.length * writeBehind,
+                        blocksize * maxDtBytes(dst))) {
+            while (reader.hasNext()) {
+                Rectangle block = reader.next();
 
-                for (Spectrum spect : Spectrum.RGB()) {
-                    cacheBlock(src.get(spect), blockXSize, blockYSize, blockX, blockY, srcMsCache);
-
-                    Buffer2D tmpBuf = Buffer2D.wrap(srcMsCache, blockXSize, blockYSize,
-                            src.get(spect).getRasterDatatype());
-
-                    math2d.convertAndScale(tmpBuf, pa.getRasterDatatype(), srcMsBufs.get(spect),
-                            Pancake.dtMin(tmpBuf.datatype()), Pancake.dtMax(tmpBuf.datatype()), 0,
-                            Pancake.dtMax(pa.getRasterDatatype()));
+                for (int i = 0; i < 3; ++i) {
+                    srcMsCaches[i] = reader.buffer(2 + i);
+                    dstMsCaches[i] = writer.acquire();
                 }
 
-                math2d.fill(ratio, 0f);
-                for (Spectrum spect : Spectrum.RGB()) {
-                    if (weights.get(spect) == 0d) {
-                        continue;
-                    } else if (weights.get(spect) == 1d) {
-                        math2d.sum(ratio, srcMsBufs.get(spect), ratio);
-                    } else {
-                        math2d.scaleSum(ratio, srcMsBufs.get(spect), weights.get(spect), ratio);
-                    }
-                }
+                kernel.apply(reader.buffer(0), reader.buffer(1), srcMsCaches, dstMsCaches, block.xSize(),
+                        block.ySize());
 
-                Buffer2D zeros = math2d.compareEquals(ratio, 0f);
-                math2d.div(paBuf, ratio, ratio);
-                math2d.fill(ratio, 0f, zeros);
-
-                for (Spectrum spect : Spectrum.RGB()) {
-                    if (weights.get(spect) == 0d) {
-                        math2d.fill(
-                                Buffer2D.wrap(dstMsCache, blockXSize, blockYSize, dst.get(spect).getRasterDatatype()),
-                                0d);
-                    } else {
-                        math2d.convert(srcMsBufs.get(spect), dstMsBuf);
-                        if (weights.get(spect) != 1d) {
-                            math2d.mul(dstMsBuf, weights.get(spect), dstMsBuf);
-                        }
-                        math2d.mul(ratio, dstMsBuf, dstMsBuf);
-                        math2d.convertAndScale(dstMsBuf, dst.get(spect).getRasterDatatype(),
-                                Buffer2D.wrap(dstMsCache, blockXSize, blockYSize, dst.get(spect).getRasterDatatype()),
-                                0, Pancake.dtMax(paBuf.datatype()), 0,
-                                Pancake.dtMax(dst.get(spect).getRasterDatatype()));
-                    }
-                    flushBlock(dst.get(spect), blockXSize, blockYSize, blockX, blockY, dstMsCache);
+                for (int i = 0; i < 3; ++i) {
+                    writer.write(dstMs.get(i), block, dstMsCaches[i]);
                 }
 
                 if (((nBlock + 1) % stepSize == 0) || (nBlock + 1 >= blocksTotal)) {
@@ -238,28 +208,13 @@ public class Brovey implements Fusor {
                 }
                 ++nBlock;
             }
+            writer.finish();
         }
     }
 
     private void _fuse(Map<Spectrum, ? extends PancakeBand> dst, Map<Spectrum, ? extends PancakeBand> src,
             Rectangle region) {
-        List<PancakeBand> allBands = new ArrayList<>();
-        allBands.addAll(dst.values());
-        allBands.addAll(src.values());
-
-        boolean useIntegerImplementaion = true;
-        for (PancakeBand band : allBands) {
-            if (!Pancake.isInt(band.getRasterDatatype())) {
-                useIntegerImplementaion = false;
-                break;
-            }
-        }
-
-        if (useIntegerImplementaion) {
-            _fuseInt(dst, src, region);
-        } else {
-            throw new UnsupportedOperationException("images with floating point data types not supported");
-        }
+        _fuseBlocks(dst, src, region, planBlockSize(dst, src));
     }
 
     @Override
@@ -275,6 +230,26 @@ public class Brovey implements Fusor {
         _fuse(dst, src, new Rectangle(0, 0, src.get(Spectrum.PA).getXSize(), src.get(Spectrum.PA).getYSize()));
     }
 
+    @Override
+    public Shape blockSize(Map<Spectrum, ? extends PancakeBand> dst, Map<Spectrum, ? extends PancakeBand> src) {
+        return planBlockSize(dst, src);
+    }
+
+    @Override
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    @Override
+    public long minMemoryBudget(Map<Spectrum, ? extends PancakeBand> dst, Map<Spectrum, ? extends PancakeBand> src) {
+        return nativeBlockSize(dst, src).xsize() * bytesPerSample(dst, src);
+    }
+
+    @Override
+    public void setWriteBehind(int blocks) {
+        this.writeBehind = Integer.max(0, blocks);
+    }
+
     @Override
     public void setProgressListener(PancakeProgressListener listener) {
         this.listener = Optional.ofNullable(listener).orElse(PancakeProgressListener.empty);
@@ -0,0 +1,302 @@
+package com.nocmok.pancake.fusor;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import com.nocmok.pancake.Pancake;
+
+/**
+ * Per pixel Brovey transform, that reads each source block and writes each
+ * destination block once. Blocks are processed row by row: samples are decoded
+ * with loops specialized for band data type, combined in single arithmetic loop
+ * and encoded with loops specialized for destination data type.
+ *
+ * Multispectral samples are scaled to panchromatic data type range, nir sample
+ * is weighted and subtracted from panchromatic sample, then each weighted
+ * multispectral sample is multiplied by ratio of panchromatic sample to
+ * weighted sum of multispectral samples. Ratio is zero where weighted sum is
+ * zero. Results are scaled from panchromatic data type range to destination
+ * data type range. Intermediate samples are rounded and saturated to
+ * panchromatic data type, so that result is the same as with block-wide
+ * operations.
+ *
+ * Floating point samples are physical values, like reflectance, so they are
+ * not scaled between floating point data types, and are expected to be in
+ * [0, 1] range when scaled to or from integer data types.
+ */
+final class BroveyKernel {
+
+    private final int paDatatype;
+
+    private final int niDatatype;
+
+    private final int[] msDatatypes;
+
+    private final int[] dstDatatypes;
+
+    private final double[] msWeights;
+
+    private final double niWeight;
+
+    /** scale of multispectral samples to panchromatic range */
+    private final double[] msAlpha;
+
+    private final double[] msBeta;
+
+    private final double niAlpha;
+
+    private final double niBeta;
+
+    /** scale of results to destination range */
+    private final double[] dstAlpha;
+
+    private final double paMin;
+
+    private final double paMax;
+
+    private final boolean paIsInt;
+
+    private double[] paRow = new double[0];
+
+    private double[] niRow = new double[0];
+
+    private double[][] msRows = new double[3][0];
+
+    /**
+     *
+     * @param paDatatype   data type of panchromatic band
+     * @param niDatatype   data type of nir band, ignored if nir weight is zero
+     * @param msDatatypes  data types of red, green and blue source bands
+     * @param dstDatatypes data types of red, green and blue destination bands
+     * @param msWeights    weights of red, green and blue bands
+     * @param niWeight     weight of nir band, zero if nir band is not used
+     */
+    BroveyKernel(int paDatatype, int niDatatype, List<Integer> msDatatypes, List<Integer> dstDatatypes,
+            List<Double> msWeights, double niWeight) {
+        this.paDatatype = paDatatype;
+        this.niDatatype = niDatatype;
+        this.msDatatypes = msDatatypes.stream().mapToInt(Integer::intValue).toArray();
+        this.dstDatatypes = dstDatatypes.stream().mapToInt(Integer::intValue).toArray();
+        this.msWeights = msWeights.stream().mapToDouble(Double::doubleValue).toArray();
+        this.niWeight = niWeight;
+
+        this.paMin = Pancake.dtMin(paDatatype);
+        this.paMax = Pancake.dtMax(paDatatype);
+        this.paIsInt = Pancake.isInt(paDatatype);
+
+        this.msAlpha = new double[3];
+        this.msBeta = new double[3];
+        this.dstAlpha = new double[3];
+        for (int i = 0; i < 3; ++i) {
+            msAlpha[i] = scaleAlpha(this.msDatatypes[i], paDatatype);
+            msBeta[i] = scaleBeta(this.msDatatypes[i], paDatatype);
+            dstAlpha[i] = rangeMax(this.dstDatatypes[i]) / rangeMax(paDatatype);
+        }
+        if (niWeight != 0d) {
+            this.niAlpha = scaleAlpha(niDatatype, paDatatype);
+            this.niBeta = scaleBeta(niDatatype, paDatatype);
+        } else {
+            this.niAlpha = 0d;
+            this.niBeta = 0d;
+        }
+    }
+
+    /** Lower bound of data type range */
+    private static double rangeMin(int dtype) {
+        return Pancake.isInt(dtype) ? Pancake.dtMin(dtype) : 0d;
+    }
+
+    /** Upper bound of data type range */
+    private static double rangeMax(int dtype) {
+        return Pancake.isInt(dtype) ? Pancake.dtMax(dtype) : 1d;
+    }
+
+    /**
+     * 
+     * @return alpha of mapping source data type range to [0, max] range of
+     *         destination data type
+     */
+    private static double scaleAlpha(int srcDatatype, int dstDatatype) {
+        return rangeMax(dstDatatype) / (rangeMax(srcDatatype) - rangeMin(srcDatatype));
+    }
+
+    /**
+     * 
+     * @return beta of mapping source data type range to [0, max] range of
+     *         destination data type
+     */
+    private static double scaleBeta(int srcDatatype, int dstDatatype) {
+        return -rangeMin(srcDatatype) * scaleAlpha(srcDatatype, dstDatatype);
+    }
+
+    private void ensureRows(int xsize) {
+        if (paRow.length < xsize) {
+            paRow = new double[xsize];
+            niRow = new double[xsize];
+            msRows = new double[3][xsize];
+        }
+    }
+
+    /**
+     * Rounds and saturates value as if it was stored in panchromatic data type
+     * buffer
+     */
+    private double toPa(double value) {
+        if (!paIsInt) {
+            return value;
+        }
+        return Math.min(paMax, Math.max(paMin, Math.rint(value)));
+    }
+
+    /**
+     * Blocks are expected to be in native byte order.
+     *
+     * @param pa    panchromatic block
+     * @param ni    nir block, ignored if nir weight is zero
+     * @param ms    red, green and blue blocks
+     * @param dst   red, green and blue destination blocks
+     * @param xsize width of blocks
+     * @param ysize height of blocks
+     */
+    void apply(ByteBuffer pa, ByteBuffer ni, ByteBuffer[] ms, ByteBuffer[] dst, int xsize, int ysize) {
+        ensureRows(xsize);
+        for (int y = 0; y < ysize; ++y) {
+            int offset = y * xsize;
+            decodeRow(pa, paDatatype, offset, xsize, paRow);
+            if (niWeight != 0d) {
+                decodeRow(ni, niDatatype, offset, xsize, niRow);
+            }
+            for (int i = 0; i < 3; ++i) {
+                if (msWeights[i] != 0d) {
+                    decodeRow(ms[i], msDatatypes[i], offset, xsize, msRows[i]);
+                }
+            }
+
+            combineRow(xsize);
+
+            for (int i = 0; i < 3; ++i) {
+                encodeRow(msRows[i], dstDatatypes[i], offset, xsize, dst[i]);
+            }
+        }
+    }
+
+    /** Replaces multispectral samples of row with fused samples */
+    private void combineRow(int xsize) {
+        double[] r = msRows[0];
+        double[] g = msRows[1];
+        double[] b = msRows[2];
+        double rWeight = msWeights[0];
+        double gWeight = msWeights[1];
+        double bWeight = msWeights[2];
+
+        for (int x = 0; x < xsize; ++x) {
+            double pan = paRow[x];
+            if (niWeight != 0d) {
+                double nir = toPa(toPa(niRow[x] * niAlpha + niBeta) * niWeight);
+                pan = toPa(pan - nir);
+            }
+
+            double rSample = (rWeight != 0d) ? toPa(r[x] * msAlpha[0] + msBeta[0]) * rWeight : 0d;
+            double gSample = (gWeight != 0d) ? toPa(g[x] * msAlpha[1] + msBeta[1]) * gWeight : 0d;
+            double bSample = (bWeight != 0d) ? toPa(b[x] * msAlpha[2] + msBeta[2]) * bWeight : 0d;
+
+            double sum = rSample + gSample + bSample;
+            double ratio = (sum == 0d) ? 0d : pan / sum;
+
+            r[x] = ratio * rSample * dstAlpha[0];
+            g[x] = ratio * gSample * dstAlpha[1];
+            b[x] = ratio * bSample * dstAlpha[2];
+        }
+    }
+
+    private static void decodeRow(ByteBuffer buf, int dtype, int offset, int xsize, double[] row) {
+        switch (dtype) {
+        case Pancake.TYPE_BYTE:
+        case Pancake.TYPE_UNKNOWN:
+            for (int x = 0; x < xsize; ++x) {
+                row[x] = buf.get(offset + x) & 0xff;
+            }
+            break;
+        case Pancake.TYPE_INT_16:
+            for (int x = 0, i = offset << 1; x < xsize; ++x, i += 2) {
+                row[x] = buf.getShort(i);
+            }
+            break;
+        case Pancake.TYPE_UINT_16:
+            for (int x = 0, i = offset << 1; x < xsize; ++x, i += 2) {
+                row[x] = buf.getShort(i) & 0xffff;
+            }
+            break;
+        case Pancake.TYPE_INT_32:
+            for (int x = 0, i = offset << 2; x < xsize; ++x, i += 4) {
+                row[x] = buf.getInt(i);
+            }
+            break;
+        case Pancake.TYPE_UINT_32:
+            for (int x = 0, i = offset << 2; x < xsize; ++x, i += 4) {
+                row[x] = buf.getInt(i) & 0xffffffffL;
+            }
+            break;
+        case Pancake.TYPE_FLOAT_32:
+            for (int x = 0, i = offset << 2; x < xsize; ++x, i += 4) {
+                row[x] = buf.getFloat(i);
+            }
+            break;
+        case Pancake.TYPE_FLOAT_64:
+            for (int x = 0, i = offset << 3; x < xsize; ++x, i += 8) {
+                row[x] = buf.getDouble(i);
+            }
+            break;
+        default:
+            throw new UnsupportedOperationException("unsupported data type " + Pancake.dtName(dtype));
+        }
+    }
+
+    private static void encodeRow(double[] row, int dtype, int offset, int xsize, ByteBuffer buf) {
+        switch (dtype) {
+        case Pancake.TYPE_BYTE:
+        case Pancake.TYPE_UNKNOWN:
+            for (int x = 0; x < xsize; ++x) {
+                buf.put(offset + x, (byte) saturate(row[x], 0, 0xff));
+            }
+            break;
+        case Pancake.TYPE_INT_16:
+            for (int x = 0, i = offset << 1; x < xsize; ++x, i += 2) {
+                buf.putShort(i, (short) saturate(row[x], Short.MIN_VALUE, Short.MAX_VALUE));
+            }
+            break;
+        case Pancake.TYPE_UINT_16:
+            for (int x = 0, i = offset << 1; x < xsize; ++x, i += 2) {
+                buf.putShort(i, (short) saturate(row[x], 0, 0xffff));
+            }
+            break;
+        case Pancake.TYPE_INT_32:
+            for (int x = 0, i = offset << 2; x < xsize; ++x, i += 4) {
+                buf.putInt(i, (int) saturate(row[x], Integer.MIN_VALUE, Integer.MAX_VALUE));
+            }
+            break;
+        case Pancake.TYPE_UINT_32:
+            for (int x = 0, i = offset << 2; x < xsize; ++x, i += 4) {
+                buf.putInt(i, (int) saturate(row[x], 0, 0xffffffffL));
+            }
+            break;
+        case Pancake.TYPE_FLOAT_32:
+            for (int x = 0, i = offset << 2; x < xsize; ++x, i += 4) {
+                buf.putFloat(i, (float) row[x]);
+            }
+            break;
+        case Pancake.TYPE_FLOAT_64:
+            for (int x = 0, i = offset << 3; x < xsize; ++x, i += 8) {
+                buf.putDouble(i, row[x]);
+            }
+            break;
+        default:
+            throw new UnsupportedOperationException("unsupported data type " + Pancake.dtName(dtype));
+        }
+    }
+
+    /** Rounds value to the nearest integer and clamps it to [min, max] */
+    private static long saturate(double value, long min, long max) {
+        return Math.min(max, Math.max(min, (long) Math.rint(value)));
+    }
+}
@@ -4,6 +4,7 @@ import java.util.Map;
 
 import com.nocmok.pancake.Spectrum;
 import com.nocmok.pancake.utils.Rectangle;
+import com.nocmok.pancake.utils.Shape;
 import com.nocmok.pancake.PancakeBand;
 import com.nocmok.pancake.PancakeProgressListener;
 
@@ -34,6 +35,45 @@ public interface Fusor {
     public void fuse(Map<Spectrum, ? extends PancakeBand> dst, Map<Spectrum, ? extends PancakeBand> src,
             Rectangle area);
 
+    /**
+     * Fusor processes bands block by block on a grid, which starts at the origin
+     * of panchromatic band. Fusing areas aligned to this grid one by one gives the
+     * same result as fusing whole bands at once.
+     * 
+     * @param dst destination bands to which result will be written
+     * @param src source bands, that have to be fused
+     * @return size of blocks in which specified bands will be processed
+     */
+    public Shape blockSize(Map<Spectrum, ? extends PancakeBand> dst, Map<Spectrum, ? extends PancakeBand> src);
+
+    /**
+     * Limits amount of memory, that single fuse call may use for its buffers.
+     * Fusor picks block size and precision of intermediate buffers to fit in
+     * budget, so block size may depend on budget.
+     * 
+     * @param bytes memory budget of single fuse call
+     */
+    public void setMemoryBudget(long bytes);
+
+    /**
+     * 
+     * @param dst destination bands to which result will be written
+     * @param src source bands, that have to be fused
+     * @return the least memory budget, with which fusor still processes specified
+     *         bands without degradation of result
+     */
+    public long minMemoryBudget(Map<Spectrum, ? extends PancakeBand> dst, Map<Spectrum, ? extends PancakeBand> src);
+
+    /**
+     * Lets fusor write destination blocks on dedicated thread, while next blocks
+     * are fused. Blocks, that wait for write, are counted in memory budget.
+     * Destination bands are written concurrently with reads of source bands, so
+     * they must not share gdal dataset, unless their i/o is synchronized.
+     *
+     * @param blocks how much fused blocks may wait for write, 0 writes blocks
+     *               synchronously
+     */
+    public void setWriteBehind(int blocks);
 
     public void setProgressListener(PancakeProgressListener listener);
 }
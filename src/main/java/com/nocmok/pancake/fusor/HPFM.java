@@ -8,6 +8,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.stream.Collectors;
 
 import com.nocmok.pancake.Pancake;
 import com.nocmok.pancake.PancakeBand;
@@ -17,7 +18,10 @@ import com.nocmok.pancake.Spectrum;
 import com.nocmok.pancake.math.Buffer2D;
 import com.nocmok.pancake.math.Math2D;
 import com.nocmok.pancake.math.Math2D.Stat;
+import com.nocmok.pancake.math.PancakeMath;
 import com.nocmok.pancake.math.Filter2D;
+import com.nocmok.pancake.utils.BlockPrefetcher;
+import com.nocmok.pancake.utils.MemoryPlanner;
 import com.nocmok.pancake.utils.Rectangle;
 import com.nocmok.pancake.utils.Shape;
 
@@ -27,6 +31,10 @@ public class HPFM implements Fusor {
 
     private PancakeProgressListener listener = PancakeProgressListener.empty;
 
+    private long memoryBudget = PancakeConstants.DEFAULT_MEMORY_BUDGET;
+
+    private int writeBehind = 0;
+
     /**
      * Determines which data type to use in order to store convolution result for
      * raster with specific data type
@@ -39,6 +47,12 @@ public class HPFM implements Fusor {
      */
     private static final Map<Integer, Integer> dtConversion = new HashMap<>();
 
+    /**
+     * Data type to store convolution result in, when memory budget is too small
+     * for data type from convDtMap
+     */
+    private static final Map<Integer, Integer> lowConvDtMap = new HashMap<>();
+
     static {
         convDtMap.put(Pancake.TYPE_BYTE, Pancake.TYPE_INT_16);
         convDtMap.put(Pancake.TYPE_INT_16, Pancake.TYPE_FLOAT_32);
@@ -48,6 +62,14 @@ public class HPFM implements Fusor {
         convDtMap.put(Pancake.TYPE_FLOAT_32, Pancake.TYPE_FLOAT_64);
         convDtMap.put(Pancake.TYPE_FLOAT_64, Pancake.TYPE_FLOAT_64);
 
+        lowConvDtMap.put(Pancake.TYPE_BYTE, Pancake.TYPE_INT_16);
+        lowConvDtMap.put(Pancake.TYPE_INT_16, Pancake.TYPE_FLOAT_32);
+        lowConvDtMap.put(Pancake.TYPE_UINT_16, Pancake.TYPE_FLOAT_32);
+        lowConvDtMap.put(Pancake.TYPE_INT_32, Pancake.TYPE_FLOAT_32);
+        lowConvDtMap.put(Pancake.TYPE_UINT_32, Pancake.TYPE_FLOAT_32);
+        lowConvDtMap.put(Pancake.TYPE_FLOAT_32, Pancake.TYPE_FLOAT_32);
+        lowConvDtMap.put(Pancake.TYPE_FLOAT_64, Pancake.TYPE_FLOAT_32);
+
         dtConversion.put(Pancake.TYPE_BYTE, Pancake.TYPE_BYTE);
         dtConversion.put(Pancake.TYPE_INT_16, Pancake.TYPE_INT_16);
         dtConversion.put(Pancake.TYPE_UINT_16, Pancake.TYPE_UINT_16);
@@ -57,6 +79,21 @@ public class HPFM implements Fusor {
         dtConversion.put(Pancake.TYPE_FLOAT_64, Pancake.TYPE_FLOAT_64);
     }
 
+    /**
+     * Kernel size, starting from which blocks are convolved with fft, as cost of
+     * spatial convolution grows with kernel size. Separable filters are cheap to
+     * convolve spatially, so their threshold is greater.
+     */
+    private static final int FFT_KERNEL_SIZE = 25;
+
+    private static final int FFT_SEPARABLE_KERNEL_SIZE = 129;
+
+    /**
+     * Distinct transform sizes of blocks, which kernel spectra are cached for:
+     * inner blocks, blocks of last column, blocks of last row and corner block
+     */
+    private static final int FFT_TRANSFORM_SIZES = 4;
+
     /** TODO */
     private void validateFilter(Filter2D filter) {
     }
@@ -66,31 +103,218 @@ public class HPFM implements Fusor {
         this.filter = filter;
     }
 
+    /**
+     * Cache block is aligned to pan tiles, so that block width doesn't depend on
+     * image width
+     */
     private Shape computeCacheBlockSize(Shape imgsize, Shape tilesize, Shape kernelsize) {
-        int xsize = imgsize.xsize();
-        /** block height >= kernel height - 1 */
+        /** block size >= kernel size - 1, so that halo doesn't outnumber block */
+        int tilesInRow = Integer.max(0, kernelsize.xsize() - 2) / tilesize.xsize() + 1;
         int tilesInCol = Integer.max(0, kernelsize.ysize() - 2) / tilesize.ysize() + 1;
 
-        int ysize = tilesize.ysize();
-        ysize *= tilesInCol;
-        ysize = Integer.min(ysize, imgsize.ysize());
+        int xsize = Integer.min(tilesize.xsize() * tilesInRow, imgsize.xsize());
+        int ysize = Integer.min(tilesize.ysize() * tilesInCol, imgsize.ysize());
 
         return Shape.of(xsize, ysize);
     }
 
+    /** Buffers layout chosen to fit memory budget */
+    private static class Plan {
+
+        final Shape blocksize;
+
+        /** data type to store convolution result in */
+        final int convDatatype;
+
+        /** whether blocks have to be convolved without halo */
+        final boolean memoryPolite;
+
+        /** how much columns and rows around block are kept as convolution halo */
+        final Shape halo;
+
+        /** whether blocks are convolved as product of spectra */
+        final boolean fft;
+
+        Plan(Shape blocksize, int convDatatype, boolean memoryPolite, Shape halo, boolean fft) {
+            this.blocksize = blocksize;
+            this.convDatatype = convDatatype;
+            this.memoryPolite = memoryPolite;
+            this.halo = halo;
+            this.fft = fft;
+        }
+    }
+
+    /** Opencv doesn't convolve 32 bit integers, so they have to be converted first */
+    private static boolean needsConversion(int datatype) {
+        return Pancake.isInt(datatype) && Pancake.dtBytes(datatype) > 2;
+    }
+
+    /**
+     * 
+     * @return data type of pan rows, that are kept for convolution
+     */
+    private static int windowDatatype(int paDatatype, int convDatatype) {
+        return needsConversion(paDatatype) ? convDatatype : paDatatype;
+    }
+
+    /**
+     * 
+     * @return how much memory one row of pan window requires, including staging
+     *         buffer for conversion
+     */
+    private static long windowBytesPerRow(PancakeBand pa, int convDatatype, int windowXSize) {
+        long bytes = Pancake.dtBytes(windowDatatype(pa.getRasterDatatype(), convDatatype));
+        if (needsConversion(pa.getRasterDatatype())) {
+            bytes += Pancake.dtBytes(pa.getRasterDatatype());
+        }
+        return bytes * windowXSize;
+    }
+
+    private static int maxDtBytes(Map<Spectrum, ? extends PancakeBand> bands) {
+        return Spectrum.RGB().stream().mapToInt(s -> Pancake.dtBytes(bands.get(s).getRasterDatatype())).max()
+                .getAsInt();
+    }
+
+    /**
+     * 
+     * @return how much memory one row of cache block requires
+     */
+    private long bytesPerRow(Map<Spectrum, ? extends PancakeBand> dst, Map<Spectrum, ? extends PancakeBand> src,
+            int convDatatype, boolean memoryPolite, int xsize, Shape halo) {
+        PancakeBand pa = src.get(Spectrum.PA);
+        long paBytes = Pancake.dtBytes(pa.getRasterDatatype());
+        long convBytes = Pancake.dtBytes(convDatatype);
+        /** writer buffers for fused block and blocks, that wait for write */
+        long bytes = (1L + Spectrum.RGB().size() * writeBehind) * maxDtBytes(dst);
+        if (memoryPolite) {
+            /** multispectral block cache shared by bands, pan strip, convolution buffer, fusion buffer */
+            bytes += maxDtBytes(src) + paBytes + 2 * convBytes;
+        } else {
+            /**
+             * current and prefetched multispectral blocks, convolution buffer, fusion
+             * buffer, pan window rows are counted separately
+             */
+            bytes += 2L * Spectrum.RGB().size() * maxDtBytes(src) + 2 * convBytes;
+        }
+        bytes *= xsize;
+        if (!memoryPolite) {
+            bytes += windowBytesPerRow(pa, convDatatype, xsize + 2 * halo.xsize());
+        }
+        return bytes;
+    }
+
+    /** Columns and rows on each side of block, that kernel reaches */
+    private Shape haloSize(Shape imgsize) {
+        return Shape.of(Integer.min(filter.getKernel()[0].length / 2, imgsize.xsize()),
+                Integer.min(filter.getKernel().length / 2, imgsize.ysize()));
+    }
+
+    /**
+     * 
+     * @return how much memory halo rows above and below block require
+     */
+    private long haloBytes(PancakeBand pa, int convDatatype, int xsize, Shape halo) {
+        return 2L * halo.ysize() * windowBytesPerRow(pa, convDatatype, xsize + 2 * halo.xsize());
+    }
+
+    private boolean prefersFFT(Shape kernelsize) {
+        int threshold = filter.isSeparable() ? FFT_SEPARABLE_KERNEL_SIZE : FFT_KERNEL_SIZE;
+        return Integer.max(kernelsize.xsize(), kernelsize.ysize()) >= threshold;
+    }
+
+    /**
+     * 
+     * @return how much memory scratch buffers of fft convolution require: padded
+     *         block in source datatype and in double precision, double precision
+     *         result, transform buffer and half spectrum of convolver, and half
+     *         spectra of kernel, which are cached for each distinct transform size
+     *         of blocks
+     */
+    private static long fftBytes(Shape blocksize, Shape kernelsize, int srcBytes) {
+        long paddedXSize = blocksize.xsize() + kernelsize.xsize() - 1;
+        long paddedYSize = blocksize.ysize() + kernelsize.ysize() - 1;
+        long xsize = 2 * PancakeMath.nextSmooth((int) (paddedXSize + 1) / 2);
+        long ysize = PancakeMath.nextSmooth((int) paddedYSize);
+        long spectrumBytes = 2 * (xsize / 2 + 1) * ysize * Double.BYTES;
+
+        long padded = paddedXSize * paddedYSize * (srcBytes + Double.BYTES);
+        long result = (long) blocksize.xsize() * blocksize.ysize() * Double.BYTES;
+        long transform = xsize * ysize * Double.BYTES + spectrumBytes;
+        return padded + result + transform + FFT_TRANSFORM_SIZES * spectrumBytes;
+    }
+
+    /**
+     * Halves block height, until fft buffers fit in budget together with block
+     * 
+     * @return block height or 0 if fft buffers don't fit even with single row
+     *         block
+     */
+    private static int fftBlockHeight(long budget, long rowBytes, int xsize, int ysize, Shape kernelsize,
+            int srcBytes) {
+        while (ysize > 0 && ysize * rowBytes + fftBytes(Shape.of(xsize, ysize), kernelsize, srcBytes) > budget) {
+            ysize /= 2;
+        }
+        return ysize;
+    }
+
+    /**
+     * Picks the greatest block, that fits in memory budget together with its
+     * halo, but not greater than preferred block. Block width is fixed by pan
+     * tiles, so only block height is fitted. If even single row block with halo
+     * doesn't fit, blocks are convolved without halo. Large kernels are
+     * convolved with fft, unless fft buffers don't fit in budget.
+     */
+    private Plan plan(Map<Spectrum, ? extends PancakeBand> dst, Map<Spectrum, ? extends PancakeBand> src) {
+        PancakeBand pa = src.get(Spectrum.PA);
+        Shape imgsize = Shape.of(pa.getXSize(), pa.getYSize());
+        Shape tilesize = Shape.of(pa.getBlockXSize(), pa.getBlockYSize());
+        Shape kernelsize = Shape.of(filter.getKernel()[0].length, filter.getKernel().length);
+        Shape preferred = computeCacheBlockSize(imgsize, tilesize, kernelsize);
+        Shape halo = haloSize(imgsize);
+        int xsize = preferred.xsize();
+
+        for (int convDatatype : List.of(convDtMap.get(pa.getRasterDatatype()),
+                lowConvDtMap.get(pa.getRasterDatatype()))) {
+            long rowBytes = bytesPerRow(dst, src, convDatatype, false, xsize, halo);
+            long blockBudget = memoryBudget - haloBytes(pa, convDatatype, xsize, halo);
+            int ysize = MemoryPlanner.blockHeight(blockBudget, rowBytes, 1, preferred.ysize(), tilesize.ysize());
+            if (ysize * rowBytes <= blockBudget) {
+                if (prefersFFT(kernelsize)) {
+                    int srcBytes = Pancake.dtBytes(windowDatatype(pa.getRasterDatatype(), convDatatype));
+                    int fftYSize = fftBlockHeight(blockBudget, rowBytes, xsize, ysize, kernelsize, srcBytes);
+                    if (fftYSize > 0) {
+                        return new Plan(Shape.of(xsize, fftYSize), convDatatype, false, halo, true);
+                    }
+                }
+                return new Plan(Shape.of(xsize, ysize), convDatatype, false, halo, false);
+            }
+        }
+
+        int convDatatype = lowConvDtMap.get(pa.getRasterDatatype());
+        long rowBytes = bytesPerRow(dst, src, convDatatype, true, xsize, halo);
+        int ysize = MemoryPlanner.blockHeight(memoryBudget, rowBytes, 1, preferred.ysize(), tilesize.ysize());
+        return new Plan(Shape.of(xsize, ysize), convDatatype, true, Shape.of(0, 0), false);
+    }
+
+    /** Opencv doesn't convolve 32 bit integers, so they are converted first */
+    private void convolve(Math2D math2d, Buffer2D src, Buffer2D dst) {
+        if (needsConversion(src.datatype())) {
+            math2d.convert(src, dst);
+            math2d.convolve(dst, this.filter, dst);
+        } else {
+            math2d.convolve(src, this.filter, dst);
+        }
+    }
+
     /**
      * 
      * @param band
-     * @param xsize block width
-     * @param ysize block height
-     * @param block block number
+     * @param block area of band to read
      * @param buf
      */
-    private void cacheBlock(PancakeBand band, int xsize, int ysize, int block, ByteBuffer buf) {
-        int blockXSize = xsize;
-        int blockYSize = Integer.min(ysize, band.getYSize() - (block * ysize));
+    private void cacheBlock(PancakeBand band, Rectangle block, ByteBuffer buf) {
         try {
-            band.readRasterDirect(0, block * ysize, blockXSize, blockYSize, blockXSize, blockYSize,
+            band.readRasterDirect(block.x0(), block.y0(), block.xSize(), block.ySize(), block.xSize(), block.ySize(),
                     band.getRasterDatatype(), buf);
         } catch (RuntimeException e) {
             throw new RuntimeException("failed to cache block", e);
@@ -99,30 +323,160 @@ public class HPFM implements Fusor {
 
     /**
      * 
-     * @param band
-     * @param xsize block width
-     * @param ysize block height
-     * @param block block number
-     * @param buf
+     * @param imgsize   size of panchromatic band
+     * @param blocksize size of cache block
+     * @param blockX    block column
+     * @param blockY    block row
+     * @return area of panchromatic band, that belongs to block with specified
+     *         position in block grid
      */
-    private void flushBlock(PancakeBand band, int xsize, int ysize, int block, ByteBuffer buf) {
-        int blockXSize = xsize;
-        int blockYSize = Integer.min(ysize, band.getYSize() - (block * ysize));
-        try {
-            band.writeRasterDirect(0, block * ysize, blockXSize, blockYSize, blockXSize, blockYSize,
-                    band.getRasterDatatype(), buf);
-        } catch (RuntimeException e) {
-            throw new RuntimeException("failed to flush block cache", e);
+    private Rectangle block(Shape imgsize, Shape blocksize, int blockX, int blockY) {
+        int x0 = blockX * blocksize.xsize();
+        int y0 = blockY * blocksize.ysize();
+        return new Rectangle(x0, y0, Integer.min(blocksize.xsize(), imgsize.xsize() - x0),
+                Integer.min(blocksize.ysize(), imgsize.ysize() - y0));
+    }
+
+    /**
+     * Moves rows of buffer towards its beginning. Rows are copied one by one, so
+     * that overlapping source and destination are not corrupted
+     */
+    private static void moveRows(ByteBuffer buf, int rowBytes, int srcRow, int dstRow, int rows) {
+        if (srcRow == dstRow) {
+            return;
+        }
+        ByteBuffer src = buf.duplicate();
+        ByteBuffer dst = buf.duplicate();
+        for (int row = 0; row < rows; ++row) {
+            src.limit((srcRow + row + 1) * rowBytes).position((srcRow + row) * rowBytes);
+            dst.position((dstRow + row) * rowBytes);
+            dst.put(src);
+        }
+    }
+
+    /**
+     * Pan rows, that are kept between blocks of the same block column. Window
+     * holds block together with halo columns and rows around it. When window
+     * moves down to the next block, rows shared with previous window are moved to
+     * its top, so that each pan row of block column is read and converted exactly
+     * once.
+     */
+    private class PaWindow {
+
+        final PancakeBand pa;
+
+        /** pan rows are read, while multispectral blocks are prefetched */
+        final Object ioLock;
+
+        final Shape halo;
+
+        final int datatype;
+
+        final ByteBuffer cache;
+
+        /** raw pan rows before conversion to window data type, if it is needed */
+        final ByteBuffer staging;
+
+        /** area of pan band, that window holds */
+        int x0 = 0;
+
+        int x1 = 0;
+
+        int y0 = 0;
+
+        int y1 = 0;
+
+        PaWindow(PancakeBand pa, Object ioLock, int convDatatype, Shape blocksize, Shape halo) {
+            this.pa = pa;
+            this.ioLock = ioLock;
+            this.halo = halo;
+            this.datatype = windowDatatype(pa.getRasterDatatype(), convDatatype);
+            int capacity = (blocksize.xsize() + 2 * halo.xsize()) * (blocksize.ysize() + 2 * halo.ysize());
+            this.cache = ByteBuffer.allocateDirect(capacity * Pancake.dtBytes(datatype))
+                    .order(ByteOrder.nativeOrder());
+            if (needsConversion(pa.getRasterDatatype())) {
+                this.staging = ByteBuffer.allocateDirect(capacity * Pancake.dtBytes(pa.getRasterDatatype()))
+                        .order(ByteOrder.nativeOrder());
+            } else {
+                this.staging = null;
+            }
+        }
+
+        private int rowBytes() {
+            return (x1 - x0) * Pancake.dtBytes(datatype);
+        }
+
+        private void read(Math2D math2d, int fromY, int toY) {
+            if (fromY >= toY) {
+                return;
+            }
+            Rectangle rows = new Rectangle(x0, fromY, x1 - x0, toY - fromY);
+            if (staging == null) {
+                ByteBuffer dst = cache.duplicate();
+                dst.position((fromY - y0) * rowBytes());
+                synchronized (ioLock) {
+                    cacheBlock(pa, rows, dst.slice());
+                }
+            } else {
+                synchronized (ioLock) {
+                    cacheBlock(pa, rows, staging);
+                }
+                Buffer2D stagingBuf = Buffer2D.wrap(staging, rows.xSize(), rows.ySize(), pa.getRasterDatatype());
+                math2d.convert(stagingBuf, math2d.subBuffer(buffer(), 0, fromY - y0, rows.xSize(), rows.ySize()));
+            }
+        }
+
+        /**
+         * Moves window, so that it covers block with its halo. Rows are kept only
+         * if window stays in the same columns
+         */
+        void moveTo(Math2D math2d, Rectangle block) {
+            int newX0 = Integer.max(0, block.x0() - halo.xsize());
+            int newX1 = Integer.min(pa.getXSize(), block.x1() + halo.xsize());
+            int newY0 = Integer.max(0, block.y0() - halo.ysize());
+            int newY1 = Integer.min(pa.getYSize(), block.y1() + halo.ysize());
+            int keepY0 = Integer.max(newY0, y0);
+            int keepY1 = Integer.min(newY1, y1);
+            if (newX0 == x0 && newX1 == x1 && keepY0 < keepY1) {
+                moveRows(cache, rowBytes(), keepY0 - y0, keepY0 - newY0, keepY1 - keepY0);
+            } else {
+                keepY1 = newY0;
+            }
+            x0 = newX0;
+            x1 = newX1;
+            y0 = newY0;
+            y1 = newY1;
+            read(math2d, keepY1, newY1);
+        }
+
+        /**
+         * 
+         * @return buffer of whole window, so that opencv extrapolates border only
+         *         beyond it
+         */
+        Buffer2D buffer() {
+            return Buffer2D.wrap(cache, x1 - x0, y1 - y0, datatype);
+        }
+
+        /**
+         * 
+         * @return sub buffer of window, which is surrounded by halo
+         */
+        Buffer2D block(Math2D math2d, Rectangle block) {
+            return math2d.subBuffer(buffer(), block.x0() - x0, block.y0() - y0, block.xSize(), block.ySize());
         }
     }
 
     private void _fuse(Map<Spectrum, ? extends PancakeBand> dst, Map<Spectrum, ? extends PancakeBand> src,
-            Rectangle region) {
+            Rectangle region, Plan plan) {
 
         Shape imgsize = Shape.of(src.get(Spectrum.PA).getXSize(), src.get(Spectrum.PA).getYSize());
-        Shape tilesize = Shape.of(src.get(Spectrum.PA).getBlockXSize(), src.get(Spectrum.PA).getBlockYSize());
-        Shape kernelsize = Shape.of(filter.getKernel()[0].length, filter.getKernel().length);
-        Shape blocksize = computeCacheBlockSize(imgsize, tilesize, kernelsize);
+        Shape blocksize = plan.blocksize;
+
+        Rectangle area = region.intersection(new Rectangle(0, 0, imgsize.xsize(), imgsize.ysize()));
+        if (area.isEmpty()) {
+            return;
+        }
 
         List<PancakeBand> srcMs = new ArrayList<>();
         List<PancakeBand> dstMs = new ArrayList<>();
@@ -133,122 +487,117 @@ public class HPFM implements Fusor {
             dstMs.add(dst.get(s));
         }
 
-        List<ByteBuffer> paCachePool = new ArrayList<>(3);
-        List<ByteBuffer> paCache = new ArrayList<>();
-        for (int i = 0; i < 3; ++i) {
-            paCachePool.add(ByteBuffer.allocateDirect(blocksize.size() * Pancake.dtBytes(pa.getRasterDatatype()))
-                    .order(ByteOrder.nativeOrder()));
-        }
+        Object ioLock = new Object();
+        PaWindow window = new PaWindow(pa, ioLock, plan.convDatatype, blocksize, plan.halo);
 
-        int srcMsCacheSize = blocksize.size()
-                * srcMs.stream().mapToInt(b -> Pancake.dtBytes(b.getRasterDatatype())).max().getAsInt();
         int dstMsCacheSize = blocksize.size()
                 * dstMs.stream().mapToInt(b -> Pancake.dtBytes(b.getRasterDatatype())).max().getAsInt();
 
-        ByteBuffer srcMsCache = ByteBuffer.allocateDirect(srcMsCacheSize).order(ByteOrder.nativeOrder());
-        ByteBuffer dstMsCache = ByteBuffer.allocateDirect(dstMsCacheSize).order(ByteOrder.nativeOrder());
-
-        Buffer2D convBuf = Buffer2D.arrange(blocksize.xsize(), 3 * blocksize.ysize(),
-                convDtMap.get(pa.getRasterDatatype()));
+        Buffer2D convBufPool = Buffer2D.arrange(blocksize.xsize(), blocksize.ysize(),
+                plan.convDatatype);
 
-        Buffer2D fuseBuf = Buffer2D.arrange(blocksize.xsize(), blocksize.ysize(),
-                convDtMap.get(pa.getRasterDatatype()));
+        Buffer2D fuseBufPool = Buffer2D.arrange(blocksize.xsize(), blocksize.ysize(),
+                plan.convDatatype);
 
         Math2D math2d = new Math2D();
 
-        int blocks = (pa.getYSize() + blocksize.ysize() - 1) / blocksize.ysize();
+        int blockX0 = area.x0() / blocksize.xsize();
+        int blockX1 = (area.x1() + blocksize.xsize() - 1) / blocksize.xsize();
+        int blockY0 = area.y0() / blocksize.ysize();
+        int blockY1 = (area.y1() + blocksize.ysize() - 1) / blocksize.ysize();
+        int blocks = (blockX1 - blockX0) * (blockY1 - blockY0);
+
+        /** blocks are visited column by column, so that window keeps rows of block column */
+        List<Rectangle> targets = new ArrayList<>();
+        for (int blockX = blockX0; blockX < blockX1; ++blockX) {
+            for (int blockY = blockY0; blockY < blockY1; ++blockY) {
+                targets.add(block(imgsize, blocksize, blockX, blockY).intersection(area));
+            }
+        }
 
         int nBlock = 0;
         int stepSize = (blocks + Pancake.logsFrequency() - 1) / Pancake.logsFrequency();
         int stepsTotal = (blocks + stepSize - 1) / stepSize;
         listener.listen(PancakeConstants.PROGRESS_FUSION, 0D, "[HPFM] performing fusion");
 
-        for (int block = 0; block < blocks; ++block) {
-            int ysize = pa.getYSize();
-            int blockXSize = blocksize.xsize();
-            int blockYSize = Integer.min(blocksize.ysize(), ysize - block * blocksize.ysize());
-
-            List<Buffer2D> paBufs = new ArrayList<>();
-            Rectangle roi;
-
-            if (block == 0) {
-                paCache.add(paCachePool.get(0));
-                paCache.add(paCachePool.get(1));
-                cacheBlock(pa, blocksize.xsize(), blocksize.ysize(), block, paCache.get(0));
-                cacheBlock(pa, blocksize.xsize(), blocksize.ysize(), block + 1, paCache.get(1));
-                paBufs.add(Buffer2D.wrap(paCache.get(0), blockXSize, blockYSize, pa.getRasterDatatype()));
-                paBufs.add(Buffer2D.wrap(paCache.get(1), blockXSize, blockYSize, pa.getRasterDatatype()));
-                roi = new Rectangle(0, 0, blockXSize, blockYSize);
-            } else if (block < blocks - 1) {
-                if (paCache.size() < 3) {
-                    paCache.add(paCachePool.get(2));
-                } else {
-                    ByteBuffer buf = paCache.get(0);
-                    paCache.remove(0);
-                    paCache.add(buf);
-                }
-                cacheBlock(pa, blocksize.xsize(), blocksize.ysize(), block + 1, paCache.get(2));
-                paBufs.add(Buffer2D.wrap(paCache.get(0), blockXSize, blockYSize, pa.getRasterDatatype()));
-                paBufs.add(Buffer2D.wrap(paCache.get(1), blockXSize, blockYSize, pa.getRasterDatatype()));
-                paBufs.add(Buffer2D.wrap(paCache.get(2), blockXSize, blockYSize, pa.getRasterDatatype()));
-                roi = new Rectangle(0, blocksize.ysize(), blockXSize, blockYSize);
-            } else {
-                paBufs.add(Buffer2D.wrap(paCache.get(1), blockXSize, blocksize.ysize(), pa.getRasterDatatype()));
-                paBufs.add(Buffer2D.wrap(paCache.get(2), blockXSize, blockYSize, pa.getRasterDatatype()));
-                roi = new Rectangle(0, blocksize.ysize(), blockXSize, blockYSize);
-            }
-
-            math2d.vconcat(paBufs, convBuf);
-            math2d.convert(convBuf, convDtMap.get(pa.getRasterDatatype()), convBuf);
-            math2d.convolve(convBuf, this.filter, convBuf);
-            Buffer2D convRoi = math2d.subBuffer(convBuf, roi);
-
-            Iterator<PancakeBand> srcMsIt = srcMs.iterator();
-            Iterator<PancakeBand> dstMsIt = dstMs.iterator();
-
-            while (srcMsIt.hasNext() && dstMsIt.hasNext()) {
-                PancakeBand srcMsBand = srcMsIt.next();
-                PancakeBand dstMsBand = dstMsIt.next();
-
-                cacheBlock(srcMsBand, blocksize.xsize(), blocksize.ysize(), block, srcMsCache);
-                cacheBlock(dstMsBand, blocksize.xsize(), blocksize.ysize(), block, dstMsCache);
-
-                Buffer2D srcBuf = Buffer2D.wrap(srcMsCache, blockXSize, blockYSize, srcMsBand.getRasterDatatype());
-                Buffer2D dstBuf = Buffer2D.wrap(dstMsCache, blockXSize, blockYSize, dstMsBand.getRasterDatatype());
-
-                math2d.convertAndScale(srcBuf, fuseBuf.datatype(), fuseBuf, Pancake.dtMin(srcBuf.datatype()), Pancake.dtMax(srcBuf.datatype()), 0,
-                        Pancake.dtMax(pa.getRasterDatatype()));
-                math2d.sum(fuseBuf, convRoi, fuseBuf);
-
-                Stat stat = math2d.stat(fuseBuf);
-                if ((stat.max() - stat.min()) == 0) {
-                    double placeholder = Pancake.convert(stat.max(), pa.getRasterDatatype(), dstBuf.datatype());
-                    math2d.fill(dstBuf, placeholder);
-                } else {
-                    math2d.convertAndScale(fuseBuf, dstBuf.datatype(), dstBuf, -Pancake.dtMax(pa.getRasterDatatype()),
-                            2 * Pancake.dtMax(pa.getRasterDatatype()), 0, Pancake.dtMax(dstBuf.datatype()));
+        /**
+         * multispectral blocks of next target are read, while current one is
+         * fused, and fused blocks are written, while next band is fused
+         */
+        try (BlockPrefetcher reader = new BlockPrefetcher(srcMs,
+                srcMs.stream().map(PancakeBand::getRasterDatatype).collect(Collectors.toList()), targets, ioLock);
+                BlockWriter writer = new BlockWriter(1, dstMs.size() * writeBehind, dstMsCacheSize)) {
+            for (int blockX = blockX0; blockX < blockX1; ++blockX) {
+                for (int blockY = blockY0; blockY < blockY1; ++blockY) {
+                    Rectangle curBlock = block(imgsize, blocksize, blockX, blockY);
+                    Rectangle target = reader.next();
+
+                    /** columns and rows around block in window are used as convolution halo */
+                    window.moveTo(math2d, curBlock);
+                    Buffer2D convBuf = math2d.subBuffer(convBufPool, 0, 0, curBlock.xSize(), curBlock.ySize());
+                    if (plan.fft) {
+                        math2d.convolveWithHaloFFT(window.block(math2d, curBlock), filter, convBuf);
+                    } else {
+                        math2d.convolveWithHalo(window.block(math2d, curBlock), filter, convBuf);
+                    }
+
+                    Buffer2D convRoi = math2d.subBuffer(convBuf, new Rectangle(target.x0() - curBlock.x0(),
+                            target.y0() - curBlock.y0(), target.xSize(), target.ySize()));
+                    Buffer2D fuseBuf = math2d.subBuffer(fuseBufPool,
+                            new Rectangle(0, 0, target.xSize(), target.ySize()));
+
+                    for (int i = 0; i < srcMs.size(); ++i) {
+                        PancakeBand srcMsBand = srcMs.get(i);
+                        PancakeBand dstMsBand = dstMs.get(i);
+
+                        ByteBuffer srcMsCache = reader.buffer(i);
+                        ByteBuffer dstMsCache = writer.acquire();
+
+                        Buffer2D srcBuf = Buffer2D.wrap(srcMsCache, target.xSize(), target.ySize(),
+                                srcMsBand.getRasterDatatype());
+                        Buffer2D dstBuf = Buffer2D.wrap(dstMsCache, target.xSize(), target.ySize(),
+                                dstMsBand.getRasterDatatype());
+
+                        math2d.convertAndScale(srcBuf, fuseBuf.datatype(), fuseBuf, Pancake.dtMin(srcBuf.datatype()),
+                                Pancake.dtMax(srcBuf.datatype()), 0, Pancake.dtMax(pa.getRasterDatatype()));
+                        math2d.sum(fuseBuf, convRoi, fuseBuf);
+
+                        Stat stat = math2d.stat(fuseBuf);
+                        if ((stat.max() - stat.min()) == 0) {
+                            double placeholder = Pancake.convert(stat.max(), pa.getRasterDatatype(), dstBuf.datatype());
+                            math2d.fill(dstBuf, placeholder);
+                        } else {
+                            math2d.convertAndScale(fuseBuf, dstBuf.datatype(), dstBuf,
+                                    -Pancake.dtMax(pa.getRasterDatatype()), 2 * Pancake.dtMax(pa.getRasterDatatype()),
+                                    0, Pancake.dtMax(dstBuf.datatype()));
+                        }
+
+                        /** block is written on writer thread, while next band is fused */
+                        writer.write(dstMsBand, target, dstMsCache);
+                    }
+
+                    if (((nBlock + 1) % stepSize == 0) || (nBlock + 1 >= blocks)) {
+                        double progress = (nBlock / stepSize + 1) / (double) stepsTotal;
+                        listener.listen(PancakeConstants.PROGRESS_FUSION, progress, "[HPFM] performing fusion");
+                    }
+
+                    ++nBlock;
                 }
-
-                flushBlock(dstMsBand, blocksize.xsize(), blocksize.ysize(), block, dstMsCache);
-            }
-
-            if (((nBlock + 1) % stepSize == 0) || (nBlock + 1 >= blocks)) {
-                double progress = (nBlock / stepSize + 1) / (double) stepsTotal;
-                listener.listen(PancakeConstants.PROGRESS_FUSION, progress, "[HPFM] performing fusion");
             }
-
-            ++nBlock;
+            writer.finish();
         }
-
     }
 
     private void _fuseMemoryPolite(Map<Spectrum, ? extends PancakeBand> dst, Map<Spectrum, ? extends PancakeBand> src,
-            Rectangle region) {
+            Rectangle region, Plan plan) {
 
         Shape imgsize = Shape.of(src.get(Spectrum.PA).getXSize(), src.get(Spectrum.PA).getYSize());
-        Shape tilesize = Shape.of(src.get(Spectrum.PA).getBlockXSize(), src.get(Spectrum.PA).getBlockYSize());
-        Shape kernelsize = Shape.of(filter.getKernel()[0].length, filter.getKernel().length);
-        Shape blocksize = computeCacheBlockSize(imgsize, tilesize, kernelsize);
+        Shape blocksize = plan.blocksize;
+
+        Rectangle area = region.intersection(new Rectangle(0, 0, imgsize.xsize(), imgsize.ysize()));
+        if (area.isEmpty()) {
+            return;
+        }
 
         List<PancakeBand> srcMs = new ArrayList<>();
         List<PancakeBand> dstMs = new ArrayList<>();
@@ -268,101 +617,135 @@ public class HPFM implements Fusor {
                 * dstMs.stream().mapToInt(b -> Pancake.dtBytes(b.getRasterDatatype())).max().getAsInt();
 
         ByteBuffer srcMsCache = ByteBuffer.allocateDirect(srcMsCacheSize).order(ByteOrder.nativeOrder());
-        ByteBuffer dstMsCache = ByteBuffer.allocateDirect(dstMsCacheSize).order(ByteOrder.nativeOrder());
 
-        Buffer2D convBuf = Buffer2D.arrange(blocksize.xsize(), blocksize.ysize(),
-                convDtMap.get(pa.getRasterDatatype()));
+        Buffer2D convBufPool = Buffer2D.arrange(blocksize.xsize(), blocksize.ysize(),
+                plan.convDatatype);
 
-        Buffer2D fuseBuf = Buffer2D.arrange(blocksize.xsize(), blocksize.ysize(),
-                convDtMap.get(pa.getRasterDatatype()));
+        Buffer2D fuseBufPool = Buffer2D.arrange(blocksize.xsize(), blocksize.ysize(),
+                plan.convDatatype);
 
         Math2D math2d = new Math2D();
 
-        int blocks = (pa.getYSize() + blocksize.ysize() - 1) / blocksize.ysize();
+        int blockX0 = area.x0() / blocksize.xsize();
+        int blockX1 = (area.x1() + blocksize.xsize() - 1) / blocksize.xsize();
+        int blockY0 = area.y0() / blocksize.ysize();
+        int blockY1 = (area.y1() + blocksize.ysize() - 1) / blocksize.ysize();
+        int blocks = (blockX1 - blockX0) * (blockY1 - blockY0);
 
         int nBlock = 0;
         int stepSize = (blocks + Pancake.logsFrequency() - 1) / Pancake.logsFrequency();
         int stepsTotal = (blocks + stepSize - 1) / stepSize;
         listener.listen(PancakeConstants.PROGRESS_FUSION, 0D, "[HPFM] performing fusion");
 
-        for (int block = 0; block < blocks; ++block) {
-            int ysize = pa.getYSize();
-            int blockXSize = blocksize.xsize();
-            int blockYSize = Integer.min(blocksize.ysize(), ysize - block * blocksize.ysize());
-
-            cacheBlock(pa, blockXSize, blockYSize, block, paCache);
-            Buffer2D paBuf = Buffer2D.wrap(paCache, blockXSize, blockYSize, pa.getRasterDatatype());
-            math2d.convert(paBuf, convBuf);
-            math2d.convolve(convBuf, this.filter, convBuf);
-
-            Iterator<PancakeBand> srcMsIt = srcMs.iterator();
-            Iterator<PancakeBand> dstMsIt = dstMs.iterator();
-
-            while (srcMsIt.hasNext() && dstMsIt.hasNext()) {
-                PancakeBand srcMsBand = srcMsIt.next();
-                PancakeBand dstMsBand = dstMsIt.next();
-
-                cacheBlock(srcMsBand, blocksize.xsize(), blocksize.ysize(), block, srcMsCache);
-                cacheBlock(dstMsBand, blocksize.xsize(), blocksize.ysize(), block, dstMsCache);
-
-                Buffer2D srcBuf = Buffer2D.wrap(srcMsCache, blockXSize, blockYSize, srcMsBand.getRasterDatatype());
-                Buffer2D dstBuf = Buffer2D.wrap(dstMsCache, blockXSize, blockYSize, dstMsBand.getRasterDatatype());
-
-                math2d.convertAndScale(srcBuf, fuseBuf.datatype(), fuseBuf, 0, Pancake.dtMax(srcBuf.datatype()), 0,
-                        Pancake.dtMax(pa.getRasterDatatype()));
-                math2d.sum(fuseBuf, convBuf, fuseBuf);
-
-                Stat stat = math2d.stat(fuseBuf);
-                if ((stat.max() - stat.min()) == 0) {
-                    double placeholder = Pancake.convert(stat.max(), pa.getRasterDatatype(), dstBuf.datatype());
-                    math2d.fill(dstBuf, placeholder);
-                } else {
-                    math2d.convertAndScale(fuseBuf, dstBuf.datatype(), dstBuf, -Pancake.dtMax(pa.getRasterDatatype()),
-                            2 * Pancake.dtMax(pa.getRasterDatatype()), 0, Pancake.dtMax(dstBuf.datatype()));
+        BlockWriter writer = new BlockWriter(1, dstMs.size() * writeBehind, dstMsCacheSize);
+        try {
+            for (int blockX = blockX0; blockX < blockX1; ++blockX) {
+                for (int blockY = blockY0; blockY < blockY1; ++blockY) {
+                    Rectangle curBlock = block(imgsize, blocksize, blockX, blockY);
+
+                    cacheBlock(pa, curBlock, paCache);
+                    Buffer2D paBuf = Buffer2D.wrap(paCache, curBlock.xSize(), curBlock.ySize(), pa.getRasterDatatype());
+                    Buffer2D convBuf = math2d.subBuffer(convBufPool, 0, 0, curBlock.xSize(), curBlock.ySize());
+                    convolve(math2d, paBuf, convBuf);
+
+                    Rectangle target = curBlock.intersection(area);
+                    Buffer2D convRoi = math2d.subBuffer(convBuf, new Rectangle(target.x0() - curBlock.x0(),
+                            target.y0() - curBlock.y0(), target.xSize(), target.ySize()));
+                    Buffer2D fuseBuf = math2d.subBuffer(fuseBufPool,
+                            new Rectangle(0, 0, target.xSize(), target.ySize()));
+
+                    Iterator<PancakeBand> srcMsIt = srcMs.iterator();
+                    Iterator<PancakeBand> dstMsIt = dstMs.iterator();
+
+                    while (srcMsIt.hasNext() && dstMsIt.hasNext()) {
+                        PancakeBand srcMsBand = srcMsIt.next();
+                        PancakeBand dstMsBand = dstMsIt.next();
+
+                        cacheBlock(srcMsBand, target, srcMsCache);
+                        ByteBuffer dstMsCache = writer.acquire();
+
+                        Buffer2D srcBuf = Buffer2D.wrap(srcMsCache, target.xSize(), target.ySize(),
+                                srcMsBand.getRasterDatatype());
+                        Buffer2D dstBuf = Buffer2D.wrap(dstMsCache, target.xSize(), target.ySize(),
+                                dstMsBand.getRasterDatatype());
+
+                        math2d.convertAndScale(srcBuf, fuseBuf.datatype(), fuseBuf, 0, Pancake.dtMax(srcBuf.datatype()),
+                                0, Pancake.dtMax(pa.getRasterDatatype()));
+                        math2d.sum(fuseBuf, convRoi, fuseBuf);
+
+                        Stat stat = math2d.stat(fuseBuf);
+                        if ((stat.max() - stat.min()) == 0) {
+                            double placeholder = Pancake.convert(stat.max(), pa.getRasterDatatype(), dstBuf.datatype());
+                            math2d.fill(dstBuf, placeholder);
+                        } else {
+                            math2d.convertAndScale(fuseBuf, dstBuf.datatype(), dstBuf,
+                                    -Pancake.dtMax(pa.getRasterDatatype()), 2 * Pancake.dtMax(pa.getRasterDatatype()),
+                                    0, Pancake.dtMax(dstBuf.datatype()));
+                        }
+
+                        /** block is written on writer thread, while next band is fused */
+                        writer.write(dstMsBand, target, dstMsCache);
+                    }
+
+                    if (((nBlock + 1) % stepSize == 0) || (nBlock + 1 >= blocks)) {
+                        double progress = (nBlock / stepSize + 1) / (double) stepsTotal;
+                        listener.listen(PancakeConstants.PROGRESS_FUSION, progress, "[HPFM] performing fusion");
+                    }
+
+                    ++nBlock;
                 }
-
-                flushBlock(dstMsBand, blocksize.xsize(), blocksize.ysize(), block, dstMsCache);
             }
-
-            if (((nBlock + 1) % stepSize == 0) || (nBlock + 1 >= blocks)) {
-                double progress = (nBlock / stepSize + 1) / (double) stepsTotal;
-                listener.listen(PancakeConstants.PROGRESS_FUSION, progress, "[HPFM] performing fusion");
-            }
-
-            ++nBlock;
+            writer.finish();
+        } finally {
+            writer.close();
         }
     }
 
-    private boolean useMemoryPolite(int imgSize) {
-        /** 150 mb */
-        int memThreshold = 150 * 1024 * 1024;
-        return imgSize > memThreshold;
-    }
-
     @Override
     public void fuse(Map<Spectrum, ? extends PancakeBand> dst, Map<Spectrum, ? extends PancakeBand> src) {
-        // some validation routine
         PancakeBand band = src.get(Spectrum.PA);
-        Rectangle region = new Rectangle(0, 0, band.getXSize(), band.getYSize());
-        if (useMemoryPolite(band.getXSize() * band.getYSize() * Pancake.dtBytes(band.getRasterDatatype()))) {
-            _fuseMemoryPolite(dst, src, region);
-        } else {
-            _fuse(dst, src, region);
-        }
+        fuse(dst, src, new Rectangle(0, 0, band.getXSize(), band.getYSize()));
     }
 
     @Override
     public void fuse(Map<Spectrum, ? extends PancakeBand> dst, Map<Spectrum, ? extends PancakeBand> src,
             Rectangle region) {
         // some validation routine
-        PancakeBand band = src.get(Spectrum.PA);
-        if (useMemoryPolite(band.getXSize() * band.getYSize() * Pancake.dtBytes(band.getRasterDatatype()))) {
-            _fuseMemoryPolite(dst, src, region);
+        Plan plan = plan(dst, src);
+        if (plan.memoryPolite) {
+            _fuseMemoryPolite(dst, src, region, plan);
         } else {
-            _fuse(dst, src, region);
+            _fuse(dst, src, region, plan);
         }
     }
 
+    @Override
+    public Shape blockSize(Map<Spectrum, ? extends PancakeBand> dst, Map<Spectrum, ? extends PancakeBand> src) {
+        return plan(dst, src).blocksize;
+    }
+
+    @Override
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    @Override
+    public long minMemoryBudget(Map<Spectrum, ? extends PancakeBand> dst, Map<Spectrum, ? extends PancakeBand> src) {
+        PancakeBand pa = src.get(Spectrum.PA);
+        Shape imgsize = Shape.of(pa.getXSize(), pa.getYSize());
+        Shape tilesize = Shape.of(pa.getBlockXSize(), pa.getBlockYSize());
+        Shape kernelsize = Shape.of(filter.getKernel()[0].length, filter.getKernel().length);
+        int xsize = computeCacheBlockSize(imgsize, tilesize, kernelsize).xsize();
+        Shape halo = haloSize(imgsize);
+        int convDatatype = lowConvDtMap.get(pa.getRasterDatatype());
+        return haloBytes(pa, convDatatype, xsize, halo) + bytesPerRow(dst, src, convDatatype, false, xsize, halo);
+    }
+
+    @Override
+    public void setWriteBehind(int blocks) {
+        this.writeBehind = Integer.max(0, blocks);
+    }
+
     @Override
     public void setProgressListener(PancakeProgressListener listener) {
         this.listener = Optional.ofNullable(listener).orElse(PancakeProgressListener.empty);
@@ -0,0 +1,96 @@
+package com.nocmok.pancake.math;
+
+/**
+ * Fft of arbitrary size, that is expressed as convolution with chirp
+ * exp(pi * i * t^2 / size). Convolution is computed with power of 2 transforms
+ * of size not less than 2 * size - 1.
+ */
+class BluesteinFFTPlan extends FFTPlan {
+
+    private static final ScratchArray scratch = new ScratchArray();
+
+    private final FFTPlan inner;
+
+    /** chirp exp(pi * i * t^2 / size), t < size */
+    private final double[] chirpCos;
+
+    private final double[] chirpSin;
+
+    /** spectra of conjugated chirp for forward and inverse transforms */
+    private final double[] forwardSpectrum;
+
+    private final double[] inverseSpectrum;
+
+    BluesteinFFTPlan(int size) {
+        super(size);
+        this.inner = FFTPlan.of(PancakeMath.nextPow2(2 * size - 1));
+        this.chirpCos = new double[size];
+        this.chirpSin = new double[size];
+        for (int t = 0; t < size; ++t) {
+            /** t^2 is reduced modulo 2 * size, so that argument stays small */
+            double arg = Math.PI * (((long) t * t) % (2L * size)) / size;
+            chirpCos[t] = Math.cos(arg);
+            chirpSin[t] = Math.sin(arg);
+        }
+        this.forwardSpectrum = chirpSpectrum(1d);
+        this.inverseSpectrum = chirpSpectrum(-1d);
+    }
+
+    private double[] chirpSpectrum(double sign) {
+        int m = inner.size();
+        double[] spectrum = new double[2 * m];
+        for (int t = 0; t < size; ++t) {
+            spectrum[2 * t] = chirpCos[t];
+            spectrum[2 * t + 1] = -sign * chirpSin[t];
+            if (t > 0) {
+                spectrum[2 * (m - t)] = chirpCos[t];
+                spectrum[2 * (m - t) + 1] = -sign * chirpSin[t];
+            }
+        }
+        inner.fft(spectrum, 0);
+        return spectrum;
+    }
+
+    @Override
+    public void fft(double[] data, int offset) {
+        transform(data, offset, 1d, forwardSpectrum);
+    }
+
+    @Override
+    public void ifft(double[] data, int offset) {
+        transform(data, offset, -1d, inverseSpectrum);
+        scale(data, offset);
+    }
+
+    private void transform(double[] data, int offset, double sign, double[] spectrum) {
+        int m = inner.size();
+        double[] buf = scratch.get(2 * m);
+        for (int t = 0; t < size; ++t) {
+            double re = data[offset + 2 * t];
+            double im = data[offset + 2 * t + 1];
+            double cRe = chirpCos[t];
+            double cIm = sign * chirpSin[t];
+            buf[2 * t] = re * cRe - im * cIm;
+            buf[2 * t + 1] = re * cIm + im * cRe;
+        }
+        for (int i = 2 * size; i < 2 * m; ++i) {
+            buf[i] = 0d;
+        }
+
+        inner.fft(buf, 0);
+        for (int i = 0; i < 2 * m; i += 2) {
+            double re = buf[i] * spectrum[i] - buf[i + 1] * spectrum[i + 1];
+            double im = buf[i] * spectrum[i + 1] + buf[i + 1] * spectrum[i];
+            buf[i] = re;
+            buf[i + 1] = im;
+        }
+        inner.ifft(buf, 0);
+
+        for (int k = 0; k < size; ++k) {
+            double cRe = chirpCos[k];
+            double cIm = sign * chirpSin[k];
+            data[offset + 2 * k] = buf[2 * k] * cRe - buf[2 * k + 1] * cIm;
+            data[offset + 2 * k + 1] = buf[2 * k] * cIm + buf[2 * k + 1] * cRe;
+        }
+    }
+}
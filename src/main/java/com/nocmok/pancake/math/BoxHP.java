@@ -28,9 +28,9 @@ public class BoxHP implements Filter2D {
     private double[][] _getKernel() {
         double[][] kernel = new double[size][size];
         for (int y = 0; y < size; ++y) {
-            Arrays.fill(kernel[y], -1f / (size * size));
+            Arrays.fill(kernel[y], -1d / (size * size));
         }
-        kernel[size / 2][size / 2] += 1f;
+        kernel[size / 2][size / 2] += 1d;
         return kernel;
     }
 
@@ -39,4 +39,28 @@ public class BoxHP implements Filter2D {
         return this.kernel;
     }
 
+    @Override
+    public boolean isSeparable() {
+        return true;
+    }
+
+    @Override
+    public double[] getRowKernel() {
+        double[] rowKernel = new double[size];
+        Arrays.fill(rowKernel, 1d / size);
+        return rowKernel;
+    }
+
+    @Override
+    public double[] getColumnKernel() {
+        double[] columnKernel = new double[size];
+        Arrays.fill(columnKernel, -1d / size);
+        return columnKernel;
+    }
+
+    @Override
+    public double getDelta() {
+        return 1d;
+    }
+
 }
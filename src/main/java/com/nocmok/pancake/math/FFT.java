@@ -1,160 +1,406 @@
 package com.nocmok.pancake.math;
 
+import java.nio.DoubleBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 public class FFT {
 
+    /** Scratch samples for transforms of nio buffers, that are not backed by array */
+    private static final ScratchArray scratch = new ScratchArray();
+
     /**
-     * 1d fft
-     * 
-     * @param in
+     * Transforms first n samples of nio buffers with cached plan, so that no
+     * complex objects are created. Direct buffers are transformed in scratch
+     * array.
      */
-    private static void _fft1(ComplexBuffer in, ComplexBuffer out) {
-        if (in.size() > out.size()) {
-            throw new IndexOutOfBoundsException("out buffer size < in buffer size");
+    private static void _fft1Nio(NioComplexBuffer in, NioComplexBuffer out, int n, boolean inverse) {
+        FFTPlan plan = FFTPlan.of(n);
+        DoubleBuffer src = in.doubleBuffer().duplicate();
+        DoubleBuffer dst = out.doubleBuffer().duplicate();
+        src.limit(2 * n).position(0);
+        dst.limit(2 * n).position(0);
+
+        double[] data;
+        int offset;
+        if (dst.hasArray()) {
+            if (in != out) {
+                dst.put(src);
+            }
+            data = dst.array();
+            offset = dst.arrayOffset();
+        } else {
+            data = scratch.get(2 * n);
+            offset = 0;
+            src.get(data, 0, 2 * n);
         }
-        if (!PancakeMath.isPow2(in.size())) {
-            throw new UnsupportedOperationException("buffer size must be power of 2");
+
+        if (inverse) {
+            plan.ifft(data, offset);
+        } else {
+            plan.fft(data, offset);
         }
 
-        int n = in.size();
-        int logLen = 0;
-        while ((n >>> logLen) > 1) {
-            ++logLen;
+        if (!dst.hasArray()) {
+            dst.position(0);
+            dst.put(data, 0, 2 * n);
         }
+    }
 
-        /** bit-reversal permutation */
+    /**
+     * Transforms first n samples of arbitrary buffers with cached plan. Samples
+     * are gathered to scratch array, so that transform doesn't access them
+     * through buffer interface.
+     */
+    private static void _fft1Copy(ComplexBuffer in, ComplexBuffer out, int n, boolean inverse) {
+        double[] data = scratch.get(2 * n);
         for (int i = 0; i < n; ++i) {
-            int revI = PancakeMath.reverseNLeast(i, logLen);
-            if (i < revI + 1) {
-                Complex a = in.get(i);
-                Complex b = in.get(revI);
-                out.set(i, b);
-                out.set(revI, a);
-            }
+            data[2 * i] = in.re(i);
+            data[2 * i + 1] = in.im(i);
         }
-
-        if (n < 2) {
-            return;
+        if (inverse) {
+            FFTPlan.of(n).ifft(data, 0);
+        } else {
+            FFTPlan.of(n).fft(data, 0);
         }
-
-        for (int len = 2; len <= n; len <<= 1) {
-            Complex wlen = Complex.fromPolar(2 * Math.PI / len, 1);
-
-            for (int i = 0; i < n; i += len) {
-                Complex w = Complex._1;
-
-                for (int j = i; j < i + len / 2; ++j) {
-                    Complex a = out.get(j);
-                    Complex b = out.get(j + len / 2).mul(w);
-
-                    out.set(j, a.sum(b));
-                    out.set(j + len / 2, a.sub(b));
-
-                    w = w.mul(wlen);
-                }
-            }
+        for (int i = 0; i < n; ++i) {
+            out.set(i, data[2 * i], data[2 * i + 1]);
         }
     }
 
     /**
-     * 1d inverse fft
+     * 1d fft of any size. Sizes, that are not power of 2, are transformed by
+     * mixed radix or Bluestein plans, so that samples are not padded. Buffers,
+     * that are not nio ones, are transformed in scratch array.
      * 
      * @param in
      * @param out
      */
-    private static void _ifft1(ComplexBuffer in, ComplexBuffer out) {
-        if (in.size() > out.size()) {
+    public static void fft1(ComplexBuffer in, ComplexBuffer out) {
+        if (out.size() < in.size()) {
             throw new IndexOutOfBoundsException("out buffer size < in buffer size");
         }
-        if (!PancakeMath.isPow2(in.size())) {
-            throw new UnsupportedOperationException("buffer size must be power of 2");
+        if (in instanceof NioComplexBuffer && out instanceof NioComplexBuffer) {
+            _fft1Nio((NioComplexBuffer) in, (NioComplexBuffer) out, in.size(), false);
+        } else {
+            _fft1Copy(in, out, in.size(), false);
         }
+    }
 
-        int n = in.size();
-        int logLen = 0;
-        while ((n >>> logLen) > 1) {
-            ++logLen;
+    /**
+     * 1d inverse fft of any size
+     * 
+     * @param in
+     * @param out
+     */
+    public static void ifft1(ComplexBuffer in, ComplexBuffer out) {
+        if (out.size() < in.size()) {
+            throw new IndexOutOfBoundsException("out buffer size < in buffer size");
         }
-
-        /** bit-reversal permutation */
-        for (int i = 0; i < n; ++i) {
-            int revI = PancakeMath.reverseNLeast(i, logLen);
-            if (i < revI + 1) {
-                Complex a = in.get(i);
-                Complex b = in.get(revI);
-                out.set(i, b);
-                out.set(revI, a);
-            }
+        if (in instanceof NioComplexBuffer && out instanceof NioComplexBuffer) {
+            _fft1Nio((NioComplexBuffer) in, (NioComplexBuffer) out, in.size(), true);
+        } else {
+            _fft1Copy(in, out, in.size(), true);
         }
+    }
 
-        if (n < 2) {
-            return;
+    private static void validate2(ComplexBuffer in, ComplexBuffer out, int xSize, int ySize) {
+        if (in.size() < xSize * ySize || out.size() < xSize * ySize) {
+            throw new IndexOutOfBoundsException("buffer size < xSize * ySize");
         }
+    }
 
-        for (int len = 2; len <= n; len <<= 1) {
-            Complex wlen = Complex.fromPolar(-2 * Math.PI / len, 1);
+    /** How much samples single task of 2d transform processes at least */
+    private static final int PARALLEL_GRAIN = 1 << 14;
 
-            for (int i = 0; i < n; i += len) {
-                Complex w = Complex._1;
+    /** How much columns are gathered from rows at once in column pass */
+    private static final int COLUMN_BLOCK = 16;
 
-                for (int j = i; j < i + len / 2; ++j) {
-                    Complex a = out.get(j);
-                    Complex b = out.get(j + len / 2).mul(w);
+    /** Body of parallel loop over range of indices */
+    private interface RangeBody {
 
-                    out.set(j, a.sum(b));
-                    out.set(j + len / 2, a.sub(b));
+        void run(int from, int to);
+    }
 
-                    w = w.mul(wlen);
-                }
-            }
+    /** Splits range in halves, until range is not greater than grain */
+    private static class RangeTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final RangeBody body;
+
+        private final int from;
+
+        private final int to;
+
+        private final int grain;
+
+        RangeTask(RangeBody body, int from, int to, int grain) {
+            this.body = body;
+            this.from = from;
+            this.to = to;
+            this.grain = grain;
         }
 
-        for (int i = 0; i < n; ++i) {
-            out.set(i, out.get(i).div(n));
+        @Override
+        protected void compute() {
+            if (to - from <= grain) {
+                body.run(from, to);
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new RangeTask(body, from, mid, grain), new RangeTask(body, mid, to, grain));
         }
     }
 
-    public static void fft1(ComplexBuffer in, ComplexBuffer out) {
-        if (out.size() < in.size()) {
-            throw new IndexOutOfBoundsException("out buffer size < in buffer size");
+    private static void parallelFor(ForkJoinPool pool, int from, int to, int grain, RangeBody body) {
+        if (to - from <= grain) {
+            body.run(from, to);
+        } else {
+            pool.invoke(new RangeTask(body, from, to, grain));
         }
-        if (!PancakeMath.isPow2(in.size())) {
-            int newLen = 1;
-            while (newLen < in.size()) {
-                newLen <<= 1;
+    }
+
+    /** Transforms rows of interleaved complex samples in parallel */
+    private static void rowPass(DoubleBuffer data, int xSize, int ySize, boolean inverse, ForkJoinPool pool) {
+        FFTPlan rowPlan = FFTPlan.of(xSize);
+        parallelFor(pool, 0, ySize, Integer.max(1, PARALLEL_GRAIN / xSize), (from, to) -> {
+            DoubleBuffer buf = data.duplicate();
+            double[] row = scratch.get(2 * xSize);
+            for (int y = from; y < to; ++y) {
+                buf.position(2 * y * xSize);
+                buf.get(row, 0, 2 * xSize);
+                if (inverse) {
+                    rowPlan.ifft(row, 0);
+                } else {
+                    rowPlan.fft(row, 0);
+                }
+                buf.position(2 * y * xSize);
+                buf.put(row, 0, 2 * xSize);
             }
-            in = PaddedComplexBuffer.pad(in, newLen - in.size());
-            if (out.size() < in.size()) {
-                out = PaddedComplexBuffer.pad(out, newLen);
+        });
+    }
+
+    /**
+     * Transforms columns of interleaved complex samples in parallel. Columns are
+     * gathered by blocks, so that each row is read by contiguous chunks instead
+     * of strided access per sample.
+     */
+    private static void columnPass(DoubleBuffer data, int xSize, int ySize, boolean inverse, ForkJoinPool pool) {
+        FFTPlan columnPlan = FFTPlan.of(ySize);
+        int columnBlock = Integer.min(COLUMN_BLOCK, xSize);
+        int blocks = (xSize + columnBlock - 1) / columnBlock;
+        parallelFor(pool, 0, blocks, Integer.max(1, PARALLEL_GRAIN / (columnBlock * ySize)), (from, to) -> {
+            DoubleBuffer buf = data.duplicate();
+            /** chunk of row followed by gathered columns */
+            double[] samples = scratch.get(2 * columnBlock * (ySize + 1));
+            int columns = 2 * columnBlock;
+            for (int block = from; block < to; ++block) {
+                int x0 = block * columnBlock;
+                int width = Integer.min(columnBlock, xSize - x0);
+                for (int y = 0; y < ySize; ++y) {
+                    buf.position(2 * (y * xSize + x0));
+                    buf.get(samples, 0, 2 * width);
+                    for (int c = 0; c < width; ++c) {
+                        samples[columns + 2 * (c * ySize + y)] = samples[2 * c];
+                        samples[columns + 2 * (c * ySize + y) + 1] = samples[2 * c + 1];
+                    }
+                }
+                for (int c = 0; c < width; ++c) {
+                    if (inverse) {
+                        columnPlan.ifft(samples, columns + 2 * c * ySize);
+                    } else {
+                        columnPlan.fft(samples, columns + 2 * c * ySize);
+                    }
+                }
+                for (int y = 0; y < ySize; ++y) {
+                    for (int c = 0; c < width; ++c) {
+                        samples[2 * c] = samples[columns + 2 * (c * ySize + y)];
+                        samples[2 * c + 1] = samples[columns + 2 * (c * ySize + y) + 1];
+                    }
+                    buf.position(2 * (y * xSize + x0));
+                    buf.put(samples, 0, 2 * width);
+                }
             }
+        });
+    }
+
+    private static void _fft2Nio(NioComplexBuffer in, NioComplexBuffer out, int xSize, int ySize, boolean inverse,
+            ForkJoinPool pool) {
+        DoubleBuffer data = out.doubleBuffer();
+        if (in != out) {
+            DoubleBuffer src = in.doubleBuffer().duplicate();
+            DoubleBuffer dst = data.duplicate();
+            src.limit(2 * xSize * ySize).position(0);
+            dst.position(0);
+            dst.put(src);
         }
-        _fft1(in, out);
+        rowPass(data, xSize, ySize, inverse, pool);
+        columnPass(data, xSize, ySize, inverse, pool);
     }
 
-    public static void ifft1(ComplexBuffer in, ComplexBuffer out) {
-        if (out.size() < in.size()) {
-            throw new IndexOutOfBoundsException("out buffer size < in buffer size");
+    /**
+     * 2d fft. Buffers are stored row by row, transform is performed over rows
+     * and then over columns in place of out buffer, so in and out may be the same
+     * buffer. Nio buffers are transformed in parallel on common fork join pool.
+     * 
+     * @param in
+     * @param out
+     * @param xSize row length
+     * @param ySize column length
+     */
+    public static void fft2(ComplexBuffer in, ComplexBuffer out, int xSize, int ySize) {
+        fft2(in, out, xSize, ySize, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * 2d fft
+     * 
+     * @param in
+     * @param out
+     * @param xSize row length
+     * @param ySize column length
+     * @param pool  pool to transform rows and columns of nio buffers on
+     */
+    public static void fft2(ComplexBuffer in, ComplexBuffer out, int xSize, int ySize, ForkJoinPool pool) {
+        validate2(in, out, xSize, ySize);
+        if (in instanceof NioComplexBuffer && out instanceof NioComplexBuffer) {
+            _fft2Nio((NioComplexBuffer) in, (NioComplexBuffer) out, xSize, ySize, false, pool);
+            return;
         }
-        if (!PancakeMath.isPow2(in.size())) {
-            int newLen = 1;
-            while (newLen < in.size()) {
-                newLen <<= 1;
-            }
-            in = PaddedComplexBuffer.pad(in, newLen - in.size());
-            if (out.size() < in.size()) {
-                out = PaddedComplexBuffer.pad(out, newLen);
-            }
+        for (int y = 0; y < ySize; ++y) {
+            fft1(new StridedComplexBuffer(in, y * xSize, 1, xSize), new StridedComplexBuffer(out, y * xSize, 1, xSize));
+        }
+        for (int x = 0; x < xSize; ++x) {
+            ComplexBuffer column = new StridedComplexBuffer(out, x, xSize, ySize);
+            fft1(column, column);
         }
-        _ifft1(in, out);
     }
 
     /**
-     * 2d fft
+     * 2d inverse fft
      * 
      * @param in
-     * @param xSize
-     * @param ySize
+     * @param out
+     * @param xSize row length
+     * @param ySize column length
      */
-    public static void fft2(ComplexBuffer in, ComplexBuffer out, int xSize, int ySize) {
+    public static void ifft2(ComplexBuffer in, ComplexBuffer out, int xSize, int ySize) {
+        ifft2(in, out, xSize, ySize, ForkJoinPool.commonPool());
+    }
 
+    /**
+     * 2d inverse fft
+     * 
+     * @param in
+     * @param out
+     * @param xSize row length
+     * @param ySize column length
+     * @param pool  pool to transform rows and columns of nio buffers on
+     */
+    public static void ifft2(ComplexBuffer in, ComplexBuffer out, int xSize, int ySize, ForkJoinPool pool) {
+        validate2(in, out, xSize, ySize);
+        if (in instanceof NioComplexBuffer && out instanceof NioComplexBuffer) {
+            _fft2Nio((NioComplexBuffer) in, (NioComplexBuffer) out, xSize, ySize, true, pool);
+            return;
+        }
+        for (int y = 0; y < ySize; ++y) {
+            ifft1(new StridedComplexBuffer(in, y * xSize, 1, xSize),
+                    new StridedComplexBuffer(out, y * xSize, 1, xSize));
+        }
+        for (int x = 0; x < xSize; ++x) {
+            ComplexBuffer column = new StridedComplexBuffer(out, x, xSize, ySize);
+            ifft1(column, column);
+        }
+    }
+
+    /**
+     * 2d fft of real samples. Rows are transformed as real samples, so that only
+     * xSize / 2 + 1 spectrum samples of each row are computed and transformed
+     * over columns.
+     * 
+     * @param in    real samples, stored row by row
+     * @param out   spectrum of (xSize / 2 + 1) x ySize samples
+     * @param xSize row length
+     * @param ySize column length
+     */
+    public static void rfft2(DoubleBuffer in, NioComplexBuffer out, int xSize, int ySize) {
+        rfft2(in, out, xSize, ySize, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * 2d fft of real samples
+     * 
+     * @param in    real samples, stored row by row
+     * @param out   spectrum of (xSize / 2 + 1) x ySize samples
+     * @param xSize row length
+     * @param ySize column length
+     * @param pool  pool to transform rows and columns on
+     */
+    public static void rfft2(DoubleBuffer in, NioComplexBuffer out, int xSize, int ySize, ForkJoinPool pool) {
+        RealFFTPlan rowPlan = RealFFTPlan.of(xSize);
+        int spectrumXSize = rowPlan.spectrumSize();
+        if (in.capacity() < xSize * ySize || out.size() < spectrumXSize * ySize) {
+            throw new IndexOutOfBoundsException("buffer size < transform size");
+        }
+        DoubleBuffer data = out.doubleBuffer();
+        parallelFor(pool, 0, ySize, Integer.max(1, PARALLEL_GRAIN / xSize), (from, to) -> {
+            DoubleBuffer src = in.duplicate();
+            DoubleBuffer dst = data.duplicate();
+            double[] row = scratch.get(xSize + 2 * spectrumXSize);
+            for (int y = from; y < to; ++y) {
+                src.position(y * xSize);
+                src.get(row, 0, xSize);
+                rowPlan.fft(row, 0, row, xSize);
+                dst.position(2 * y * spectrumXSize);
+                dst.put(row, xSize, 2 * spectrumXSize);
+            }
+        });
+        columnPass(data, spectrumXSize, ySize, false, pool);
+    }
+
+    /**
+     * 2d inverse fft to real samples. Spectrum is transformed in place over
+     * columns, so input buffer is overwritten.
+     * 
+     * @param in    spectrum of (xSize / 2 + 1) x ySize samples
+     * @param out   real samples, stored row by row
+     * @param xSize row length of real samples
+     * @param ySize column length
+     */
+    public static void irfft2(NioComplexBuffer in, DoubleBuffer out, int xSize, int ySize) {
+        irfft2(in, out, xSize, ySize, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * 2d inverse fft to real samples
+     * 
+     * @param in    spectrum of (xSize / 2 + 1) x ySize samples, which is
+     *              overwritten
+     * @param out   real samples, stored row by row
+     * @param xSize row length of real samples
+     * @param ySize column length
+     * @param pool  pool to transform rows and columns on
+     */
+    public static void irfft2(NioComplexBuffer in, DoubleBuffer out, int xSize, int ySize, ForkJoinPool pool) {
+        RealFFTPlan rowPlan = RealFFTPlan.of(xSize);
+        int spectrumXSize = rowPlan.spectrumSize();
+        if (out.capacity() < xSize * ySize || in.size() < spectrumXSize * ySize) {
+            throw new IndexOutOfBoundsException("buffer size < transform size");
+        }
+        DoubleBuffer data = in.doubleBuffer();
+        columnPass(data, spectrumXSize, ySize, true, pool);
+        parallelFor(pool, 0, ySize, Integer.max(1, PARALLEL_GRAIN / xSize), (from, to) -> {
+            DoubleBuffer src = data.duplicate();
+            DoubleBuffer dst = out.duplicate();
+            double[] row = scratch.get(xSize + 2 * spectrumXSize);
+            for (int y = from; y < to; ++y) {
+                src.position(2 * y * spectrumXSize);
+                src.get(row, xSize, 2 * spectrumXSize);
+                rowPlan.ifft(row, xSize, row, 0);
+                dst.position(y * xSize);
+                dst.put(row, 0, xSize);
+            }
+        });
     }
 }
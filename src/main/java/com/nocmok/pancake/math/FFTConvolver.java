@@ -0,0 +1,119 @@
+package com.nocmok.pancake.math;
+
+import java.nio.DoubleBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+/**
+ * Convolves padded buffers with kernel of 2d filter as product of spectra.
+ * Transform sizes are rounded up to products of 2, 3 and 5 rather than to
+ * power of 2, and only half of spectrum of real samples is computed. Kernel
+ * spectra are cached for each transform size, so that blocks of the same size
+ * are convolved without recomputing them. Instance keeps scratch buffers
+ * between calls, so it is not thread safe.
+ */
+class FFTConvolver {
+
+    private final double[][] kernel;
+
+    /** half spectra of kernel by transform size */
+    private final Map<Long, NioComplexBuffer> spectra = new HashMap<>();
+
+    private double[] real = new double[0];
+
+    private double[] complex = new double[0];
+
+    FFTConvolver(Filter2D filter) {
+        this.kernel = filter.getKernel();
+    }
+
+    private static long sizeKey(int xSize, int ySize) {
+        return ((long) xSize << 32) | ySize;
+    }
+
+    /**
+     * 
+     * @param size
+     * @return transform row length, which is even, so that real rows are
+     *         transformed as complex rows of half length
+     */
+    static int transformXSize(int size) {
+        return 2 * PancakeMath.nextSmooth((size + 1) / 2);
+    }
+
+    static int transformYSize(int size) {
+        return PancakeMath.nextSmooth(size);
+    }
+
+    private NioComplexBuffer spectrum(int xSize, int ySize) {
+        NioComplexBuffer spectrum = spectra.get(sizeKey(xSize, ySize));
+        if (spectrum == null) {
+            double[] samples = new double[xSize * ySize];
+            for (int y = 0; y < kernel.length; ++y) {
+                for (int x = 0; x < kernel[y].length; ++x) {
+                    samples[y * xSize + x] = kernel[y][x];
+                }
+            }
+            spectrum = new NioComplexBuffer((xSize / 2 + 1) * ySize);
+            FFT.rfft2(DoubleBuffer.wrap(samples), spectrum, xSize, ySize);
+            spectra.put(sizeKey(xSize, ySize), spectrum);
+        }
+        return spectrum;
+    }
+
+    /**
+     * Padded source must contain kernel height - 1 rows and kernel width - 1
+     * columns of border around convolved area, so that circular convolution
+     * doesn't wrap around on samples, that are kept.
+     * 
+     * @param padded double precision source with border
+     * @param result double precision result, which is reallocated to size of
+     *               convolved area
+     */
+    void convolve(Mat padded, Mat result) {
+        int kxSize = kernel[0].length;
+        int kySize = kernel.length;
+        int xSize = transformXSize(padded.cols());
+        int ySize = transformYSize(padded.rows());
+        int spectrumXSize = xSize / 2 + 1;
+        int resultXSize = padded.cols() - kxSize + 1;
+        int resultYSize = padded.rows() - kySize + 1;
+
+        if (real.length < xSize * ySize) {
+            real = new double[xSize * ySize];
+            complex = new double[2 * spectrumXSize * ySize];
+        }
+        padded.get(0, 0, real);
+
+        /** rows are spread from the end, so that unread samples are not overwritten */
+        for (int y = ySize - 1; y >= 0; --y) {
+            for (int x = xSize - 1; x >= 0; --x) {
+                real[y * xSize + x] = (y < padded.rows() && x < padded.cols()) ? real[y * padded.cols() + x] : 0d;
+            }
+        }
+
+        DoubleBuffer samples = DoubleBuffer.wrap(real, 0, xSize * ySize).slice();
+        NioComplexBuffer buf = new NioComplexBuffer(DoubleBuffer.wrap(complex, 0, 2 * spectrumXSize * ySize).slice());
+        FFT.rfft2(samples, buf, xSize, ySize);
+        ComplexBuffer spectrum = spectrum(xSize, ySize);
+        for (int i = 0; i < spectrumXSize * ySize; ++i) {
+            double re = buf.re(i) * spectrum.re(i) - buf.im(i) * spectrum.im(i);
+            double im = buf.re(i) * spectrum.im(i) + buf.im(i) * spectrum.re(i);
+            buf.set(i, re, im);
+        }
+        FFT.irfft2(buf, samples, xSize, ySize);
+
+        /** samples affected by wrap around are discarded */
+        for (int y = 0; y < resultYSize; ++y) {
+            for (int x = 0; x < resultXSize; ++x) {
+                real[y * resultXSize + x] = real[(y + kySize - 1) * xSize + x + kxSize - 1];
+            }
+        }
+        result.create(resultYSize, resultXSize, CvType.CV_64F);
+        /** opencv copies only as much samples as result holds */
+        result.put(0, 0, real);
+    }
+}
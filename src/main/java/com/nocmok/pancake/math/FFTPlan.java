@@ -0,0 +1,86 @@
+package com.nocmok.pancake.math;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In place fft of single size over complex samples, that are stored
+ * interleaved in double array (re0, im0, re1, im1, ...). Powers of 2 are
+ * transformed with radix 2 stages, sizes with prime factors 2, 3 and 5 with
+ * mixed radix stages, and other sizes with Bluestein algorithm, so that
+ * samples are never padded. Plans are immutable, so they are cached and shared
+ * by threads.
+ */
+public abstract class FFTPlan {
+
+    private static final Map<Integer, FFTPlan> plans = new ConcurrentHashMap<>();
+
+    /** Primes, that mixed radix plan has butterflies for */
+    static final int[] SMOOTH_PRIMES = { 2, 3, 5 };
+
+    protected final int size;
+
+    FFTPlan(int size) {
+        this.size = size;
+    }
+
+    /**
+     * 
+     * @param size transform size
+     * @return cached plan of specified size
+     */
+    public static FFTPlan of(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("transform size must be positive, got " + size);
+        }
+        FFTPlan plan = plans.get(size);
+        if (plan == null) {
+            /** not computeIfAbsent, as Bluestein plan requests inner plan while being created */
+            FFTPlan created = create(size);
+            plan = plans.putIfAbsent(size, created);
+            if (plan == null) {
+                plan = created;
+            }
+        }
+        return plan;
+    }
+
+    private static FFTPlan create(int size) {
+        if (PancakeMath.isPow2(size)) {
+            return new Radix2FFTPlan(size);
+        }
+        int[] factors = MixedRadixFFTPlan.factorize(size);
+        if (factors != null) {
+            return new MixedRadixFFTPlan(size, factors);
+        }
+        return new BluesteinFFTPlan(size);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 1d fft in place
+     * 
+     * @param data   interleaved complex samples
+     * @param offset index of real part of the first sample
+     */
+    public abstract void fft(double[] data, int offset);
+
+    /**
+     * 1d inverse fft in place
+     * 
+     * @param data   interleaved complex samples
+     * @param offset index of real part of the first sample
+     */
+    public abstract void ifft(double[] data, int offset);
+
+    /** Divides samples by transform size, as inverse transform requires */
+    protected void scale(double[] data, int offset) {
+        double scale = 1d / size;
+        for (int i = offset; i < offset + 2 * size; ++i) {
+            data[i] *= scale;
+        }
+    }
+}
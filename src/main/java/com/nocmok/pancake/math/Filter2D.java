@@ -8,4 +8,38 @@ public interface Filter2D {
      * @return 2d array representing filter kernel
      */
     public double[][] getKernel();
+
+    /**
+     * Separable filter kernel equals to delta * identity kernel plus outer product
+     * of column and row kernels, so it can be applied as two 1d convolutions
+     * 
+     * @return whether filter provides separable form
+     */
+    public default boolean isSeparable() {
+        return false;
+    }
+
+    /**
+     * 
+     * @return row (horizontal) kernel of separable form
+     */
+    public default double[] getRowKernel() {
+        throw new UnsupportedOperationException("filter is not separable");
+    }
+
+    /**
+     * 
+     * @return column (vertical) kernel of separable form
+     */
+    public default double[] getColumnKernel() {
+        throw new UnsupportedOperationException("filter is not separable");
+    }
+
+    /**
+     * 
+     * @return weight of identity kernel in separable form
+     */
+    public default double getDelta() {
+        throw new UnsupportedOperationException("filter is not separable");
+    }
 }
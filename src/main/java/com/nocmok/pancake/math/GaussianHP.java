@@ -7,19 +7,26 @@ public class GaussianHP implements Filter2D {
 
     private double[][] kernel;
 
+    private double[] rowKernel;
+
+    private double[] columnKernel;
+
     public GaussianHP(double sigma) {
         this.sigma = sigma;
         this.kernel = getKernel(computeSize(sigma), sigma);
+        initSeparable(computeSize(sigma), sigma);
     }
 
     public GaussianHP(double sigma, int size){
         this.sigma = sigma;
         this.kernel = getKernel(size, sigma);
+        initSeparable(size, sigma);
     }
 
     public GaussianHP(int size){
         this.sigma = computeSigma(size);
         this.kernel = getKernel(size, sigma);
+        initSeparable(size, sigma);
     }
 
     public static GaussianHP ofSize(int size){
@@ -63,11 +70,45 @@ public class GaussianHP implements Filter2D {
         return kernel;
     }
 
+    /** Gaussian is product of two 1d gaussians, so kernel is 1 - g(x) * g(y) */
+    private void initSeparable(int n, double sigma) {
+        double sigma2 = Math.pow(sigma, 2);
+        int x0 = n / 2;
+        this.rowKernel = new double[n];
+        this.columnKernel = new double[n];
+        for (int x = 0; x < n; ++x) {
+            int dist = (x - x0) * (x - x0);
+            double scale = 1.0 / Math.sqrt(2 * Math.PI * sigma2) * Math.pow(Math.E, -dist / (2.0 * sigma2));
+            rowKernel[x] = scale;
+            columnKernel[x] = -scale;
+        }
+    }
+
     @Override
     public double[][] getKernel() {
         return kernel;
     }
 
+    @Override
+    public boolean isSeparable() {
+        return true;
+    }
+
+    @Override
+    public double[] getRowKernel() {
+        return rowKernel;
+    }
+
+    @Override
+    public double[] getColumnKernel() {
+        return columnKernel;
+    }
+
+    @Override
+    public double getDelta() {
+        return 1d;
+    }
+
     @Override
     public String toString() {
         StringBuilder builder = new StringBuilder();
@@ -1,7 +1,9 @@
 package com.nocmok.pancake.math;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import com.nocmok.pancake.Pancake;
 import com.nocmok.pancake.utils.Rectangle;
@@ -9,14 +11,47 @@ import com.nocmok.pancake.utils.Rectangle;
 import org.opencv.core.Core;
 import org.opencv.core.CvType;
 import org.opencv.core.Mat;
+import org.opencv.core.Point;
 import org.opencv.core.Scalar;
 import org.opencv.core.Size;
 import org.opencv.core.Core.MinMaxLocResult;
 import org.opencv.imgproc.Imgproc;
 
-/** Mostly opencv wrapper, containing 2d math routines */
+/**
+ * Mostly opencv wrapper, containing 2d math routines. Instance keeps scratch
+ * buffers and kernels between calls, so it is not thread safe.
+ */
 public class Math2D {
 
+    /** Empty mask, that means lack of mask for opencv */
+    private final Mat noMask = new Mat();
+
+    /** Scratch mask, reused by compare routines */
+    private final Mat compareMask = new Mat();
+
+    private final Buffer2D compareBuf = Buffer2D.wrapMat(compareMask);
+
+    /** Flipped kernels of filters, that were used for convolution */
+    private final Map<Filter2D, Mat> kernels = new HashMap<>();
+
+    /** Flipped row and column kernels of separable filters */
+    private final Map<Filter2D, Mat[]> separableKernels = new HashMap<>();
+
+    private final Point kernelAnchor = new Point(-1, -1);
+
+    /** Scratch buffer for low pass part of separable filters */
+    private final Mat separableScratch = new Mat();
+
+    /** Convolvers of filters, that were used for fft convolution */
+    private final Map<Filter2D, FFTConvolver> fftConvolvers = new HashMap<>();
+
+    /** Scratch buffers for source with border and result of fft convolution */
+    private final Mat fftPadded = new Mat();
+
+    private final Mat fftPadded64 = new Mat();
+
+    private final Mat fftResult = new Mat();
+
     public Math2D() {
 
     }
@@ -50,38 +85,118 @@ public class Math2D {
 
     private Mat matFromDoubleArray(double[][] array) {
         Mat mat = new Mat(new Size(array[0].length, array.length), CvType.CV_64F);
-        for (int y = 0; y < mat.height(); ++y) {
-            for (int x = 0; x < mat.width(); ++x) {
-                mat.put(y, x, array[y][x]);
-            }
+        double[] data = new double[array.length * array[0].length];
+        for (int y = 0; y < array.length; ++y) {
+            System.arraycopy(array[y], 0, data, y * array[0].length, array[0].length);
         }
+        mat.put(0, 0, data);
         return mat;
     }
 
+    private Mat kernel(Filter2D filter) {
+        Mat kernel = kernels.get(filter);
+        if (kernel == null) {
+            kernel = matFromDoubleArray(filter.getKernel());
+            Core.flip(kernel, kernel, -1);
+            kernels.put(filter, kernel);
+        }
+        return kernel;
+    }
+
+    /**
+     * 
+     * @return flipped row kernel and flipped column kernel
+     */
+    private Mat[] separableKernel(Filter2D filter) {
+        Mat[] kernel = separableKernels.get(filter);
+        if (kernel == null) {
+            Mat rowKernel = matFromDoubleArray(new double[][] { filter.getRowKernel() });
+            Mat columnKernel = matFromDoubleArray(new double[][] { filter.getColumnKernel() });
+            Core.flip(rowKernel, rowKernel, -1);
+            Core.flip(columnKernel, columnKernel, -1);
+            kernel = new Mat[] { rowKernel, columnKernel };
+            separableKernels.put(filter, kernel);
+        }
+        return kernel;
+    }
+
     private Mat matFromBuffer2D(Buffer2D buf) {
         return buf.mat();
     }
 
+    /**
+     * Source buffer is convolved as standalone image, even if it is sub buffer, so
+     * samples around sub buffer are not used as border. Source and destination
+     * buffers may have different data types. Separable filters are applied as
+     * two 1d convolutions.
+     */
     public void convolve(Buffer2D src, Filter2D filter, Buffer2D dst) {
+        convolve(matFromBuffer2D(src), filter, matFromBuffer2D(dst), Core.BORDER_DEFAULT | Core.BORDER_ISOLATED);
+    }
+
+    /**
+     * Unlike {@link #convolve(Buffer2D, Filter2D, Buffer2D)}, samples of parent
+     * buffer around sub buffer are used as border, so that neighbour rows and
+     * columns provide convolution halo. Border is extrapolated only beyond the
+     * parent buffer.
+     */
+    public void convolveWithHalo(Buffer2D src, Filter2D filter, Buffer2D dst) {
+        convolve(matFromBuffer2D(src), filter, matFromBuffer2D(dst), Core.BORDER_DEFAULT);
+    }
+
+    /**
+     * Same as {@link #convolveWithHalo(Buffer2D, Filter2D, Buffer2D)}, but
+     * convolution is computed as product of spectra, so that its cost doesn't
+     * depend on kernel size. Result is computed in double precision and rounded
+     * once.
+     */
+    public void convolveWithHaloFFT(Buffer2D src, Filter2D filter, Buffer2D dst) {
         Mat srcMat = matFromBuffer2D(src);
         Mat dstMat = matFromBuffer2D(dst);
-        Mat kernel = matFromDoubleArray(filter.getKernel());
-        Core.flip(kernel, kernel, -1);
-        Imgproc.filter2D(srcMat, dstMat, dstMat.depth(), kernel);
+        int kxSize = filter.getKernel()[0].length;
+        int kySize = filter.getKernel().length;
+        /** same border as filter2D takes with centered anchor */
+        int top = kySize / 2;
+        int left = kxSize / 2;
+        Core.copyMakeBorder(srcMat, fftPadded, top, kySize - 1 - top, left, kxSize - 1 - left, Core.BORDER_DEFAULT);
+        fftPadded.convertTo(fftPadded64, CvType.CV_64F);
+        fftConvolvers.computeIfAbsent(filter, FFTConvolver::new).convolve(fftPadded64, fftResult);
+        fftResult.convertTo(dstMat, dstMat.depth());
+    }
+
+    private void convolve(Mat srcMat, Filter2D filter, Mat dstMat, int borderType) {
+        if (filter.isSeparable()) {
+            convolveSeparable(srcMat, filter, dstMat, borderType);
+        } else {
+            Imgproc.filter2D(srcMat, dstMat, dstMat.depth(), kernel(filter), kernelAnchor, 0d, borderType);
+        }
+    }
+
+    /**
+     * Outer product part is accumulated in floating point scratch buffer, so that
+     * result is rounded once, as with 2d kernel
+     */
+    private void convolveSeparable(Mat srcMat, Filter2D filter, Mat dstMat, int borderType) {
+        Mat[] kernel = separableKernel(filter);
+        int scratchDepth = (srcMat.depth() == CvType.CV_64F || dstMat.depth() == CvType.CV_64F) ? CvType.CV_64F
+                : CvType.CV_32F;
+        Imgproc.sepFilter2D(srcMat, separableScratch, scratchDepth, kernel[0], kernel[1], kernelAnchor, 0d,
+                borderType);
+        Core.addWeighted(separableScratch, 1d, srcMat, filter.getDelta(), 0d, dstMat, dstMat.depth());
     }
 
     public void sum(Buffer2D a, Buffer2D b, Buffer2D sum) {
         Mat aMat = matFromBuffer2D(a);
         Mat bMat = matFromBuffer2D(b);
         Mat sumMat = matFromBuffer2D(sum);
-        Core.add(aMat, bMat, sumMat, Mat.ones(sumMat.size(), CvType.CV_8U), sumMat.depth());
+        Core.add(aMat, bMat, sumMat, noMask, sumMat.depth());
     }
 
     public void sum(Buffer2D a, Buffer2D b, Buffer2D sum, Rectangle region) {
         Mat aMat = matFromBuffer2D(a).submat(region.y0(), region.y1(), region.x0(), region.x1());
         Mat bMat = matFromBuffer2D(b).submat(region.y0(), region.y1(), region.x0(), region.x1());
         Mat sumMat = matFromBuffer2D(sum).submat(region.y0(), region.y1(), region.x0(), region.x1());
-        Core.add(aMat, bMat, sumMat, Mat.ones(sumMat.size(), CvType.CV_8U), sumMat.depth());
+        Core.add(aMat, bMat, sumMat, noMask, sumMat.depth());
     }
 
     /**
@@ -199,7 +314,7 @@ public class Math2D {
         Mat aMat = matFromBuffer2D(a);
         Mat bMat = matFromBuffer2D(b);
         Mat dstMat = matFromBuffer2D(dest);
-        Core.subtract(aMat, bMat, dstMat, Mat.ones(dstMat.size(), CvType.CV_8U), dstMat.depth());
+        Core.subtract(aMat, bMat, dstMat, noMask, dstMat.depth());
     }
 
     public void mul(Buffer2D src, double scalar, Buffer2D dst) {
@@ -289,19 +404,27 @@ public class Math2D {
         return subBuffer(buf, roi.x0(), roi.y0(), roi.xSize(), roi.ySize());
     }
 
+    /**
+     * 
+     * @return mask of equal elements, which is valid until the next compare
+     *         call on this instance
+     */
     public Buffer2D compareEquals(Buffer2D a, Buffer2D b) {
         Mat aMat = matFromBuffer2D(a);
         Mat bMat = matFromBuffer2D(b);
-        Mat mask = new Mat();
-        Core.compare(aMat, bMat, mask, Core.CMP_EQ);
-        return Buffer2D.wrapMat(mask);
+        Core.compare(aMat, bMat, compareMask, Core.CMP_EQ);
+        return compareBuf;
     }
 
+    /**
+     * 
+     * @return mask of elements equal to scalar, which is valid until the next
+     *         compare call on this instance
+     */
     public Buffer2D compareEquals(Buffer2D a, double scalar) {
         Mat aMat = matFromBuffer2D(a);
-        Mat mask = new Mat();
-        Core.compare(aMat, new Scalar(scalar), mask, Core.CMP_EQ);
-        return Buffer2D.wrapMat(mask);
+        Core.compare(aMat, new Scalar(scalar), compareMask, Core.CMP_EQ);
+        return compareBuf;
     }
 
     public void fill(Buffer2D buf, double scalar, Buffer2D mask) {
@@ -311,8 +434,7 @@ public class Math2D {
 
     public void replace(Buffer2D buf, double oldVal, double newVal) {
         Mat mat = matFromBuffer2D(buf);
-        Mat mask = new Mat();
-        Core.compare(mat, new Scalar(oldVal), mask, Core.CMP_EQ);
-        mat.setTo(new Scalar(newVal), mask);
+        Core.compare(mat, new Scalar(oldVal), compareMask, Core.CMP_EQ);
+        mat.setTo(new Scalar(newVal), compareMask);
     }
 }
@@ -0,0 +1,261 @@
+package com.nocmok.pancake.math;
+
+/**
+ * Fft of sizes, whose prime factors are 2, 3 and 5. Samples are split by
+ * decimation in time recursively by each factor, partial transforms are
+ * combined with radix butterflies. Pairs of factors 2 are merged into radix 4
+ * stages. Transform is performed out of place, input is copied to per thread
+ * scratch array.
+ */
+class MixedRadixFFTPlan extends FFTPlan {
+
+    private static final ScratchArray scratch = new ScratchArray();
+
+    /** radices of stages, from outermost to innermost */
+    private final int[] factors;
+
+    /** real and imaginary parts of exp(2 * pi * i * t / size), t < size */
+    private final double[] cos;
+
+    private final double[] sin;
+
+    MixedRadixFFTPlan(int size, int[] factors) {
+        super(size);
+        this.factors = factors;
+        this.cos = new double[size];
+        this.sin = new double[size];
+        for (int t = 0; t < size; ++t) {
+            double arg = 2 * Math.PI * t / size;
+            cos[t] = Math.cos(arg);
+            sin[t] = Math.sin(arg);
+        }
+    }
+
+    /**
+     * 
+     * @return prime factors of size or null, if size has prime factors, that
+     *         mixed radix plan doesn't support
+     */
+    static int[] factorize(int size) {
+        int[] factors = new int[32];
+        int n = 0;
+        while (size % 4 == 0) {
+            factors[n++] = 4;
+            size /= 4;
+        }
+        for (int prime : SMOOTH_PRIMES) {
+            while (size % prime == 0) {
+                factors[n++] = prime;
+                size /= prime;
+            }
+        }
+        if (size != 1) {
+            return null;
+        }
+        int[] result = new int[n];
+        System.arraycopy(factors, 0, result, 0, n);
+        return result;
+    }
+
+    @Override
+    public void fft(double[] data, int offset) {
+        transform(data, offset, 1d);
+    }
+
+    @Override
+    public void ifft(double[] data, int offset) {
+        transform(data, offset, -1d);
+        scale(data, offset);
+    }
+
+    private void transform(double[] data, int offset, double sign) {
+        double[] in = scratch.get(2 * size);
+        System.arraycopy(data, offset, in, 0, 2 * size);
+        work(data, offset, in, 0, 1, 0, sign);
+    }
+
+    /**
+     * 
+     * @param out       output samples
+     * @param outOffset index of real part of the first output sample
+     * @param in        input samples
+     * @param inIdx     index of the first input sample
+     * @param fstride   distance between input samples of this transform
+     * @param stage     index of factor
+     * @param sign      sign of twiddle arguments
+     */
+    private void work(double[] out, int outOffset, double[] in, int inIdx, int fstride, int stage, double sign) {
+        int p = factors[stage];
+        int m = size / fstride / p;
+        if (m == 1) {
+            for (int q = 0; q < p; ++q) {
+                out[outOffset + 2 * q] = in[2 * (inIdx + q * fstride)];
+                out[outOffset + 2 * q + 1] = in[2 * (inIdx + q * fstride) + 1];
+            }
+        } else {
+            for (int q = 0; q < p; ++q) {
+                work(out, outOffset + 2 * q * m, in, inIdx + q * fstride, fstride * p, stage + 1, sign);
+            }
+        }
+        switch (p) {
+            case 2:
+                butterfly2(out, outOffset, fstride, m, sign);
+                break;
+            case 3:
+                butterfly3(out, outOffset, fstride, m, sign);
+                break;
+            case 4:
+                butterfly4(out, outOffset, fstride, m, sign);
+                break;
+            case 5:
+                butterfly5(out, outOffset, fstride, m, sign);
+                break;
+            default:
+                throw new IllegalStateException("unsupported radix " + p);
+        }
+    }
+
+    private void butterfly2(double[] out, int outOffset, int fstride, int m, double sign) {
+        for (int k = 0; k < m; ++k) {
+            double wRe = cos[k * fstride];
+            double wIm = sign * sin[k * fstride];
+            int a = outOffset + 2 * k;
+            int b = a + 2 * m;
+            double tRe = out[b] * wRe - out[b + 1] * wIm;
+            double tIm = out[b] * wIm + out[b + 1] * wRe;
+            out[b] = out[a] - tRe;
+            out[b + 1] = out[a + 1] - tIm;
+            out[a] += tRe;
+            out[a + 1] += tIm;
+        }
+    }
+
+    private static final double SIN_60 = Math.sqrt(3) / 2;
+
+    private static final double COS_72 = Math.cos(2 * Math.PI / 5);
+
+    private static final double SIN_72 = Math.sin(2 * Math.PI / 5);
+
+    private static final double COS_144 = Math.cos(4 * Math.PI / 5);
+
+    private static final double SIN_144 = Math.sin(4 * Math.PI / 5);
+
+    private void butterfly3(double[] out, int outOffset, int fstride, int m, double sign) {
+        for (int u = 0; u < m; ++u) {
+            int a = outOffset + 2 * u;
+            int b = a + 2 * m;
+            int c = b + 2 * m;
+            int t1 = u * fstride;
+            int t2 = 2 * t1;
+            double x1Re = out[b] * cos[t1] - out[b + 1] * sign * sin[t1];
+            double x1Im = out[b] * sign * sin[t1] + out[b + 1] * cos[t1];
+            double x2Re = out[c] * cos[t2] - out[c + 1] * sign * sin[t2];
+            double x2Im = out[c] * sign * sin[t2] + out[c + 1] * cos[t2];
+
+            double sumRe = x1Re + x2Re;
+            double sumIm = x1Im + x2Im;
+            /** i * sign * sin(60) * (x1 - x2) */
+            double dRe = -sign * SIN_60 * (x1Im - x2Im);
+            double dIm = sign * SIN_60 * (x1Re - x2Re);
+            double mRe = out[a] - sumRe / 2;
+            double mIm = out[a + 1] - sumIm / 2;
+
+            out[a] += sumRe;
+            out[a + 1] += sumIm;
+            out[b] = mRe + dRe;
+            out[b + 1] = mIm + dIm;
+            out[c] = mRe - dRe;
+            out[c + 1] = mIm - dIm;
+        }
+    }
+
+    private void butterfly4(double[] out, int outOffset, int fstride, int m, double sign) {
+        for (int u = 0; u < m; ++u) {
+            int a = outOffset + 2 * u;
+            int b = a + 2 * m;
+            int c = b + 2 * m;
+            int d = c + 2 * m;
+            int t1 = u * fstride;
+            int t2 = 2 * t1;
+            int t3 = 3 * t1;
+            double x1Re = out[b] * cos[t1] - out[b + 1] * sign * sin[t1];
+            double x1Im = out[b] * sign * sin[t1] + out[b + 1] * cos[t1];
+            double x2Re = out[c] * cos[t2] - out[c + 1] * sign * sin[t2];
+            double x2Im = out[c] * sign * sin[t2] + out[c + 1] * cos[t2];
+            double x3Re = out[d] * cos[t3] - out[d + 1] * sign * sin[t3];
+            double x3Im = out[d] * sign * sin[t3] + out[d + 1] * cos[t3];
+
+            double s02Re = out[a] + x2Re;
+            double s02Im = out[a + 1] + x2Im;
+            double d02Re = out[a] - x2Re;
+            double d02Im = out[a + 1] - x2Im;
+            double s13Re = x1Re + x3Re;
+            double s13Im = x1Im + x3Im;
+            /** i * sign * (x1 - x3) */
+            double d13Re = -sign * (x1Im - x3Im);
+            double d13Im = sign * (x1Re - x3Re);
+
+            out[a] = s02Re + s13Re;
+            out[a + 1] = s02Im + s13Im;
+            out[b] = d02Re + d13Re;
+            out[b + 1] = d02Im + d13Im;
+            out[c] = s02Re - s13Re;
+            out[c + 1] = s02Im - s13Im;
+            out[d] = d02Re - d13Re;
+            out[d + 1] = d02Im - d13Im;
+        }
+    }
+
+    private void butterfly5(double[] out, int outOffset, int fstride, int m, double sign) {
+        for (int u = 0; u < m; ++u) {
+            int a = outOffset + 2 * u;
+            int b = a + 2 * m;
+            int c = b + 2 * m;
+            int d = c + 2 * m;
+            int e = d + 2 * m;
+            int t1 = u * fstride;
+            int t2 = 2 * t1;
+            int t3 = 3 * t1;
+            int t4 = 4 * t1;
+            double x1Re = out[b] * cos[t1] - out[b + 1] * sign * sin[t1];
+            double x1Im = out[b] * sign * sin[t1] + out[b + 1] * cos[t1];
+            double x2Re = out[c] * cos[t2] - out[c + 1] * sign * sin[t2];
+            double x2Im = out[c] * sign * sin[t2] + out[c + 1] * cos[t2];
+            double x3Re = out[d] * cos[t3] - out[d + 1] * sign * sin[t3];
+            double x3Im = out[d] * sign * sin[t3] + out[d + 1] * cos[t3];
+            double x4Re = out[e] * cos[t4] - out[e + 1] * sign * sin[t4];
+            double x4Im = out[e] * sign * sin[t4] + out[e + 1] * cos[t4];
+
+            double s14Re = x1Re + x4Re;
+            double s14Im = x1Im + x4Im;
+            double s23Re = x2Re + x3Re;
+            double s23Im = x2Im + x3Im;
+            double d14Re = x1Re - x4Re;
+            double d14Im = x1Im - x4Im;
+            double d23Re = x2Re - x3Re;
+            double d23Im = x2Im - x3Im;
+
+            double m1Re = out[a] + COS_72 * s14Re + COS_144 * s23Re;
+            double m1Im = out[a + 1] + COS_72 * s14Im + COS_144 * s23Im;
+            double m2Re = out[a] + COS_144 * s14Re + COS_72 * s23Re;
+            double m2Im = out[a + 1] + COS_144 * s14Im + COS_72 * s23Im;
+            /** i * sign * (sin(72) * (x1 - x4) + sin(144) * (x2 - x3)) */
+            double n1Re = -sign * (SIN_72 * d14Im + SIN_144 * d23Im);
+            double n1Im = sign * (SIN_72 * d14Re + SIN_144 * d23Re);
+            /** i * sign * (sin(144) * (x1 - x4) - sin(72) * (x2 - x3)) */
+            double n2Re = -sign * (SIN_144 * d14Im - SIN_72 * d23Im);
+            double n2Im = sign * (SIN_144 * d14Re - SIN_72 * d23Re);
+
+            out[a] += s14Re + s23Re;
+            out[a + 1] += s14Im + s23Im;
+            out[b] = m1Re + n1Re;
+            out[b + 1] = m1Im + n1Im;
+            out[c] = m2Re + n2Re;
+            out[c + 1] = m2Im + n2Im;
+            out[d] = m2Re - n2Re;
+            out[d + 1] = m2Im - n2Im;
+            out[e] = m1Re - n1Re;
+            out[e + 1] = m1Im - n1Im;
+        }
+    }
+}
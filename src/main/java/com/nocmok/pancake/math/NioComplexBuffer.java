@@ -63,4 +63,11 @@ public class NioComplexBuffer implements ComplexBuffer {
         return _buff.capacity() >> 1;
     }
 
-}
\ No newline at end of file
+    /**
+     * 
+     * @return buffer of interleaved real and imaginary parts
+     */
+    DoubleBuffer doubleBuffer() {
+        return _buff;
+    }
+}
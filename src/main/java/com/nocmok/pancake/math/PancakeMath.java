@@ -51,4 +51,37 @@ public class PancakeMath {
         }
         return sum == 1;
     }
+
+    /**
+     * 
+     * @param value
+     * @return the least power of 2, that is not less than value
+     */
+    public static int nextPow2(int value) {
+        int pow2 = 1;
+        while (pow2 < value) {
+            pow2 <<= 1;
+        }
+        return pow2;
+    }
+
+    /**
+     * 
+     * @param value
+     * @return the least number of form 2^a * 3^b * 5^c, that is not less than
+     *         value
+     */
+    public static int nextSmooth(int value) {
+        int best = nextPow2(value);
+        for (int pow5 = 1; pow5 < best; pow5 *= 5) {
+            for (int pow35 = pow5; pow35 < best; pow35 *= 3) {
+                int candidate = pow35;
+                while (candidate < value) {
+                    candidate <<= 1;
+                }
+                best = Integer.min(best, candidate);
+            }
+        }
+        return best;
+    }
 }
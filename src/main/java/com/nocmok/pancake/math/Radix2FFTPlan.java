@@ -0,0 +1,139 @@
+package com.nocmok.pancake.math;
+
+/**
+ * Power of 2 fft. Pairs of radix 2 stages are performed in single pass over
+ * samples. Plan keeps bit reversal permutation and twiddle factors, twiddles
+ * are computed directly instead of repeated multiplication, so that precision
+ * doesn't degrade on long transforms.
+ */
+class Radix2FFTPlan extends FFTPlan {
+
+    /** bit reversed indices */
+    private final int[] reversed;
+
+    /**
+     * real and imaginary parts of twiddles exp(2 * pi * i * k / len), k < len / 2,
+     * for each stage of length len. Twiddles of stage are stored at offset len /
+     * 2 - 1, so that stage reads them sequentially
+     */
+    private final double[] cos;
+
+    private final double[] sin;
+
+    Radix2FFTPlan(int size) {
+        super(size);
+        int logLen = Integer.numberOfTrailingZeros(size);
+        this.reversed = new int[size];
+        for (int i = 0; i < size; ++i) {
+            reversed[i] = logLen == 0 ? 0 : PancakeMath.reverseNLeast(i, logLen);
+        }
+        this.cos = new double[Integer.max(1, size - 1)];
+        this.sin = new double[Integer.max(1, size - 1)];
+        for (int half = 1; half < size; half <<= 1) {
+            for (int k = 0; k < half; ++k) {
+                double arg = Math.PI * k / half;
+                cos[half - 1 + k] = Math.cos(arg);
+                sin[half - 1 + k] = Math.sin(arg);
+            }
+        }
+    }
+
+    @Override
+    public void fft(double[] data, int offset) {
+        transform(data, offset, 1d);
+    }
+
+    @Override
+    public void ifft(double[] data, int offset) {
+        transform(data, offset, -1d);
+        scale(data, offset);
+    }
+
+    private void transform(double[] data, int offset, double sign) {
+        for (int i = 0; i < size; ++i) {
+            int j = reversed[i];
+            if (i < j) {
+                int a = offset + 2 * i;
+                int b = offset + 2 * j;
+                double re = data[a];
+                double im = data[a + 1];
+                data[a] = data[b];
+                data[a + 1] = data[b + 1];
+                data[b] = re;
+                data[b + 1] = im;
+            }
+        }
+
+        int half = 1;
+        if ((Integer.numberOfTrailingZeros(size) & 1) == 1) {
+            /** odd number of stages, the first one is performed alone, its twiddle is 1 */
+            for (int a = offset; a < offset + 2 * size; a += 4) {
+                double bRe = data[a + 2];
+                double bIm = data[a + 3];
+                data[a + 2] = data[a] - bRe;
+                data[a + 3] = data[a + 1] - bIm;
+                data[a] += bRe;
+                data[a + 1] += bIm;
+            }
+            half = 2;
+        }
+
+        /** stages of length 2 * half and 4 * half are performed in single pass */
+        for (; 4 * half <= size; half <<= 2) {
+            int len = 4 * half;
+            for (int i = 0; i < size; i += len) {
+                for (int k = 0; k < half; ++k) {
+                    double w1Re = cos[half - 1 + k];
+                    double w1Im = sign * sin[half - 1 + k];
+                    double w2Re = cos[2 * half - 1 + k];
+                    double w2Im = sign * sin[2 * half - 1 + k];
+                    /** w3 = w2 * exp(sign * i * pi / 2) */
+                    double w3Re = -sign * w2Im;
+                    double w3Im = sign * w2Re;
+
+                    int p0 = offset + 2 * (i + k);
+                    int p1 = p0 + 2 * half;
+                    int p2 = p1 + 2 * half;
+                    int p3 = p2 + 2 * half;
+
+                    double x0Re = data[p0];
+                    double x0Im = data[p0 + 1];
+                    double x1Re = data[p1];
+                    double x1Im = data[p1 + 1];
+                    double x2Re = data[p2];
+                    double x2Im = data[p2 + 1];
+                    double x3Re = data[p3];
+                    double x3Im = data[p3 + 1];
+
+                    double tRe = x1Re * w1Re - x1Im * w1Im;
+                    double tIm = x1Re * w1Im + x1Im * w1Re;
+                    x1Re = x0Re - tRe;
+                    x1Im = x0Im - tIm;
+                    x0Re += tRe;
+                    x0Im += tIm;
+
+                    tRe = x3Re * w1Re - x3Im * w1Im;
+                    tIm = x3Re * w1Im + x3Im * w1Re;
+                    x3Re = x2Re - tRe;
+                    x3Im = x2Im - tIm;
+                    x2Re += tRe;
+                    x2Im += tIm;
+
+                    tRe = x2Re * w2Re - x2Im * w2Im;
+                    tIm = x2Re * w2Im + x2Im * w2Re;
+                    data[p2] = x0Re - tRe;
+                    data[p2 + 1] = x0Im - tIm;
+                    data[p0] = x0Re + tRe;
+                    data[p0 + 1] = x0Im + tIm;
+
+                    tRe = x3Re * w3Re - x3Im * w3Im;
+                    tIm = x3Re * w3Im + x3Im * w3Re;
+                    data[p3] = x1Re - tRe;
+                    data[p3 + 1] = x1Im - tIm;
+                    data[p1] = x1Re + tRe;
+                    data[p1 + 1] = x1Im + tIm;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package com.nocmok.pancake.math;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Fft of real samples. Spectrum of real samples is conjugate symmetric, so only
+ * size / 2 + 1 complex samples of spectrum are computed. Even sized samples are
+ * transformed as size / 2 complex samples, which takes half of complex
+ * transform work. Plans are immutable, so they are cached and shared by
+ * threads.
+ */
+public class RealFFTPlan {
+
+    private static final Map<Integer, RealFFTPlan> plans = new ConcurrentHashMap<>();
+
+    private static final ScratchArray scratch = new ScratchArray();
+
+    private final int size;
+
+    /** plan of size / 2 for even sizes, of size for odd ones */
+    private final FFTPlan plan;
+
+    /** real and imaginary parts of exp(2 * pi * i * k / size), k <= size / 2 */
+    private final double[] cos;
+
+    private final double[] sin;
+
+    private RealFFTPlan(int size) {
+        this.size = size;
+        if (size % 2 == 0) {
+            this.plan = FFTPlan.of(size / 2);
+            this.cos = new double[size / 2 + 1];
+            this.sin = new double[size / 2 + 1];
+            for (int k = 0; k <= size / 2; ++k) {
+                double arg = 2 * Math.PI * k / size;
+                cos[k] = Math.cos(arg);
+                sin[k] = Math.sin(arg);
+            }
+        } else {
+            this.plan = FFTPlan.of(size);
+            this.cos = null;
+            this.sin = null;
+        }
+    }
+
+    /**
+     * 
+     * @param size count of real samples
+     * @return cached plan of specified size
+     */
+    public static RealFFTPlan of(int size) {
+        if (size < 1) {
+            throw new IllegalArgumentException("transform size must be positive, got " + size);
+        }
+        return plans.computeIfAbsent(size, RealFFTPlan::new);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 
+     * @return count of complex samples in spectrum
+     */
+    public int spectrumSize() {
+        return size / 2 + 1;
+    }
+
+    /**
+     * 1d fft of real samples. Input and output arrays must not overlap.
+     * 
+     * @param in        real samples
+     * @param inOffset  index of the first real sample
+     * @param out       interleaved complex samples of spectrum, size / 2 + 1 of
+     *                  them are written
+     * @param outOffset index of real part of the first complex sample
+     */
+    public void fft(double[] in, int inOffset, double[] out, int outOffset) {
+        if (size % 2 != 0) {
+            double[] buf = scratch.get(2 * size);
+            for (int i = 0; i < size; ++i) {
+                buf[2 * i] = in[inOffset + i];
+                buf[2 * i + 1] = 0d;
+            }
+            plan.fft(buf, 0);
+            System.arraycopy(buf, 0, out, outOffset, 2 * spectrumSize());
+            return;
+        }
+
+        int half = size / 2;
+        /** even and odd samples are real and imaginary parts of z */
+        System.arraycopy(in, inOffset, out, outOffset, size);
+        plan.fft(out, outOffset);
+
+        /** X[0] and X[half] come from z[0] */
+        double z0Re = out[outOffset];
+        double z0Im = out[outOffset + 1];
+        out[outOffset] = z0Re + z0Im;
+        out[outOffset + 1] = 0d;
+        out[outOffset + 2 * half] = z0Re - z0Im;
+        out[outOffset + 2 * half + 1] = 0d;
+
+        /** X[k] and X[half - k] both depend on z[k] and z[half - k] */
+        for (int k = 1; k <= half / 2; ++k) {
+            int j = half - k;
+            int a = outOffset + 2 * k;
+            int b = outOffset + 2 * j;
+            double zkRe = out[a];
+            double zkIm = out[a + 1];
+            double zjRe = out[b];
+            double zjIm = out[b + 1];
+
+            /** e = (z[k] + conj(z[j])) / 2, o = (z[k] - conj(z[j])) / 2i */
+            double eRe = (zkRe + zjRe) / 2;
+            double eIm = (zkIm - zjIm) / 2;
+            double oRe = (zkIm + zjIm) / 2;
+            double oIm = -(zkRe - zjRe) / 2;
+
+            double tRe = oRe * cos[k] - oIm * sin[k];
+            double tIm = oRe * sin[k] + oIm * cos[k];
+            out[a] = eRe + tRe;
+            out[a + 1] = eIm + tIm;
+
+            /** e and o of j are conjugates of e and o of k */
+            tRe = oRe * cos[j] + oIm * sin[j];
+            tIm = oRe * sin[j] - oIm * cos[j];
+            out[b] = eRe + tRe;
+            out[b + 1] = -eIm + tIm;
+        }
+    }
+
+    /**
+     * 1d inverse fft to real samples. Input and output arrays must not overlap.
+     * 
+     * @param in        interleaved complex samples of spectrum, size / 2 + 1 of
+     *                  them are read
+     * @param inOffset  index of real part of the first complex sample
+     * @param out       real samples
+     * @param outOffset index of the first real sample
+     */
+    public void ifft(double[] in, int inOffset, double[] out, int outOffset) {
+        if (size % 2 != 0) {
+            double[] buf = scratch.get(2 * size);
+            System.arraycopy(in, inOffset, buf, 0, 2 * spectrumSize());
+            /** the rest of spectrum is conjugate of its first half */
+            for (int k = spectrumSize(); k < size; ++k) {
+                buf[2 * k] = in[inOffset + 2 * (size - k)];
+                buf[2 * k + 1] = -in[inOffset + 2 * (size - k) + 1];
+            }
+            plan.ifft(buf, 0);
+            for (int i = 0; i < size; ++i) {
+                out[outOffset + i] = buf[2 * i];
+            }
+            return;
+        }
+
+        int half = size / 2;
+        for (int k = 0; k < half; ++k) {
+            int j = half - k;
+            double xkRe = in[inOffset + 2 * k];
+            double xkIm = in[inOffset + 2 * k + 1];
+            double xjRe = in[inOffset + 2 * j];
+            double xjIm = in[inOffset + 2 * j + 1];
+
+            /** e = (X[k] + conj(X[j])) / 2, o = (X[k] - conj(X[j])) / (2 * w^k) */
+            double eRe = (xkRe + xjRe) / 2;
+            double eIm = (xkIm - xjIm) / 2;
+            double dRe = (xkRe - xjRe) / 2;
+            double dIm = (xkIm + xjIm) / 2;
+            double oRe = dRe * cos[k] + dIm * sin[k];
+            double oIm = dIm * cos[k] - dRe * sin[k];
+
+            /** z = e + i * o */
+            out[outOffset + 2 * k] = eRe - oIm;
+            out[outOffset + 2 * k + 1] = eIm + oRe;
+        }
+        plan.ifft(out, outOffset);
+    }
+}
@@ -0,0 +1,25 @@
+package com.nocmok.pancake.math;
+
+/**
+ * Per thread array, that grows on demand and is reused between calls. Each
+ * user keeps its own instance, as transforms call nested transforms while
+ * their scratch samples are still in use.
+ */
+class ScratchArray {
+
+    private final ThreadLocal<double[]> samples = ThreadLocal.withInitial(() -> new double[0]);
+
+    /**
+     * 
+     * @return array of calling thread of at least specified length, its content
+     *         is left from previous use
+     */
+    double[] get(int length) {
+        double[] array = samples.get();
+        if (array.length < length) {
+            array = new double[length];
+            samples.set(array);
+        }
+        return array;
+    }
+}
@@ -0,0 +1,67 @@
+package com.nocmok.pancake.math;
+
+/**
+ * View of every stride-th element of underlying buffer, starting from offset.
+ * Used to access rows and columns of 2d buffers as 1d buffers.
+ */
+class StridedComplexBuffer implements ComplexBuffer {
+
+    private ComplexBuffer _buf;
+
+    private int _offset;
+
+    private int _stride;
+
+    private int _size;
+
+    StridedComplexBuffer(ComplexBuffer buffer, int offset, int stride, int size) {
+        _buf = buffer;
+        _offset = offset;
+        _stride = stride;
+        _size = size;
+    }
+
+    private int index(int i) {
+        return _offset + i * _stride;
+    }
+
+    @Override
+    public double re(int i) {
+        return _buf.re(index(i));
+    }
+
+    @Override
+    public void re(int i, double value) {
+        _buf.re(index(i), value);
+    }
+
+    @Override
+    public double im(int i) {
+        return _buf.im(index(i));
+    }
+
+    @Override
+    public void im(int i, double value) {
+        _buf.im(index(i), value);
+    }
+
+    @Override
+    public Complex get(int i) {
+        return _buf.get(index(i));
+    }
+
+    @Override
+    public void set(int i, double re, double im) {
+        _buf.set(index(i), re, im);
+    }
+
+    @Override
+    public void set(int i, Complex complex) {
+        _buf.set(index(i), complex);
+    }
+
+    @Override
+    public int size() {
+        return _size;
+    }
+}
@@ -2,12 +2,22 @@ package com.nocmok.pancake.utils;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import com.nocmok.pancake.Pancake;
 import com.nocmok.pancake.PancakeBand;
 
 /**
+ * Caches up to {@link #setCacheSize(int)} blocks of band and evicts least
+ * recently used one, when block, that is not cached, is accessed. Modified
+ * blocks are written back to band, when they are evicted or cache is flushed.
+ * Next block in row by row order may be read in background, while current
+ * block is processed.
+ * 
  * Limitations: only unsigned integer datatypes if datatype is signed, it will
  * be carried like with unsigned datatype with the same bytes
  */
@@ -30,15 +40,43 @@ public class BandIntTileReader {
 
     private int blocksInCol;
 
-    private ByteBuffer blockCache;
+    /** Block of band, that is kept in memory */
+    private static class CachedBlock {
 
-    /**
-     * 0 - x coordinate 1 - y coordinate values [-1, -1] mean lack of cached block
-     */
-    private int[] blockInCache = new int[] { -1, -1 };
+        private final int blockX;
+
+        private final int blockY;
+
+        private final ByteBuffer data;
+
+        /** Whether block was modified */
+        private boolean isDirty = false;
+
+        CachedBlock(int blockX, int blockY, ByteBuffer data) {
+            this.blockX = blockX;
+            this.blockY = blockY;
+            this.data = data;
+        }
+    }
+
+    /** Cached blocks by block index, from least to most recently used */
+    private final LinkedHashMap<Long, CachedBlock> blocks = new LinkedHashMap<>(16, 0.75f, true);
 
-    /** Whether block cache was modified */
-    private boolean isDirty = false;
+    /** Block, that is accessed by index of sample in block */
+    private CachedBlock current = null;
+
+    /** Buffer of evicted block, that is reused by next read */
+    private ByteBuffer spare = null;
+
+    private int cacheSize = 1;
+
+    /** Executor, that reads next block in background, null if prefetch is off */
+    private ExecutorService prefetchExecutor = null;
+
+    private Future<CachedBlock> prefetch = null;
+
+    /** Serializes raster i/o of caller and background reads */
+    private final Object ioLock = new Object();
 
     private int nativeDtBytesSize;
 
@@ -96,8 +134,33 @@ public class BandIntTileReader {
         this.blocksInRow = (pnkband.getXSize() + blockXSize - 1) / blockXSize;
 
         this.blockByteSize = blockXSize * blockYSize * Pancake.dtBytes(pnkband.getRasterDatatype());
-        this.blockCache = ByteBuffer.allocateDirect(blockByteSize);
-        this.blockCache.order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     * 
+     * @param blocks how much blocks may be cached at the same time, at least one
+     */
+    public void setCacheSize(int blocks) {
+        this.cacheSize = Integer.max(1, blocks);
+        while (this.blocks.size() > cacheSize) {
+            evict();
+        }
+    }
+
+    public int getCacheSize() {
+        return cacheSize;
+    }
+
+    /**
+     * Enables background read of next block in row by row order, whenever block
+     * is cached. Raster i/o of this reader is serialized with background reads,
+     * but band must not be accessed bypassing reader, until cache is flushed.
+     * 
+     * @param executor executor to read blocks on, null disables prefetch
+     */
+    public void setPrefetch(ExecutorService executor) {
+        awaitPrefetch(false);
+        this.prefetchExecutor = executor;
     }
 
     /**
@@ -148,10 +211,14 @@ public class BandIntTileReader {
 
     /**
      * 
-     * @return block coordinates of cached block
+     * @return block coordinates of current block
      */
     public int[] getBlockInCache() {
-        return Arrays.copyOf(blockInCache, 2);
+        return current == null ? new int[] { -1, -1 } : new int[] { current.blockX, current.blockY };
+    }
+
+    private static long blockKey(int blockX, int blockY) {
+        return ((long) blockX << 32) | (blockY & 0xffffffffL);
     }
 
     /**
@@ -161,31 +228,143 @@ public class BandIntTileReader {
      * @return
      */
     private boolean isCached(int blockX, int blockY) {
-        return blockInCache[0] == blockX && blockInCache[1] == blockY;
+        return current != null && current.blockX == blockX && current.blockY == blockY;
     }
 
     public boolean hasBlockInCache() {
-        return blockInCache[0] != -1 && blockInCache[1] != -1;
+        return current != null;
+    }
+
+    private ByteBuffer allocateBlock() {
+        ByteBuffer buffer = spare;
+        spare = null;
+        if (buffer == null) {
+            buffer = ByteBuffer.allocateDirect(blockByteSize).order(ByteOrder.nativeOrder());
+        }
+        return buffer;
+    }
+
+    private void readBlock(CachedBlock block) {
+        int curBlockXSize = blockXSize(block.blockX);
+        int curBlockYSize = blockYSize(block.blockY);
+        try {
+            synchronized (ioLock) {
+                pnkband.readRasterDirect(block.blockX * blockXSize, block.blockY * blockYSize, curBlockXSize,
+                        curBlockYSize, curBlockXSize, curBlockYSize, pnkband.getRasterDatatype(), block.data);
+            }
+        } catch (RuntimeException e) {
+            throw new RuntimeException("failed to cache block", e);
+        }
+    }
+
+    private void writeBlock(CachedBlock block) {
+        int curBlockXSize = blockXSize(block.blockX);
+        int curBlockYSize = blockYSize(block.blockY);
+        try {
+            synchronized (ioLock) {
+                pnkband.writeRasterDirect(block.blockX * blockXSize, block.blockY * blockYSize, curBlockXSize,
+                        curBlockYSize, curBlockXSize, curBlockYSize, pnkband.getRasterDatatype(), block.data);
+            }
+        } catch (RuntimeException e) {
+            throw new RuntimeException("failed to flush block cache", e);
+        }
+        block.isDirty = false;
+    }
+
+    /** Writes back and drops least recently used block */
+    private void evict() {
+        Iterator<CachedBlock> lru = blocks.values().iterator();
+        CachedBlock block = lru.next();
+        lru.remove();
+        if (block.isDirty) {
+            writeBlock(block);
+        }
+        if (block == current) {
+            current = null;
+        }
+        spare = block.data;
+    }
+
+    private void insert(CachedBlock block) {
+        while (blocks.size() >= cacheSize) {
+            evict();
+        }
+        blocks.put(blockKey(block.blockX, block.blockY), block);
+    }
+
+    /**
+     * Waits for background read and puts its block to cache
+     * 
+     * @param mayEvictCurrent whether current block may be evicted to free space
+     *                        for prefetched one, otherwise prefetched block is
+     *                        dropped
+     */
+    private void awaitPrefetch(boolean mayEvictCurrent) {
+        if (prefetch == null) {
+            return;
+        }
+        Future<CachedBlock> pending = prefetch;
+        prefetch = null;
+        try {
+            CachedBlock block = pending.get();
+            boolean evictsCurrent = blocks.size() >= cacheSize
+                    && blocks.values().iterator().next() == current;
+            if (blocks.containsKey(blockKey(block.blockX, block.blockY)) || (evictsCurrent && !mayEvictCurrent)) {
+                spare = block.data;
+            } else {
+                insert(block);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("block prefetch interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("failed to prefetch block", e.getCause());
+        }
+    }
+
+    /** Starts background read of block, that follows current one in row by row order */
+    private void startPrefetch() {
+        if (prefetchExecutor == null || prefetch != null) {
+            return;
+        }
+        int blockX = current.blockX + 1;
+        int blockY = current.blockY;
+        if (blockX >= blocksInRow) {
+            blockX = 0;
+            ++blockY;
+        }
+        if (blockY >= blocksInCol || blocks.containsKey(blockKey(blockX, blockY))) {
+            return;
+        }
+        /** buffer is taken now, as spare buffer is owned by caller thread */
+        CachedBlock block = new CachedBlock(blockX, blockY, allocateBlock());
+        prefetch = prefetchExecutor.submit(() -> {
+            readBlock(block);
+            return block;
+        });
     }
 
     /**
-     * Drops currently cached block to band and read specified block to cache.
+     * Makes specified block current. Block is read from band, unless it is
+     * already cached, least recently used block is written back to band, if
+     * cache is full.
      * 
      * @param blockX x coordinate of block to cache
      * @param blockY y coordinate of block to cache
      */
     public void cacheBlock(int blockX, int blockY) {
-        flushCache();
-        int curBlockXSize = blockXSize(blockX);
-        int curBlockYSize = blockYSize(blockY);
-        try {
-            pnkband.readRasterDirect(blockX * blockXSize, blockY * blockYSize, curBlockXSize, curBlockYSize,
-                    curBlockXSize, curBlockYSize, pnkband.getRasterDatatype(), blockCache);
-        } catch (RuntimeException e) {
-            throw new RuntimeException("failed to cache block", e);
+        awaitPrefetch(true);
+        CachedBlock block = blocks.get(blockKey(blockX, blockY));
+        if (block == null) {
+            while (blocks.size() >= cacheSize) {
+                evict();
+            }
+            block = new CachedBlock(blockX, blockY, allocateBlock());
+            readBlock(block);
+            insert(block);
         }
-        blockInCache[0] = blockX;
-        blockInCache[1] = blockY;
+        current = block;
+        startPrefetch();
     }
 
     /** Cache specified block only if this block not already cached */
@@ -200,7 +379,8 @@ public class BandIntTileReader {
      *         coordinates
      */
     private int flatIndex(int x, int y) {
-        int flatIndex = ((y - blockYStart(toBlockY(y))) * blockXSize + (x - blockXStart(toBlockX(x))))
+        /** rows of the last block in row are read as narrow as block is */
+        int flatIndex = ((y - blockYStart(toBlockY(y))) * blockXSize(toBlockX(x)) + (x - blockXStart(toBlockX(x))))
                 * nativeDtBytesSize;
         return flatIndex;
     }
@@ -222,15 +402,15 @@ public class BandIntTileReader {
         switch (pnkband.getRasterDatatype()) {
         case Pancake.TYPE_BYTE:
         case Pancake.TYPE_UNKNOWN:
-            return detranslate(Byte.toUnsignedInt(blockCache.get(flatIndex(x, y))));
+            return detranslate(Byte.toUnsignedInt(current.data.get(flatIndex(x, y))));
         case Pancake.TYPE_INT_16:
-            return detranslate(blockCache.getShort(flatIndex(x, y)));
+            return detranslate(current.data.getShort(flatIndex(x, y)));
         case Pancake.TYPE_UINT_16:
-            return detranslate(Short.toUnsignedInt(blockCache.getShort(flatIndex(x, y))));
+            return detranslate(Short.toUnsignedInt(current.data.getShort(flatIndex(x, y))));
         case Pancake.TYPE_INT_32:
-            return detranslate(blockCache.getInt(flatIndex(x, y)));
+            return detranslate(current.data.getInt(flatIndex(x, y)));
         case Pancake.TYPE_UINT_32:
-            return detranslate(Integer.toUnsignedLong(blockCache.getInt(flatIndex(x, y))));
+            return detranslate(Integer.toUnsignedLong(current.data.getInt(flatIndex(x, y))));
         default:
             throw new UnsupportedOperationException("unsupported sample data type " + pnkband.getRasterDatatype());
         }
@@ -247,20 +427,20 @@ public class BandIntTileReader {
         switch (pnkband.getRasterDatatype()) {
         case Pancake.TYPE_BYTE:
         case Pancake.TYPE_UNKNOWN:
-            blockCache.put(flatIndex(x, y), (byte) (0xff & value));
+            current.data.put(flatIndex(x, y), (byte) (0xff & value));
             break;
         case Pancake.TYPE_UINT_16:
         case Pancake.TYPE_INT_16:
-            blockCache.putShort(flatIndex(x, y), (short) (0xffff & value));
+            current.data.putShort(flatIndex(x, y), (short) (0xffff & value));
             break;
         case Pancake.TYPE_UINT_32:
         case Pancake.TYPE_INT_32:
-            blockCache.putInt(flatIndex(x, y), (int) (0xffffffff & value));
+            current.data.putInt(flatIndex(x, y), (int) (0xffffffff & value));
             break;
         default:
             throw new UnsupportedOperationException("unsupported sample data type " + pnkband.getRasterDatatype());
         }
-        isDirty = true;
+        current.isDirty = true;
     }
 
     /**
@@ -276,15 +456,15 @@ public class BandIntTileReader {
         switch (pnkband.getRasterDatatype()) {
         case Pancake.TYPE_BYTE:
         case Pancake.TYPE_UNKNOWN:
-            return detranslate(Byte.toUnsignedInt(blockCache.get(flatIndex)));
+            return detranslate(Byte.toUnsignedInt(current.data.get(flatIndex)));
         case Pancake.TYPE_INT_16:
-            return detranslate(blockCache.getShort(flatIndex));
+            return detranslate(current.data.getShort(flatIndex));
         case Pancake.TYPE_UINT_16:
-            return detranslate(Short.toUnsignedInt(blockCache.getShort(flatIndex)));
+            return detranslate(Short.toUnsignedInt(current.data.getShort(flatIndex)));
         case Pancake.TYPE_INT_32:
-            return detranslate(blockCache.getInt(flatIndex));
+            return detranslate(current.data.getInt(flatIndex));
         case Pancake.TYPE_UINT_32:
-            return detranslate(Integer.toUnsignedLong(blockCache.getInt(flatIndex)));
+            return detranslate(Integer.toUnsignedLong(current.data.getInt(flatIndex)));
         default:
             throw new UnsupportedOperationException("unsupported sample data type " + pnkband.getRasterDatatype());
         }
@@ -304,20 +484,192 @@ public class BandIntTileReader {
         switch (pnkband.getRasterDatatype()) {
         case Pancake.TYPE_BYTE:
         case Pancake.TYPE_UNKNOWN:
-            blockCache.put(flatIndex, (byte) (0xff & value));
+            current.data.put(flatIndex, (byte) (0xff & value));
             break;
         case Pancake.TYPE_UINT_16:
         case Pancake.TYPE_INT_16:
-            blockCache.putShort(flatIndex, (short) (0xffff & value));
+            current.data.putShort(flatIndex, (short) (0xffff & value));
             break;
         case Pancake.TYPE_UINT_32:
         case Pancake.TYPE_INT_32:
-            blockCache.putInt(flatIndex, (int) (0xffffffff & value));
+            current.data.putInt(flatIndex, (int) (0xffffffff & value));
             break;
         default:
             throw new UnsupportedOperationException("unsupported sample data type " + pnkband.getRasterDatatype());
         }
-        isDirty = true;
+        current.isDirty = true;
+    }
+
+    /** Callback over samples of blocks, see {@link #forEachBlock(BlockVisitor)} */
+    public interface BlockVisitor {
+
+        /**
+         * 
+         * @param blockX  x coordinate of block
+         * @param blockY  y coordinate of block
+         * @param samples samples of block in reader datatype, stored row by row,
+         *                first xsize * ysize of them belong to block
+         * @param xsize   width of block
+         * @param ysize   height of block
+         * @return true if samples were modified and must be stored to block
+         */
+        boolean visit(int blockX, int blockY, int[] samples, int xsize, int ysize);
+    }
+
+    /** Raw samples of block, that are converted in bulk */
+    private byte[] rawBytes = new byte[0];
+
+    private short[] rawShorts = new short[0];
+
+    private int[] rawInts = new int[0];
+
+    private int currentBlockSamples() {
+        if (!hasBlockInCache()) {
+            throw new RuntimeException("attempt to access samples of empty cache");
+        }
+        return blockXSize(current.blockX) * blockYSize(current.blockY);
+    }
+
+    /**
+     * @return sample, that is carried by bits of int, as it is returned by per
+     *         sample access
+     */
+    private static long widen(int sample, boolean unsigned) {
+        return unsigned ? Integer.toUnsignedLong(sample) : sample;
+    }
+
+    /**
+     * Converts all samples of current block to reader datatype at once, so that
+     * datatype switch and scale are resolved once per block instead of once per
+     * sample. 32 bit unsigned samples are carried by their bits.
+     * 
+     * @param samples array to store samples to, may be null
+     * @return samples array or new one, if specified array is too small
+     */
+    public int[] getSamples(int[] samples) {
+        int n = currentBlockSamples();
+        if (samples == null || samples.length < n) {
+            samples = new int[n];
+        }
+        ByteBuffer data = current.data.duplicate().order(ByteOrder.nativeOrder());
+        data.clear();
+        switch (nativeDatatype) {
+        case Pancake.TYPE_BYTE:
+        case Pancake.TYPE_UNKNOWN:
+            if (rawBytes.length < n) {
+                rawBytes = new byte[n];
+            }
+            data.get(rawBytes, 0, n);
+            for (int i = 0; i < n; ++i) {
+                samples[i] = rawBytes[i] & 0xff;
+            }
+            break;
+        case Pancake.TYPE_INT_16:
+        case Pancake.TYPE_UINT_16:
+            if (rawShorts.length < n) {
+                rawShorts = new short[n];
+            }
+            data.asShortBuffer().get(rawShorts, 0, n);
+            if (nativeDatatype == Pancake.TYPE_INT_16) {
+                for (int i = 0; i < n; ++i) {
+                    samples[i] = rawShorts[i];
+                }
+            } else {
+                for (int i = 0; i < n; ++i) {
+                    samples[i] = rawShorts[i] & 0xffff;
+                }
+            }
+            break;
+        case Pancake.TYPE_INT_32:
+        case Pancake.TYPE_UINT_32:
+            data.asIntBuffer().get(samples, 0, n);
+            break;
+        default:
+            throw new UnsupportedOperationException("unsupported sample data type " + nativeDatatype);
+        }
+        if (maxValue != maxValueNative) {
+            boolean unsigned = nativeDatatype == Pancake.TYPE_UINT_32;
+            for (int i = 0; i < n; ++i) {
+                samples[i] = (int) detranslate(widen(samples[i], unsigned));
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Stores samples in reader datatype to current block at once and marks
+     * block as modified
+     * 
+     * @param samples samples of block, stored row by row
+     */
+    public void setSamples(int[] samples) {
+        int n = currentBlockSamples();
+        if (samples.length < n) {
+            throw new IndexOutOfBoundsException("samples array is smaller than block");
+        }
+        boolean scaled = maxValue != maxValueNative;
+        boolean unsigned = datatype == Pancake.TYPE_UINT_32;
+        ByteBuffer data = current.data.duplicate().order(ByteOrder.nativeOrder());
+        data.clear();
+        switch (nativeDatatype) {
+        case Pancake.TYPE_BYTE:
+        case Pancake.TYPE_UNKNOWN:
+            if (rawBytes.length < n) {
+                rawBytes = new byte[n];
+            }
+            for (int i = 0; i < n; ++i) {
+                rawBytes[i] = (byte) (scaled ? translate(widen(samples[i], unsigned)) : samples[i]);
+            }
+            data.put(rawBytes, 0, n);
+            break;
+        case Pancake.TYPE_INT_16:
+        case Pancake.TYPE_UINT_16:
+            if (rawShorts.length < n) {
+                rawShorts = new short[n];
+            }
+            for (int i = 0; i < n; ++i) {
+                rawShorts[i] = (short) (scaled ? translate(widen(samples[i], unsigned)) : samples[i]);
+            }
+            data.asShortBuffer().put(rawShorts, 0, n);
+            break;
+        case Pancake.TYPE_INT_32:
+        case Pancake.TYPE_UINT_32:
+            if (scaled) {
+                if (rawInts.length < n) {
+                    rawInts = new int[n];
+                }
+                for (int i = 0; i < n; ++i) {
+                    rawInts[i] = (int) translate(widen(samples[i], unsigned));
+                }
+                data.asIntBuffer().put(rawInts, 0, n);
+            } else {
+                data.asIntBuffer().put(samples, 0, n);
+            }
+            break;
+        default:
+            throw new UnsupportedOperationException("unsupported sample data type " + nativeDatatype);
+        }
+        current.isDirty = true;
+    }
+
+    /**
+     * Visits blocks row by row, samples of each block are converted in bulk.
+     * Modified blocks are written back to band, when they are evicted or cache
+     * is flushed.
+     * 
+     * @param visitor
+     */
+    public void forEachBlock(BlockVisitor visitor) {
+        int[] samples = null;
+        for (int blockY = 0; blockY < blocksInCol; ++blockY) {
+            for (int blockX = 0; blockX < blocksInRow; ++blockX) {
+                cacheBlock(blockX, blockY);
+                samples = getSamples(samples);
+                if (visitor.visit(blockX, blockY, samples, blockXSize(blockX), blockYSize(blockY))) {
+                    setSamples(samples);
+                }
+            }
+        }
     }
 
     public boolean hasData(int x, int y) {
@@ -393,35 +745,33 @@ public class BandIntTileReader {
         return datatype;
     }
 
+    /**
+     * 
+     * @return samples of current block or null, if no block is cached
+     */
     public ByteBuffer getCache() {
-        return this.blockCache;
-    }
-
-    private void _flushCache() {
-        int curBlockXSize = blockXSize(blockInCache[0]);
-        int curBlockYSize = blockYSize(blockInCache[1]);
-        try {
-            pnkband.writeRasterDirect(blockInCache[0] * blockXSize, blockInCache[1] * blockYSize, curBlockXSize,
-                    curBlockYSize, curBlockXSize, curBlockYSize, pnkband.getRasterDatatype(), blockCache);
-        } catch (RuntimeException e) {
-            throw new RuntimeException("failed to flush block cache", e);
-        }
-        isDirty = false;
+        return current == null ? null : current.data;
     }
 
     /**
-     * Flush cached block if there was changes performed via get/set methods
+     * Writes back cached blocks, that were modified via get/set methods. Waits
+     * for background read, so that band may be accessed bypassing reader after
+     * flush.
      */
     public void flushCache() {
-        if (hasBlockInCache() && isDirty) {
-            _flushCache();
+        awaitPrefetch(false);
+        for (CachedBlock block : blocks.values()) {
+            if (block.isDirty) {
+                writeBlock(block);
+            }
         }
     }
 
-    /** Flush cached block anyway, except if there is no block cached */
+    /** Writes back all cached blocks anyway */
     public void flushCacheAnyway() {
-        if (hasBlockInCache()) {
-            _flushCache();
+        awaitPrefetch(false);
+        for (CachedBlock block : blocks.values()) {
+            writeBlock(block);
         }
     }
 }
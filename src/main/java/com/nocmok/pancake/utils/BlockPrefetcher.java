@@ -0,0 +1,189 @@
+package com.nocmok.pancake.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.nocmok.pancake.Pancake;
+import com.nocmok.pancake.PancakeBand;
+
+/**
+ * Reads blocks of several bands on background thread, while previous block is
+ * processed. Each band has two direct buffers: one holds current block and
+ * other one receives the next block. Blocks are visited in the order they are
+ * given.
+ */
+public class BlockPrefetcher implements AutoCloseable {
+
+    /** null bands are not read */
+    private final List<? extends PancakeBand> bands;
+
+    private final List<Integer> datatypes;
+
+    private final List<Rectangle> blocks;
+
+    /** reads are synchronized on this lock, so that band may be written meanwhile */
+    private final Object ioLock;
+
+    private final ExecutorService reader;
+
+    private ByteBuffer[] front;
+
+    private ByteBuffer[] back;
+
+    private Future<?> pending = null;
+
+    private int nextBlock = 0;
+
+    /**
+     *
+     * @param bands     bands to read, null bands are skipped
+     * @param datatypes datatypes, which blocks of each band are read in
+     * @param blocks    areas to read, each band is read at the same area
+     * @param ioLock    lock to synchronize reads with other i/o of bands
+     */
+    public BlockPrefetcher(List<? extends PancakeBand> bands, List<Integer> datatypes, List<Rectangle> blocks,
+            Object ioLock) {
+        this.bands = bands;
+        this.datatypes = datatypes;
+        this.blocks = blocks;
+        this.ioLock = ioLock;
+        int capacity = blocks.stream().mapToInt(b -> b.xSize() * b.ySize()).max().orElse(0);
+        this.front = allocate(capacity);
+        this.back = allocate(capacity);
+        this.reader = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "pancake-reader");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public BlockPrefetcher(List<? extends PancakeBand> bands, List<Integer> datatypes, List<Rectangle> blocks) {
+        this(bands, datatypes, blocks, new Object());
+    }
+
+    /**
+     *
+     * @param area      area to cover
+     * @param blocksize size of blocks on grid, which starts at the origin
+     * @return blocks of grid in row major order, each block is clipped to area
+     */
+    public static List<Rectangle> grid(Rectangle area, Shape blocksize) {
+        List<Rectangle> blocks = new ArrayList<>();
+        if (area.isEmpty()) {
+            return blocks;
+        }
+        int blockX0 = area.x0() / blocksize.xsize();
+        int blockY0 = area.y0() / blocksize.ysize();
+        int blockX1 = (area.x1() + blocksize.xsize() - 1) / blocksize.xsize();
+        int blockY1 = (area.y1() + blocksize.ysize() - 1) / blocksize.ysize();
+        for (int blockY = blockY0; blockY < blockY1; ++blockY) {
+            for (int blockX = blockX0; blockX < blockX1; ++blockX) {
+                blocks.add(new Rectangle(blockX * blocksize.xsize(), blockY * blocksize.ysize(), blocksize.xsize(),
+                        blocksize.ysize()).intersection(area));
+            }
+        }
+        return blocks;
+    }
+
+    private ByteBuffer[] allocate(int capacity) {
+        ByteBuffer[] buffers = new ByteBuffer[bands.size()];
+        for (int i = 0; i < bands.size(); ++i) {
+            if (bands.get(i) != null) {
+                buffers[i] = ByteBuffer.allocateDirect(capacity * Pancake.dtBytes(datatypes.get(i)))
+                        .order(ByteOrder.nativeOrder());
+            }
+        }
+        return buffers;
+    }
+
+    private void read(Rectangle block, ByteBuffer[] buffers) {
+        for (int i = 0; i < bands.size(); ++i) {
+            PancakeBand band = bands.get(i);
+            if (band == null) {
+                continue;
+            }
+            synchronized (ioLock) {
+                band.readRasterDirect(block.x0(), block.y0(), block.xSize(), block.ySize(), block.xSize(),
+                        block.ySize(), datatypes.get(i), buffers[i]);
+            }
+        }
+    }
+
+    private void awaitPending() {
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("block read interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("failed to cache block", e.getCause());
+        } finally {
+            pending = null;
+        }
+    }
+
+    public boolean hasNext() {
+        return nextBlock < blocks.size();
+    }
+
+    /**
+     * Waits until the next block is read and starts read of the block after it.
+     * Buffers of previous block must not be used after this call.
+     *
+     * @return area of block, which buffers hold
+     */
+    public Rectangle next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        Rectangle block = blocks.get(nextBlock++);
+        if (pending == null) {
+            try {
+                read(block, back);
+            } catch (RuntimeException e) {
+                throw new RuntimeException("failed to cache block", e);
+            }
+        } else {
+            awaitPending();
+        }
+
+        ByteBuffer[] tmp = front;
+        front = back;
+        back = tmp;
+
+        if (hasNext()) {
+            Rectangle nextArea = blocks.get(nextBlock);
+            ByteBuffer[] buffers = back;
+            pending = reader.submit(() -> read(nextArea, buffers));
+        }
+        return block;
+    }
+
+    /**
+     *
+     * @param band index of band
+     * @return buffer with current block of band, or null if band is not read
+     */
+    public ByteBuffer buffer(int band) {
+        return front[band];
+    }
+
+    /** Waits for pending read and stops reader thread */
+    @Override
+    public void close() {
+        reader.shutdown();
+        try {
+            reader.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
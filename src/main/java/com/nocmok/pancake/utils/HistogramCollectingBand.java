@@ -0,0 +1,187 @@
+package com.nocmok.pancake.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import com.nocmok.pancake.Pancake;
+import com.nocmok.pancake.PancakeBand;
+import com.nocmok.pancake.PancakeDataset;
+import com.nocmok.pancake.utils.HistogramMatching.Histogram;
+
+/**
+ * Band wrapper, that collects histogram of samples written to the band, so
+ * there is no need to read band once more in order to get its histogram. Each
+ * sample is expected to be written once.
+ *
+ * Limitations: datatypes up to 16 bit, only writes without resampling and data
+ * type conversion
+ */
+public class HistogramCollectingBand implements PancakeBand {
+
+    private final PancakeBand band;
+
+    private final Histogram hist;
+
+    private final int dtBytes;
+
+    public HistogramCollectingBand(PancakeBand band) {
+        this.band = band;
+        this.hist = Histogram.forDataType(band.getRasterDatatype());
+        this.dtBytes = Pancake.dtBytes(band.getRasterDatatype());
+    }
+
+    /**
+     *
+     * @return histogram of samples, written to this band so far
+     */
+    public Histogram getHistogram() {
+        return hist;
+    }
+
+    private void collect(ByteBuffer buffer, int xsize, int ysize, int pixelSpace, int lineSpace) {
+        ByteBuffer buf = buffer.duplicate().order(ByteOrder.nativeOrder());
+        pixelSpace = (pixelSpace == 0) ? dtBytes : pixelSpace;
+        lineSpace = (lineSpace == 0) ? xsize * pixelSpace : lineSpace;
+        switch (band.getRasterDatatype()) {
+        case Pancake.TYPE_BYTE:
+        case Pancake.TYPE_UNKNOWN:
+            for (int y = 0; y < ysize; ++y) {
+                for (int x = 0; x < xsize; ++x) {
+                    hist.add(Byte.toUnsignedInt(buf.get(y * lineSpace + x * pixelSpace)), 1);
+                }
+            }
+            break;
+        case Pancake.TYPE_INT_16:
+            for (int y = 0; y < ysize; ++y) {
+                for (int x = 0; x < xsize; ++x) {
+                    hist.add(buf.getShort(y * lineSpace + x * pixelSpace), 1);
+                }
+            }
+            break;
+        case Pancake.TYPE_UINT_16:
+            for (int y = 0; y < ysize; ++y) {
+                for (int x = 0; x < xsize; ++x) {
+                    hist.add(Short.toUnsignedInt(buf.getShort(y * lineSpace + x * pixelSpace)), 1);
+                }
+            }
+            break;
+        default:
+            throw new UnsupportedOperationException(
+                    "histogram collecting for " + Pancake.dtName(band.getRasterDatatype()) + " not implemented");
+        }
+    }
+
+    private void validateWrite(int xsize, int ysize, int bufXSize, int bufYSize, int bufType) {
+        if (xsize != bufXSize || ysize != bufYSize) {
+            throw new UnsupportedOperationException("histogram collecting for resampled writes not implemented");
+        }
+        if (bufType != band.getRasterDatatype()) {
+            throw new UnsupportedOperationException(
+                    "histogram collecting for writes with datatype conversion not implemented");
+        }
+    }
+
+    @Override
+    public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize, int buf_type,
+            ByteBuffer nioBuffer) {
+        return band.readRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, buf_type, nioBuffer);
+    }
+
+    @Override
+    public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize, int buf_type,
+            ByteBuffer nioBuffer, int nPixelSpace, int nLineSpace) {
+        return band.readRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, buf_type, nioBuffer,
+                nPixelSpace, nLineSpace);
+    }
+
+    @Override
+    public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize,
+            ByteBuffer nioBuffer) {
+        return band.readRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, nioBuffer);
+    }
+
+    @Override
+    public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, ByteBuffer nioBuffer) {
+        return band.readRasterDirect(xoff, yoff, xsize, ysize, nioBuffer);
+    }
+
+    @Override
+    public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize, int buf_type,
+            ByteBuffer nioBuffer) {
+        validateWrite(xsize, ysize, buf_xsize, buf_ysize, buf_type);
+        int code = band.writeRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, buf_type, nioBuffer);
+        collect(nioBuffer, xsize, ysize, 0, 0);
+        return code;
+    }
+
+    @Override
+    public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize, int buf_type,
+            ByteBuffer nioBuffer, int nPixelSpace, int nLineSpace) {
+        validateWrite(xsize, ysize, buf_xsize, buf_ysize, buf_type);
+        int code = band.writeRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, buf_type, nioBuffer,
+                nPixelSpace, nLineSpace);
+        collect(nioBuffer, xsize, ysize, nPixelSpace, nLineSpace);
+        return code;
+    }
+
+    @Override
+    public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize,
+            ByteBuffer nioBuffer) {
+        validateWrite(xsize, ysize, buf_xsize, buf_ysize, band.getRasterDatatype());
+        int code = band.writeRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, nioBuffer);
+        collect(nioBuffer, xsize, ysize, 0, 0);
+        return code;
+    }
+
+    @Override
+    public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, ByteBuffer nioBuffer) {
+        int code = band.writeRasterDirect(xoff, yoff, xsize, ysize, nioBuffer);
+        collect(nioBuffer, xsize, ysize, 0, 0);
+        return code;
+    }
+
+    @Override
+    public int getXSize() {
+        return band.getXSize();
+    }
+
+    @Override
+    public int getYSize() {
+        return band.getYSize();
+    }
+
+    @Override
+    public int getBlockXSize() {
+        return band.getBlockXSize();
+    }
+
+    @Override
+    public int getBlockYSize() {
+        return band.getBlockYSize();
+    }
+
+    @Override
+    public int getRasterDatatype() {
+        return band.getRasterDatatype();
+    }
+
+    @Override
+    public double getNoData() {
+        return band.getNoData();
+    }
+
+    @Override
+    public double maxValue() {
+        return band.maxValue();
+    }
+
+    @Override
+    public double minValue() {
+        return band.minValue();
+    }
+
+    @Override
+    public PancakeDataset dataset() {
+        return band.dataset();
+    }
+}
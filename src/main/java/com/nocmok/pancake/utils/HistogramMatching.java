@@ -1,6 +1,15 @@
 package com.nocmok.pancake.utils;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import com.nocmok.pancake.Pancake;
 import com.nocmok.pancake.PancakeBand;
@@ -8,32 +17,72 @@ import com.nocmok.pancake.PancakeConstants;
 import com.nocmok.pancake.PancakeProgressListener;
 
 /**
- * Limitations: datatypes under UInt32 (exclusive) only integer datatypes only
- * unsigned datatypes
+ * Integer datatypes up to 16 bit are matched with exact histograms, that have
+ * bin for each value. Other datatypes are matched with histograms of fixed
+ * number of bins over value range of band, and lookup table is interpolated
+ * between bins.
  */
 public class HistogramMatching {
 
     private PancakeProgressListener listener = PancakeProgressListener.empty;
 
+    private long memoryBudget = PancakeConstants.DEFAULT_MEMORY_BUDGET;
+
+    private ExecutorService executor = null;
+
+    private int numThreads = 1;
+
+    /** Bins count of histograms of 32 bit and floating point bands */
+    private static final int BINS = 1 << 16;
+
+    /** 8 mb, blocks larger than that don't speed up matching */
+    private static final long PREFERRED_BLOCK_SIZE = 8 * 1024 * 1024;
+
     public void setProgressListener(PancakeProgressListener listener) {
         this.listener = Optional.ofNullable(listener).orElse(PancakeProgressListener.empty);
     }
 
+    /**
+     * Limits amount of memory, that block caches of matched and reference bands
+     * may use
+     * 
+     * @param bytes memory budget
+     */
+    public void setMemoryBudget(long bytes) {
+        this.memoryBudget = bytes;
+    }
+
+    /**
+     * Histograms are computed on calling thread, unless executor is set
+     * 
+     * @param executor executor to scan blocks of bands on
+     * @param nThreads how much tasks may be submitted to executor at once
+     */
+    public void setExecutor(ExecutorService executor, int nThreads) {
+        this.executor = executor;
+        this.numThreads = Integer.max(1, nThreads);
+    }
+
     public static abstract class Histogram {
 
-        private static Histogram forDataType(int dtype) {
-            if (useArray(dtype)) {
-                // return new HistogramMap(dtype);
+        static Histogram forDataType(int dtype) {
+            if (isExact(dtype)) {
                 return new HistogramArray(dtype);
             } else {
-                throw new UnsupportedOperationException("histogram for datatypes > 16 bit size not implemented");
+                throw new UnsupportedOperationException(
+                        "exact histogram for " + Pancake.dtName(dtype) + " not implemented, use binned one");
             }
         }
 
-        private static boolean useArray(int dtype) {
-            int sizeThreshold = 65536;
-            int size = (int) Math.pow(256, Pancake.dtBytes(dtype));
-            return size <= sizeThreshold;
+        /**
+         * 
+         * @param dtype
+         * @return true if histogram of specified datatype has bin for each value,
+         *         so that it may be collected without knowing value range in
+         *         advance
+         */
+        public static boolean isExact(int dtype) {
+            return Pancake.isInt(dtype) && Pancake.dtBytes(dtype) <= 2;
         }
 
         public abstract void setScale(double scale);
@@ -56,6 +105,41 @@ public class HistogramMatching {
         public abstract long maxVal();
 
         public abstract int datatype();
+
+        /**
+         * 
+         * @param bin index of bin
+         * @return how much samples fall in bin, not scaled
+         */
+        public abstract int count(int bin);
+
+        /**
+         * 
+         * @param bin index of bin
+         * @return the least value, that falls in bin
+         */
+        public abstract double binLower(int bin);
+
+        public abstract double binWidth();
+
+        /**
+         * 
+         * @param bin index of bin
+         * @return value, that represents samples of bin
+         */
+        public abstract double binValue(int bin);
+
+        /**
+         * 
+         * @return how much samples histogram counts
+         */
+        public long total() {
+            long total = 0;
+            for (int bin = 0; bin < size(); ++bin) {
+                total += count(bin);
+            }
+            return total;
+        }
     }
 
     static class HistogramArray extends Histogram {
@@ -119,6 +203,138 @@ public class HistogramMatching {
             return dtype;
         }
 
+        @Override
+        public int count(int bin) {
+            return hist[bin];
+        }
+
+        @Override
+        public double binLower(int bin) {
+            return minVal + bin;
+        }
+
+        @Override
+        public double binWidth() {
+            return 1d;
+        }
+
+        @Override
+        public double binValue(int bin) {
+            return minVal + bin;
+        }
+    }
+
+    /**
+     * Histogram of fixed number of equal bins over value range of band, so that
+     * its size doesn't depend on datatype
+     */
+    static class HistogramBinned extends Histogram {
+
+        private int dtype;
+
+        private double min;
+
+        private double binWidth;
+
+        private int[] hist;
+
+        private double scale;
+
+        /**
+         * 
+         * @param dtype datatype of samples
+         * @param min   the least sample value
+         * @param max   the greatest sample value
+         * @param bins  bins count
+         */
+        HistogramBinned(int dtype, double min, double max, int bins) {
+            if (!(max > min)) {
+                max = min + 1;
+            }
+            this.dtype = dtype;
+            this.min = min;
+            if (Pancake.isInt(dtype)) {
+                /** each bin holds the same count of integers, ranges narrower than bins count get bin per value */
+                this.binWidth = Math.ceil((max + 1 - min) / bins);
+            } else {
+                this.binWidth = (max - min) / bins;
+            }
+            this.hist = new int[bins];
+            this.scale = 1f;
+        }
+
+        int bin(double sample) {
+            int bin = (int) ((sample - min) / binWidth);
+            return Integer.max(0, Integer.min(hist.length - 1, bin));
+        }
+
+        void add(double sample, int value) {
+            hist[bin(sample)] += value;
+        }
+
+        @Override
+        public int get(long sample) {
+            return (int) (scale * hist[bin(sample)]);
+        }
+
+        @Override
+        protected void set(long sample, int value) {
+            hist[bin(sample)] = value;
+        }
+
+        @Override
+        protected void add(long sample, int value) {
+            hist[bin(sample)] += value;
+        }
+
+        @Override
+        public int size() {
+            return hist.length;
+        }
+
+        @Override
+        public void setScale(double scale) {
+            this.scale = scale;
+        }
+
+        @Override
+        public long minVal() {
+            return (long) Math.floor(min);
+        }
+
+        @Override
+        public long maxVal() {
+            return (long) Math.ceil(min + binWidth * hist.length);
+        }
+
+        @Override
+        public int datatype() {
+            return dtype;
+        }
+
+        @Override
+        public int count(int bin) {
+            return hist[bin];
+        }
+
+        @Override
+        public double binLower(int bin) {
+            return min + bin * binWidth;
+        }
+
+        @Override
+        public double binWidth() {
+            return binWidth;
+        }
+
+        @Override
+        public double binValue(int bin) {
+            if (Pancake.isInt(dtype)) {
+                /** mean of integers, that fall in bin */
+                return binLower(bin) + (binWidth - 1) / 2;
+            }
+            return binLower(bin) + binWidth / 2;
+        }
     }
 
     static abstract class LookupTable {
@@ -133,21 +349,23 @@ public class HistogramMatching {
 
         public abstract int datatype();
 
-        private static boolean useArray(int dtype) {
-            int sizeThreshold = 65536;
-            int size = (int) Math.pow(256, Pancake.dtBytes(dtype));
-            return size <= sizeThreshold;
+        /**
+         * 
+         * @param sample sample value
+         * @return value, which sample is mapped to
+         */
+        public double get(double sample) {
+            return get(Math.round(sample));
         }
 
         private static LookupTable forDatatype(int dtype) {
-            if (useArray(dtype)) {
+            if (Histogram.isExact(dtype)) {
                 return new LookupArray(dtype);
             } else {
-                throw new UnsupportedOperationException("histogram for datatypes > 16 bit size not implemented");
-                // return new LookupMap(dtype);
+                throw new UnsupportedOperationException(
+                        "exact lookup table for " + Pancake.dtName(dtype) + " not implemented, use binned one");
             }
         }
-
     }
 
     /** Up to Int16 / UInt16 */
@@ -195,6 +413,73 @@ public class HistogramMatching {
         }
     }
 
+    /**
+     * Maps representative values of histogram bins, samples between them are
+     * mapped to linear interpolation of neighbour values
+     */
+    static class LookupBinned extends LookupTable {
+
+        private Histogram bins;
+
+        private double[] lookup;
+
+        LookupBinned(Histogram bins) {
+            this.bins = bins;
+            this.lookup = new double[bins.size()];
+        }
+
+        private int bin(double sample) {
+            int bin = (int) ((sample - bins.binLower(0)) / bins.binWidth());
+            return Integer.max(0, Integer.min(lookup.length - 1, bin));
+        }
+
+        @Override
+        public double get(double sample) {
+            if (Double.isNaN(sample)) {
+                return sample;
+            }
+            double pos = (sample - bins.binValue(0)) / bins.binWidth();
+            int bin = (int) Math.floor(pos);
+            if (bin < 0) {
+                return lookup[0];
+            }
+            if (bin >= lookup.length - 1) {
+                return lookup[lookup.length - 1];
+            }
+            double t = pos - bin;
+            return lookup[bin] * (1 - t) + lookup[bin + 1] * t;
+        }
+
+        @Override
+        public long get(long sample) {
+            return Math.round(get((double) sample));
+        }
+
+        @Override
+        protected void set(long sample, long value) {
+            lookup[bin(sample)] = value;
+        }
+
+        void set(int bin, double value) {
+            lookup[bin] = value;
+        }
+
+        @Override
+        public long minVal() {
+            return bins.minVal();
+        }
+
+        @Override
+        public long maxVal() {
+            return bins.maxVal();
+        }
+
+        @Override
+        public int datatype() {
+            return bins.datatype();
+        }
+    }
+
     private LookupTable getLookupTable(Histogram srcHist, Histogram refHist) {
         LookupTable lookup = LookupTable.forDatatype(srcHist.datatype());
 
@@ -222,9 +507,13 @@ public class HistogramMatching {
     }
 
     public Histogram getHistogram(PancakeBand band, int dtype) {
-        if (Pancake.dtBytes(band.getRasterDatatype()) > 2) {
-            throw new UnsupportedOperationException(
-                    "histogram matching for images with data type > 16 bit not implemented");
+        if (!Histogram.isExact(band.getRasterDatatype())) {
+            if (dtype != band.getRasterDatatype()) {
+                throw new UnsupportedOperationException(
+                        "binned histogram of " + Pancake.dtName(band.getRasterDatatype()) + " band in "
+                                + Pancake.dtName(dtype) + " datatype not implemented");
+            }
+            return getHistogramBinned(band);
         }
         Histogram hist = Histogram.forDataType(dtype);
         BandIntTileReader wrapper = new BandIntTileReader(band, dtype);
@@ -232,65 +521,440 @@ public class HistogramMatching {
         return hist;
     }
 
-    private Histogram _getHistogram(BandIntTileReader wrapper, Histogram hist) {
-        int totalBlocks = wrapper.getBlocksInCol() * wrapper.getBlocksInRow();
-        int stepSize = (totalBlocks + Pancake.logsFrequency() - 1) / Pancake.logsFrequency();
-        int stepsTotal = (totalBlocks + stepSize - 1) / stepSize;
-        int nBlock = 0;
-
-        for (int blockY = 0; blockY < wrapper.getBlocksInCol(); ++blockY) {
-            for (int blockX = 0; blockX < wrapper.getBlocksInRow(); ++blockX) {
-                wrapper.cacheBlock(blockX, blockY);
-                int blocksize = wrapper.blockXSize(blockX) * wrapper.blockYSize(blockY);
-                for (int i = 0; i < blocksize; ++i) {
-                    int sample = (int) wrapper.get(i);
-                    hist.add(sample, 1);
+    public Histogram getHistogram(PancakeBand band) {
+        return getHistogram(band, band.getRasterDatatype());
+    }
+
+    /** Visits blocks, that single task of parallel scan reads */
+    private interface BlockVisitor {
+
+        /**
+         * 
+         * @param block   samples of block, stored row by row
+         * @param samples count of samples in block
+         */
+        void visit(ByteBuffer block, int samples);
+
+        /** Invoked once after task has visited all its blocks */
+        void finish();
+    }
+
+    /**
+     * Per thread histogram of blocks. Samples of datatypes up to 16 bit are
+     * counted by their raw bits and converted to histogram datatype, when
+     * counts are merged, so that block loops don't convert samples.
+     */
+    private static class BlockCounter implements BlockVisitor {
+
+        private final Histogram hist;
+
+        private final int nativeDatatype;
+
+        private final int datatype;
+
+        private final long maxValue;
+
+        private final long maxValueNative;
+
+        private final boolean countRawBits;
+
+        private final int[] counts;
+
+        /** minimal value of histogram datatype, if samples are not counted by raw bits */
+        private final long minVal;
+
+        BlockCounter(int nativeDatatype, Histogram hist) {
+            this.hist = hist;
+            this.nativeDatatype = nativeDatatype;
+            this.datatype = hist.datatype();
+            this.maxValue = (int) Pancake.dtMax(datatype);
+            this.maxValueNative = (int) Pancake.dtMax(nativeDatatype);
+            this.countRawBits = Pancake.dtBytes(nativeDatatype) <= 2;
+            this.minVal = (long) Pancake.dtMin(datatype);
+            this.counts = new int[(int) (bytes(nativeDatatype, datatype) / Integer.BYTES)];
+        }
+
+        /**
+         * 
+         * @return how much memory counts of single counter require
+         */
+        static long bytes(int nativeDatatype, int datatype) {
+            int dtBytes = Pancake.dtBytes(nativeDatatype) <= 2 ? Pancake.dtBytes(nativeDatatype)
+                    : Pancake.dtBytes(datatype);
+            return (1L << (8 * dtBytes)) * Integer.BYTES;
+        }
+
+        /** The same conversion as {@link BandIntTileReader} performs */
+        private long detranslate(long value) {
+            return value * maxValue / maxValueNative;
+        }
+
+        @Override
+        public void visit(ByteBuffer block, int samples) {
+            switch (nativeDatatype) {
+            case Pancake.TYPE_BYTE:
+            case Pancake.TYPE_UNKNOWN:
+                for (int i = 0; i < samples; ++i) {
+                    ++counts[block.get(i) & 0xff];
+                }
+                break;
+            case Pancake.TYPE_INT_16:
+            case Pancake.TYPE_UINT_16:
+                for (int i = 0; i < samples; ++i) {
+                    ++counts[block.getShort(2 * i) & 0xffff];
+                }
+                break;
+            case Pancake.TYPE_INT_32:
+                for (int i = 0; i < samples; ++i) {
+                    ++counts[(int) (detranslate(block.getInt(4 * i)) - minVal)];
+                }
+                break;
+            case Pancake.TYPE_UINT_32:
+                for (int i = 0; i < samples; ++i) {
+                    ++counts[(int) (detranslate(Integer.toUnsignedLong(block.getInt(4 * i))) - minVal)];
                 }
+                break;
+            default:
+                throw new UnsupportedOperationException("unsupported sample data type " + nativeDatatype);
+            }
+        }
+
+        /** @return value of sample with specified raw bits */
+        private long nativeValue(int bits) {
+            switch (nativeDatatype) {
+            case Pancake.TYPE_INT_16:
+                return (short) bits;
+            default:
+                return bits;
+            }
+        }
+
+        @Override
+        public void finish() {
+            synchronized (hist) {
+                for (int i = 0; i < counts.length; ++i) {
+                    if (counts[i] == 0) {
+                        continue;
+                    }
+                    if (countRawBits) {
+                        long value = (nativeDatatype == datatype) ? nativeValue(i) : detranslate(nativeValue(i));
+                        hist.add(value, counts[i]);
+                    } else {
+                        hist.add(i + minVal, counts[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    /** Per thread value range of blocks of double precision samples */
+    private static class RangeVisitor implements BlockVisitor {
+
+        /** the least and the greatest values of all tasks */
+        private final double[] range;
+
+        private double min = Double.POSITIVE_INFINITY;
+
+        private double max = Double.NEGATIVE_INFINITY;
+
+        RangeVisitor(double[] range) {
+            this.range = range;
+        }
+
+        @Override
+        public void visit(ByteBuffer block, int samples) {
+            for (int i = 0; i < samples; ++i) {
+                double sample = block.getDouble(8 * i);
+                /** nan fails both comparisons */
+                if (sample < min) {
+                    min = sample;
+                }
+                if (sample > max) {
+                    max = sample;
+                }
+            }
+        }
+
+        @Override
+        public void finish() {
+            synchronized (range) {
+                range[0] = Double.min(range[0], min);
+                range[1] = Double.max(range[1], max);
+            }
+        }
+    }
+
+    /** Per thread binned histogram of blocks of double precision samples */
+    private static class BinnedCounter implements BlockVisitor {
 
-                if (((nBlock + 1) % stepSize == 0) || (nBlock + 1 >= totalBlocks)) {
-                    double progress = (nBlock / stepSize + 1) / (double) stepsTotal;
-                    listener.listen(PancakeConstants.PROGRESS_HIST_MATCHING, progress,
-                            "[Pancake] getting histogram for: " + wrapper.getUnderlyingBand().dataset().path());
+        private final HistogramBinned hist;
+
+        private final int[] counts;
+
+        BinnedCounter(HistogramBinned hist) {
+            this.hist = hist;
+            this.counts = new int[hist.size()];
+        }
+
+        @Override
+        public void visit(ByteBuffer block, int samples) {
+            for (int i = 0; i < samples; ++i) {
+                double sample = block.getDouble(8 * i);
+                if (!Double.isNaN(sample)) {
+                    ++counts[hist.bin(sample)];
                 }
-                ++nBlock;
             }
         }
+
+        @Override
+        public void finish() {
+            synchronized (hist) {
+                for (int bin = 0; bin < counts.length; ++bin) {
+                    hist.hist[bin] += counts[bin];
+                }
+            }
+        }
+    }
+
+    /**
+     * Scans blocks of band on worker threads, each of them visits blocks with its
+     * own visitor. Raster i/o is serialized, as gdal datasets are not thread
+     * safe.
+     * 
+     * @param band         band to scan
+     * @param blocksize    size of blocks to read
+     * @param bufDatatype  datatype, which blocks are read in
+     * @param visitorBytes how much memory single visitor requires
+     * @param message      progress message
+     * @param visitors     creates visitor for each task
+     */
+    private void scanBlocks(PancakeBand band, Shape blocksize, int bufDatatype, long visitorBytes, String message,
+            Supplier<BlockVisitor> visitors) {
+        int blocksInRow = (band.getXSize() + blocksize.xsize() - 1) / blocksize.xsize();
+        int blocksInCol = (band.getYSize() + blocksize.ysize() - 1) / blocksize.ysize();
+        int totalBlocks = blocksInRow * blocksInCol;
+        long blockBytes = (long) blocksize.xsize() * blocksize.ysize() * Pancake.dtBytes(bufDatatype);
+        int nTasks = Integer.min(totalBlocks, MemoryPlanner.tasksInFlight(memoryBudget / 2,
+                blockBytes + visitorBytes, executor == null ? 1 : numThreads));
+
+        Object ioLock = new Object();
+        AtomicInteger nextBlock = new AtomicInteger(0);
+        AtomicInteger blocksDone = new AtomicInteger(0);
+
+        Runnable scan = () -> {
+            BlockVisitor visitor = visitors.get();
+            ByteBuffer block = ByteBuffer.allocateDirect((int) blockBytes).order(ByteOrder.nativeOrder());
+            int nBlock;
+            while ((nBlock = nextBlock.getAndIncrement()) < totalBlocks) {
+                int x0 = (nBlock % blocksInRow) * blocksize.xsize();
+                int y0 = (nBlock / blocksInRow) * blocksize.ysize();
+                int xsize = Integer.min(blocksize.xsize(), band.getXSize() - x0);
+                int ysize = Integer.min(blocksize.ysize(), band.getYSize() - y0);
+                synchronized (ioLock) {
+                    band.readRasterDirect(x0, y0, xsize, ysize, xsize, ysize, bufDatatype, block);
+                }
+                visitor.visit(block, xsize * ysize);
+                reportProgress(blocksDone.incrementAndGet(), totalBlocks, message);
+            }
+            visitor.finish();
+        };
+
+        if (nTasks <= 1) {
+            /** single visitor reads next block ahead, while current one is visited */
+            BlockVisitor visitor = visitors.get();
+            try (BlockPrefetcher reader = new BlockPrefetcher(List.of(band), List.of(bufDatatype),
+                    BlockPrefetcher.grid(new Rectangle(0, 0, band.getXSize(), band.getYSize()), blocksize))) {
+                while (reader.hasNext()) {
+                    Rectangle block = reader.next();
+                    visitor.visit(reader.buffer(0), block.xSize() * block.ySize());
+                    reportProgress(blocksDone.incrementAndGet(), totalBlocks, message);
+                }
+            }
+            visitor.finish();
+            return;
+        }
+
+        List<Future<?>> tasks = new ArrayList<>();
+        for (int i = 0; i < nTasks; ++i) {
+            tasks.add(executor.submit(scan));
+        }
+        try {
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("block scan interrupted", e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException("block scan failed", e.getCause());
+        } finally {
+            for (Future<?> task : tasks) {
+                task.cancel(true);
+            }
+        }
+    }
+
+    private synchronized void reportProgress(int blocksDone, int totalBlocks, String message) {
+        int stepSize = (totalBlocks + Pancake.logsFrequency() - 1) / Pancake.logsFrequency();
+        if ((blocksDone % stepSize == 0) || (blocksDone >= totalBlocks)) {
+            listener.listen(PancakeConstants.PROGRESS_HIST_MATCHING, blocksDone / (double) totalBlocks, message);
+        }
+    }
+
+    private Histogram _getHistogram(BandIntTileReader wrapper, Histogram hist) {
+        PancakeBand band = wrapper.getUnderlyingBand();
+        int nativeDatatype = wrapper.getNativeDatatype();
+        scanBlocks(band, Shape.of(wrapper.getBlockXSize(), wrapper.getBlockYSize()), nativeDatatype,
+                BlockCounter.bytes(nativeDatatype, hist.datatype()),
+                "[Pancake] getting histogram for: " + band.dataset().path(),
+                () -> new BlockCounter(nativeDatatype, hist));
         return hist;
     }
 
-    public Histogram getHistogram(PancakeBand band) {
-        return getHistogram(band, band.getRasterDatatype());
+    /**
+     * Reads band twice: to find its value range and to count samples in bins
+     * over that range. Samples are read in double precision.
+     */
+    private HistogramBinned getHistogramBinned(PancakeBand band) {
+        Shape blocksize = computeBlockSize(Shape.of(band.getBlockXSize(), band.getBlockYSize()),
+                Shape.of(band.getXSize(), band.getYSize()), Pancake.TYPE_FLOAT_64);
+        double[] range = new double[] { Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY };
+        scanBlocks(band, blocksize, Pancake.TYPE_FLOAT_64, 0, "[Pancake] getting value range for: "
+                + band.dataset().path(), () -> new RangeVisitor(range));
+        if (range[0] > range[1]) {
+            /** band has no samples, but nan ones */
+            range[0] = 0;
+            range[1] = 0;
+        }
+
+        HistogramBinned hist = new HistogramBinned(band.getRasterDatatype(), range[0], range[1], BINS);
+        scanBlocks(band, blocksize, Pancake.TYPE_FLOAT_64, (long) BINS * Integer.BYTES,
+                "[Pancake] getting histogram for: " + band.dataset().path(), () -> new BinnedCounter(hist));
+        return hist;
+    }
+
+    /** Exact histogram, if band datatype allows, binned one otherwise */
+    private Histogram histogramOf(PancakeBand band) {
+        if (Histogram.isExact(band.getRasterDatatype())) {
+            Histogram hist = Histogram.forDataType(band.getRasterDatatype());
+            BandIntTileReader wrapper = new BandIntTileReader(band);
+            return _getHistogram(wrapper, hist);
+        }
+        return getHistogramBinned(band);
+    }
+
+    /** Upper bound of datatype range, floating point samples are in [0, 1] range */
+    private static double rangeMax(int dtype) {
+        return Pancake.isInt(dtype) ? Pancake.dtMax(dtype) : 1d;
+    }
+
+    /**
+     * Maps representative value of each src bin to reference value of the same
+     * quantile, which is interpolated inside of reference bin. Quantiles are fractions of
+     * histogram totals, so histograms of bands with different sizes don't need
+     * scale. Reference values are scaled to range of src datatype the same way
+     * as exact matching scales them.
+     */
+    static LookupBinned getLookupTableBinned(Histogram srcHist, Histogram refHist) {
+        LookupBinned lookup = new LookupBinned(srcHist);
+        double srcTotal = srcHist.total();
+        double refTotal = refHist.total();
+        double refScale = rangeMax(srcHist.datatype()) / rangeMax(refHist.datatype());
+
+        int refBin = 0;
+        double refCumSum = 0;
+        double srcCumSum = 0;
+        for (int bin = 0; bin < srcHist.size(); ++bin) {
+            if (srcTotal == 0 || refTotal == 0) {
+                lookup.set(bin, srcHist.binValue(bin));
+                continue;
+            }
+            double quantile = (srcCumSum + srcHist.count(bin) / 2d) / srcTotal;
+            srcCumSum += srcHist.count(bin);
+
+            while (refBin + 1 < refHist.size() && (refCumSum + refHist.count(refBin)) / refTotal < quantile) {
+                refCumSum += refHist.count(refBin);
+                ++refBin;
+            }
+            double within = 0.5;
+            if (refHist.count(refBin) > 0) {
+                within = (quantile * refTotal - refCumSum) / refHist.count(refBin);
+                within = Double.max(0, Double.min(1, within));
+            }
+            lookup.set(bin, (refHist.binValue(refBin) + (within - 0.5) * refHist.binWidth()) * refScale);
+        }
+        return lookup;
+    }
+
+    /**
+     * Samples are read and written in double precision, gdal rounds and clamps
+     * them to band datatype on write
+     */
+    private void _applyLookupTableBinned(PancakeBand band, LookupTable lookup) {
+        Shape blocksize = computeBlockSize(Shape.of(band.getBlockXSize(), band.getBlockYSize()),
+                Shape.of(band.getXSize(), band.getYSize()), Pancake.TYPE_FLOAT_64);
+        List<Rectangle> blocks = BlockPrefetcher.grid(new Rectangle(0, 0, band.getXSize(), band.getYSize()),
+                blocksize);
+        String message = "[Pancake] applying lookup table for: " + band.dataset().path();
+
+        /** next block is read, while lookup table is applied to current one and it is written back */
+        Object ioLock = new Object();
+        try (BlockPrefetcher reader = new BlockPrefetcher(List.of(band), List.of(Pancake.TYPE_FLOAT_64), blocks,
+                ioLock)) {
+            int nBlock = 0;
+            while (reader.hasNext()) {
+                Rectangle area = reader.next();
+                ByteBuffer block = reader.buffer(0);
+                for (int i = 0; i < area.xSize() * area.ySize(); ++i) {
+                    block.putDouble(8 * i, lookup.get(block.getDouble(8 * i)));
+                }
+                synchronized (ioLock) {
+                    band.writeRasterDirect(area.x0(), area.y0(), area.xSize(), area.ySize(), area.xSize(),
+                            area.ySize(), Pancake.TYPE_FLOAT_64, block);
+                }
+                reportProgress(++nBlock, blocks.size(), message);
+            }
+        }
+    }
+
+    /**
+     * 
+     * @return true if histograms of bands are matched with exact lookup table
+     */
+    private static boolean matchesExactly(PancakeBand src, PancakeBand ref) {
+        return Histogram.isExact(src.getRasterDatatype()) && Pancake.isInt(ref.getRasterDatatype());
     }
 
     private void _applyLookupTable(BandIntTileReader wrapper, LookupTable lookup) {
         int totalBlocks = wrapper.getBlocksInCol() * wrapper.getBlocksInRow();
-        int stepSize = (totalBlocks + Pancake.logsFrequency() - 1) / Pancake.logsFrequency();
-        int stepsTotal = (totalBlocks + stepSize - 1) / stepSize;
-        int nBlock = 0;
-
-        for (int blockY = 0; blockY < wrapper.getBlocksInCol(); ++blockY) {
-            for (int blockX = 0; blockX < wrapper.getBlocksInRow(); ++blockX) {
-                int blocksize = wrapper.blockXSize(blockX) * wrapper.blockYSize(blockY);
-                wrapper.cacheBlock(blockX, blockY);
-                for (int i = 0; i < blocksize; ++i) {
-                    wrapper.set(i, lookup.get((int) wrapper.get(i)));
+        String message = "[Pancake] applying lookup table for: " + wrapper.getUnderlyingBand().dataset().path();
+        /** next block is read, while lookup table is applied to current one */
+        wrapper.setPrefetch(executor);
+
+        wrapper.forEachBlock((blockX, blockY, samples, xsize, ysize) -> {
+            int n = xsize * ysize;
+            if (lookup instanceof LookupArray) {
+                int[] table = ((LookupArray) lookup).lookup;
+                int minVal = ((LookupArray) lookup).minVal;
+                for (int i = 0; i < n; ++i) {
+                    samples[i] = table[samples[i] - minVal];
                 }
-
-                if (((nBlock + 1) % stepSize == 0) || (nBlock + 1 >= totalBlocks)) {
-                    double progress = (nBlock / stepSize + 1) / (double) stepsTotal;
-                    listener.listen(PancakeConstants.PROGRESS_HIST_MATCHING, progress,
-                            "[Pancake] applying lookup table for: " + wrapper.getUnderlyingBand().dataset().path());
+            } else {
+                for (int i = 0; i < n; ++i) {
+                    samples[i] = (int) lookup.get(samples[i]);
                 }
-                ++nBlock;
             }
-        }
+            reportProgress(blockY * wrapper.getBlocksInRow() + blockX + 1, totalBlocks, message);
+            return true;
+        });
         wrapper.flushCache();
     }
 
     public void matchHistogram(PancakeBand band, Histogram hist) {
-        if (Pancake.dtBytes(band.getRasterDatatype()) > 2) {
-            throw new UnsupportedOperationException(
-                    "histogram matching for images with data type > 16 bit not implemented");
+        if (!Histogram.isExact(band.getRasterDatatype()) || !(hist instanceof HistogramArray)) {
+            Histogram bandHist = histogramOf(band);
+            _applyLookupTableBinned(band, getLookupTableBinned(bandHist, hist));
+            return;
         }
 
         BandIntTileReader wrapper = new BandIntTileReader(band);
@@ -300,73 +964,84 @@ public class HistogramMatching {
         _applyLookupTable(wrapper, lookup);
     }
 
+    /**
+     * Grows native block to full width strips of several native block rows, as
+     * long as block fits in half of memory budget, because matched and reference
+     * bands are cached at the same time. Shrinks block height, if even native
+     * block doesn't fit.
+     */
     private Shape computeBlockSize(Shape nativeBlocksize, Shape imageSize, int dtype) {
-        // int blockXSize = Integer.min(imageSize.xsize(), nativeBlocksize.xsize());
-        // int blockYSize = Integer.min(imageSize.ysize(), nativeBlocksize.ysize());
-        // int bytes = Pancake.dtBytes(dtype);
-        // int blockSize = bytes * blockXSize * blockYSize;
-
-        // /** 512 kb */
-        // int prefferedBlockSize = 512 * 1024;
-        // /** 1 mb */
-        // int maxBlockSize = 1024 * 1024;
-
-        // if (blockSize >= prefferedBlockSize) {
-        // return Shape.of(blockXSize, blockYSize);
-        // }
-
-        // int grow = (prefferedBlockSize + blockSize - 1) / blockSize;
-        // if (grow * blockSize > maxBlockSize) {
-        // grow -= 1;
-        // }
-
-        // if (blockXSize < imageSize.xsize()) {
-        // if (grow * blockXSize >= imageSize.xsize()) {
-        // return computeBlockSize(Shape.of(imageSize.xsize(), blockYSize), imageSize,
-        // dtype);
-        // } else {
-        // List<Integer> sizes = List.of(128, 256, 512);
-        // int bestSize = 512;
-        // for (Integer size : sizes) {
-        // if (size * size * bytes >= prefferedBlockSize) {
-        // bestSize = size;
-        // break;
-        // }
-        // }
-        // blockXSize = bestSize;
-        // blockYSize = bestSize;
-        // }
-        // } else if (blockXSize == imageSize.xsize()) {
-        // blockYSize *= grow;
-        // }
-
-        // return Shape.of(blockXSize, blockYSize);
-
-        return nativeBlocksize;
+        int blockXSize = Integer.min(imageSize.xsize(), nativeBlocksize.xsize());
+        int blockYSize = Integer.min(imageSize.ysize(), nativeBlocksize.ysize());
+        long bytes = Pancake.dtBytes(dtype);
+        long limit = Long.min(memoryBudget / 2, PREFERRED_BLOCK_SIZE);
+
+        if ((long) imageSize.xsize() * blockYSize * bytes <= limit) {
+            blockXSize = imageSize.xsize();
+        }
+        blockYSize = MemoryPlanner.blockHeight(limit, blockXSize * bytes, 1, imageSize.ysize(), blockYSize);
+        if (blockXSize < imageSize.xsize()) {
+            /** grow height only for full width strips */
+            blockYSize = Integer.min(blockYSize, Integer.min(imageSize.ysize(), nativeBlocksize.ysize()));
+        }
+        return Shape.of(blockXSize, blockYSize);
     }
 
     public void matchHistogram(PancakeBand src, PancakeBand ref) {
-        if (Pancake.dtBytes(src.getRasterDatatype()) > 2) {
-            throw new UnsupportedOperationException(
-                    "histogram matching for images with data type > 16 bit not implemented");
+        if (!matchesExactly(src, ref)) {
+            _applyLookupTableBinned(src, getLookupTableBinned(histogramOf(src), histogramOf(ref)));
+            return;
         }
 
-        int srcSize = src.getXSize() * src.getYSize();
-        int refSize = ref.getXSize() * ref.getYSize();
-
         Shape srcBlockSize = computeBlockSize(Shape.of(src.getBlockXSize(), src.getBlockYSize()),
                 Shape.of(src.getXSize(), src.getYSize()), src.getRasterDatatype());
-        Shape dstBlockSize = computeBlockSize(Shape.of(src.getBlockXSize(), src.getBlockYSize()),
+
+        BandIntTileReader srcWrapper = new BandIntTileReader(src, srcBlockSize.xsize(), srcBlockSize.ysize());
+        Histogram srcHist = Histogram.forDataType(src.getRasterDatatype());
+        _getHistogram(srcWrapper, srcHist);
+
+        _matchHistogram(srcWrapper, srcHist, ref);
+    }
+
+    /**
+     * Matches histogram of src band to histogram of ref band, when histogram of
+     * src band is already known, so src band is not read to compute it.
+     * 
+     * @param src     band to modify
+     * @param srcHist histogram of src band, for example collected with
+     *                {@link HistogramCollectingBand} while src band was written
+     * @param ref     reference band
+     */
+    public void matchHistogram(PancakeBand src, Histogram srcHist, PancakeBand ref) {
+        if (srcHist.datatype() != src.getRasterDatatype()) {
+            throw new RuntimeException("histogram datatype mismatch band datatype");
+        }
+        if (!matchesExactly(src, ref) || !(srcHist instanceof HistogramArray)) {
+            _applyLookupTableBinned(src, getLookupTableBinned(srcHist, histogramOf(ref)));
+            return;
+        }
+
+        Shape srcBlockSize = computeBlockSize(Shape.of(src.getBlockXSize(), src.getBlockYSize()),
                 Shape.of(src.getXSize(), src.getYSize()), src.getRasterDatatype());
 
         BandIntTileReader srcWrapper = new BandIntTileReader(src, srcBlockSize.xsize(), srcBlockSize.ysize());
-        BandIntTileReader refWrapper = new BandIntTileReader(ref, dstBlockSize.xsize(), dstBlockSize.ysize(),
+        _matchHistogram(srcWrapper, srcHist, ref);
+    }
+
+    private void _matchHistogram(BandIntTileReader srcWrapper, Histogram srcHist, PancakeBand ref) {
+        PancakeBand src = srcWrapper.getUnderlyingBand();
+
+        int srcSize = src.getXSize() * src.getYSize();
+        int refSize = ref.getXSize() * ref.getYSize();
+
+        Shape refBlockSize = computeBlockSize(Shape.of(ref.getBlockXSize(), ref.getBlockYSize()),
+                Shape.of(ref.getXSize(), ref.getYSize()), ref.getRasterDatatype());
+
+        BandIntTileReader refWrapper = new BandIntTileReader(ref, refBlockSize.xsize(), refBlockSize.ysize(),
                 src.getRasterDatatype());
 
-        Histogram srcHist = Histogram.forDataType(src.getRasterDatatype());
         Histogram refHist = Histogram.forDataType(src.getRasterDatatype());
 
-        _getHistogram(srcWrapper, srcHist);
         _getHistogram(refWrapper, refHist);
 
         if (srcSize > refSize) {
@@ -380,4 +1055,4 @@ public class HistogramMatching {
         LookupTable lookup = getLookupTable(srcHist, refHist);
         _applyLookupTable(srcWrapper, lookup);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,45 @@
+package com.nocmok.pancake.utils;
+
+/** Routines to fit buffers into memory budget */
+public class MemoryPlanner {
+
+    private MemoryPlanner() {
+
+    }
+
+    /**
+     * 
+     * @param budget      memory available for block
+     * @param bytesPerRow how much memory one row of block requires
+     * @param minHeight   the least acceptable block height
+     * @param maxHeight   the greatest block height
+     * @param alignment   block height is multiple of alignment, when at least
+     *                    alignment rows fit in budget
+     * @return the greatest block height, that fits in budget, but not less than
+     *         minHeight and not greater than maxHeight
+     */
+    public static int blockHeight(long budget, long bytesPerRow, int minHeight, int maxHeight, int alignment) {
+        long fit = budget / Long.max(1, bytesPerRow);
+        if (fit >= maxHeight) {
+            return maxHeight;
+        }
+        int height = (int) fit;
+        if (height >= alignment) {
+            height -= height % alignment;
+        }
+        return Integer.min(maxHeight, Integer.max(minHeight, height));
+    }
+
+    /**
+     * 
+     * @param budget     memory available for all tasks
+     * @param taskMemory the least amount of memory, that single task requires
+     * @param nThreads   how much threads may perform tasks
+     * @return how much tasks may be performed at the same time within budget, at
+     *         least one
+     */
+    public static int tasksInFlight(long budget, long taskMemory, int nThreads) {
+        long fit = budget / Long.max(1, taskMemory);
+        return (int) Long.max(1, Long.min(nThreads, fit));
+    }
+}
@@ -0,0 +1,506 @@
+package com.nocmok.pancake.utils;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.nocmok.pancake.Pancake;
+import com.nocmok.pancake.PancakeBand;
+import com.nocmok.pancake.PancakeDataset;
+
+/**
+ * Band wrapper, that builds overviews of samples written to the band, so there
+ * is no need to read band once more in order to build them. Each overview
+ * sample is average of band samples it covers. Sums are kept only for overview
+ * blocks, that are partially written, block is written to overview band and
+ * freed as soon as all band samples it covers are written. Each sample is
+ * expected to be written once. Sums take at most given number of bytes, when
+ * they don't fit, coarsest levels drop their sums and are averaged from finer
+ * level, when band is finished, so band is read once more only if the finest
+ * level doesn't fit.
+ *
+ * Limitations: only writes without resampling
+ */
+public class OverviewBuildingBand implements PancakeBand {
+
+    private final PancakeBand band;
+
+    private final List<PancakeBand> overviews;
+
+    private final int[] factors;
+
+    /** partially written blocks of each overview level by index of block */
+    private final List<Map<Long, PartialBlock>> partialBlocks;
+
+    /** levels, that are built from finer level in {@link #finish()} */
+    private final boolean[] deferred;
+
+    private final long partialBytesLimit;
+
+    private long partialBytes = 0;
+
+    /** scratch for samples of written window */
+    private double[] samples = new double[0];
+
+    /** scratch for overview block and band rows, that are read on finish */
+    private ByteBuffer ioBuf = ByteBuffer.allocateDirect(0);
+
+    private static class PartialBlock {
+
+        /** area of block in overview coordinates */
+        final Rectangle area;
+
+        final double[] sums;
+
+        /** written band samples, that each overview sample covers */
+        final int[] counts;
+
+        /** band samples, that block covers and that are not written yet */
+        long samplesLeft;
+
+        PartialBlock(Rectangle area, long samplesLeft) {
+            this.area = area;
+            this.sums = new double[area.xSize() * area.ySize()];
+            this.counts = new int[area.xSize() * area.ySize()];
+            this.samplesLeft = samplesLeft;
+        }
+
+        static long bytes(Rectangle area) {
+            return 12 * area(area);
+        }
+    }
+
+    /**
+     *
+     * @param band      band to wrap
+     * @param overviews empty overview bands of band, one per level
+     * @param factors   decimation factor of each overview band
+     */
+    public OverviewBuildingBand(PancakeBand band, List<PancakeBand> overviews, int[] factors) {
+        this(band, overviews, factors, Long.MAX_VALUE);
+    }
+
+    /**
+     *
+     * @param band              band to wrap
+     * @param overviews         empty overview bands of band, one per level
+     * @param factors           decimation factor of each overview band
+     * @param partialBytesLimit bytes, that sums of partially written blocks may
+     *                          take
+     */
+    public OverviewBuildingBand(PancakeBand band, List<PancakeBand> overviews, int[] factors,
+            long partialBytesLimit) {
+        if (overviews.size() != factors.length) {
+            throw new IllegalArgumentException("overviews count mismatch decimation factors count");
+        }
+        this.band = band;
+        this.overviews = overviews;
+        this.factors = factors;
+        this.partialBytesLimit = partialBytesLimit;
+        this.deferred = new boolean[factors.length];
+        this.partialBlocks = new ArrayList<>();
+        for (int level = 0; level < factors.length; ++level) {
+            partialBlocks.add(new HashMap<>());
+        }
+    }
+
+    /**
+     * 
+     * @param overviews overview bands of band, one per level
+     * @return bytes of sums, that are kept, when band is written block row by
+     *         block row or block column by block column. Row of band blocks may
+     *         cross two rows of overview blocks, so two rows are counted.
+     */
+    public static long stripBytes(List<PancakeBand> overviews) {
+        long bytes = 0;
+        for (PancakeBand overview : overviews) {
+            long blocksInRow = (overview.getXSize() + overview.getBlockXSize() - 1) / overview.getBlockXSize();
+            long blocksInCol = (overview.getYSize() + overview.getBlockYSize() - 1) / overview.getBlockYSize();
+            bytes += 2 * Long.max(blocksInRow, blocksInCol)
+                    * PartialBlock.bytes(new Rectangle(0, 0, overview.getBlockXSize(), overview.getBlockYSize()));
+        }
+        return bytes;
+    }
+
+    private static ByteBuffer ensureCapacity(ByteBuffer buf, int bytes) {
+        if (buf.capacity() >= bytes) {
+            return buf;
+        }
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+
+    /**
+     *
+     * @return samples of buffer as they are stored in band, gdal rounds and
+     *         clamps samples on write with datatype conversion. Samples are kept
+     *         in scratch array, which is reused by next write.
+     */
+    private double[] toSamples(ByteBuffer buffer, int bufType, int xsize, int ysize, int pixelSpace, int lineSpace) {
+        ByteBuffer buf = buffer.duplicate().order(ByteOrder.nativeOrder());
+        int dtBytes = Pancake.dtBytes(bufType);
+        pixelSpace = (pixelSpace == 0) ? dtBytes : pixelSpace;
+        lineSpace = (lineSpace == 0) ? xsize * pixelSpace : lineSpace;
+        boolean round = Pancake.isInt(band.getRasterDatatype()) && !Pancake.isInt(bufType);
+        double min = Pancake.dtMin(band.getRasterDatatype());
+        double max = Pancake.dtMax(band.getRasterDatatype());
+
+        if (samples.length < xsize * ysize) {
+            samples = new double[xsize * ysize];
+        }
+        for (int y = 0; y < ysize; ++y) {
+            for (int x = 0; x < xsize; ++x) {
+                int pos = y * lineSpace + x * pixelSpace;
+                double sample;
+                switch (bufType) {
+                case Pancake.TYPE_BYTE:
+                case Pancake.TYPE_UNKNOWN:
+                    sample = Byte.toUnsignedInt(buf.get(pos));
+                    break;
+                case Pancake.TYPE_INT_16:
+                    sample = buf.getShort(pos);
+                    break;
+                case Pancake.TYPE_UINT_16:
+                    sample = Short.toUnsignedInt(buf.getShort(pos));
+                    break;
+                case Pancake.TYPE_INT_32:
+                    sample = buf.getInt(pos);
+                    break;
+                case Pancake.TYPE_UINT_32:
+                    sample = Integer.toUnsignedLong(buf.getInt(pos));
+                    break;
+                case Pancake.TYPE_FLOAT_32:
+                    sample = buf.getFloat(pos);
+                    break;
+                case Pancake.TYPE_FLOAT_64:
+                    sample = buf.getDouble(pos);
+                    break;
+                default:
+                    throw new UnsupportedOperationException(
+                            "overview building for " + Pancake.dtName(bufType) + " not implemented");
+                }
+                if (round) {
+                    sample = Math.min(max, Math.max(min, Math.rint(sample)));
+                }
+                samples[y * xsize + x] = sample;
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Adds written window to sums of overview blocks, which it covers, and writes
+     * blocks, that become complete
+     */
+    private synchronized void accumulate(int xoff, int yoff, int xsize, int ysize, ByteBuffer buffer, int bufType,
+            int pixelSpace, int lineSpace) {
+        double[] samples = toSamples(buffer, bufType, xsize, ysize, pixelSpace, lineSpace);
+        Rectangle window = new Rectangle(xoff, yoff, xsize, ysize);
+        for (int level = 0; level < factors.length; ++level) {
+            if (deferred[level]) {
+                continue;
+            }
+            int factor = factors[level];
+            PancakeBand overview = overviews.get(level);
+            int blockXSize = overview.getBlockXSize();
+            int blockYSize = overview.getBlockYSize();
+            int blocksInRow = (overview.getXSize() + blockXSize - 1) / blockXSize;
+            Rectangle overviewArea = new Rectangle(0, 0, overview.getXSize(), overview.getYSize());
+
+            int blockX0 = xoff / factor / blockXSize;
+            int blockY0 = yoff / factor / blockYSize;
+            int blockX1 = Integer.min(blocksInRow - 1, (xoff + xsize - 1) / factor / blockXSize);
+            int blockY1 = Integer.min((overview.getYSize() + blockYSize - 1) / blockYSize - 1,
+                    (yoff + ysize - 1) / factor / blockYSize);
+
+            for (int blockY = blockY0; blockY <= blockY1 && !deferred[level]; ++blockY) {
+                for (int blockX = blockX0; blockX <= blockX1; ++blockX) {
+                    long key = (long) blockY * blocksInRow + blockX;
+                    PartialBlock block = partialBlocks.get(level).get(key);
+                    if (block == null) {
+                        Rectangle area = new Rectangle(blockX * blockXSize, blockY * blockYSize, blockXSize,
+                                blockYSize).intersection(overviewArea);
+                        if (!reserve(level, PartialBlock.bytes(area))) {
+                            break;
+                        }
+                        block = new PartialBlock(area, area(footprint(area, factor)));
+                        partialBlocks.get(level).put(key, block);
+                    }
+
+                    Rectangle covered = footprint(block.area, factor).intersection(window);
+                    for (int y = covered.y0(); y < covered.y1(); ++y) {
+                        int row = (y / factor - block.area.y0()) * block.area.xSize();
+                        for (int x = covered.x0(); x < covered.x1(); ++x) {
+                            int pos = row + x / factor - block.area.x0();
+                            block.sums[pos] += samples[(y - yoff) * xsize + x - xoff];
+                            ++block.counts[pos];
+                        }
+                    }
+                    block.samplesLeft -= area(covered);
+
+                    if (block.samplesLeft <= 0) {
+                        partialBlocks.get(level).remove(key);
+                        partialBytes -= PartialBlock.bytes(block.area);
+                        writeBlock(overview, block);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reserves memory for new partial block of level, coarsest levels are
+     * deferred until block fits in limit
+     * 
+     * @return whether block fits, otherwise level itself is deferred
+     */
+    private boolean reserve(int level, long bytes) {
+        while (partialBytes + bytes > partialBytesLimit) {
+            int coarsest = factors.length - 1;
+            while (deferred[coarsest]) {
+                --coarsest;
+            }
+            defer(coarsest);
+            if (coarsest == level) {
+                return false;
+            }
+        }
+        partialBytes += bytes;
+        return true;
+    }
+
+    /**
+     * Drops sums of level, so that level is built from finer level, when band
+     * is finished
+     */
+    private void defer(int level) {
+        for (PartialBlock block : partialBlocks.get(level).values()) {
+            partialBytes -= PartialBlock.bytes(block.area);
+        }
+        partialBlocks.get(level).clear();
+        deferred[level] = true;
+    }
+
+    /**
+     *
+     * @return area of band, which is covered by area of overview
+     */
+    private Rectangle footprint(Rectangle overviewArea, int factor) {
+        int x1 = Integer.min(band.getXSize(), overviewArea.x1() * factor);
+        int y1 = Integer.min(band.getYSize(), overviewArea.y1() * factor);
+        return new Rectangle(overviewArea.x0() * factor, overviewArea.y0() * factor, x1 - overviewArea.x0() * factor,
+                y1 - overviewArea.y0() * factor);
+    }
+
+    private static long area(Rectangle rect) {
+        return (long) rect.xSize() * rect.ySize();
+    }
+
+    /**
+     * Averages sums by number of written band samples, that each overview sample
+     * covers, overview samples, that cover no written samples, are set to 0
+     */
+    private void writeBlock(PancakeBand overview, PartialBlock block) {
+        for (int i = 0; i < block.sums.length; ++i) {
+            block.sums[i] = (block.counts[i] == 0) ? 0d : block.sums[i] / block.counts[i];
+        }
+        writeAverages(overview, block.area, block.sums);
+    }
+
+    /**
+     * Writes averages, gdal rounds and clamps them to band datatype on write
+     */
+    private void writeAverages(PancakeBand overview, Rectangle area, double[] averages) {
+        ioBuf = ensureCapacity(ioBuf, 8 * area.xSize() * area.ySize());
+        for (int i = 0; i < area.xSize() * area.ySize(); ++i) {
+            ioBuf.putDouble(8 * i, averages[i]);
+        }
+        overview.writeRasterDirect(area.x0(), area.y0(), area.xSize(), area.ySize(), area.xSize(), area.ySize(),
+                Pancake.TYPE_FLOAT_64, ioBuf);
+    }
+
+    /**
+     * Averages each overview block of deferred level from finer level, which is
+     * already written, or from band, if level is the finest one or its factor is
+     * not multiple of finer one. Samples of finer level are weighted by number of
+     * band samples they cover, as if whole band was written. Source is read by
+     * rows of overview samples, so that only one block and one row are kept in
+     * memory.
+     */
+    private void buildFromFinerLevel(int level) {
+        int factor = factors[level];
+        boolean fromBand = (level == 0) || (factor % factors[level - 1] != 0);
+        PancakeBand src = fromBand ? band : overviews.get(level - 1);
+        int srcFactor = fromBand ? 1 : factors[level - 1];
+        int ratio = factor / srcFactor;
+
+        PancakeBand overview = overviews.get(level);
+        int blockXSize = overview.getBlockXSize();
+        int blockYSize = overview.getBlockYSize();
+        Rectangle overviewArea = new Rectangle(0, 0, overview.getXSize(), overview.getYSize());
+        Rectangle srcArea = new Rectangle(0, 0, src.getXSize(), src.getYSize());
+        double[] sums = new double[blockXSize * blockYSize];
+        double[] weights = new double[blockXSize * blockYSize];
+
+        for (int y0 = 0; y0 < overview.getYSize(); y0 += blockYSize) {
+            for (int x0 = 0; x0 < overview.getXSize(); x0 += blockXSize) {
+                Rectangle area = new Rectangle(x0, y0, blockXSize, blockYSize).intersection(overviewArea);
+                Arrays.fill(sums, 0d);
+                Arrays.fill(weights, 0d);
+                for (int y = area.y0(); y < area.y1(); ++y) {
+                    Rectangle rows = new Rectangle(area.x0() * ratio, y * ratio, area.xSize() * ratio, ratio)
+                            .intersection(srcArea);
+                    ioBuf = ensureCapacity(ioBuf, 8 * rows.xSize() * rows.ySize());
+                    src.readRasterDirect(rows.x0(), rows.y0(), rows.xSize(), rows.ySize(), rows.xSize(),
+                            rows.ySize(), Pancake.TYPE_FLOAT_64, ioBuf);
+                    int row = (y - area.y0()) * area.xSize();
+                    for (int i = 0; i < rows.xSize() * rows.ySize(); ++i) {
+                        int x = rows.x0() + i % rows.xSize();
+                        int pos = row + x / ratio - area.x0();
+                        double weight = area(footprint(new Rectangle(x, rows.y0() + i / rows.xSize(), 1, 1),
+                                srcFactor));
+                        sums[pos] += weight * ioBuf.getDouble(8 * i);
+                        weights[pos] += weight;
+                    }
+                }
+                for (int i = 0; i < area.xSize() * area.ySize(); ++i) {
+                    sums[i] = (weights[i] == 0d) ? 0d : sums[i] / weights[i];
+                }
+                writeAverages(overview, area, sums);
+            }
+        }
+    }
+
+    /**
+     * Writes overview blocks, that are still partially written, e.g. when not
+     * whole band was written, and builds deferred levels from finer ones. Samples,
+     * that were not written, are not counted in averages of partially written
+     * blocks.
+     */
+    public synchronized void finish() {
+        for (int level = 0; level < factors.length; ++level) {
+            if (deferred[level]) {
+                buildFromFinerLevel(level);
+                continue;
+            }
+            for (PartialBlock block : partialBlocks.get(level).values()) {
+                writeBlock(overviews.get(level), block);
+            }
+            partialBlocks.get(level).clear();
+        }
+        partialBytes = 0;
+    }
+
+    private void validateWrite(int xsize, int ysize, int bufXSize, int bufYSize) {
+        if (xsize != bufXSize || ysize != bufYSize) {
+            throw new UnsupportedOperationException("overview building for resampled writes not implemented");
+        }
+    }
+
+    @Override
+    public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize, int buf_type,
+            ByteBuffer nioBuffer) {
+        return band.readRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, buf_type, nioBuffer);
+    }
+
+    @Override
+    public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize, int buf_type,
+            ByteBuffer nioBuffer, int nPixelSpace, int nLineSpace) {
+        return band.readRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, buf_type, nioBuffer,
+                nPixelSpace, nLineSpace);
+    }
+
+    @Override
+    public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize,
+            ByteBuffer nioBuffer) {
+        return band.readRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, nioBuffer);
+    }
+
+    @Override
+    public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, ByteBuffer nioBuffer) {
+        return band.readRasterDirect(xoff, yoff, xsize, ysize, nioBuffer);
+    }
+
+    @Override
+    public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize, int buf_type,
+            ByteBuffer nioBuffer) {
+        validateWrite(xsize, ysize, buf_xsize, buf_ysize);
+        int code = band.writeRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, buf_type, nioBuffer);
+        accumulate(xoff, yoff, xsize, ysize, nioBuffer, buf_type, 0, 0);
+        return code;
+    }
+
+    @Override
+    public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize, int buf_type,
+            ByteBuffer nioBuffer, int nPixelSpace, int nLineSpace) {
+        validateWrite(xsize, ysize, buf_xsize, buf_ysize);
+        int code = band.writeRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, buf_type, nioBuffer,
+                nPixelSpace, nLineSpace);
+        accumulate(xoff, yoff, xsize, ysize, nioBuffer, buf_type, nPixelSpace, nLineSpace);
+        return code;
+    }
+
+    @Override
+    public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize,
+            ByteBuffer nioBuffer) {
+        validateWrite(xsize, ysize, buf_xsize, buf_ysize);
+        int code = band.writeRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, nioBuffer);
+        accumulate(xoff, yoff, xsize, ysize, nioBuffer, band.getRasterDatatype(), 0, 0);
+        return code;
+    }
+
+    @Override
+    public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, ByteBuffer nioBuffer) {
+        int code = band.writeRasterDirect(xoff, yoff, xsize, ysize, nioBuffer);
+        accumulate(xoff, yoff, xsize, ysize, nioBuffer, band.getRasterDatatype(), 0, 0);
+        return code;
+    }
+
+    @Override
+    public int getXSize() {
+        return band.getXSize();
+    }
+
+    @Override
+    public int getYSize() {
+        return band.getYSize();
+    }
+
+    @Override
+    public int getBlockXSize() {
+        return band.getBlockXSize();
+    }
+
+    @Override
+    public int getBlockYSize() {
+        return band.getBlockYSize();
+    }
+
+    @Override
+    public int getRasterDatatype() {
+        return band.getRasterDatatype();
+    }
+
+    @Override
+    public double getNoData() {
+        return band.getNoData();
+    }
+
+    @Override
+    public double maxValue() {
+        return band.maxValue();
+    }
+
+    @Override
+    public double minValue() {
+        return band.minValue();
+    }
+
+    @Override
+    public PancakeDataset dataset() {
+        return band.dataset();
+    }
+}
@@ -51,4 +51,29 @@ public class Rectangle {
     public int ySize() {
         return ySize;
     }
+
+    /**
+     * 
+     * @return true if this rectangle doesn't contain any point
+     */
+    public boolean isEmpty() {
+        return xSize <= 0 || ySize <= 0;
+    }
+
+    /**
+     * 
+     * @return rectangle, that contains points which belongs to both this and other
+     *         rectangle. Returned rectangle may be empty
+     */
+    public Rectangle intersection(Rectangle other) {
+        int x0 = Integer.max(this.x0, other.x0);
+        int y0 = Integer.max(this.y0, other.y0);
+        int x1 = Integer.min(this.x1(), other.x1());
+        int y1 = Integer.min(this.y1(), other.y1());
+        return new Rectangle(x0, y0, Integer.max(0, x1 - x0), Integer.max(0, y1 - y0));
+    }
+
+    public boolean intersects(Rectangle other) {
+        return !intersection(other).isEmpty();
+    }
 }
@@ -0,0 +1,267 @@
+package com.nocmok.pancake;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.nocmok.pancake.utils.Rectangle;
+
+import org.junit.jupiter.api.Test;
+
+public class InterleavedBandsTest {
+
+    private static final int XSIZE = 11;
+
+    private static final int YSIZE = 7;
+
+    private static final int BANDS = 3;
+
+    private static final int DATATYPE = Pancake.TYPE_UINT_16;
+
+    private static final int DT_BYTES = 2;
+
+    /**
+     * Dataset of memory bands, multi band i/o is split into band i/o with the
+     * same spacing. Combined calls are counted and buffers of writes are kept.
+     */
+    private static class MemoryDataset implements PancakeDataset {
+
+        final List<PancakeBand> bands = new ArrayList<>();
+
+        int reads = 0;
+
+        final List<ByteBuffer> writeBuffers = new ArrayList<>();
+
+        MemoryDataset(Random random) {
+            for (int i = 0; i < BANDS; ++i) {
+                MemoryBand band = new MemoryBand(XSIZE, YSIZE, 4, 4, DATATYPE);
+                for (int y = 0; y < YSIZE; ++y) {
+                    for (int x = 0; x < XSIZE; ++x) {
+                        band.setRaw(x, y, random.nextInt(65536));
+                    }
+                }
+                bands.add(band);
+            }
+        }
+
+        MemoryBand band(int i) {
+            return (MemoryBand) bands.get(i);
+        }
+
+        private ByteBuffer bandBuffer(ByteBuffer buf, int band, int ysize, int lineSpace, int bandSpace) {
+            ByteBuffer dup = buf.duplicate();
+            dup.position(band * ((bandSpace == 0) ? lineSpace * ysize : bandSpace));
+            return dup.slice();
+        }
+
+        @Override
+        public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, int bufType, int[] bands,
+                ByteBuffer nioBuffer, int pixelSpace, int lineSpace, int bandSpace) {
+            ++reads;
+            for (int i = 0; i < bands.length; ++i) {
+                this.bands.get(bands[i]).readRasterDirect(xoff, yoff, xsize, ysize, xsize, ysize, bufType,
+                        bandBuffer(nioBuffer, i, ysize, lineSpace, bandSpace), pixelSpace, lineSpace);
+            }
+            return 0;
+        }
+
+        @Override
+        public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, int bufType, int[] bands,
+                ByteBuffer nioBuffer, int pixelSpace, int lineSpace, int bandSpace) {
+            writeBuffers.add(nioBuffer);
+            for (int i = 0; i < bands.length; ++i) {
+                this.bands.get(bands[i]).writeRasterDirect(xoff, yoff, xsize, ysize, xsize, ysize, bufType,
+                        bandBuffer(nioBuffer, i, ysize, lineSpace, bandSpace), pixelSpace, lineSpace);
+            }
+            return 0;
+        }
+
+        @Override
+        public List<PancakeBand> bands() {
+            return bands;
+        }
+
+        @Override
+        public File path() {
+            return null;
+        }
+
+        @Override
+        public void flushCache() {
+        }
+
+        @Override
+        public int xSize() {
+            return XSIZE;
+        }
+
+        @Override
+        public int ySize() {
+            return YSIZE;
+        }
+
+        @Override
+        public Formats format() {
+            return null;
+        }
+
+        @Override
+        public String formatString() {
+            return null;
+        }
+
+        @Override
+        public void createOverviews(int[] factors) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public List<PancakeBand> overviewBands(int level) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /** Buffer with two samples per pixel and two padding samples per row */
+    private static ByteBuffer spaced(Rectangle window) {
+        return ByteBuffer.allocateDirect(lineSpace(window) * window.ySize()).order(ByteOrder.nativeOrder());
+    }
+
+    private static int pixelSpace() {
+        return 2 * DT_BYTES;
+    }
+
+    private static int lineSpace(Rectangle window) {
+        return (window.xSize() + 1) * pixelSpace();
+    }
+
+    private static int pos(Rectangle window, int x, int y) {
+        return (y - window.y0()) * lineSpace(window) + (x - window.x0()) * pixelSpace();
+    }
+
+    /** Writes window of view with pixel and line spacing, sample values depend on band */
+    private static void write(PancakeBand view, int band, Rectangle window) {
+        ByteBuffer buf = spaced(window);
+        for (int y = window.y0(); y < window.y1(); ++y) {
+            for (int x = window.x0(); x < window.x1(); ++x) {
+                buf.putShort(pos(window, x, y), (short) value(band, x, y));
+            }
+        }
+        view.writeRasterDirect(window.x0(), window.y0(), window.xSize(), window.ySize(), window.xSize(),
+                window.ySize(), DATATYPE, buf, pixelSpace(), lineSpace(window));
+    }
+
+    private static int value(int band, int x, int y) {
+        return 1000 * band + 10 * y + x;
+    }
+
+    @Test
+    public void testReadWithSpacing() {
+        MemoryDataset dataset = new MemoryDataset(new Random(1));
+        InterleavedBands interleaved = new InterleavedBands(dataset);
+        Rectangle window = new Rectangle(2, 1, 5, 4);
+        for (int band = 0; band < BANDS; ++band) {
+            ByteBuffer buf = spaced(window);
+            interleaved.bands().get(band).readRasterDirect(window.x0(), window.y0(), window.xSize(),
+                    window.ySize(), window.xSize(), window.ySize(), DATATYPE, buf, pixelSpace(), lineSpace(window));
+            for (int y = window.y0(); y < window.y1(); ++y) {
+                for (int x = window.x0(); x < window.x1(); ++x) {
+                    assertEquals(dataset.band(band).getRaw(x, y), Short.toUnsignedLong(buf.getShort(pos(window, x, y))),
+                            "band " + band + ", sample " + x + ", " + y);
+                }
+            }
+        }
+        assertEquals(1, dataset.reads);
+    }
+
+    @Test
+    public void testWriteWithSpacing() {
+        MemoryDataset dataset = new MemoryDataset(new Random(2));
+        InterleavedBands interleaved = new InterleavedBands(dataset);
+        Rectangle window = new Rectangle(3, 2, 8, 5);
+        for (int band = 0; band < BANDS; ++band) {
+            assertTrue(dataset.writeBuffers.isEmpty(), "window is written before all bands wrote it");
+            write(interleaved.bands().get(band), band, window);
+        }
+        assertEquals(1, dataset.writeBuffers.size());
+        for (int band = 0; band < BANDS; ++band) {
+            for (int y = window.y0(); y < window.y1(); ++y) {
+                for (int x = window.x0(); x < window.x1(); ++x) {
+                    assertEquals(value(band, x, y), dataset.band(band).getRaw(x, y),
+                            "band " + band + ", sample " + x + ", " + y);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFlushWritesPartialWindowsBandByBand() {
+        MemoryDataset dataset = new MemoryDataset(new Random(3));
+        long untouched = dataset.band(1).getRaw(0, 0);
+        InterleavedBands interleaved = new InterleavedBands(dataset);
+        Rectangle window = new Rectangle(0, 0, 4, 3);
+        write(interleaved.bands().get(0), 0, window);
+        write(interleaved.bands().get(2), 2, window);
+        assertTrue(dataset.band(0).writes().isEmpty());
+
+        interleaved.flush();
+        assertTrue(dataset.writeBuffers.isEmpty());
+        assertEquals(List.of(MemoryBand.window(window)), dataset.band(0).writes());
+        assertTrue(dataset.band(1).writes().isEmpty());
+        assertEquals(List.of(MemoryBand.window(window)), dataset.band(2).writes());
+        for (int y = window.y0(); y < window.y1(); ++y) {
+            for (int x = window.x0(); x < window.x1(); ++x) {
+                assertEquals(value(0, x, y), dataset.band(0).getRaw(x, y));
+                assertEquals(value(2, x, y), dataset.band(2).getRaw(x, y));
+            }
+        }
+        assertEquals(untouched, dataset.band(1).getRaw(0, 0));
+
+        /** flushed windows are not written again */
+        interleaved.flush();
+        assertEquals(1, dataset.band(0).writes().size());
+    }
+
+    @Test
+    public void testReadFlushesPendingWrites() {
+        MemoryDataset dataset = new MemoryDataset(new Random(4));
+        InterleavedBands interleaved = new InterleavedBands(dataset);
+        Rectangle window = new Rectangle(5, 3, 6, 4);
+        write(interleaved.bands().get(1), 1, window);
+        ByteBuffer buf = spaced(window);
+        interleaved.bands().get(1).readRasterDirect(window.x0(), window.y0(), window.xSize(), window.ySize(),
+                window.xSize(), window.ySize(), DATATYPE, buf, pixelSpace(), lineSpace(window));
+        assertEquals(value(1, 7, 5), Short.toUnsignedLong(buf.getShort(pos(window, 7, 5))));
+    }
+
+    @Test
+    public void testWriteBuffersAreReused() {
+        MemoryDataset dataset = new MemoryDataset(new Random(5));
+        InterleavedBands interleaved = new InterleavedBands(dataset);
+        Rectangle large = new Rectangle(0, 0, 8, 4);
+        Rectangle small = new Rectangle(8, 0, 3, 4);
+        for (Rectangle window : List.of(large, small)) {
+            for (int band = 0; band < BANDS; ++band) {
+                write(interleaved.bands().get(band), band, window);
+            }
+        }
+        assertEquals(2, dataset.writeBuffers.size());
+        assertSame(dataset.writeBuffers.get(0), dataset.writeBuffers.get(1));
+
+        /** flushed buffer is reused as well */
+        write(interleaved.bands().get(0), 0, small);
+        interleaved.flush();
+        for (int band = 0; band < BANDS; ++band) {
+            write(interleaved.bands().get(band), band, large);
+        }
+        assertSame(dataset.writeBuffers.get(0), dataset.writeBuffers.get(2));
+    }
+}
@@ -0,0 +1,216 @@
+package com.nocmok.pancake;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.nocmok.pancake.utils.Rectangle;
+
+/**
+ * Band, that keeps samples in memory in its datatype. Raster i/o is supported
+ * without resampling and datatype conversion only. Windows of reads and writes
+ * are recorded as lists of offsets and sizes, so that tests may check i/o
+ * order.
+ */
+public class MemoryBand implements PancakeBand {
+
+    private final int xsize;
+
+    private final int ysize;
+
+    private final int blockXSize;
+
+    private final int blockYSize;
+
+    private final int datatype;
+
+    private final int dtBytes;
+
+    private final ByteBuffer data;
+
+    private final List<List<Integer>> reads = new ArrayList<>();
+
+    private final List<List<Integer>> writes = new ArrayList<>();
+
+    public MemoryBand(int xsize, int ysize, int blockXSize, int blockYSize, int datatype) {
+        this.xsize = xsize;
+        this.ysize = ysize;
+        this.blockXSize = blockXSize;
+        this.blockYSize = blockYSize;
+        this.datatype = datatype;
+        this.dtBytes = Pancake.dtBytes(datatype);
+        this.data = ByteBuffer.allocate(xsize * ysize * dtBytes).order(ByteOrder.nativeOrder());
+    }
+
+    /** @return sample bits, unsigned */
+    public synchronized long getRaw(int x, int y) {
+        int pos = (y * xsize + x) * dtBytes;
+        switch (dtBytes) {
+        case 1:
+            return Byte.toUnsignedLong(data.get(pos));
+        case 2:
+            return Short.toUnsignedLong(data.getShort(pos));
+        case 4:
+            return Integer.toUnsignedLong(data.getInt(pos));
+        default:
+            return data.getLong(pos);
+        }
+    }
+
+    /** Stores least bits of value, that fit in datatype */
+    public synchronized void setRaw(int x, int y, long value) {
+        int pos = (y * xsize + x) * dtBytes;
+        switch (dtBytes) {
+        case 1:
+            data.put(pos, (byte) value);
+            break;
+        case 2:
+            data.putShort(pos, (short) value);
+            break;
+        case 4:
+            data.putInt(pos, (int) value);
+            break;
+        default:
+            data.putLong(pos, value);
+            break;
+        }
+    }
+
+    /** @return window as it is recorded by band */
+    public static List<Integer> window(Rectangle area) {
+        return Arrays.asList(area.x0(), area.y0(), area.xSize(), area.ySize());
+    }
+
+    /** @return windows read so far in order of reads */
+    public synchronized List<List<Integer>> reads() {
+        return new ArrayList<>(reads);
+    }
+
+    /** @return windows written so far in order of writes */
+    public synchronized List<List<Integer>> writes() {
+        return new ArrayList<>(writes);
+    }
+
+    private void validate(int xsize, int ysize, int bufXSize, int bufYSize, int bufType) {
+        if (xsize != bufXSize || ysize != bufYSize || bufType != datatype) {
+            throw new UnsupportedOperationException("memory band doesn't resample and convert samples");
+        }
+    }
+
+    private void copy(ByteBuffer src, int srcPos, ByteBuffer dst, int dstPos) {
+        for (int b = 0; b < dtBytes; ++b) {
+            dst.put(dstPos + b, src.get(srcPos + b));
+        }
+    }
+
+    @Override
+    public synchronized int readRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize,
+            int buf_ysize, int buf_type, ByteBuffer nioBuffer, int nPixelSpace, int nLineSpace) {
+        validate(xsize, ysize, buf_xsize, buf_ysize, buf_type);
+        int pixelSpace = (nPixelSpace == 0) ? dtBytes : nPixelSpace;
+        int lineSpace = (nLineSpace == 0) ? xsize * pixelSpace : nLineSpace;
+        for (int y = 0; y < ysize; ++y) {
+            for (int x = 0; x < xsize; ++x) {
+                copy(data, ((yoff + y) * this.xsize + xoff + x) * dtBytes, nioBuffer, y * lineSpace + x * pixelSpace);
+            }
+        }
+        reads.add(window(new Rectangle(xoff, yoff, xsize, ysize)));
+        return 0;
+    }
+
+    @Override
+    public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize,
+            int buf_type, ByteBuffer nioBuffer) {
+        return readRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, buf_type, nioBuffer, 0, 0);
+    }
+
+    @Override
+    public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize,
+            ByteBuffer nioBuffer) {
+        return readRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, datatype, nioBuffer);
+    }
+
+    @Override
+    public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, ByteBuffer nioBuffer) {
+        return readRasterDirect(xoff, yoff, xsize, ysize, xsize, ysize, nioBuffer);
+    }
+
+    @Override
+    public synchronized int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize,
+            int buf_ysize, int buf_type, ByteBuffer nioBuffer, int nPixelSpace, int nLineSpace) {
+        validate(xsize, ysize, buf_xsize, buf_ysize, buf_type);
+        int pixelSpace = (nPixelSpace == 0) ? dtBytes : nPixelSpace;
+        int lineSpace = (nLineSpace == 0) ? xsize * pixelSpace : nLineSpace;
+        for (int y = 0; y < ysize; ++y) {
+            for (int x = 0; x < xsize; ++x) {
+                copy(nioBuffer, y * lineSpace + x * pixelSpace, data, ((yoff + y) * this.xsize + xoff + x) * dtBytes);
+            }
+        }
+        writes.add(window(new Rectangle(xoff, yoff, xsize, ysize)));
+        return 0;
+    }
+
+    @Override
+    public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize,
+            int buf_type, ByteBuffer nioBuffer) {
+        return writeRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, buf_type, nioBuffer, 0, 0);
+    }
+
+    @Override
+    public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize,
+            ByteBuffer nioBuffer) {
+        return writeRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, datatype, nioBuffer);
+    }
+
+    @Override
+    public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, ByteBuffer nioBuffer) {
+        return writeRasterDirect(xoff, yoff, xsize, ysize, xsize, ysize, nioBuffer);
+    }
+
+    @Override
+    public int getXSize() {
+        return xsize;
+    }
+
+    @Override
+    public int getYSize() {
+        return ysize;
+    }
+
+    @Override
+    public int getBlockXSize() {
+        return blockXSize;
+    }
+
+    @Override
+    public int getBlockYSize() {
+        return blockYSize;
+    }
+
+    @Override
+    public int getRasterDatatype() {
+        return datatype;
+    }
+
+    @Override
+    public double getNoData() {
+        return 0;
+    }
+
+    @Override
+    public double maxValue() {
+        return Pancake.dtMax(datatype);
+    }
+
+    @Override
+    public double minValue() {
+        return Pancake.dtMin(datatype);
+    }
+
+    @Override
+    public PancakeDataset dataset() {
+        return null;
+    }
+}
@@ -0,0 +1,196 @@
+package com.nocmok.pancake.fusor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.nocmok.pancake.MemoryBand;
+import com.nocmok.pancake.Pancake;
+import com.nocmok.pancake.utils.Rectangle;
+
+import org.junit.jupiter.api.Test;
+
+public class BlockWriterTest {
+
+    private static final Rectangle A = new Rectangle(0, 0, 4, 2);
+
+    private static final Rectangle B = new Rectangle(4, 0, 4, 2);
+
+    private static final Rectangle C = new Rectangle(0, 2, 4, 2);
+
+    private static final int CAPACITY = 8;
+
+    /** Byte band, whose writes wait until gate is opened */
+    private static class GatedBand extends MemoryBand {
+
+        final CountDownLatch entered = new CountDownLatch(1);
+
+        final CountDownLatch gate = new CountDownLatch(1);
+
+        GatedBand() {
+            super(8, 4, 4, 2, Pancake.TYPE_BYTE);
+        }
+
+        @Override
+        public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize,
+                int buf_type, ByteBuffer nioBuffer, int nPixelSpace, int nLineSpace) {
+            entered.countDown();
+            try {
+                gate.await();
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return super.writeRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, buf_type, nioBuffer,
+                    nPixelSpace, nLineSpace);
+        }
+    }
+
+    /** Byte band, that fails to write, once gate is opened */
+    private static class FailingBand extends GatedBand {
+
+        final RuntimeException error = new RuntimeException("write failed");
+
+        @Override
+        public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize,
+                int buf_type, ByteBuffer nioBuffer, int nPixelSpace, int nLineSpace) {
+            super.writeRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, buf_type, nioBuffer, nPixelSpace,
+                    nLineSpace);
+            throw error;
+        }
+    }
+
+    private static MemoryBand band() {
+        return new MemoryBand(8, 4, 4, 2, Pancake.TYPE_BYTE);
+    }
+
+    /** Fills block in acquired buffer with value and passes it to writer */
+    private static void write(BlockWriter writer, MemoryBand band, Rectangle block, int value) {
+        ByteBuffer buf = writer.acquire();
+        for (int i = 0; i < block.xSize() * block.ySize(); ++i) {
+            buf.put(i, (byte) value);
+        }
+        writer.write(band, block, buf);
+    }
+
+    /** Waits until thread parks, e.g. on empty queue or on join */
+    private static void awaitWaiting(Thread thread) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (thread.getState() != Thread.State.WAITING && thread.getState() != Thread.State.TIMED_WAITING) {
+            assertTrue(thread.isAlive(), "thread finished instead of waiting");
+            assertTrue(System.currentTimeMillis() < deadline, "thread doesn't wait");
+            Thread.sleep(1);
+        }
+    }
+
+    @Test
+    public void testBlocksAreWritten() {
+        for (int queued : new int[] { 0, 2 }) {
+            MemoryBand band = band();
+            try (BlockWriter writer = new BlockWriter(1, queued, CAPACITY)) {
+                write(writer, band, A, 1);
+                write(writer, band, B, 2);
+                write(writer, band, C, 3);
+                writer.finish();
+            }
+            assertEquals(List.of(MemoryBand.window(A), MemoryBand.window(B), MemoryBand.window(C)), band.writes());
+            assertEquals(1, band.getRaw(3, 1));
+            assertEquals(2, band.getRaw(4, 0));
+            assertEquals(3, band.getRaw(0, 3));
+            assertEquals(0, band.getRaw(7, 3));
+        }
+    }
+
+    @Test
+    public void testFailureOnWriterThreadIsRethrown() {
+        FailingBand failing = new FailingBand();
+        MemoryBand band = band();
+        try (BlockWriter writer = new BlockWriter(1, 2, CAPACITY)) {
+            write(writer, failing, A, 1);
+            write(writer, band, B, 2);
+            failing.gate.countDown();
+            RuntimeException e = assertThrows(RuntimeException.class, writer::finish);
+            assertSame(failing.error, e.getCause());
+            /** blocks after failure are dropped */
+            assertTrue(band.writes().isEmpty());
+            e = assertThrows(RuntimeException.class, writer::acquire);
+            assertSame(failing.error, e.getCause());
+        }
+    }
+
+    @Test
+    public void testSynchronousFailureReturnsBuffer() {
+        FailingBand failing = new FailingBand();
+        MemoryBand band = band();
+        failing.gate.countDown();
+        try (BlockWriter writer = new BlockWriter(1, 0, CAPACITY)) {
+            RuntimeException e = assertThrows(RuntimeException.class, () -> write(writer, failing, A, 1));
+            assertSame(failing.error, e.getCause());
+            /** single buffer is back in pool, so acquire doesn't block */
+            write(writer, band, B, 2);
+            writer.finish();
+        }
+        assertEquals(List.of(MemoryBand.window(B)), band.writes());
+    }
+
+    @Test
+    public void testCloseWithoutFinishDropsQueuedBlocks() throws InterruptedException {
+        GatedBand gated = new GatedBand();
+        MemoryBand band = band();
+        BlockWriter writer = new BlockWriter(1, 2, CAPACITY);
+        write(writer, gated, A, 1);
+        gated.entered.await();
+        write(writer, band, B, 2);
+
+        Thread closer = new Thread(writer::close);
+        closer.start();
+        /** closer waits for writer thread, once queued block is dropped */
+        awaitWaiting(closer);
+        gated.gate.countDown();
+        closer.join(10_000);
+        assertFalse(closer.isAlive(), "close doesn't return");
+
+        assertEquals(List.of(MemoryBand.window(A)), gated.writes());
+        assertTrue(band.writes().isEmpty());
+        /** closing twice is harmless */
+        writer.close();
+    }
+
+    @Test
+    public void testCloseAfterFinish() {
+        MemoryBand band = band();
+        BlockWriter writer = new BlockWriter(1, 1, CAPACITY);
+        write(writer, band, A, 1);
+        writer.finish();
+        writer.close();
+        assertEquals(List.of(MemoryBand.window(A)), band.writes());
+    }
+
+    @Test
+    public void testAcquireBlocksWhenPoolIsExhausted() throws InterruptedException {
+        GatedBand gated = new GatedBand();
+        try (BlockWriter writer = new BlockWriter(1, 1, CAPACITY)) {
+            write(writer, gated, A, 1);
+            gated.entered.await();
+            /** second buffer waits in queue, while first one is being written */
+            write(writer, gated, B, 2);
+
+            AtomicReference<ByteBuffer> acquired = new AtomicReference<>();
+            Thread compute = new Thread(() -> acquired.set(writer.acquire()));
+            compute.start();
+            awaitWaiting(compute);
+            assertNull(acquired.get());
+
+            gated.gate.countDown();
+            compute.join(10_000);
+            assertFalse(compute.isAlive(), "acquire doesn't return");
+            assertNotNull(acquired.get());
+            writer.write(gated, C, acquired.get());
+            writer.finish();
+        }
+        assertEquals(List.of(MemoryBand.window(A), MemoryBand.window(B), MemoryBand.window(C)), gated.writes());
+        assertEquals(2, gated.getRaw(4, 0));
+    }
+}
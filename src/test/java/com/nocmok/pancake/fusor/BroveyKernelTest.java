@@ -0,0 +1,192 @@
+package com.nocmok.pancake.fusor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.nocmok.pancake.Pancake;
+
+import org.junit.jupiter.api.Test;
+
+public class BroveyKernelTest {
+
+    private static final int XSIZE = 37;
+
+    private static final int YSIZE = 11;
+
+    private static double rangeMin(int dtype) {
+        return Pancake.isInt(dtype) ? Pancake.dtMin(dtype) : 0d;
+    }
+
+    private static double rangeMax(int dtype) {
+        return Pancake.isInt(dtype) ? Pancake.dtMax(dtype) : 1d;
+    }
+
+    /**
+     * Rounds and saturates value as if it was stored in buffer of integer data
+     * type, floating point values are kept in double precision
+     */
+    private static double store(double value, int dtype) {
+        if (!Pancake.isInt(dtype)) {
+            return value;
+        }
+        return Math.min(Pancake.dtMax(dtype), Math.max(Pancake.dtMin(dtype), Math.rint(value)));
+    }
+
+    /**
+     * Maps sample from source data type range to [0, max] range of destination
+     * data type
+     */
+    private static double scale(double value, int srcDtype, int dstDtype) {
+        return (value - rangeMin(srcDtype)) / (rangeMax(srcDtype) - rangeMin(srcDtype)) * rangeMax(dstDtype);
+    }
+
+    private static ByteBuffer allocate(int dtype) {
+        return ByteBuffer.allocateDirect(XSIZE * YSIZE * Pancake.dtBytes(dtype)).order(ByteOrder.nativeOrder());
+    }
+
+    private static double get(ByteBuffer buf, int dtype, int i) {
+        switch (dtype) {
+        case Pancake.TYPE_BYTE:
+            return buf.get(i) & 0xff;
+        case Pancake.TYPE_UINT_16:
+            return buf.getShort(2 * i) & 0xffff;
+        case Pancake.TYPE_FLOAT_32:
+            return buf.getFloat(4 * i);
+        default:
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static void put(ByteBuffer buf, int dtype, int i, double value) {
+        switch (dtype) {
+        case Pancake.TYPE_BYTE:
+            buf.put(i, (byte) value);
+            break;
+        case Pancake.TYPE_UINT_16:
+            buf.putShort(2 * i, (short) value);
+            break;
+        case Pancake.TYPE_FLOAT_32:
+            buf.putFloat(4 * i, (float) value);
+            break;
+        default:
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Fills block with random samples of data type range, every seventh sample is
+     * zero
+     */
+    private static ByteBuffer random(int dtype, Random random) {
+        ByteBuffer buf = allocate(dtype);
+        for (int i = 0; i < XSIZE * YSIZE; ++i) {
+            double value = (i % 7 == 0) ? 0d : random.nextDouble() * rangeMax(dtype);
+            put(buf, dtype, i, Pancake.isInt(dtype) ? Math.floor(value) : value);
+        }
+        return buf;
+    }
+
+    /**
+     * Applies kernel to random blocks and compares result with per sample
+     * reference
+     */
+    private void check(int paDtype, int niDtype, int[] msDtypes, int[] dstDtypes, double[] msWeights,
+            double niWeight, long seed) {
+        Random random = new Random(seed);
+        ByteBuffer pa = random(paDtype, random);
+        ByteBuffer ni = random(niDtype, random);
+        ByteBuffer[] ms = new ByteBuffer[3];
+        ByteBuffer[] dst = new ByteBuffer[3];
+        for (int i = 0; i < 3; ++i) {
+            ms[i] = random(msDtypes[i], random);
+            dst[i] = allocate(dstDtypes[i]);
+        }
+
+        BroveyKernel kernel = new BroveyKernel(paDtype, niDtype,
+                Arrays.asList(msDtypes[0], msDtypes[1], msDtypes[2]),
+                Arrays.asList(dstDtypes[0], dstDtypes[1], dstDtypes[2]),
+                Arrays.asList(msWeights[0], msWeights[1], msWeights[2]), niWeight);
+        kernel.apply(pa, ni, ms, dst, XSIZE, YSIZE);
+
+        for (int i = 0; i < XSIZE * YSIZE; ++i) {
+            double pan = get(pa, paDtype, i);
+            if (niWeight != 0d) {
+                double nir = store(scale(get(ni, niDtype, i), niDtype, paDtype), paDtype);
+                nir = store(nir * niWeight, paDtype);
+                pan = store(pan - nir, paDtype);
+            }
+            double[] weighted = new double[3];
+            double sum = 0d;
+            for (int b = 0; b < 3; ++b) {
+                if (msWeights[b] != 0d) {
+                    weighted[b] = store(scale(get(ms[b], msDtypes[b], i), msDtypes[b], paDtype), paDtype)
+                            * msWeights[b];
+                }
+                sum += weighted[b];
+            }
+            for (int b = 0; b < 3; ++b) {
+                double ratio = (sum == 0d) ? 0d : pan / sum;
+                double expected = store(ratio * weighted[b] * (rangeMax(dstDtypes[b]) / rangeMax(paDtype)),
+                        dstDtypes[b]);
+                double actual = get(dst[b], dstDtypes[b], i);
+                if (Pancake.isInt(dstDtypes[b])) {
+                    assertEquals(expected, actual, 0d, "band " + b + " sample " + i);
+                } else {
+                    assertEquals(expected, actual, 1e-6 * Math.max(1d, Math.abs(expected)),
+                            "band " + b + " sample " + i);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testByte() {
+        int b = Pancake.TYPE_BYTE;
+        check(b, b, new int[] { b, b, b }, new int[] { b, b, b }, new double[] { 1d, 1d, 1d }, 0d, 1);
+    }
+
+    @Test
+    public void testUInt16() {
+        int u = Pancake.TYPE_UINT_16;
+        check(u, u, new int[] { u, u, u }, new int[] { u, u, u }, new double[] { 0.3, 0.5, 0.2 }, 0d, 2);
+    }
+
+    @Test
+    public void testFloat32() {
+        int f = Pancake.TYPE_FLOAT_32;
+        check(f, f, new int[] { f, f, f }, new int[] { f, f, f }, new double[] { 0.4, 0.4, 0.2 }, 0d, 3);
+    }
+
+    @Test
+    public void testMixedDatatypes() {
+        int b = Pancake.TYPE_BYTE;
+        int u = Pancake.TYPE_UINT_16;
+        int f = Pancake.TYPE_FLOAT_32;
+        check(u, b, new int[] { b, u, f }, new int[] { f, b, u }, new double[] { 1d, 1d, 1d }, 0d, 4);
+        check(f, u, new int[] { u, b, f }, new int[] { b, u, f }, new double[] { 1d, 0.5, 0.25 }, 0d, 5);
+        check(b, f, new int[] { f, f, u }, new int[] { u, u, b }, new double[] { 0.25, 0.5, 1d }, 0d, 6);
+    }
+
+    @Test
+    public void testZeroWeights() {
+        int b = Pancake.TYPE_BYTE;
+        int u = Pancake.TYPE_UINT_16;
+        check(u, u, new int[] { u, u, u }, new int[] { b, b, b }, new double[] { 1d, 0d, 1d }, 0d, 7);
+        check(b, b, new int[] { b, b, b }, new int[] { u, u, u }, new double[] { 0d, 0d, 1d }, 0d, 8);
+        check(b, b, new int[] { b, b, b }, new int[] { b, b, b }, new double[] { 0d, 0d, 0d }, 0d, 9);
+    }
+
+    @Test
+    public void testNir() {
+        int b = Pancake.TYPE_BYTE;
+        int u = Pancake.TYPE_UINT_16;
+        int f = Pancake.TYPE_FLOAT_32;
+        check(b, b, new int[] { b, b, b }, new int[] { b, b, b }, new double[] { 1d, 1d, 1d }, 0.3, 10);
+        check(u, b, new int[] { u, u, u }, new int[] { u, u, u }, new double[] { 0.5, 1d, 0d }, 0.8, 11);
+        check(f, f, new int[] { f, f, f }, new int[] { f, b, u }, new double[] { 1d, 1d, 1d }, 0.5, 12);
+    }
+}
@@ -0,0 +1,131 @@
+package com.nocmok.pancake.fusor;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import com.nocmok.pancake.MemoryBand;
+import com.nocmok.pancake.Pancake;
+import com.nocmok.pancake.Spectrum;
+import com.nocmok.pancake.math.BoxHP;
+import com.nocmok.pancake.math.Buffer2D;
+import com.nocmok.pancake.math.Filter2D;
+import com.nocmok.pancake.math.GaussianHP;
+import com.nocmok.pancake.math.Math2D;
+import com.nocmok.pancake.utils.Rectangle;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+public class HPFMTest {
+
+    /** image size is not multiple of tile size, so that last blocks of rows and columns are narrower */
+    private static final int XSIZE = 37;
+
+    private static final int YSIZE = 29;
+
+    private static final int TILE_SIZE = 8;
+
+    /** region doesn't start at origin and doesn't reach image end */
+    private static final Rectangle REGION = new Rectangle(5, 3, 27, 22);
+
+    private static final double MAX = Pancake.dtMax(Pancake.TYPE_UINT_16);
+
+    @BeforeAll
+    public static void load() {
+        Pancake.load();
+    }
+
+    /** @return the same filter without separable form, so that it is convolved with 2d kernel */
+    private static Filter2D dense(Filter2D filter) {
+        return filter::getKernel;
+    }
+
+    private static MemoryBand random(Random random) {
+        MemoryBand band = new MemoryBand(XSIZE, YSIZE, TILE_SIZE, TILE_SIZE, Pancake.TYPE_UINT_16);
+        for (int y = 0; y < YSIZE; ++y) {
+            for (int x = 0; x < XSIZE; ++x) {
+                band.setRaw(x, y, random.nextInt((int) MAX + 1));
+            }
+        }
+        return band;
+    }
+
+    /** @return pan band convolved as single image in double precision */
+    private static double[] convolveWhole(MemoryBand pa, Filter2D filter) {
+        Buffer2D src = Buffer2D.arrange(XSIZE, YSIZE, Pancake.TYPE_FLOAT_64);
+        Buffer2D dst = Buffer2D.arrange(XSIZE, YSIZE, Pancake.TYPE_FLOAT_64);
+        for (int y = 0; y < YSIZE; ++y) {
+            for (int x = 0; x < XSIZE; ++x) {
+                src.getNioBuffer().putDouble((y * XSIZE + x) * Double.BYTES, pa.getRaw(x, y));
+            }
+        }
+        new Math2D().convolve(src, dense(filter), dst);
+        double[] conv = new double[XSIZE * YSIZE];
+        for (int i = 0; i < conv.length; ++i) {
+            conv[i] = dst.getNioBuffer().getDouble(i * Double.BYTES);
+        }
+        return conv;
+    }
+
+    /**
+     * Fuses region of random bands tile by tile and compares fused samples with
+     * ones computed from whole image convolution. Multispectral samples are
+     * summed with high pass of pan and the sum is mapped from [-max, 2 * max]
+     * to [0, max].
+     */
+    private static void check(Filter2D filter, Random random) {
+        MemoryBand pa = random(random);
+        Map<Spectrum, MemoryBand> src = new HashMap<>();
+        Map<Spectrum, MemoryBand> dst = new HashMap<>();
+        src.put(Spectrum.PA, pa);
+        for (Spectrum s : Spectrum.RGB()) {
+            src.put(s, random(random));
+            dst.put(s, new MemoryBand(XSIZE, YSIZE, TILE_SIZE, TILE_SIZE, Pancake.TYPE_UINT_16));
+        }
+
+        HPFM hpfm = new HPFM(filter);
+        hpfm.fuse(dst, src, REGION);
+        double[] conv = convolveWhole(pa, filter);
+
+        for (Spectrum s : Spectrum.RGB()) {
+            for (int y = 0; y < YSIZE; ++y) {
+                for (int x = 0; x < XSIZE; ++x) {
+                    String message = s.getName() + " band, sample " + x + ", " + y;
+                    if (x < REGION.x0() || x >= REGION.x1() || y < REGION.y0() || y >= REGION.y1()) {
+                        assertEquals(0L, dst.get(s).getRaw(x, y), message + " is out of region");
+                        continue;
+                    }
+                    double fused = (src.get(s).getRaw(x, y) + conv[y * XSIZE + x] + MAX) / 3;
+                    double expected = Math.min(MAX, Math.max(0, Math.rint(fused)));
+                    assertEquals(expected, dst.get(s).getRaw(x, y), 1d, message);
+                }
+            }
+        }
+        assertTrue(hpfm.blockSize(dst, src).xsize() < XSIZE, "image is fused in single block");
+    }
+
+    @Test
+    public void testDenseTilesMatchWholeImageConvolution() {
+        Random random = new Random(1);
+        check(dense(GaussianHP.ofSize(7)), random);
+        check(dense(BoxHP.ofSize(5)), random);
+    }
+
+    @Test
+    public void testSeparableTilesMatchWholeImageConvolution() {
+        Random random = new Random(2);
+        check(GaussianHP.ofSize(7), random);
+        check(BoxHP.ofSize(11), random);
+    }
+
+    @Test
+    public void testFFTTilesMatchWholeImageConvolution() {
+        /** kernels are large enough to be convolved as product of spectra */
+        Random random = new Random(3);
+        check(dense(GaussianHP.ofSize(25)), random);
+        check(dense(BoxHP.ofSize(27)), random);
+    }
+}
@@ -0,0 +1,226 @@
+package com.nocmok.pancake.math;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+public class FFTTest {
+
+    private static final double EPS = 1e-9;
+
+    private ComplexBuffer random(int size, long seed) {
+        Random random = new Random(seed);
+        ComplexBuffer buf = new NioComplexBuffer(size);
+        for (int i = 0; i < size; ++i) {
+            buf.set(i, random.nextDouble(), random.nextDouble());
+        }
+        return buf;
+    }
+
+    /** Direct 2d transform with the same sign convention as fft2 */
+    private ComplexBuffer dft2(ComplexBuffer in, int xSize, int ySize) {
+        ComplexBuffer out = new NioComplexBuffer(xSize * ySize);
+        for (int v = 0; v < ySize; ++v) {
+            for (int u = 0; u < xSize; ++u) {
+                double re = 0;
+                double im = 0;
+                for (int y = 0; y < ySize; ++y) {
+                    for (int x = 0; x < xSize; ++x) {
+                        double arg = 2 * Math.PI * ((double) u * x / xSize + (double) v * y / ySize);
+                        double cos = Math.cos(arg);
+                        double sin = Math.sin(arg);
+                        re += in.re(y * xSize + x) * cos - in.im(y * xSize + x) * sin;
+                        im += in.re(y * xSize + x) * sin + in.im(y * xSize + x) * cos;
+                    }
+                }
+                out.set(v * xSize + u, re, im);
+            }
+        }
+        return out;
+    }
+
+    private void assertBuffersEqual(ComplexBuffer expected, ComplexBuffer actual) {
+        for (int i = 0; i < expected.size(); ++i) {
+            assertEquals(expected.re(i), actual.re(i), EPS);
+            assertEquals(expected.im(i), actual.im(i), EPS);
+        }
+    }
+
+    @Test
+    public void testFft2MatchesDirectTransform() {
+        int xSize = 8;
+        int ySize = 4;
+        ComplexBuffer in = random(xSize * ySize, 1);
+        ComplexBuffer out = new NioComplexBuffer(xSize * ySize);
+
+        FFT.fft2(in, out, xSize, ySize);
+
+        assertBuffersEqual(dft2(in, xSize, ySize), out);
+    }
+
+    @Test
+    public void testIfft2InvertsFft2InPlace() {
+        int xSize = 16;
+        int ySize = 8;
+        ComplexBuffer in = random(xSize * ySize, 2);
+        ComplexBuffer buf = random(xSize * ySize, 2);
+
+        FFT.fft2(buf, buf, xSize, ySize);
+        FFT.ifft2(buf, buf, xSize, ySize);
+
+        assertBuffersEqual(in, buf);
+    }
+
+    private ComplexBuffer copy(ComplexBuffer buf, ComplexBuffer copy) {
+        for (int i = 0; i < buf.size(); ++i) {
+            copy.set(i, buf.re(i), buf.im(i));
+        }
+        return copy;
+    }
+
+    @Test
+    public void testPlanTransformsGenericBuffers() {
+        int n = 64;
+        ComplexBuffer in = random(n, 3);
+        /** padded wrapper is not nio buffer, so it is transformed in scratch array */
+        ComplexBuffer actual = PaddedComplexBuffer.pad(new NioComplexBuffer(n), 0);
+
+        FFT.fft1(in, actual);
+        assertBuffersEqual(dft2(in, n, 1), actual);
+
+        FFT.ifft1(actual, actual);
+        assertBuffersEqual(in, actual);
+    }
+
+    @Test
+    public void testPlanTransformsDirectBuffers() {
+        int n = 256;
+        ComplexBuffer in = random(n, 4);
+        ComplexBuffer direct = copy(in, new NioComplexBuffer(
+                ByteBuffer.allocateDirect(2 * n * Double.BYTES).order(ByteOrder.nativeOrder()).asDoubleBuffer()));
+        ComplexBuffer expected = new NioComplexBuffer(n);
+
+        FFT.fft1(in, expected);
+        FFT.fft1(direct, direct);
+        assertBuffersEqual(expected, direct);
+
+        FFT.ifft1(direct, direct);
+        assertBuffersEqual(in, direct);
+    }
+
+    @Test
+    public void testParallelFft2MatchesSerialTransform() {
+        int xSize = 256;
+        int ySize = 128;
+        ComplexBuffer in = random(xSize * ySize, 5);
+        /** padded wrapper is transformed serially by strided views */
+        ComplexBuffer expected = PaddedComplexBuffer.pad(new NioComplexBuffer(xSize * ySize), 0);
+        ComplexBuffer actual = new NioComplexBuffer(xSize * ySize);
+        ForkJoinPool pool = new ForkJoinPool(4);
+
+        try {
+            FFT.fft2(in, expected, xSize, ySize);
+            FFT.fft2(in, actual, xSize, ySize, pool);
+            assertBuffersEqual(expected, actual);
+
+            FFT.ifft2(actual, actual, xSize, ySize, pool);
+            assertBuffersEqual(in, actual);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testFft2OfMixedRadixAndBluesteinSizesMatchesDirectTransform() {
+        /** 12 and 15 are products of 2, 3 and 5, 7 is transformed by chirp convolution */
+        int[][] sizes = { { 12, 7 }, { 15, 10 }, { 40, 3 }, { 7, 1 } };
+        for (int[] size : sizes) {
+            ComplexBuffer in = random(size[0] * size[1], 6);
+            ComplexBuffer out = new NioComplexBuffer(size[0] * size[1]);
+
+            FFT.fft2(in, out, size[0], size[1]);
+            assertBuffersEqual(dft2(in, size[0], size[1]), out);
+
+            FFT.ifft2(out, out, size[0], size[1]);
+            assertBuffersEqual(in, out);
+        }
+    }
+
+    @Test
+    public void testFft1OfNonPow2SizeMatchesDirectTransform() {
+        int n = 2049;
+        ComplexBuffer in = random(n, 7);
+        ComplexBuffer actual = new NioComplexBuffer(n);
+        /** padded wrapper is transformed through buffer interface */
+        ComplexBuffer generic = PaddedComplexBuffer.pad(new NioComplexBuffer(n), 0);
+
+        FFT.fft1(in, actual);
+        FFT.fft1(in, generic);
+
+        ComplexBuffer expected = dft2(in, n, 1);
+        assertBuffersEqual(expected, actual);
+        assertBuffersEqual(expected, generic);
+    }
+
+    @Test
+    public void testRealPlanMatchesComplexTransform() {
+        for (int n : new int[] { 1, 2, 16, 30, 15, 14 }) {
+            Random random = new Random(n);
+            double[] samples = new double[n];
+            ComplexBuffer in = new NioComplexBuffer(n);
+            for (int i = 0; i < n; ++i) {
+                samples[i] = random.nextDouble();
+                in.set(i, samples[i], 0d);
+            }
+            ComplexBuffer expected = new NioComplexBuffer(n);
+            FFT.fft1(in, expected);
+
+            RealFFTPlan plan = RealFFTPlan.of(n);
+            double[] spectrum = new double[2 * plan.spectrumSize()];
+            plan.fft(samples, 0, spectrum, 0);
+            for (int k = 0; k < plan.spectrumSize(); ++k) {
+                assertEquals(expected.re(k), spectrum[2 * k], EPS);
+                assertEquals(expected.im(k), spectrum[2 * k + 1], EPS);
+            }
+
+            double[] restored = new double[n];
+            plan.ifft(spectrum, 0, restored, 0);
+            assertArrayEquals(samples, restored, EPS);
+        }
+    }
+
+    @Test
+    public void testRfft2MatchesFft2() {
+        int xSize = 20;
+        int ySize = 9;
+        Random random = new Random(8);
+        double[] samples = new double[xSize * ySize];
+        ComplexBuffer in = new NioComplexBuffer(xSize * ySize);
+        for (int i = 0; i < samples.length; ++i) {
+            samples[i] = random.nextDouble();
+            in.set(i, samples[i], 0d);
+        }
+        ComplexBuffer expected = new NioComplexBuffer(xSize * ySize);
+        FFT.fft2(in, expected, xSize, ySize);
+
+        int spectrumXSize = xSize / 2 + 1;
+        NioComplexBuffer spectrum = new NioComplexBuffer(spectrumXSize * ySize);
+        FFT.rfft2(DoubleBuffer.wrap(samples), spectrum, xSize, ySize);
+        for (int y = 0; y < ySize; ++y) {
+            for (int x = 0; x < spectrumXSize; ++x) {
+                assertEquals(expected.re(y * xSize + x), spectrum.re(y * spectrumXSize + x), EPS);
+                assertEquals(expected.im(y * xSize + x), spectrum.im(y * spectrumXSize + x), EPS);
+            }
+        }
+
+        double[] restored = new double[xSize * ySize];
+        FFT.irfft2(spectrum, DoubleBuffer.wrap(restored), xSize, ySize);
+        assertArrayEquals(samples, restored, EPS);
+    }
+}
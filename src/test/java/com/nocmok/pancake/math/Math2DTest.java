@@ -0,0 +1,114 @@
+package com.nocmok.pancake.math;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.List;
+import java.util.Random;
+
+import com.nocmok.pancake.Pancake;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+public class Math2DTest {
+
+    private static final int[] SIZES = { 3, 5, 9, 15 };
+
+    @BeforeAll
+    public static void load() {
+        Pancake.load();
+    }
+
+    /** @return the same filter without separable form, so that it is convolved with 2d kernel */
+    private static Filter2D dense(Filter2D filter) {
+        return filter::getKernel;
+    }
+
+    private static Buffer2D random(int xsize, int ysize, Random random) {
+        Buffer2D buf = Buffer2D.arrange(xsize, ysize, Pancake.TYPE_FLOAT_64);
+        for (int i = 0; i < xsize * ysize; ++i) {
+            buf.getNioBuffer().putDouble(i * Double.BYTES, random.nextInt(1000));
+        }
+        return buf;
+    }
+
+    private static void assertBuffersEqual(Buffer2D expected, Buffer2D actual, String message) {
+        for (int y = 0; y < expected.ysize(); ++y) {
+            for (int x = 0; x < expected.xsize(); ++x) {
+                int pos = (y * expected.xsize() + x) * Double.BYTES;
+                assertEquals(expected.getNioBuffer().getDouble(pos), actual.getNioBuffer().getDouble(pos), 1e-6,
+                        message + ", sample " + x + ", " + y);
+            }
+        }
+    }
+
+    /**
+     * Images are not much greater than kernels, so that most samples are
+     * convolved with extrapolated border
+     */
+    private static void checkSeparableMatchesDense(Filter2D filter, Random random) {
+        assertTrue(filter.isSeparable());
+        int size = filter.getKernel().length;
+        Math2D math2d = new Math2D();
+        for (Integer[] imgsize : List.of(new Integer[] { size, size }, new Integer[] { size + 4, size / 2 + 1 },
+                new Integer[] { 2 * size + 1, 3 * size })) {
+            Buffer2D src = random(imgsize[0], imgsize[1], random);
+            Buffer2D separable = Buffer2D.arrange(imgsize[0], imgsize[1], Pancake.TYPE_FLOAT_64);
+            Buffer2D dense = Buffer2D.arrange(imgsize[0], imgsize[1], Pancake.TYPE_FLOAT_64);
+            math2d.convolve(src, filter, separable);
+            math2d.convolve(src, dense(filter), dense);
+            assertBuffersEqual(dense, separable, filter.getClass().getSimpleName() + " of size " + size
+                    + " on image " + imgsize[0] + "x" + imgsize[1]);
+        }
+    }
+
+    @Test
+    public void testSeparableGaussianMatchesDense() {
+        Random random = new Random(1);
+        for (int size : SIZES) {
+            checkSeparableMatchesDense(GaussianHP.ofSize(size), random);
+        }
+    }
+
+    @Test
+    public void testSeparableBoxMatchesDense() {
+        Random random = new Random(2);
+        for (int size : SIZES) {
+            checkSeparableMatchesDense(BoxHP.ofSize(size), random);
+        }
+    }
+
+    @Test
+    public void testSeparableMatchesDenseWithHalo() {
+        Random random = new Random(3);
+        Math2D math2d = new Math2D();
+        for (Filter2D filter : List.of(GaussianHP.ofSize(7), BoxHP.ofSize(7))) {
+            Buffer2D src = random(20, 17, random);
+            /** sub buffer touches top and right borders of parent, halo is partial on other sides */
+            Buffer2D roi = math2d.subBuffer(src, 11, 0, 9, 15);
+            Buffer2D separable = Buffer2D.arrange(9, 15, Pancake.TYPE_FLOAT_64);
+            Buffer2D dense = Buffer2D.arrange(9, 15, Pancake.TYPE_FLOAT_64);
+            math2d.convolveWithHalo(roi, filter, separable);
+            math2d.convolveWithHalo(roi, dense(filter), dense);
+            assertBuffersEqual(dense, separable, filter.getClass().getSimpleName() + " with halo");
+        }
+    }
+
+    @Test
+    public void testSeparableFormsSumToKernel() {
+        for (int size : SIZES) {
+            for (Filter2D filter : List.of(GaussianHP.ofSize(size), BoxHP.ofSize(size))) {
+                double[][] kernel = filter.getKernel();
+                double[] row = filter.getRowKernel();
+                double[] column = filter.getColumnKernel();
+                for (int y = 0; y < kernel.length; ++y) {
+                    for (int x = 0; x < kernel[y].length; ++x) {
+                        double delta = (y == kernel.length / 2 && x == kernel[y].length / 2) ? filter.getDelta() : 0;
+                        assertEquals(kernel[y][x], delta + column[y] * row[x], 1e-15,
+                                filter.getClass().getSimpleName() + " of size " + size + ", " + x + ", " + y);
+                    }
+                }
+            }
+        }
+    }
+}
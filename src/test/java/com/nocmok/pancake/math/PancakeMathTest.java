@@ -32,4 +32,21 @@ public class PancakeMathTest {
         assertEquals(0x00008000, PancakeMath.reverseNLeast(0x00000001, 16));
         assertEquals(0x00000001, PancakeMath.reverseNLeast(0x00008000, 16));
     }
+
+    @Test
+    public void testNextPow2() {
+        assertEquals(1, PancakeMath.nextPow2(1));
+        assertEquals(2, PancakeMath.nextPow2(2));
+        assertEquals(4, PancakeMath.nextPow2(3));
+        assertEquals(4096, PancakeMath.nextPow2(2049));
+    }
+
+    @Test
+    public void testNextSmooth() {
+        assertEquals(1, PancakeMath.nextSmooth(1));
+        assertEquals(6, PancakeMath.nextSmooth(6));
+        assertEquals(8, PancakeMath.nextSmooth(7));
+        assertEquals(270, PancakeMath.nextSmooth(257));
+        assertEquals(2160, PancakeMath.nextSmooth(2049));
+    }
 }
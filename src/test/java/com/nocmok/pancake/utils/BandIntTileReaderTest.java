@@ -0,0 +1,232 @@
+package com.nocmok.pancake.utils;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.nocmok.pancake.MemoryBand;
+import com.nocmok.pancake.Pancake;
+
+import org.junit.jupiter.api.Test;
+
+public class BandIntTileReaderTest {
+
+    private static final int[] INT_TYPES = { Pancake.TYPE_BYTE, Pancake.TYPE_INT_16, Pancake.TYPE_UINT_16,
+            Pancake.TYPE_INT_32, Pancake.TYPE_UINT_32 };
+
+    /** 7x5 band of random samples with 3x2 blocks, so that border blocks are narrower */
+    private static MemoryBand random(int datatype, long seed) {
+        MemoryBand band = new MemoryBand(7, 5, 3, 2, datatype);
+        Random random = new Random(seed);
+        for (int y = 0; y < band.getYSize(); ++y) {
+            for (int x = 0; x < band.getXSize(); ++x) {
+                band.setRaw(x, y, random.nextLong());
+            }
+        }
+        return band;
+    }
+
+    @Test
+    public void testGetSamplesMatchesPerSampleAccess() {
+        for (int nativeType : INT_TYPES) {
+            for (int readerType : INT_TYPES) {
+                BandIntTileReader reader = new BandIntTileReader(random(nativeType, nativeType), 3, 2, readerType);
+                int[] samples = null;
+                for (int blockY = 0; blockY < reader.getBlocksInCol(); ++blockY) {
+                    for (int blockX = 0; blockX < reader.getBlocksInRow(); ++blockX) {
+                        reader.cacheBlock(blockX, blockY);
+                        samples = reader.getSamples(samples);
+                        for (int i = 0; i < reader.blockXSize(blockX) * reader.blockYSize(blockY); ++i) {
+                            /** 32 bit samples are carried by their bits */
+                            assertEquals((int) reader.get(i), samples[i], "type " + nativeType + " read as "
+                                    + readerType + ", sample " + i);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testSetSamplesMatchesPerSampleAccess() {
+        for (int nativeType : INT_TYPES) {
+            for (int readerType : INT_TYPES) {
+                MemoryBand bulk = new MemoryBand(7, 5, 3, 2, nativeType);
+                MemoryBand perSample = new MemoryBand(7, 5, 3, 2, nativeType);
+                BandIntTileReader bulkReader = new BandIntTileReader(bulk, 3, 2, readerType);
+                BandIntTileReader perSampleReader = new BandIntTileReader(perSample, 3, 2, readerType);
+                Random random = new Random(nativeType * 31 + readerType);
+                long max = (long) Pancake.dtMax(readerType);
+                int[] samples = new int[6];
+                for (int blockY = 0; blockY < bulkReader.getBlocksInCol(); ++blockY) {
+                    for (int blockX = 0; blockX < bulkReader.getBlocksInRow(); ++blockX) {
+                        bulkReader.cacheBlock(blockX, blockY);
+                        perSampleReader.cacheBlock(blockX, blockY);
+                        for (int i = 0; i < bulkReader.blockXSize(blockX) * bulkReader.blockYSize(blockY); ++i) {
+                            long value = (long) (random.nextDouble() * max);
+                            samples[i] = (int) value;
+                            perSampleReader.set(i, value);
+                        }
+                        bulkReader.setSamples(samples);
+                    }
+                }
+                bulkReader.flushCache();
+                perSampleReader.flushCache();
+                for (int y = 0; y < bulk.getYSize(); ++y) {
+                    for (int x = 0; x < bulk.getXSize(); ++x) {
+                        assertEquals(perSample.getRaw(x, y), bulk.getRaw(x, y), "type " + readerType
+                                + " written as " + nativeType + ", sample " + x + ", " + y);
+                    }
+                }
+            }
+        }
+    }
+
+    /** @return window of block of 3x2 blocks grid of 7x5 band */
+    private static List<Integer> block(int blockX, int blockY) {
+        return MemoryBand.window(new Rectangle(blockX * 3, blockY * 2, 3, 2).intersection(new Rectangle(0, 0, 7, 5)));
+    }
+
+    private static int count(List<List<Integer>> windows, List<Integer> window) {
+        return Collections.frequency(windows, window);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedBlockIsEvicted() {
+        MemoryBand band = random(Pancake.TYPE_BYTE, 1);
+        BandIntTileReader reader = new BandIntTileReader(band, 3, 2);
+        reader.setCacheSize(2);
+
+        reader.cacheBlock(0, 0);
+        reader.cacheBlock(1, 0);
+        reader.cacheBlock(0, 0);
+        reader.cacheBlock(2, 0);
+        assertEquals(1, count(band.reads(), block(0, 0)));
+
+        /** (1, 0) was least recently used, so it was evicted and is read again */
+        reader.cacheBlock(0, 0);
+        reader.cacheBlock(1, 0);
+        assertEquals(1, count(band.reads(), block(0, 0)));
+        assertEquals(2, count(band.reads(), block(1, 0)));
+        assertEquals(1, count(band.reads(), block(2, 0)));
+        assertTrue(band.writes().isEmpty());
+    }
+
+    @Test
+    public void testDirtyBlockIsWrittenOnceOnEviction() {
+        MemoryBand band = random(Pancake.TYPE_UINT_16, 2);
+        BandIntTileReader reader = new BandIntTileReader(band, 3, 2);
+        reader.setCacheSize(2);
+
+        reader.set(4, 1, 12345);
+        reader.cacheBlock(0, 0);
+        reader.cacheBlock(2, 0);
+        assertEquals(List.of(block(1, 0)), band.writes());
+        assertEquals(12345, band.getRaw(4, 1));
+
+        reader.flushCache();
+        assertEquals(List.of(block(1, 0)), band.writes());
+
+        /** evicted block is read back with modification */
+        assertEquals(12345, reader.get(4, 1));
+    }
+
+    @Test
+    public void testDirtyBlocksAreWrittenOnceOnFlush() {
+        MemoryBand band = random(Pancake.TYPE_UINT_16, 3);
+        BandIntTileReader reader = new BandIntTileReader(band, 3, 2);
+        reader.setCacheSize(4);
+
+        reader.set(0, 0, 1);
+        reader.set(6, 4, 2);
+        reader.get(3, 2);
+        reader.flushCache();
+        assertEquals(2, band.writes().size());
+        assertEquals(1, count(band.writes(), block(0, 0)));
+        assertEquals(1, count(band.writes(), block(2, 2)));
+        assertEquals(1, band.getRaw(0, 0));
+        assertEquals(2, band.getRaw(6, 4));
+
+        /** blocks are clean after flush */
+        reader.flushCache();
+        assertEquals(2, band.writes().size());
+    }
+
+    @Test
+    public void testShrinkingCacheWritesEvictedBlocks() {
+        MemoryBand band = random(Pancake.TYPE_BYTE, 4);
+        BandIntTileReader reader = new BandIntTileReader(band, 3, 2);
+        reader.setCacheSize(3);
+
+        reader.set(0, 0, 10);
+        reader.set(3, 0, 20);
+        reader.set(6, 0, 30);
+        assertTrue(band.writes().isEmpty());
+
+        reader.setCacheSize(1);
+        assertEquals(List.of(block(0, 0), block(1, 0)), band.writes());
+        assertArrayEquals(new int[] { 2, 0 }, reader.getBlockInCache());
+
+        reader.flushCache();
+        assertEquals(List.of(block(0, 0), block(1, 0), block(2, 0)), band.writes());
+        assertEquals(10, band.getRaw(0, 0));
+        assertEquals(20, band.getRaw(3, 0));
+        assertEquals(30, band.getRaw(6, 0));
+    }
+
+    @Test
+    public void testPrefetchedBlockDoesNotEvictCurrentOnFlush() {
+        MemoryBand band = random(Pancake.TYPE_UINT_16, 5);
+        BandIntTileReader reader = new BandIntTileReader(band, 3, 2);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            reader.setCacheSize(1);
+            reader.setPrefetch(executor);
+
+            reader.cacheBlock(0, 0);
+            reader.set(0, 7);
+            /** full cache holds only current block, so prefetched (1, 0) is dropped */
+            reader.flushCache();
+            assertArrayEquals(new int[] { 0, 0 }, reader.getBlockInCache());
+            assertEquals(7, reader.get(0));
+            assertEquals(List.of(block(0, 0)), band.writes());
+            assertEquals(1, count(band.reads(), block(1, 0)));
+
+            reader.setPrefetch(null);
+            reader.cacheBlock(1, 0);
+            assertEquals(2, count(band.reads(), block(1, 0)));
+            assertEquals(7, band.getRaw(0, 0));
+            assertEquals(1, count(band.writes(), block(0, 0)));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testPrefetchedBlockIsUsedByNextAccess() {
+        MemoryBand band = random(Pancake.TYPE_UINT_16, 6);
+        long expected = band.getRaw(3, 0);
+        BandIntTileReader reader = new BandIntTileReader(band, 3, 2);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            reader.setCacheSize(1);
+            reader.setPrefetch(executor);
+
+            reader.set(0, 0, 9);
+            reader.cacheBlock(1, 0);
+            assertEquals(expected, reader.get(0));
+            assertEquals(1, count(band.reads(), block(1, 0)));
+            assertEquals(List.of(block(0, 0)), band.writes());
+            assertEquals(9, band.getRaw(0, 0));
+
+            reader.flushCache();
+            assertEquals(List.of(block(0, 0)), band.writes());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
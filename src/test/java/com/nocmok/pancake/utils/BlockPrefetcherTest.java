@@ -0,0 +1,132 @@
+package com.nocmok.pancake.utils;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.stream.Collectors;
+
+import com.nocmok.pancake.MemoryBand;
+import com.nocmok.pancake.Pancake;
+
+import org.junit.jupiter.api.Test;
+
+public class BlockPrefetcherTest {
+
+    private static final int XSIZE = 13;
+
+    private static final int YSIZE = 10;
+
+    private static MemoryBand random(int datatype, Random random) {
+        MemoryBand band = new MemoryBand(XSIZE, YSIZE, 4, 4, datatype);
+        for (int y = 0; y < YSIZE; ++y) {
+            for (int x = 0; x < XSIZE; ++x) {
+                band.setRaw(x, y, random.nextLong());
+            }
+        }
+        return band;
+    }
+
+    private static List<List<Integer>> windows(List<Rectangle> blocks) {
+        return blocks.stream().map(MemoryBand::window).collect(Collectors.toList());
+    }
+
+    private static long sample(ByteBuffer buf, int datatype, int i) {
+        switch (Pancake.dtBytes(datatype)) {
+        case 1:
+            return Byte.toUnsignedLong(buf.get(i));
+        case 2:
+            return Short.toUnsignedLong(buf.getShort(2 * i));
+        default:
+            return Integer.toUnsignedLong(buf.getInt(4 * i));
+        }
+    }
+
+    @Test
+    public void testGridIsRowMajorAndClippedToArea() {
+        List<Rectangle> blocks = BlockPrefetcher.grid(new Rectangle(3, 2, 10, 7), Shape.of(4, 4));
+        List<List<Integer>> expected = List.of(Arrays.asList(3, 2, 1, 2), Arrays.asList(4, 2, 4, 2),
+                Arrays.asList(8, 2, 4, 2), Arrays.asList(12, 2, 1, 2), Arrays.asList(3, 4, 1, 4),
+                Arrays.asList(4, 4, 4, 4), Arrays.asList(8, 4, 4, 4), Arrays.asList(12, 4, 1, 4),
+                Arrays.asList(3, 8, 1, 1), Arrays.asList(4, 8, 4, 1), Arrays.asList(8, 8, 4, 1),
+                Arrays.asList(12, 8, 1, 1));
+        assertEquals(expected, windows(blocks));
+    }
+
+    @Test
+    public void testEmptyGrid() {
+        assertTrue(BlockPrefetcher.grid(new Rectangle(3, 2, 0, 7), Shape.of(4, 4)).isEmpty());
+        try (BlockPrefetcher prefetcher = new BlockPrefetcher(List.of(random(Pancake.TYPE_BYTE, new Random(0))),
+                List.of(Pancake.TYPE_BYTE), new ArrayList<>())) {
+            assertFalse(prefetcher.hasNext());
+            assertThrows(NoSuchElementException.class, prefetcher::next);
+        }
+    }
+
+    @Test
+    public void testBlocksAreReadInOrderWithSkippedBands() {
+        Random random = new Random(1);
+        List<MemoryBand> bands = Arrays.asList(random(Pancake.TYPE_BYTE, random), null,
+                random(Pancake.TYPE_UINT_16, random), null, random(Pancake.TYPE_INT_32, random));
+        List<Integer> datatypes = Arrays.asList(Pancake.TYPE_BYTE, Pancake.TYPE_BYTE, Pancake.TYPE_UINT_16,
+                Pancake.TYPE_UINT_16, Pancake.TYPE_INT_32);
+        List<Rectangle> blocks = BlockPrefetcher.grid(new Rectangle(1, 3, 12, 7), Shape.of(5, 3));
+
+        List<Rectangle> visited = new ArrayList<>();
+        try (BlockPrefetcher prefetcher = new BlockPrefetcher(bands, datatypes, blocks)) {
+            while (prefetcher.hasNext()) {
+                Rectangle block = prefetcher.next();
+                visited.add(block);
+                for (int i = 0; i < bands.size(); ++i) {
+                    if (bands.get(i) == null) {
+                        assertNull(prefetcher.buffer(i), "band " + i + " is skipped");
+                        continue;
+                    }
+                    for (int y = 0; y < block.ySize(); ++y) {
+                        for (int x = 0; x < block.xSize(); ++x) {
+                            assertEquals(bands.get(i).getRaw(block.x0() + x, block.y0() + y),
+                                    sample(prefetcher.buffer(i), datatypes.get(i), y * block.xSize() + x),
+                                    "band " + i + ", sample " + (block.x0() + x) + ", " + (block.y0() + y));
+                        }
+                    }
+                }
+            }
+            assertThrows(NoSuchElementException.class, prefetcher::next);
+        }
+        assertEquals(windows(blocks), windows(visited));
+        for (MemoryBand band : bands) {
+            if (band != null) {
+                assertEquals(windows(blocks), band.reads());
+            }
+        }
+    }
+
+    @Test
+    public void testReadFailureIsRethrown() {
+        RuntimeException error = new RuntimeException("read failed");
+        List<Rectangle> blocks = BlockPrefetcher.grid(new Rectangle(0, 0, XSIZE, YSIZE), Shape.of(8, 8));
+        MemoryBand failing = new MemoryBand(XSIZE, YSIZE, 8, 8, Pancake.TYPE_BYTE) {
+
+            /** fails on second block, which is prefetched */
+            @Override
+            public synchronized int readRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize,
+                    int buf_ysize, int buf_type, ByteBuffer nioBuffer, int nPixelSpace, int nLineSpace) {
+                if (xoff > 0) {
+                    throw error;
+                }
+                return super.readRasterDirect(xoff, yoff, xsize, ysize, buf_xsize, buf_ysize, buf_type, nioBuffer,
+                        nPixelSpace, nLineSpace);
+            }
+        };
+        try (BlockPrefetcher prefetcher = new BlockPrefetcher(List.of(failing), List.of(Pancake.TYPE_BYTE),
+                blocks)) {
+            assertEquals(MemoryBand.window(blocks.get(0)), MemoryBand.window(prefetcher.next()));
+            RuntimeException e = assertThrows(RuntimeException.class, prefetcher::next);
+            assertSame(error, e.getCause());
+        }
+    }
+}
@@ -0,0 +1,124 @@
+package com.nocmok.pancake.utils;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import com.nocmok.pancake.Pancake;
+import com.nocmok.pancake.utils.HistogramMatching.HistogramBinned;
+import com.nocmok.pancake.utils.HistogramMatching.LookupBinned;
+
+import org.junit.jupiter.api.Test;
+
+public class HistogramMatchingTest {
+
+    /** Histogram with count samples of each value, that is step apart in [min, max] */
+    private static HistogramBinned uniform(int dtype, double min, double max, int bins, double step, int count) {
+        HistogramBinned hist = new HistogramBinned(dtype, min, max, bins);
+        for (double value = min; value <= max; value += step) {
+            hist.add(value, count);
+        }
+        return hist;
+    }
+
+    @Test
+    public void testIntegerBins() {
+        HistogramBinned hist = new HistogramBinned(Pancake.TYPE_UINT_32, 0, 99, 10);
+        assertEquals(10d, hist.binWidth());
+        assertEquals(0, hist.bin(5));
+        assertEquals(9, hist.bin(99));
+        assertEquals(0, hist.bin(-3));
+        assertEquals(9, hist.bin(1000));
+        assertEquals(4.5, hist.binValue(0));
+        assertEquals(94.5, hist.binValue(9));
+
+        hist.add(5d, 2);
+        hist.add(15d, 3);
+        assertEquals(2, hist.count(0));
+        assertEquals(3, hist.count(1));
+        assertEquals(5, hist.total());
+    }
+
+    @Test
+    public void testNarrowIntegerRangeGetsBinPerValue() {
+        HistogramBinned hist = new HistogramBinned(Pancake.TYPE_INT_32, 0, 3, 10);
+        assertEquals(1d, hist.binWidth());
+        for (int value = 0; value <= 3; ++value) {
+            assertEquals(value, hist.bin(value));
+            assertEquals(value, hist.binValue(value));
+        }
+    }
+
+    @Test
+    public void testFloatBins() {
+        HistogramBinned hist = new HistogramBinned(Pancake.TYPE_FLOAT_32, 0, 1, 4);
+        assertEquals(0.25, hist.binWidth());
+        assertEquals(0.375, hist.binValue(1));
+        assertEquals(1, hist.bin(0.3));
+        assertEquals(3, hist.bin(1));
+    }
+
+    @Test
+    public void testLookupInterpolatesBetweenBinValues() {
+        HistogramBinned hist = new HistogramBinned(Pancake.TYPE_FLOAT_32, 0, 1, 4);
+        LookupBinned lookup = new LookupBinned(hist);
+        for (int bin = 0; bin < 4; ++bin) {
+            lookup.set(bin, 10d * bin);
+        }
+        assertEquals(0d, lookup.get(0.125), 1e-9);
+        assertEquals(5d, lookup.get(0.25), 1e-9);
+        assertEquals(25d, lookup.get(0.75), 1e-9);
+        assertEquals(0d, lookup.get(-1d), 1e-9);
+        assertEquals(30d, lookup.get(2d), 1e-9);
+        assertTrue(Double.isNaN(lookup.get(Double.NaN)));
+    }
+
+    @Test
+    public void testLookupOfEqualDistributionsIsIdentity() {
+        HistogramBinned src = uniform(Pancake.TYPE_FLOAT_32, 0, 1, 64, 1d / 1024, 1);
+        // reference band is larger, quantiles don't depend on totals
+        HistogramBinned ref = uniform(Pancake.TYPE_FLOAT_32, 0, 1, 64, 1d / 1024, 4);
+        LookupBinned lookup = HistogramMatching.getLookupTableBinned(src, ref);
+        for (int bin = 0; bin < src.size(); ++bin) {
+            assertEquals(src.binValue(bin), lookup.get(src.binValue(bin)), src.binWidth());
+        }
+    }
+
+    @Test
+    public void testLookupOfEmptyHistogramIsIdentity() {
+        HistogramBinned src = uniform(Pancake.TYPE_FLOAT_32, 0, 1, 16, 1d / 256, 1);
+        HistogramBinned ref = new HistogramBinned(Pancake.TYPE_FLOAT_32, 0, 1, 16);
+        LookupBinned lookup = HistogramMatching.getLookupTableBinned(src, ref);
+        for (int bin = 0; bin < src.size(); ++bin) {
+            assertEquals(src.binValue(bin), lookup.get(src.binValue(bin)), 1e-9);
+        }
+    }
+
+    @Test
+    public void testFloatReferenceIsScaledToIntegerRange() {
+        HistogramBinned src = uniform(Pancake.TYPE_BYTE, 0, 255, 256, 1, 1);
+        HistogramBinned ref = uniform(Pancake.TYPE_FLOAT_32, 0, 1, 256, 1d / 4096, 1);
+        LookupBinned lookup = HistogramMatching.getLookupTableBinned(src, ref);
+        for (int value = 0; value <= 255; value += 15) {
+            assertEquals(value, lookup.get((double) value), 2d);
+        }
+    }
+
+    @Test
+    public void testIntegerReferenceIsScaledToLargerIntegerRange() {
+        double srcMax = Pancake.dtMax(Pancake.TYPE_INT_32);
+        HistogramBinned src = uniform(Pancake.TYPE_INT_32, 0, srcMax, 1024, srcMax / 8192, 1);
+        HistogramBinned ref = uniform(Pancake.TYPE_UINT_16, 0, 65535, 1024, 1, 1);
+        LookupBinned lookup = HistogramMatching.getLookupTableBinned(src, ref);
+        assertEquals(srcMax / 2, lookup.get(srcMax / 2), srcMax / 100);
+        assertEquals(srcMax, lookup.get(srcMax), srcMax / 100);
+    }
+
+    @Test
+    public void testLookupMatchesShiftedDistribution() {
+        // src samples are in lower half of range, reference ones are spread over whole range
+        HistogramBinned src = uniform(Pancake.TYPE_FLOAT_32, 0, 0.5, 64, 1d / 2048, 1);
+        HistogramBinned ref = uniform(Pancake.TYPE_FLOAT_32, 0, 1, 64, 1d / 2048, 1);
+        LookupBinned lookup = HistogramMatching.getLookupTableBinned(src, ref);
+        assertEquals(0.5, lookup.get(0.25), 0.02);
+        assertEquals(1d, lookup.get(0.5), 0.02);
+    }
+}
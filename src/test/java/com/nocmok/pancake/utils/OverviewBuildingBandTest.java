@@ -0,0 +1,288 @@
+package com.nocmok.pancake.utils;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.nocmok.pancake.Pancake;
+import com.nocmok.pancake.PancakeBand;
+import com.nocmok.pancake.PancakeDataset;
+
+import org.junit.jupiter.api.Test;
+
+public class OverviewBuildingBandTest {
+
+    private static final int[] FACTORS = { 2, 4, 8 };
+
+    /** UInt16 band, that keeps samples in memory, reads and writes only Float64 buffers */
+    private static class MemoryBand implements PancakeBand {
+
+        final double[] data;
+
+        final int xsize;
+
+        final int ysize;
+
+        final int blockSize;
+
+        /** whether sample may be written more than once */
+        final boolean rewrite;
+
+        long samplesRead = 0;
+
+        MemoryBand(int xsize, int ysize, int blockSize, boolean rewrite) {
+            this.xsize = xsize;
+            this.ysize = ysize;
+            this.blockSize = blockSize;
+            this.rewrite = rewrite;
+            this.data = new double[xsize * ysize];
+            Arrays.fill(data, Double.NaN);
+        }
+
+        @Override
+        public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize,
+                int buf_type, ByteBuffer nioBuffer) {
+            assertEquals(Pancake.TYPE_FLOAT_64, buf_type);
+            samplesRead += (long) xsize * ysize;
+            ByteBuffer buf = nioBuffer.duplicate().order(ByteOrder.nativeOrder());
+            for (int y = 0; y < ysize; ++y) {
+                for (int x = 0; x < xsize; ++x) {
+                    buf.putDouble(8 * (y * xsize + x), data[(yoff + y) * this.xsize + xoff + x]);
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize,
+                int buf_type, ByteBuffer nioBuffer, int nPixelSpace, int nLineSpace) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize,
+                ByteBuffer nioBuffer) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int readRasterDirect(int xoff, int yoff, int xsize, int ysize, ByteBuffer nioBuffer) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize,
+                int buf_type, ByteBuffer nioBuffer) {
+            assertEquals(Pancake.TYPE_FLOAT_64, buf_type);
+            ByteBuffer buf = nioBuffer.duplicate().order(ByteOrder.nativeOrder());
+            for (int y = 0; y < ysize; ++y) {
+                for (int x = 0; x < xsize; ++x) {
+                    int pos = (yoff + y) * this.xsize + xoff + x;
+                    assertTrue(rewrite || Double.isNaN(data[pos]), "sample written twice");
+                    data[pos] = Math.rint(buf.getDouble(8 * (y * xsize + x)));
+                }
+            }
+            return 0;
+        }
+
+        @Override
+        public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize,
+                int buf_type, ByteBuffer nioBuffer, int nPixelSpace, int nLineSpace) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, int buf_xsize, int buf_ysize,
+                ByteBuffer nioBuffer) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int writeRasterDirect(int xoff, int yoff, int xsize, int ysize, ByteBuffer nioBuffer) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int getXSize() {
+            return xsize;
+        }
+
+        @Override
+        public int getYSize() {
+            return ysize;
+        }
+
+        @Override
+        public int getBlockXSize() {
+            return blockSize;
+        }
+
+        @Override
+        public int getBlockYSize() {
+            return blockSize;
+        }
+
+        @Override
+        public int getRasterDatatype() {
+            return Pancake.TYPE_UINT_16;
+        }
+
+        @Override
+        public double getNoData() {
+            return 0;
+        }
+
+        @Override
+        public double maxValue() {
+            return Pancake.dtMax(Pancake.TYPE_UINT_16);
+        }
+
+        @Override
+        public double minValue() {
+            return 0;
+        }
+
+        @Override
+        public PancakeDataset dataset() {
+            return null;
+        }
+    }
+
+    /**
+     * Writes random band block by block in shuffled order, skipping each block
+     * with given probability, and compares overviews with averages of written
+     * band samples
+     * 
+     * @param tolerance difference allowed, as levels built from finer level
+     *                  average rounded samples
+     * @return wrapped band
+     */
+    private MemoryBand check(int xsize, int ysize, int blockSize, int overviewBlockSize, Long limit,
+            double skipProbability, double tolerance, Random random) {
+        MemoryBand band = new MemoryBand(xsize, ysize, blockSize, false);
+        List<PancakeBand> overviews = new ArrayList<>();
+        for (int factor : FACTORS) {
+            overviews.add(new MemoryBand((xsize + factor - 1) / factor, (ysize + factor - 1) / factor,
+                    overviewBlockSize, true));
+        }
+        OverviewBuildingBand builder = (limit == null) ? new OverviewBuildingBand(band, overviews, FACTORS)
+                : new OverviewBuildingBand(band, overviews, FACTORS, limit);
+
+        double[] src = new double[xsize * ysize];
+        for (int i = 0; i < src.length; ++i) {
+            src[i] = random.nextInt(65536);
+        }
+        boolean[] written = new boolean[xsize * ysize];
+        List<Rectangle> blocks = new ArrayList<>();
+        for (int y = 0; y < ysize; y += blockSize) {
+            for (int x = 0; x < xsize; x += blockSize) {
+                blocks.add(new Rectangle(x, y, Integer.min(blockSize, xsize - x), Integer.min(blockSize, ysize - y)));
+            }
+        }
+        Collections.shuffle(blocks, random);
+        for (Rectangle block : blocks) {
+            if (random.nextDouble() < skipProbability) {
+                continue;
+            }
+            ByteBuffer buf = ByteBuffer.allocateDirect(8 * block.xSize() * block.ySize())
+                    .order(ByteOrder.nativeOrder());
+            for (int y = 0; y < block.ySize(); ++y) {
+                for (int x = 0; x < block.xSize(); ++x) {
+                    int pos = (block.y0() + y) * xsize + block.x0() + x;
+                    buf.putDouble(8 * (y * block.xSize() + x), src[pos]);
+                    written[pos] = true;
+                }
+            }
+            builder.writeRasterDirect(block.x0(), block.y0(), block.xSize(), block.ySize(), block.xSize(),
+                    block.ySize(), Pancake.TYPE_FLOAT_64, buf);
+        }
+        builder.finish();
+
+        for (int level = 0; level < FACTORS.length; ++level) {
+            int factor = FACTORS[level];
+            MemoryBand overview = (MemoryBand) overviews.get(level);
+            for (int oy = 0; oy < overview.ysize; ++oy) {
+                for (int ox = 0; ox < overview.xsize; ++ox) {
+                    double sum = 0;
+                    int count = 0;
+                    for (int y = oy * factor; y < Integer.min(ysize, (oy + 1) * factor); ++y) {
+                        for (int x = ox * factor; x < Integer.min(xsize, (ox + 1) * factor); ++x) {
+                            if (written[y * xsize + x]) {
+                                sum += src[y * xsize + x];
+                                ++count;
+                            }
+                        }
+                    }
+                    double actual = overview.data[oy * overview.xsize + ox];
+                    if (count == 0) {
+                        // blocks, that cover no written samples, are not written at all
+                        assertTrue(Double.isNaN(actual) || actual == 0d,
+                                "level " + level + " sample " + ox + ", " + oy);
+                    } else {
+                        assertEquals(Math.rint(sum / count), actual, tolerance,
+                                "level " + level + " sample " + ox + ", " + oy);
+                    }
+                }
+            }
+        }
+        return band;
+    }
+
+    @Test
+    public void testUnlimited() {
+        Random random = new Random(1);
+        for (int trial = 0; trial < 30; ++trial) {
+            check(1 + random.nextInt(90), 1 + random.nextInt(90), 1 + random.nextInt(20), 1 + random.nextInt(10),
+                    null, 0d, 0d, random);
+        }
+    }
+
+    @Test
+    public void testPartiallyWrittenBand() {
+        Random random = new Random(3);
+        for (int trial = 0; trial < 30; ++trial) {
+            check(1 + random.nextInt(90), 1 + random.nextInt(90), 1 + random.nextInt(20), 1 + random.nextInt(10),
+                    null, 0.3, 0d, random);
+        }
+    }
+
+    @Test
+    public void testLevelsOverLimitAreBuiltFromFinerLevel() {
+        Random random = new Random(2);
+        for (int trial = 0; trial < 30; ++trial) {
+            MemoryBand band = check(1 + random.nextInt(90), 1 + random.nextInt(90), 1 + random.nextInt(20),
+                    1 + random.nextInt(10), (long) random.nextInt(2000), 0d, 1d, random);
+            assertTrue(band.samplesRead <= (long) band.xsize * band.ysize, "band is read more than once");
+        }
+    }
+
+    @Test
+    public void testBandIsReadOnceWhenNoLevelFits() {
+        MemoryBand band = check(61, 47, 8, 4, 0L, 0d, 1d, new Random(4));
+        assertEquals(61L * 47, band.samplesRead);
+    }
+
+    @Test
+    public void testFinestLevelIsKeptWhenCoarseLevelsAreDeferred() {
+        List<PancakeBand> overviews = new ArrayList<>();
+        for (int factor : FACTORS) {
+            overviews.add(new MemoryBand((64 + factor - 1) / factor, (64 + factor - 1) / factor, 4, true));
+        }
+        long finest = OverviewBuildingBand.stripBytes(overviews.subList(0, 1));
+        Random random = new Random(5);
+        MemoryBand band = check(64, 64, 8, 4, finest, 0d, 1d, random);
+        assertEquals(0L, band.samplesRead);
+    }
+
+    @Test
+    public void testStripBytes() {
+        List<PancakeBand> overviews = List.of(new MemoryBand(100, 30, 16, true), new MemoryBand(50, 15, 16, true));
+        assertEquals(2 * 7 * 16 * 16 * 12 + 2 * 4 * 16 * 16 * 12, OverviewBuildingBand.stripBytes(overviews));
+    }
+}